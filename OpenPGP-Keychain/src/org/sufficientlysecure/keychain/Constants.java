@@ -52,6 +52,14 @@ public final class Constants {
         public static final String LANGUAGE = "language";
         public static final String FORCE_V3_SIGNATURES = "forceV3Signatures";
         public static final String KEY_SERVERS = "keyServers";
+        public static final String KEY_SERVER_STATS = "keyServerStats";
+        public static final String KEY_REFRESH = "keyRefresh";
+        public static final String KEY_REFRESH_POSITION = "keyRefreshPosition";
+        public static final String KEY_REFRESH_LAST_COMPLETED = "keyRefreshLastCompleted";
+        public static final String KEY_POOL = "keyPool";
+        public static final String KEY_POOL_DEPTH = "keyPoolDepth";
+        public static final String S2K_BYTES_PER_MILLIS = "s2kBytesPerMillis";
+        public static final String S2K_CALIBRATION_BUILD = "s2kCalibrationBuild";
     }
 
     public static final class defaults {
@@ -173,6 +173,7 @@ public final class Id {
 
         public static final class compression {
             public static final int none = 0x21070001;
+            public static final int auto = 0x21070002;
             public static final int zlib = CompressionAlgorithmTags.ZLIB;
             public static final int bzip2 = CompressionAlgorithmTags.BZIP2;
             public static final int zip = CompressionAlgorithmTags.ZIP;
@@ -198,6 +199,7 @@ public final class Id {
         public static final int no_master_key = -2;
         public static final int updated = 1;
         public static final int bad = -3;
+        public static final int unchanged = 2;
     }
 
     public static final class target {
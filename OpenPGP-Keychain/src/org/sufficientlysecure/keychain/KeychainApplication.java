@@ -22,6 +22,9 @@ import java.security.Provider;
 import java.security.Security;
 
 import org.spongycastle.jce.provider.BouncyCastleProvider;
+import org.sufficientlysecure.keychain.helper.Preferences;
+import org.sufficientlysecure.keychain.service.KeyPairPoolService;
+import org.sufficientlysecure.keychain.service.KeyRefreshService;
 import org.sufficientlysecure.keychain.util.Log;
 import org.sufficientlysecure.keychain.util.PRNGFixes;
 
@@ -70,5 +73,13 @@ public class KeychainApplication extends Application {
                 // that the directory doesn't exist at this point
             }
         }
+
+        // keep the alarm of the key refresh set, it is lost on reboot and on app updates
+        KeyRefreshService.schedule(this);
+
+        // refill the pool of pre-generated key pairs if the process was killed while filling it
+        if (Preferences.getPreferences(this).getKeyPool()) {
+            KeyPairPoolService.update(this);
+        }
     }
 }
@@ -22,8 +22,10 @@ import org.spongycastle.openpgp.PGPEncryptedData;
 import org.sufficientlysecure.keychain.Constants;
 import org.sufficientlysecure.keychain.Id;
 
+import android.annotation.TargetApi;
 import android.content.Context;
 import android.content.SharedPreferences;
+import android.os.Build;
 
 import java.util.Vector;
 
@@ -169,4 +171,122 @@ public class Preferences {
         editor.putString(Constants.pref.KEY_SERVERS, rawData);
         editor.commit();
     }
+
+    /**
+     * @return statistics of the keyservers as JSON, see KeyServerPool, null if there are none
+     */
+    public String getKeyServerStats() {
+        return mSharedPreferences.getString(Constants.pref.KEY_SERVER_STATS, null);
+    }
+
+    /**
+     * Written asynchronously where the platform supports it, the statistics are not worth
+     * blocking the calling thread
+     *
+     * @param value
+     */
+    @TargetApi(Build.VERSION_CODES.GINGERBREAD)
+    public void setKeyServerStats(String value) {
+        SharedPreferences.Editor editor = mSharedPreferences.edit();
+        editor.putString(Constants.pref.KEY_SERVER_STATS, value);
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.GINGERBREAD) {
+            editor.apply();
+        } else {
+            editor.commit();
+        }
+    }
+
+    public boolean getKeyRefresh() {
+        return mSharedPreferences.getBoolean(Constants.pref.KEY_REFRESH, false);
+    }
+
+    public void setKeyRefresh(boolean value) {
+        SharedPreferences.Editor editor = mSharedPreferences.edit();
+        editor.putBoolean(Constants.pref.KEY_REFRESH, value);
+        editor.commit();
+    }
+
+    /**
+     * @return master key id of the last key ring refreshed by the running refresh, null if no
+     *         refresh is running
+     */
+    public Long getKeyRefreshPosition() {
+        if (!mSharedPreferences.contains(Constants.pref.KEY_REFRESH_POSITION)) {
+            return null;
+        }
+        return mSharedPreferences.getLong(Constants.pref.KEY_REFRESH_POSITION, 0);
+    }
+
+    public void setKeyRefreshPosition(Long value) {
+        SharedPreferences.Editor editor = mSharedPreferences.edit();
+        if (value == null) {
+            editor.remove(Constants.pref.KEY_REFRESH_POSITION);
+        } else {
+            editor.putLong(Constants.pref.KEY_REFRESH_POSITION, value);
+        }
+        editor.commit();
+    }
+
+    /**
+     * @return time the last refresh of all key rings completed, 0 if none did
+     */
+    public long getKeyRefreshLastCompleted() {
+        return mSharedPreferences.getLong(Constants.pref.KEY_REFRESH_LAST_COMPLETED, 0);
+    }
+
+    public void setKeyRefreshLastCompleted(long value) {
+        SharedPreferences.Editor editor = mSharedPreferences.edit();
+        editor.putLong(Constants.pref.KEY_REFRESH_LAST_COMPLETED, value);
+        editor.commit();
+    }
+
+    public boolean getKeyPool() {
+        return mSharedPreferences.getBoolean(Constants.pref.KEY_POOL, false);
+    }
+
+    public void setKeyPool(boolean value) {
+        SharedPreferences.Editor editor = mSharedPreferences.edit();
+        editor.putBoolean(Constants.pref.KEY_POOL, value);
+        editor.commit();
+    }
+
+    /**
+     * @return number of key pairs to pre-generate, two cover the master key and the subkey of a
+     *         new default key
+     */
+    public int getKeyPoolDepth() {
+        return mSharedPreferences.getInt(Constants.pref.KEY_POOL_DEPTH, 2);
+    }
+
+    public void setKeyPoolDepth(int value) {
+        SharedPreferences.Editor editor = mSharedPreferences.edit();
+        editor.putInt(Constants.pref.KEY_POOL_DEPTH, value);
+        editor.commit();
+    }
+
+    /**
+     * @return S2K hashing speed measured on this device, 0 if not measured
+     */
+    public long getS2kBytesPerMillis() {
+        return mSharedPreferences.getLong(Constants.pref.S2K_BYTES_PER_MILLIS, 0);
+    }
+
+    public void setS2kBytesPerMillis(long value) {
+        SharedPreferences.Editor editor = mSharedPreferences.edit();
+        editor.putLong(Constants.pref.S2K_BYTES_PER_MILLIS, value);
+        editor.commit();
+    }
+
+    /**
+     * @return build fingerprint of the device the S2K speed was measured on
+     */
+    public String getS2kCalibrationBuild() {
+        return mSharedPreferences.getString(Constants.pref.S2K_CALIBRATION_BUILD, null);
+    }
+
+    public void setS2kCalibrationBuild(String value) {
+        SharedPreferences.Editor editor = mSharedPreferences.edit();
+        editor.putString(Constants.pref.S2K_CALIBRATION_BUILD, value);
+        editor.commit();
+    }
 }
@@ -0,0 +1,87 @@
+/*
+ * Copyright (C) 2013 Dominik Schürmann <dominik@dominikschuermann.de>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.pgp;
+
+/**
+ * CRC-24 of the ASCII armor, see RFC 4880, 6.1, computing four bytes per step with four lookup
+ * tables instead of one bit at a time like org.spongycastle.bcpg.CRC24.
+ *
+ * The 24 bit register is kept in the upper bits of an int, so that the tables are indexed by
+ * whole bytes of it without masking the polynomial.
+ */
+class Crc24 {
+    private static final int INIT = 0xb704ce;
+    private static final int POLY = 0x864cfb;
+
+    // TABLES[k][b] is the register b << 24 after 8 * (k + 1) shifts
+    private static final int[][] TABLES = createTables();
+
+    private int mCrc = INIT << 8;
+
+    private static int[][] createTables() {
+        int[][] tables = new int[4][256];
+        for (int b = 0; b < 256; ++b) {
+            int crc = b << 24;
+            for (int bit = 0; bit < 8; ++bit) {
+                crc = (crc < 0) ? (crc << 1) ^ (POLY << 8) : crc << 1;
+            }
+            tables[0][b] = crc;
+        }
+        for (int k = 1; k < 4; ++k) {
+            for (int b = 0; b < 256; ++b) {
+                int crc = tables[k - 1][b];
+                tables[k][b] = (crc << 8) ^ tables[0][crc >>> 24];
+            }
+        }
+        return tables;
+    }
+
+    public void update(int b) {
+        mCrc = (mCrc << 8) ^ TABLES[0][((mCrc >>> 24) ^ b) & 0xff];
+    }
+
+    public void update(byte[] b, int off, int len) {
+        int[] t0 = TABLES[0];
+        int[] t1 = TABLES[1];
+        int[] t2 = TABLES[2];
+        int[] t3 = TABLES[3];
+        int crc = mCrc;
+        int end = off + (len & ~3);
+        for (int i = off; i < end; i += 4) {
+            crc ^= (b[i] << 24) | ((b[i + 1] & 0xff) << 16) | ((b[i + 2] & 0xff) << 8)
+                    | (b[i + 3] & 0xff);
+            crc = t3[crc >>> 24] ^ t2[(crc >>> 16) & 0xff] ^ t1[(crc >>> 8) & 0xff]
+                    ^ t0[crc & 0xff];
+        }
+        for (int i = end; i < off + len; ++i) {
+            crc = (crc << 8) ^ t0[((crc >>> 24) ^ b[i]) & 0xff];
+        }
+        mCrc = crc;
+    }
+
+    /**
+     * @return CRC-24 of the bytes so far
+     */
+    public int getValue() {
+        return mCrc >>> 8;
+    }
+
+    public void reset() {
+        mCrc = INIT << 8;
+    }
+}
@@ -0,0 +1,299 @@
+/*
+ * Copyright (C) 2013 Dominik Schürmann <dominik@dominikschuermann.de>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.pgp;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.LinkedList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.spongycastle.apache.bzip2.CBZip2OutputStream;
+
+/**
+ * BZIP2 output stream compressing blocks on several threads, like pbzip2, but writing a single
+ * BZIP2 stream, as decoders of OpenPGP implementations do not all read concatenated streams.
+ *
+ * The data is split into chunks filling one 900 KB block after the run length encoding of BZIP2.
+ * Every chunk is compressed by the BZIP2 compressor of Bouncy Castle as a stream of its own. The
+ * block of each stream is cut out at bit level, the blocks are concatenated in order under one
+ * stream header, and the stream trailer is written with the combined CRC of all blocks.
+ */
+class ParallelBzip2OutputStream extends OutputStream {
+    // uncompressed data of one block, some less than the 900 KB Bouncy Castle fills
+    public static final int BLOCK_SIZE = 900000 - 1000;
+
+    private static final int INITIAL_CHUNK_SIZE = 1 << 20;
+    // runs compress better than 1:50, chunks of them are cut before
+    private static final int MAX_CHUNK_SIZE = 1 << 22;
+    private static final int MAX_RUN_LENGTH = 255;
+
+    private static final byte[] STREAM_HEADER = { 'B', 'Z', 'h', '9' };
+    private static final int HEADER_BITS = 32;
+    private static final long BLOCK_MAGIC = 0x314159265359L;
+    private static final long END_MAGIC = 0x177245385090L;
+    private static final int MAGIC_BITS = 48;
+    private static final int CRC_BITS = 32;
+
+    private final OutputStream mOut;
+    private final int mThreads;
+    private final ExecutorService mExecutor;
+    // compressing chunks in order, at most two per thread
+    private final LinkedList<Future<Block>> mPending = new LinkedList<Future<Block>>();
+
+    private byte[] mChunk = new byte[INITIAL_CHUNK_SIZE];
+    private int mLength = 0;
+    // run length encoded size of the chunk, without the current run
+    private int mEncodedLength = 0;
+    private int mRunByte = -1;
+    private int mRunLength = 0;
+
+    private int mCombinedCrc = 0;
+    private int mBitBuffer = 0;
+    private int mBitCount = 0;
+    private boolean mClosed = false;
+
+    /**
+     * Writes the stream header to out
+     *
+     * @param out
+     *            not closed by close()
+     * @param threads
+     *            number of compressing threads
+     * @throws IOException
+     */
+    public ParallelBzip2OutputStream(OutputStream out, int threads) throws IOException {
+        mOut = out;
+        mThreads = Math.max(1, threads);
+        mExecutor = Executors.newFixedThreadPool(mThreads);
+        mOut.write(STREAM_HEADER);
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[] { (byte) b }, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        if (mClosed) {
+            throw new IOException("stream closed");
+        }
+        try {
+            for (int i = off; i < off + len; ++i) {
+                int value = b[i] & 0xff;
+                // same runs as Bouncy Castle, at most 255 long, 4 and more cost 5 bytes
+                if (value == mRunByte && mRunLength < MAX_RUN_LENGTH) {
+                    ++mRunLength;
+                } else {
+                    mEncodedLength += getEncodedLength(mRunLength);
+                    mRunByte = value;
+                    mRunLength = 1;
+                }
+
+                if (mLength == mChunk.length) {
+                    byte[] chunk = new byte[mChunk.length * 2];
+                    System.arraycopy(mChunk, 0, chunk, 0, mLength);
+                    mChunk = chunk;
+                }
+                mChunk[mLength++] = (byte) value;
+
+                if (mEncodedLength + getEncodedLength(mRunLength) >= BLOCK_SIZE
+                        || mLength == MAX_CHUNK_SIZE) {
+                    submit();
+                }
+            }
+        } catch (IOException e) {
+            abort();
+            throw e;
+        } catch (RuntimeException e) {
+            abort();
+            throw e;
+        }
+    }
+
+    /**
+     * Compresses the rest of the data and writes the stream trailer, without closing the
+     * underlying stream
+     */
+    @Override
+    public void close() throws IOException {
+        if (mClosed) {
+            return;
+        }
+        mClosed = true;
+        try {
+            if (mLength > 0) {
+                submit();
+            }
+            while (!mPending.isEmpty()) {
+                writeNext();
+            }
+        } finally {
+            mExecutor.shutdownNow();
+        }
+
+        writeBits((int) (END_MAGIC >>> 24), 24);
+        writeBits((int) END_MAGIC, 24);
+        writeBits(mCombinedCrc >>> 16, 16);
+        writeBits(mCombinedCrc, 16);
+        if (mBitCount > 0) {
+            writeBits(0, 8 - mBitCount);
+        }
+        mOut.flush();
+    }
+
+    private static int getEncodedLength(int runLength) {
+        return (runLength < 4) ? runLength : 5;
+    }
+
+    /**
+     * Stops the threads without writing the rest of the data, e.g., after a failure outside this
+     * stream, the stream is unusable afterwards
+     */
+    void abort() {
+        mClosed = true;
+        mPending.clear();
+        mExecutor.shutdownNow();
+    }
+
+    private void submit() throws IOException {
+        final byte[] chunk = mChunk;
+        final int length = mLength;
+        mPending.add(mExecutor.submit(new Callable<Block>() {
+            @Override
+            public Block call() throws IOException {
+                return compress(chunk, length);
+            }
+        }));
+        mChunk = new byte[INITIAL_CHUNK_SIZE];
+        mLength = 0;
+        mEncodedLength = 0;
+        mRunByte = -1;
+        mRunLength = 0;
+
+        while (mPending.size() > 2 * mThreads) {
+            writeNext();
+        }
+    }
+
+    private void writeNext() throws IOException {
+        Block block;
+        try {
+            block = mPending.removeFirst().get();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IllegalStateException("Compressing failed: " + e.getCause());
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException("Interrupted");
+        }
+
+        mCombinedCrc = ((mCombinedCrc << 1) | (mCombinedCrc >>> 31)) ^ block.mCrc;
+
+        // block magic, CRC and data, starting byte aligned after the stream header
+        int end = block.mEndBit / 8;
+        for (int i = HEADER_BITS / 8; i < end; ++i) {
+            writeBits(block.mStream[i], 8);
+        }
+        int rest = block.mEndBit % 8;
+        if (rest > 0) {
+            writeBits((block.mStream[end] & 0xff) >> (8 - rest), rest);
+        }
+    }
+
+    /**
+     * @param value
+     * @param count
+     *            number of low bits of value to write, at most 24
+     * @throws IOException
+     */
+    private void writeBits(int value, int count) throws IOException {
+        mBitBuffer = (mBitBuffer << count) | (value & ((1 << count) - 1));
+        mBitCount += count;
+        while (mBitCount >= 8) {
+            mOut.write(mBitBuffer >>> (mBitCount - 8));
+            mBitCount -= 8;
+        }
+        mBitBuffer &= (1 << mBitCount) - 1;
+    }
+
+    /**
+     * @param chunk
+     * @param length
+     * @return chunk compressed as a stream of one block
+     * @throws IOException
+     */
+    private static Block compress(byte[] chunk, int length) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(length / 3 + 64);
+        CBZip2OutputStream bzip2Out = new CBZip2OutputStream(out);
+        for (int i = 0; i < length; ++i) {
+            bzip2Out.write(chunk[i]);
+        }
+        bzip2Out.close();
+        byte[] stream = out.toByteArray();
+
+        // the stream ends with the end magic, the combined CRC and up to 7 bits of padding, the
+        // combined CRC of a single block is its CRC
+        int totalBits = stream.length * 8;
+        if (totalBits < HEADER_BITS + MAGIC_BITS + CRC_BITS
+                || readBits(stream, HEADER_BITS, MAGIC_BITS) != BLOCK_MAGIC) {
+            throw new IOException("BZIP2 stream without block");
+        }
+        long crc = readBits(stream, HEADER_BITS + MAGIC_BITS, CRC_BITS);
+        for (int padding = 0; padding < 8; ++padding) {
+            int endBit = totalBits - padding - MAGIC_BITS - CRC_BITS;
+            if (endBit > HEADER_BITS + MAGIC_BITS + CRC_BITS
+                    && readBits(stream, endBit, MAGIC_BITS) == END_MAGIC
+                    && readBits(stream, endBit + MAGIC_BITS, CRC_BITS) == crc) {
+                return new Block(stream, endBit, (int) crc);
+            }
+        }
+        throw new IOException("BZIP2 stream of more than one block");
+    }
+
+    private static long readBits(byte[] data, int bitPos, int count) {
+        long value = 0;
+        for (int i = bitPos; i < bitPos + count; ++i) {
+            value = (value << 1) | ((data[i / 8] >> (7 - i % 8)) & 1);
+        }
+        return value;
+    }
+
+    /**
+     * Stream of one block, compressed from one chunk
+     */
+    private static class Block {
+        final byte[] mStream;
+        // end of the block data in bits
+        final int mEndBit;
+        final int mCrc;
+
+        Block(byte[] stream, int endBit, int crc) {
+            mStream = stream;
+            mEndBit = endBit;
+            mCrc = crc;
+        }
+    }
+}
@@ -0,0 +1,324 @@
+/*
+ * Copyright (C) 2013 Dominik Schürmann <dominik@dominikschuermann.de>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.pgp;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.lang.reflect.Method;
+import java.util.LinkedList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.Adler32;
+import java.util.zip.Deflater;
+
+import org.spongycastle.bcpg.BCPGOutputStream;
+import org.spongycastle.bcpg.CompressionAlgorithmTags;
+import org.spongycastle.bcpg.PacketTags;
+
+/**
+ * Compressed data packet generator like PGPCompressedDataGenerator, compressing on several
+ * threads. BZIP2 is compressed by ParallelBzip2OutputStream, ZIP and ZLIB like pigz does.
+ *
+ * The data is split into blocks, each deflated on its own with the last 32 KB of the previous
+ * block as dictionary and ended with a sync flush, so that the deflated blocks concatenated are
+ * one standard deflate stream. It compresses a bit worse than a single deflater, as no match
+ * crosses the start of a block.
+ *
+ * Deflating with a sync flush needs Android 4.4, the method is looked up by reflection. Check
+ * isSupported(algorithm) before using this generator.
+ */
+public class ParallelCompressedDataGenerator {
+    private static final int BLOCK_SIZE = 1 << 17;
+    private static final int DICTIONARY_SIZE = 1 << 15;
+    // zlib header of a deflate stream with a 32 KB window, see RFC 1950
+    private static final byte[] ZLIB_HEADER = { 0x78, (byte) 0x9c };
+
+    private static final Method sDeflateWithFlush = getDeflateWithFlush();
+    private static final int SYNC_FLUSH = 2;
+
+    private final int mAlgorithm;
+    private final int mLevel;
+    private final int mThreads;
+
+    private BCPGOutputStream mPacketOut;
+    private OutputStream mCompressedOut;
+
+    /**
+     * @param algorithm
+     *            CompressionAlgorithmTags.ZIP, ZLIB or BZIP2
+     * @param level
+     *            deflate level, Deflater.DEFAULT_COMPRESSION for the default, ignored for BZIP2
+     * @param threads
+     *            number of deflating threads
+     */
+    public ParallelCompressedDataGenerator(int algorithm, int level, int threads) {
+        if (algorithm != CompressionAlgorithmTags.ZIP
+                && algorithm != CompressionAlgorithmTags.ZLIB
+                && algorithm != CompressionAlgorithmTags.BZIP2) {
+            throw new IllegalArgumentException("only ZIP, ZLIB and BZIP2 supported");
+        }
+        mAlgorithm = algorithm;
+        mLevel = level;
+        mThreads = Math.max(1, threads);
+    }
+
+    /**
+     * @param algorithm
+     * @return true if algorithm can be compressed on several threads on this device, deflating
+     *         needs a sync flush
+     */
+    public static boolean isSupported(int algorithm) {
+        return algorithm == CompressionAlgorithmTags.BZIP2 || sDeflateWithFlush != null;
+    }
+
+    /**
+     * @param algorithm
+     * @return size of the blocks compressed on their own, data not longer is compressed on one
+     *         thread
+     */
+    public static int getBlockSize(int algorithm) {
+        return (algorithm == CompressionAlgorithmTags.BZIP2) ? ParallelBzip2OutputStream.BLOCK_SIZE
+                : BLOCK_SIZE;
+    }
+
+    /**
+     * Writes the header of the compressed data packet to out
+     *
+     * @param out
+     * @return stream to write the uncompressed data to, closed by close()
+     * @throws IOException
+     */
+    public OutputStream open(OutputStream out) throws IOException {
+        if (mPacketOut != null) {
+            throw new IllegalStateException("generator already in open state");
+        }
+        mPacketOut = new BCPGOutputStream(out, PacketTags.COMPRESSED_DATA, new byte[1 << 16]);
+        mPacketOut.write(mAlgorithm);
+        if (mAlgorithm == CompressionAlgorithmTags.BZIP2) {
+            mCompressedOut = new ParallelBzip2OutputStream(mPacketOut, mThreads);
+        } else {
+            if (mAlgorithm == CompressionAlgorithmTags.ZLIB) {
+                mPacketOut.write(ZLIB_HEADER);
+            }
+            mCompressedOut = new BlockDeflaterOutputStream();
+        }
+        return mCompressedOut;
+    }
+
+    /**
+     * Compresses the rest of the data and finishes the packet, without closing the stream given to
+     * open()
+     *
+     * @throws IOException
+     */
+    public void close() throws IOException {
+        if (mPacketOut != null) {
+            mCompressedOut.close();
+            mPacketOut.finish();
+            mPacketOut.flush();
+            mPacketOut = null;
+            mCompressedOut = null;
+        }
+    }
+
+    /**
+     * Stops the compressing threads without finishing the packet, e.g., after writing the data
+     * failed. Does nothing if the generator is not open, thus can be called after close().
+     */
+    public void abort() {
+        if (mCompressedOut instanceof BlockDeflaterOutputStream) {
+            ((BlockDeflaterOutputStream) mCompressedOut).abort();
+        } else if (mCompressedOut instanceof ParallelBzip2OutputStream) {
+            ((ParallelBzip2OutputStream) mCompressedOut).abort();
+        }
+        mPacketOut = null;
+        mCompressedOut = null;
+    }
+
+    private static Method getDeflateWithFlush() {
+        try {
+            return Deflater.class.getMethod("deflate", byte[].class, int.class, int.class,
+                    int.class);
+        } catch (NoSuchMethodException e) {
+            return null;
+        }
+    }
+
+    /**
+     * @param block
+     * @param length
+     * @param dictionary
+     *            previous block, null for the first one
+     * @param last
+     * @return block deflated, ending with a sync flush or, if last, the final block
+     * @throws IOException
+     */
+    private byte[] deflateBlock(byte[] block, int length, byte[] dictionary, boolean last)
+            throws IOException {
+        Deflater deflater = new Deflater(mLevel, true);
+        try {
+            if (dictionary != null) {
+                deflater.setDictionary(dictionary, dictionary.length - DICTIONARY_SIZE,
+                        DICTIONARY_SIZE);
+            }
+            deflater.setInput(block, 0, length);
+            ByteArrayOutputStream out = new ByteArrayOutputStream(length / 2 + 64);
+            byte[] buffer = new byte[1 << 14];
+            if (last) {
+                deflater.finish();
+                while (!deflater.finished()) {
+                    int n = deflater.deflate(buffer);
+                    out.write(buffer, 0, n);
+                }
+            } else {
+                // the flush is complete once the buffer is not filled
+                int n;
+                do {
+                    n = ((Integer) sDeflateWithFlush.invoke(deflater, buffer, 0, buffer.length,
+                            SYNC_FLUSH)).intValue();
+                    out.write(buffer, 0, n);
+                } while (n == buffer.length);
+            }
+            return out.toByteArray();
+        } catch (Exception e) {
+            IOException ioe = new IOException("Deflating failed: " + e);
+            ioe.initCause(e);
+            throw ioe;
+        } finally {
+            deflater.end();
+        }
+    }
+
+    /**
+     * Collects the data in blocks, deflates full blocks on a pool of threads and writes them to
+     * the packet in order
+     */
+    private class BlockDeflaterOutputStream extends OutputStream {
+        private final ExecutorService mExecutor = Executors.newFixedThreadPool(mThreads);
+        // deflating blocks in order, at most two per thread, so the threads never wait for data
+        private final LinkedList<Future<byte[]>> mPending = new LinkedList<Future<byte[]>>();
+        private final Adler32 mChecksum = new Adler32();
+
+        private byte[] mBlock = new byte[BLOCK_SIZE];
+        private int mLength = 0;
+        private byte[] mPreviousBlock = null;
+        private boolean mClosed = false;
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] { (byte) b }, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (mClosed) {
+                throw new IOException("stream closed");
+            }
+            if (mAlgorithm == CompressionAlgorithmTags.ZLIB) {
+                mChecksum.update(b, off, len);
+            }
+            try {
+                while (len > 0) {
+                    int n = Math.min(len, mBlock.length - mLength);
+                    System.arraycopy(b, off, mBlock, mLength, n);
+                    mLength += n;
+                    off += n;
+                    len -= n;
+                    if (mLength == mBlock.length) {
+                        submit(false);
+                    }
+                }
+            } catch (IOException e) {
+                abort();
+                throw e;
+            } catch (RuntimeException e) {
+                abort();
+                throw e;
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (mClosed) {
+                return;
+            }
+            mClosed = true;
+            try {
+                submit(true);
+                while (!mPending.isEmpty()) {
+                    writeNext();
+                }
+            } finally {
+                mExecutor.shutdownNow();
+            }
+            if (mAlgorithm == CompressionAlgorithmTags.ZLIB) {
+                long checksum = mChecksum.getValue();
+                mPacketOut.write((int) (checksum >> 24));
+                mPacketOut.write((int) (checksum >> 16));
+                mPacketOut.write((int) (checksum >> 8));
+                mPacketOut.write((int) checksum);
+            }
+        }
+
+        /**
+         * Stops the threads after a failure, the stream is unusable afterwards
+         */
+        private void abort() {
+            mClosed = true;
+            mPending.clear();
+            mExecutor.shutdownNow();
+        }
+
+        private void submit(final boolean last) throws IOException {
+            final byte[] block = mBlock;
+            final int length = mLength;
+            final byte[] dictionary = mPreviousBlock;
+            mPending.add(mExecutor.submit(new Callable<byte[]>() {
+                @Override
+                public byte[] call() throws IOException {
+                    return deflateBlock(block, length, dictionary, last);
+                }
+            }));
+            mPreviousBlock = block;
+            mBlock = new byte[BLOCK_SIZE];
+            mLength = 0;
+
+            while (mPending.size() > 2 * mThreads) {
+                writeNext();
+            }
+        }
+
+        private void writeNext() throws IOException {
+            try {
+                mPacketOut.write(mPending.removeFirst().get());
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof IOException) {
+                    throw (IOException) e.getCause();
+                }
+                throw new IllegalStateException("Deflating failed: " + e.getCause());
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException("Interrupted");
+            }
+        }
+    }
+}
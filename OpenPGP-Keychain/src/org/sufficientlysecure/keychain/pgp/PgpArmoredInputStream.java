@@ -0,0 +1,334 @@
+/*
+ * Copyright (C) 2013 Dominik Schürmann <dominik@dominikschuermann.de>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.pgp;
+
+import java.io.BufferedInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * ASCII armor decoder reading the same armor as org.spongycastle.bcpg.ArmoredInputStream, but
+ * decoding whole chunks of the underlying stream at once instead of every character with its own
+ * calls to the stream and every byte with its own CRC update.
+ *
+ * Like ArmoredInputStream it skips text before the armor, ends after the line of the footer and
+ * fails if the checksum is missing or wrong. The underlying stream is read ahead with mark() and
+ * reset(), so it is left right after the armor and further armor blocks can be read from it.
+ *
+ * Clear signed text is not supported, use ArmoredInputStream for it.
+ */
+public class PgpArmoredInputStream extends InputStream {
+    private static final int CHUNK_SIZE = 1 << 13;
+
+    private static final int STATE_SEARCHING = 0;
+    private static final int STATE_HEADERS = 1;
+    private static final int STATE_DATA = 2;
+    private static final int STATE_CHECKSUM = 3;
+    private static final int STATE_FOOTER = 4;
+    private static final int STATE_END_LINE = 5;
+    private static final int STATE_END = 6;
+
+    private static final int INVALID = -1;
+    private static final int SPACE = -2;
+    private static final int PADDING = -3;
+    private static final int DASH = -4;
+    // value of every base64 character, or one of the negative classes above
+    private static final int[] DECODING_TABLE = createDecodingTable();
+
+    private final InputStream mIn;
+    private final byte[] mChunk = new byte[CHUNK_SIZE];
+    private final byte[] mDecoded = new byte[CHUNK_SIZE];
+    private int mDecodedPos = 0;
+    private int mDecodedLength = 0;
+    private final Crc24 mCrc = new Crc24();
+    // decoded bytes of the current chunk already added to the CRC
+    private int mCrcLength = 0;
+
+    private int mState = STATE_SEARCHING;
+    private final StringBuilder mLine = new StringBuilder();
+    private boolean mLineStart = true;
+    private boolean mLastWasCr = false;
+    private String mArmorHeaderLine = null;
+
+    private int mGroup = 0;
+    private int mGroupLength = 0;
+    private int mPadding = 0;
+
+    /**
+     * @param in
+     *            read up to the end of the armor only if it supports mark(), closed by close()
+     */
+    public PgpArmoredInputStream(InputStream in) {
+        mIn = in.markSupported() ? in : new BufferedInputStream(in);
+    }
+
+    private static int[] createDecodingTable() {
+        int[] table = new int[256];
+        for (int i = 0; i < table.length; ++i) {
+            table[i] = INVALID;
+        }
+        String alphabet = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/";
+        for (int i = 0; i < alphabet.length(); ++i) {
+            table[alphabet.charAt(i)] = i;
+        }
+        table[' '] = SPACE;
+        table['\t'] = SPACE;
+        table['\r'] = SPACE;
+        table['\n'] = SPACE;
+        table['='] = PADDING;
+        table['-'] = DASH;
+        return table;
+    }
+
+    /**
+     * @return first line of the armor, e.g., "-----BEGIN PGP MESSAGE-----", null if not read yet
+     */
+    public String getArmorHeaderLine() {
+        return mArmorHeaderLine;
+    }
+
+    @Override
+    public int read() throws IOException {
+        while (mDecodedPos == mDecodedLength) {
+            if (mState == STATE_END) {
+                return -1;
+            }
+            fill();
+        }
+        return mDecoded[mDecodedPos++] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        while (mDecodedPos == mDecodedLength) {
+            if (mState == STATE_END) {
+                return -1;
+            }
+            fill();
+        }
+        int n = Math.min(len, mDecodedLength - mDecodedPos);
+        System.arraycopy(mDecoded, mDecodedPos, b, off, n);
+        mDecodedPos += n;
+        return n;
+    }
+
+    @Override
+    public int available() throws IOException {
+        return mDecodedLength - mDecodedPos;
+    }
+
+    @Override
+    public void close() throws IOException {
+        mIn.close();
+    }
+
+    /**
+     * Decodes the next chunk of the underlying stream, leaving it after the armor if it ends in
+     * the chunk
+     *
+     * @throws IOException
+     */
+    private void fill() throws IOException {
+        mDecodedPos = 0;
+        mDecodedLength = 0;
+
+        mIn.mark(CHUNK_SIZE);
+        int n = mIn.read(mChunk, 0, CHUNK_SIZE);
+        if (n < 0) {
+            endOfStream();
+            return;
+        }
+        int consumed = decode(n);
+        if (consumed < n) {
+            mIn.reset();
+            long skipped = 0;
+            while (skipped < consumed) {
+                long s = mIn.skip(consumed - skipped);
+                if (s <= 0) {
+                    throw new EOFException("unexpected end of file in armored stream.");
+                }
+                skipped += s;
+            }
+        }
+    }
+
+    private void endOfStream() throws IOException {
+        if (mState == STATE_DATA && mGroupLength > 0) {
+            throw new EOFException("unexpected end of file in armored stream.");
+        } else if (mState == STATE_CHECKSUM) {
+            throw new IOException("no crc found in armored message.");
+        }
+        mState = STATE_END;
+    }
+
+    /**
+     * @param length
+     *            bytes in mChunk
+     * @return bytes of mChunk belonging to the armor
+     * @throws IOException
+     */
+    private int decode(int length) throws IOException {
+        byte[] chunk = mChunk;
+        byte[] decoded = mDecoded;
+        int[] table = DECODING_TABLE;
+        int out = 0;
+        int i = 0;
+        mCrcLength = 0;
+        while (i < length && mState != STATE_END) {
+            int b = chunk[i++] & 0xff;
+            switch (mState) {
+            case STATE_SEARCHING:
+                if (b == '-' && mLineStart) {
+                    mState = STATE_HEADERS;
+                    mLine.append('-');
+                }
+                mLineStart = (b == '\r' || b == '\n');
+                mLastWasCr = (b == '\r');
+                break;
+
+            case STATE_HEADERS:
+                if (b == '\n' && mLastWasCr) {
+                    mLastWasCr = false;
+                } else if (b == '\r' || b == '\n') {
+                    mLastWasCr = (b == '\r');
+                    endHeaderLine();
+                } else {
+                    mLastWasCr = false;
+                    mLine.append((char) b);
+                }
+                break;
+
+            case STATE_DATA:
+                // most of the armor, decoded without leaving this loop
+                int value = table[b];
+                while (value >= 0 && mPadding == 0) {
+                    mGroup = (mGroup << 6) | value;
+                    if (++mGroupLength == 4) {
+                        decoded[out++] = (byte) (mGroup >> 16);
+                        decoded[out++] = (byte) (mGroup >> 8);
+                        decoded[out++] = (byte) mGroup;
+                        mGroup = 0;
+                        mGroupLength = 0;
+                    }
+                    if (i == length) {
+                        break;
+                    }
+                    b = chunk[i++] & 0xff;
+                    value = table[b];
+                }
+                if (value >= 0 && mPadding == 0) {
+                    break;
+                }
+                out = decodeSpecial(b, value, decoded, out);
+                break;
+
+            case STATE_CHECKSUM:
+                decodeChecksum(b);
+                break;
+
+            case STATE_FOOTER:
+                if (b == '-') {
+                    mState = STATE_END_LINE;
+                } else if (table[b] != SPACE) {
+                    throw new IOException("invalid characters after crc in armored message.");
+                }
+                break;
+
+            case STATE_END_LINE:
+                if (b == '\r' || b == '\n') {
+                    mState = STATE_END;
+                }
+                break;
+            }
+        }
+        updateCrc(out);
+        mDecodedLength = out;
+        return i;
+    }
+
+    private void endHeaderLine() throws IOException {
+        String line = mLine.toString();
+        mLine.setLength(0);
+        if (mArmorHeaderLine == null) {
+            mArmorHeaderLine = line;
+            if (line.startsWith("-----BEGIN PGP SIGNED MESSAGE-----")) {
+                throw new IOException("clear signed text not supported");
+            }
+        } else if (line.trim().length() == 0) {
+            mState = STATE_DATA;
+        }
+    }
+
+    /**
+     * Handles everything in the data except base64 characters of incomplete groups
+     *
+     * @return new length of decoded
+     */
+    private int decodeSpecial(int b, int value, byte[] decoded, int out) throws IOException {
+        if (value == SPACE) {
+            return out;
+        } else if (value == PADDING && mGroupLength == 0 && mPadding == 0) {
+            updateCrc(out);
+            mState = STATE_CHECKSUM;
+            return out;
+        } else if (value == DASH && mGroupLength == 0) {
+            throw new IOException("crc check not found.");
+        } else if (value == PADDING && mGroupLength >= 2) {
+            ++mPadding;
+            mGroup <<= 6;
+            if (++mGroupLength == 4) {
+                decoded[out++] = (byte) (mGroup >> 16);
+                if (mPadding == 1) {
+                    decoded[out++] = (byte) (mGroup >> 8);
+                }
+                mGroup = 0;
+                mGroupLength = 0;
+                mPadding = 0;
+            }
+            return out;
+        }
+        throw new IOException("invalid characters in armored message.");
+    }
+
+    private void updateCrc(int decodedLength) {
+        mCrc.update(mDecoded, mCrcLength, decodedLength - mCrcLength);
+        mCrcLength = decodedLength;
+    }
+
+    private void decodeChecksum(int b) throws IOException {
+        int value = DECODING_TABLE[b];
+        if (value == SPACE) {
+            return;
+        } else if (value < 0) {
+            throw new IOException("no crc found in armored message.");
+        }
+        mGroup = (mGroup << 6) | value;
+        if (++mGroupLength == 4) {
+            if (mGroup != mCrc.getValue()) {
+                throw new IOException("crc check failed in armored message.");
+            }
+            mGroup = 0;
+            mGroupLength = 0;
+            mState = STATE_FOOTER;
+        }
+    }
+}
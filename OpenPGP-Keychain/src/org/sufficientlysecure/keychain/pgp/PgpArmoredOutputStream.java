@@ -0,0 +1,244 @@
+/*
+ * Copyright (C) 2013 Dominik Schürmann <dominik@dominikschuermann.de>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.pgp;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Enumeration;
+import java.util.Hashtable;
+
+import org.spongycastle.bcpg.PacketTags;
+
+/**
+ * ASCII armor encoder writing the same bytes as org.spongycastle.bcpg.ArmoredOutputStream, but
+ * encoding whole blocks of lines at once instead of every byte with its own calls to the
+ * underlying stream and the CRC.
+ *
+ * Clear signed text is not supported, use ArmoredOutputStream for it.
+ */
+public class PgpArmoredOutputStream extends OutputStream {
+    public static final String VERSION_HEADER = "Version";
+
+    // same default as Bouncy Castle, usually replaced by setHeader(VERSION_HEADER, ...)
+    private static final String DEFAULT_VERSION = "BCPG v@RELEASE_NAME@";
+
+    private static final byte[] ENCODING_TABLE = ("ABCDEFGHIJKLMNOPQRSTUVWXYZ"
+            + "abcdefghijklmnopqrstuvwxyz0123456789+/").getBytes();
+
+    // 48 bytes are one line of 64 characters
+    private static final int LINE_LENGTH = 48;
+    private static final int BLOCK_SIZE = LINE_LENGTH * 256;
+
+    private final OutputStream mOut;
+    private final Hashtable<String, String> mHeaders = new Hashtable<String, String>();
+    private final String mNewLine;
+    private final byte[] mNewLineBytes;
+    private final Crc24 mCrc = new Crc24();
+
+    private final byte[] mBlock = new byte[BLOCK_SIZE];
+    private int mLength = 0;
+    private final byte[] mEncoded;
+
+    // null until the header is written
+    private String mType = null;
+
+    /**
+     * @param out
+     *            not closed by close()
+     */
+    public PgpArmoredOutputStream(OutputStream out) {
+        mOut = out;
+        String newLine = System.getProperty("line.separator");
+        mNewLine = (newLine != null) ? newLine : "\r\n";
+        mNewLineBytes = toBytes(mNewLine);
+        mEncoded = new byte[BLOCK_SIZE / LINE_LENGTH * (64 + mNewLineBytes.length)];
+        mHeaders.put(VERSION_HEADER, DEFAULT_VERSION);
+    }
+
+    /**
+     * Sets a header line written before the data, e.g., VERSION_HEADER
+     *
+     * @param name
+     * @param value
+     */
+    public void setHeader(String name, String value) {
+        mHeaders.put(name, value);
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        if (mType == null) {
+            writeHeader(b);
+        }
+        mBlock[mLength++] = (byte) b;
+        if (mLength == BLOCK_SIZE) {
+            writeBlock();
+        }
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        if (len > 0 && mType == null) {
+            writeHeader(b[off]);
+        }
+        while (len > 0) {
+            int n = Math.min(len, BLOCK_SIZE - mLength);
+            System.arraycopy(b, off, mBlock, mLength, n);
+            mLength += n;
+            off += n;
+            len -= n;
+            if (mLength == BLOCK_SIZE) {
+                writeBlock();
+            }
+        }
+    }
+
+    /**
+     * Does nothing like ArmoredOutputStream, only complete lines could be written before close()
+     */
+    @Override
+    public void flush() throws IOException {
+    }
+
+    /**
+     * Writes the rest of the data, the checksum and the footer, without closing the underlying
+     * stream. Nothing is written if no data has been written.
+     */
+    @Override
+    public void close() throws IOException {
+        if (mType == null) {
+            return;
+        }
+        writeBlock();
+
+        int crc = mCrc.getValue();
+        byte[] checksum = { (byte) (crc >> 16), (byte) (crc >> 8), (byte) crc };
+        byte[] encodedChecksum = new byte[4];
+        encodeGroup(checksum, 0, 3, encodedChecksum, 0);
+        mOut.write('=');
+        mOut.write(encodedChecksum);
+        mOut.write(mNewLineBytes);
+        mOut.write(toBytes("-----END PGP " + mType + "-----"));
+        mOut.write(mNewLineBytes);
+        mOut.flush();
+
+        mType = null;
+        mCrc.reset();
+    }
+
+    /**
+     * @param firstByte
+     *            packet tag of the data, determines the type of the armor
+     * @throws IOException
+     */
+    private void writeHeader(int firstByte) throws IOException {
+        int tag = ((firstByte & 0x40) != 0) ? firstByte & 0x3f : (firstByte & 0x3f) >> 2;
+        switch (tag) {
+        case PacketTags.PUBLIC_KEY:
+            mType = "PUBLIC KEY BLOCK";
+            break;
+        case PacketTags.SECRET_KEY:
+            mType = "PRIVATE KEY BLOCK";
+            break;
+        case PacketTags.SIGNATURE:
+            mType = "SIGNATURE";
+            break;
+        default:
+            mType = "MESSAGE";
+            break;
+        }
+
+        StringBuilder header = new StringBuilder();
+        header.append("-----BEGIN PGP ").append(mType).append("-----").append(mNewLine);
+        header.append(VERSION_HEADER).append(": ").append(mHeaders.get(VERSION_HEADER))
+                .append(mNewLine);
+        for (Enumeration<String> e = mHeaders.keys(); e.hasMoreElements();) {
+            String name = e.nextElement();
+            if (!name.equals(VERSION_HEADER)) {
+                header.append(name).append(": ").append(mHeaders.get(name)).append(mNewLine);
+            }
+        }
+        header.append(mNewLine);
+        mOut.write(toBytes(header.toString()));
+    }
+
+    /**
+     * Encodes the buffered data, every line ending with a new line, also the last incomplete one
+     *
+     * @throws IOException
+     */
+    private void writeBlock() throws IOException {
+        mCrc.update(mBlock, 0, mLength);
+        byte[] block = mBlock;
+        byte[] encoded = mEncoded;
+        int pos = 0;
+        for (int line = 0; line < mLength; line += LINE_LENGTH) {
+            int lineEnd = Math.min(mLength, line + LINE_LENGTH);
+            int i = line;
+            for (; i + 3 <= lineEnd; i += 3) {
+                int group = ((block[i] & 0xff) << 16) | ((block[i + 1] & 0xff) << 8)
+                        | (block[i + 2] & 0xff);
+                encoded[pos] = ENCODING_TABLE[group >>> 18];
+                encoded[pos + 1] = ENCODING_TABLE[(group >>> 12) & 0x3f];
+                encoded[pos + 2] = ENCODING_TABLE[(group >>> 6) & 0x3f];
+                encoded[pos + 3] = ENCODING_TABLE[group & 0x3f];
+                pos += 4;
+            }
+            if (i < lineEnd) {
+                encodeGroup(block, i, lineEnd - i, encoded, pos);
+                pos += 4;
+            }
+            System.arraycopy(mNewLineBytes, 0, encoded, pos, mNewLineBytes.length);
+            pos += mNewLineBytes.length;
+        }
+        mOut.write(encoded, 0, pos);
+        mLength = 0;
+    }
+
+    /**
+     * @param in
+     * @param inOff
+     * @param inLen
+     *            1 to 3 bytes, padded with '=' if less than 3
+     * @param out
+     * @param outOff
+     *            4 characters are written
+     */
+    private static void encodeGroup(byte[] in, int inOff, int inLen, byte[] out, int outOff) {
+        int b0 = in[inOff] & 0xff;
+        int b1 = (inLen > 1) ? in[inOff + 1] & 0xff : 0;
+        int b2 = (inLen > 2) ? in[inOff + 2] & 0xff : 0;
+        out[outOff] = ENCODING_TABLE[b0 >>> 2];
+        out[outOff + 1] = ENCODING_TABLE[((b0 << 4) | (b1 >>> 4)) & 0x3f];
+        out[outOff + 2] = (inLen > 1) ? ENCODING_TABLE[((b1 << 2) | (b2 >>> 6)) & 0x3f]
+                : (byte) '=';
+        out[outOff + 3] = (inLen > 2) ? ENCODING_TABLE[b2 & 0x3f] : (byte) '=';
+    }
+
+    /**
+     * @param s
+     * @return chars of s cut to bytes, as ArmoredOutputStream writes them
+     */
+    private static byte[] toBytes(String s) {
+        byte[] bytes = new byte[s.length()];
+        for (int i = 0; i < bytes.length; ++i) {
+            bytes[i] = (byte) s.charAt(i);
+        }
+        return bytes;
+    }
+}
@@ -0,0 +1,191 @@
+/*
+ * Copyright (C) 2013 Dominik Schürmann <dominik@dominikschuermann.de>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.pgp;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Locale;
+import java.util.zip.Deflater;
+
+import org.sufficientlysecure.keychain.Id;
+
+/**
+ * Compression algorithm and level for Id.choice.compression.auto, chosen from a sample of the
+ * beginning of the data.
+ *
+ * Data with a byte entropy near 8 bits, e.g., JPEG, video or encrypted archives, is not
+ * compressed. Otherwise the sample is deflated with the fastest level: data saving little is not
+ * compressed, data saving some is compressed with the fastest level, and well compressible data
+ * with the default level. BZIP2 is never chosen, its output of text is only about 13% smaller
+ * than ZIP's but it is about ten times slower. ZLIB is never chosen either, it is ZIP with an
+ * additional checksum, which the modification detection code makes redundant.
+ */
+public class PgpCompressionChoice {
+    public static final int SAMPLE_SIZE = 1 << 16;
+    public static final int DEFAULT_LEVEL = Deflater.DEFAULT_COMPRESSION;
+
+    // bits per byte, compressed data and good random data are above
+    private static final double MAX_ENTROPY = 7.8;
+    // compressed size / size of the sample with the fastest level
+    private static final double MAX_RATIO = 0.95;
+    private static final double FAST_RATIO = 0.6;
+
+    private final int mAlgorithm;
+    private final int mLevel;
+    private final double mEntropy;
+    private final double mRatio;
+
+    /**
+     * Choice made by the user, not from a sample
+     *
+     * @param algorithm
+     * @param level
+     */
+    public PgpCompressionChoice(int algorithm, int level) {
+        this(algorithm, level, -1, -1);
+    }
+
+    private PgpCompressionChoice(int algorithm, int level, double entropy, double ratio) {
+        mAlgorithm = algorithm;
+        mLevel = level;
+        mEntropy = entropy;
+        mRatio = ratio;
+    }
+
+    /**
+     * Reads up to SAMPLE_SIZE bytes from in
+     *
+     * @param in
+     * @return sample, shorter if in ends before
+     * @throws IOException
+     */
+    public static byte[] readSample(InputStream in) throws IOException {
+        byte[] buffer = new byte[SAMPLE_SIZE];
+        int length = 0;
+        int n;
+        while (length < buffer.length
+                && (n = in.read(buffer, length, buffer.length - length)) > 0) {
+            length += n;
+        }
+        if (length == buffer.length) {
+            return buffer;
+        }
+        byte[] sample = new byte[length];
+        System.arraycopy(buffer, 0, sample, 0, length);
+        return sample;
+    }
+
+    /**
+     * @param sample
+     *            beginning of the data
+     * @return algorithm and level for the data
+     */
+    public static PgpCompressionChoice choose(byte[] sample) {
+        if (sample.length == 0) {
+            return new PgpCompressionChoice(Id.choice.compression.none, DEFAULT_LEVEL, 0, 1);
+        }
+
+        double entropy = getEntropy(sample);
+        if (entropy > MAX_ENTROPY) {
+            return new PgpCompressionChoice(Id.choice.compression.none, DEFAULT_LEVEL, entropy, 1);
+        }
+
+        double ratio = getDeflateRatio(sample);
+        if (ratio > MAX_RATIO) {
+            return new PgpCompressionChoice(Id.choice.compression.none, DEFAULT_LEVEL, entropy,
+                    ratio);
+        } else if (ratio > FAST_RATIO) {
+            return new PgpCompressionChoice(Id.choice.compression.zip, Deflater.BEST_SPEED,
+                    entropy, ratio);
+        }
+        return new PgpCompressionChoice(Id.choice.compression.zip, DEFAULT_LEVEL, entropy, ratio);
+    }
+
+    /**
+     * @return Id.choice.compression.none, zip or bzip2
+     */
+    public int getAlgorithm() {
+        return mAlgorithm;
+    }
+
+    /**
+     * @return deflate level, DEFAULT_LEVEL for the default of the algorithm
+     */
+    public int getLevel() {
+        return mLevel;
+    }
+
+    @Override
+    public String toString() {
+        String name;
+        if (mAlgorithm == Id.choice.compression.none) {
+            name = "none";
+        } else if (mAlgorithm == Id.choice.compression.bzip2) {
+            name = "BZIP2";
+        } else {
+            name = (mAlgorithm == Id.choice.compression.zlib) ? "ZLIB" : "ZIP";
+            if (mLevel != DEFAULT_LEVEL) {
+                name += " level " + mLevel;
+            }
+        }
+        if (mEntropy < 0) {
+            return name;
+        }
+        return name + String.format(Locale.US, " (entropy %.2f bits/byte, deflate ratio %.2f)",
+                mEntropy, mRatio);
+    }
+
+    /**
+     * @param data
+     * @return Shannon entropy of the bytes of data in bits per byte
+     */
+    private static double getEntropy(byte[] data) {
+        int[] counts = new int[256];
+        for (byte b : data) {
+            ++counts[b & 0xff];
+        }
+        double entropy = 0;
+        for (int count : counts) {
+            if (count > 0) {
+                double p = (double) count / data.length;
+                entropy -= p * Math.log(p);
+            }
+        }
+        return entropy / Math.log(2);
+    }
+
+    /**
+     * @param data
+     * @return size of data deflated with the fastest level / size of data
+     */
+    private static double getDeflateRatio(byte[] data) {
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED, true);
+        try {
+            deflater.setInput(data);
+            deflater.finish();
+            byte[] buffer = new byte[1 << 13];
+            long compressed = 0;
+            while (!deflater.finished()) {
+                compressed += deflater.deflate(buffer);
+            }
+            return (double) compressed / data.length;
+        } finally {
+            deflater.end();
+        }
+    }
+}
@@ -17,11 +17,11 @@
 
 package org.sufficientlysecure.keychain.pgp;
 
+import java.io.BufferedInputStream;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.RandomAccessFile;
 import java.security.SecureRandom;
 import java.util.Iterator;
 import java.util.regex.Pattern;
@@ -41,12 +41,14 @@ import org.sufficientlysecure.keychain.pgp.exception.PgpGeneralException;
 import org.sufficientlysecure.keychain.provider.ProviderHelper;
 import org.sufficientlysecure.keychain.util.Log;
 import org.sufficientlysecure.keychain.util.ProgressDialogUpdater;
+import org.sufficientlysecure.keychain.util.SecureFileWiper;
 
 import android.content.Context;
 import android.content.pm.PackageInfo;
 import android.content.pm.PackageManager.NameNotFoundException;
 
 public class PgpHelper {
+    private static final int DECODER_READ_AHEAD = 60;
 
     public static Pattern PGP_MESSAGE = Pattern.compile(
             ".*?(-----BEGIN PGP MESSAGE-----.*?-----END PGP MESSAGE-----).*", Pattern.DOTALL);
@@ -76,9 +78,48 @@ public class PgpHelper {
         return "OpenPGP Keychain v" + getVersion(context);
     }
 
+    /**
+     * Like PGPUtil.getDecoderStream(), but decodes ASCII armor with PgpArmoredInputStream.
+     * Binary data is returned as it is, base64 without armor headers is decoded by Bouncy Castle.
+     *
+     * @param in
+     * @return stream of the binary data in in
+     * @throws IOException
+     */
+    public static InputStream getDecoderStream(InputStream in) throws IOException {
+        if (!in.markSupported()) {
+            in = new BufferedInputStream(in);
+        }
+
+        // same test as Bouncy Castle: armor if there is anything but base64 in the beginning
+        in.mark(DECODER_READ_AHEAD);
+        int ch = in.read();
+        boolean armored = false;
+        if (ch >= 0 && (ch & 0x80) == 0) {
+            for (int count = 0; count < DECODER_READ_AHEAD && ch >= 0; ++count) {
+                if (!isPossiblyBase64(ch)) {
+                    armored = true;
+                    break;
+                }
+                ch = in.read();
+            }
+        }
+        in.reset();
+
+        if (armored) {
+            return new PgpArmoredInputStream(in);
+        }
+        return PGPUtil.getDecoderStream(in);
+    }
+
+    private static boolean isPossiblyBase64(int ch) {
+        return (ch >= 'A' && ch <= 'Z') || (ch >= 'a' && ch <= 'z') || (ch >= '0' && ch <= '9')
+                || ch == '+' || ch == '/' || ch == '\r' || ch == '\n';
+    }
+
     public static long getDecryptionKeyId(Context context, InputStream inputStream)
             throws PgpGeneralException, NoAsymmetricEncryptionException, IOException {
-        InputStream in = PGPUtil.getDecoderStream(inputStream);
+        InputStream in = getDecoderStream(inputStream);
         PGPObjectFactory pgpF = new PGPObjectFactory(in);
         PGPEncryptedDataList enc;
         Object o = pgpF.nextObject();
@@ -123,7 +164,7 @@ public class PgpHelper {
     }
 
     public static int getStreamContent(Context context, InputStream inStream) throws IOException {
-        InputStream in = PGPUtil.getDecoderStream(inStream);
+        InputStream in = getDecoderStream(inStream);
         PGPObjectFactory pgpF = new PGPObjectFactory(in);
         Object object = pgpF.nextObject();
         while (object != null) {
@@ -186,7 +227,8 @@ public class PgpHelper {
     }
 
     /**
-     * Deletes file securely by overwriting it with random data before deleting it.
+     * Deletes file securely by overwriting it with random data before deleting it. Directories
+     * are rejected, file may be a path entered by the user.
      * 
      * TODO: Does this really help on flash storage?
      * 
@@ -194,26 +236,13 @@ public class PgpHelper {
      * @param progress
      * @param file
      * @throws FileNotFoundException
+     *             also if file is a directory
      * @throws IOException
      */
     public static void deleteFileSecurely(Context context, ProgressDialogUpdater progress, File file)
             throws FileNotFoundException, IOException {
-        long length = file.length();
-        SecureRandom random = new SecureRandom();
-        RandomAccessFile raf = new RandomAccessFile(file, "rws");
-        raf.seek(0);
-        raf.getFilePointer();
-        byte[] data = new byte[1 << 16];
-        int pos = 0;
         String msg = context.getString(R.string.progress_deletingSecurely, file.getName());
-        while (pos < length) {
-            if (progress != null)
-                progress.setProgress(msg, (int) (100 * pos / length), 100);
-            random.nextBytes(data);
-            raf.write(data);
-            pos += data.length;
-        }
-        raf.close();
-        file.delete();
+        new SecureFileWiper(SecureFileWiper.DEFAULT_PASSES, Runtime.getRuntime()
+                .availableProcessors(), progress, msg).wipe(file);
     }
 }
@@ -18,16 +18,25 @@
 package org.sufficientlysecure.keychain.pgp;
 
 import java.io.BufferedInputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.security.SignatureException;
 import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
-import org.spongycastle.bcpg.ArmoredOutputStream;
 import org.spongycastle.openpgp.operator.KeyFingerPrintCalculator;
 import org.spongycastle.openpgp.operator.jcajce.JcaKeyFingerprintCalculator;
+import org.spongycastle.openpgp.operator.jcajce.JcaPGPContentVerifierBuilderProvider;
 import org.spongycastle.openpgp.PGPException;
 import org.spongycastle.openpgp.PGPKeyRing;
 import org.spongycastle.openpgp.PGPObjectFactory;
@@ -35,7 +44,8 @@ import org.spongycastle.openpgp.PGPPublicKey;
 import org.spongycastle.openpgp.PGPPublicKeyRing;
 import org.spongycastle.openpgp.PGPSecretKey;
 import org.spongycastle.openpgp.PGPSecretKeyRing;
-import org.spongycastle.openpgp.PGPUtil;
+import org.spongycastle.openpgp.PGPSignature;
+import org.spongycastle.openpgp.PGPUserAttributeSubpacketVector;
 import org.sufficientlysecure.keychain.Constants;
 import org.sufficientlysecure.keychain.Id;
 import org.sufficientlysecure.keychain.R;
@@ -55,6 +65,9 @@ import android.os.Bundle;
 import android.os.Environment;
 
 public class PgpImportExport {
+    // as many as HkpKeyServer keeps connections to one keyserver
+    private static final int MAX_CONCURRENT_UPLOADS = 4;
+
     private Context mContext;
     private ProgressDialogUpdater mProgress;
 
@@ -77,14 +90,8 @@ public class PgpImportExport {
     }
 
     public boolean uploadKeyRingToServer(HkpKeyServer server, PGPPublicKeyRing keyring) {
-        ByteArrayOutputStream bos = new ByteArrayOutputStream();
-        ArmoredOutputStream aos = new ArmoredOutputStream(bos);
         try {
-            aos.write(keyring.getEncoded());
-            aos.close();
-
-            String armouredKey = bos.toString("UTF-8");
-            server.add(armouredKey);
+            server.add(keyring.getEncoded());
 
             return true;
         } catch (IOException e) {
@@ -92,12 +99,78 @@ public class PgpImportExport {
         } catch (AddKeyException e) {
             // TODO: tell the user?
             return false;
+        }
+    }
+
+    /**
+     * Uploads many public keyrings to one keyserver. Each keyring is read from the database and
+     * streamed to the keyserver only when its upload starts, and MAX_CONCURRENT_UPLOADS uploads
+     * share the kept alive connections to the keyserver.
+     * 
+     * @param server
+     * @param masterKeyIds
+     * @return master key ids of the uploaded and of the failed keyrings
+     * @throws InterruptedException
+     */
+    public Bundle uploadKeyRingsToServer(final HkpKeyServer server, long[] masterKeyIds)
+            throws InterruptedException {
+        updateProgress(R.string.progress_uploading, 0, masterKeyIds.length);
+
+        ExecutorService executor = Executors.newFixedThreadPool(MAX_CONCURRENT_UPLOADS);
+        CompletionService<Integer> completionService = new ExecutorCompletionService<Integer>(
+                executor);
+        for (int i = 0; i < masterKeyIds.length; ++i) {
+            final int index = i;
+            final long masterKeyId = masterKeyIds[i];
+            completionService.submit(new Callable<Integer>() {
+                @Override
+                public Integer call() throws AddKeyException {
+                    byte[] data = ProviderHelper.getPublicKeyRingDataByMasterKeyId(mContext,
+                            masterKeyId);
+                    if (data == null) {
+                        throw new AddKeyException();
+                    }
+                    server.add(data);
+                    return index;
+                }
+            });
+        }
+
+        boolean[] succeeded = new boolean[masterKeyIds.length];
+        int uploadedCount = 0;
+        try {
+            for (int i = 0; i < masterKeyIds.length; ++i) {
+                try {
+                    succeeded[completionService.take().get()] = true;
+                    ++uploadedCount;
+                } catch (ExecutionException e) {
+                    // reported with the failed keyrings below
+                }
+                updateProgress(i + 1, masterKeyIds.length);
+            }
         } finally {
-            try {
-                bos.close();
-            } catch (IOException e) {
+            executor.shutdownNow();
+        }
+
+        long[] uploaded = new long[uploadedCount];
+        long[] failed = new long[masterKeyIds.length - uploadedCount];
+        int uploadedIndex = 0;
+        int failedIndex = 0;
+        for (int i = 0; i < masterKeyIds.length; ++i) {
+            if (succeeded[i]) {
+                uploaded[uploadedIndex++] = masterKeyIds[i];
+            } else {
+                failed[failedIndex++] = masterKeyIds[i];
             }
         }
+
+        Bundle returnData = new Bundle();
+        returnData.putLongArray(KeychainIntentService.RESULT_UPLOAD_UPLOADED, uploaded);
+        returnData.putLongArray(KeychainIntentService.RESULT_UPLOAD_FAILED, failed);
+
+        updateProgress(R.string.progress_done, masterKeyIds.length, masterKeyIds.length);
+
+        return returnData;
     }
 
     public Bundle importKeyRings(InputData data) throws PgpGeneralException, FileNotFoundException,
@@ -120,11 +193,15 @@ public class PgpImportExport {
         int newKeys = 0;
         int oldKeys = 0;
         int badKeys = 0;
+        int unchangedKeys = 0;
+
+        // refresh key lists once after import instead of after every keyring
+        ProviderHelper.beginBulkOperation(mContext);
         try {
 
             // read all available blocks... (asc files can contain many blocks with BEGIN END)
             while (bufferedInput.available() > 0) {
-                InputStream in = PGPUtil.getDecoderStream(bufferedInput);
+                InputStream in = PgpHelper.getDecoderStream(bufferedInput);
                 PGPObjectFactory objectFactory = new PGPObjectFactory(in);
 
                 // go through all objects in this block
@@ -151,6 +228,8 @@ public class PgpImportExport {
                             ++newKeys;
                         } else if (status == Id.return_value.bad) {
                             ++badKeys;
+                        } else if (status == Id.return_value.unchanged) {
+                            ++unchangedKeys;
                         }
 
                         updateProgress((int) (100 * progressIn.position() / data.getSize()), 100);
@@ -161,11 +240,14 @@ public class PgpImportExport {
             }
         } catch (Exception e) {
             Log.e(Constants.TAG, "Exception on parsing key file!", e);
+        } finally {
+            ProviderHelper.endBulkOperation(mContext);
         }
 
         returnData.putInt(KeychainIntentService.RESULT_IMPORT_ADDED, newKeys);
         returnData.putInt(KeychainIntentService.RESULT_IMPORT_UPDATED, oldKeys);
         returnData.putInt(KeychainIntentService.RESULT_IMPORT_BAD, badKeys);
+        returnData.putInt(KeychainIntentService.RESULT_IMPORT_UNCHANGED, unchangedKeys);
 
         updateProgress(R.string.progress_done, 100, 100);
 
@@ -189,8 +271,9 @@ public class PgpImportExport {
         }
 
         // export public keyrings...
-        ArmoredOutputStream outPub = new ArmoredOutputStream(outStream);
-        outPub.setHeader("Version", PgpHelper.getFullVersion(mContext));
+        PgpArmoredOutputStream outPub = new PgpArmoredOutputStream(outStream);
+        outPub.setHeader(PgpArmoredOutputStream.VERSION_HEADER,
+                PgpHelper.getFullVersion(mContext));
 
         int numKeys = 0;
         for (int i = 0; i < keyRingMasterKeyIds.size(); ++i) {
@@ -213,8 +296,9 @@ public class PgpImportExport {
 
         // if we export secret keyrings, append all secret parts after the public parts
         if (keyType == Id.type.secret_key) {
-            ArmoredOutputStream outSec = new ArmoredOutputStream(outStream);
-            outSec.setHeader("Version", PgpHelper.getFullVersion(mContext));
+            PgpArmoredOutputStream outSec = new PgpArmoredOutputStream(outStream);
+            outSec.setHeader(PgpArmoredOutputStream.VERSION_HEADER,
+                    PgpHelper.getFullVersion(mContext));
 
             for (int i = 0; i < keyRingMasterKeyIds.size(); ++i) {
                 updateProgress(i * 100 / keyRingMasterKeyIds.size() / 2, 100);
@@ -237,11 +321,11 @@ public class PgpImportExport {
     }
 
     /**
-     * TODO: implement Id.return_value.updated as status when key already existed
+     * Stores keyring in database. Keyrings whose encoding is identical to the stored version are
+     * detected by their digest and not written again.
      * 
-     * @param context
      * @param keyring
-     * @return
+     * @return Id.return_value.ok for new, updated, unchanged, bad, or error
      */
     @SuppressWarnings("unchecked")
     public int storeKeyRingInCache(PGPKeyRing keyring) {
@@ -263,6 +347,14 @@ public class PgpImportExport {
                 }
 
                 if (save) {
+                    String storedDigest = ProviderHelper.getSecretKeyRingDigest(mContext,
+                            secretKeyRing.getSecretKey().getKeyID());
+                    if (ProviderHelper.computeKeyRingDigest(secretKeyRing.getEncoded()).equals(
+                            storedDigest)) {
+                        // identical secret keyring already stored, including its public part
+                        return Id.return_value.unchanged;
+                    }
+
                     ProviderHelper.saveKeyRing(mContext, secretKeyRing);
                     // TODO: preserve certifications (http://osdir.com/ml/encryption.bouncy-castle.devel/2007-01/msg00054.html ?)
                     PGPPublicKeyRing newPubRing = null;
@@ -272,16 +364,30 @@ public class PgpImportExport {
                         }
                         newPubRing = PGPPublicKeyRing.insertPublicKey(newPubRing, key);
                     }
-                    if (newPubRing != null)
+                    // public part is often already stored unchanged, e.g., after a passphrase change
+                    if (newPubRing != null
+                            && !ProviderHelper.computeKeyRingDigest(newPubRing.getEncoded()).equals(
+                                    ProviderHelper.getPublicKeyRingDigest(mContext, newPubRing
+                                            .getPublicKey().getKeyID()))) {
                         ProviderHelper.saveKeyRing(mContext, newPubRing);
+                    }
                     // TODO: remove status returns, use exceptions!
-                    status = Id.return_value.ok;
+                    status = (storedDigest == null) ? Id.return_value.ok
+                            : Id.return_value.updated;
                 }
             } else if (keyring instanceof PGPPublicKeyRing) {
                 PGPPublicKeyRing publicKeyRing = (PGPPublicKeyRing) keyring;
+
+                String storedDigest = ProviderHelper.getPublicKeyRingDigest(mContext,
+                        publicKeyRing.getPublicKey().getKeyID());
+                if (ProviderHelper.computeKeyRingDigest(publicKeyRing.getEncoded()).equals(
+                        storedDigest)) {
+                    return Id.return_value.unchanged;
+                }
+
                 ProviderHelper.saveKeyRing(mContext, publicKeyRing);
                 // TODO: remove status returns, use exceptions!
-                status = Id.return_value.ok;
+                status = (storedDigest == null) ? Id.return_value.ok : Id.return_value.updated;
             }
         } catch (IOException e) {
             status = Id.return_value.error;
@@ -290,4 +396,257 @@ public class PgpImportExport {
         return status;
     }
 
+    /**
+     * Merges an update of a public keyring, e.g., fetched from a keyserver, into the stored
+     * keyring. Subkeys, user ids, user attributes and signatures missing in keyRing are added,
+     * nothing of keyRing is removed, so local certifications are kept.
+     * 
+     * As anybody can upload to a keyserver, nothing is added on behalf of the owner that the
+     * master key of keyRing has not signed: a new subkey needs a valid binding signature, a new
+     * user id or attribute a valid self-certification, and signatures issued by the master key
+     * (including all signatures over subkeys) are only added if they verify. Revocations of the
+     * master key are only added if issued by it. Certifications by other keys are added unverified,
+     * like on import.
+     * 
+     * @param keyRing
+     * @param update
+     *            keyring with the same master key
+     * @return merged keyring, keyRing itself if update adds nothing
+     * @throws IOException
+     */
+    @SuppressWarnings("unchecked")
+    public static PGPPublicKeyRing mergePublicKeyRings(PGPPublicKeyRing keyRing,
+            PGPPublicKeyRing update) throws IOException {
+        PGPPublicKey masterKey = keyRing.getPublicKey();
+        PGPPublicKeyRing result = keyRing;
+        for (PGPPublicKey updateKey : new IterableIterator<PGPPublicKey>(update.getPublicKeys())) {
+            PGPPublicKey key = result.getPublicKey(updateKey.getKeyID());
+            if (key == null) {
+                PGPPublicKey subKey = getBoundSubKey(masterKey, updateKey);
+                if (subKey != null) {
+                    result = PGPPublicKeyRing.insertPublicKey(result, subKey);
+                } else {
+                    Log.w(Constants.TAG, "Skipping subkey without valid binding signature: "
+                            + PgpKeyHelper.keyToHex(updateKey.getKeyID()));
+                }
+                continue;
+            }
+
+            PGPPublicKey merged = mergeSignatures(masterKey, key, updateKey);
+            if (merged != key) {
+                // replaces the key with the same key id
+                result = PGPPublicKeyRing.insertPublicKey(result, merged);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @param masterKey
+     * @param subKey
+     *            subkey not in the keyring of masterKey yet
+     * @return subKey with only the signatures of masterKey that verify, null if it has no valid
+     *         binding signature
+     */
+    @SuppressWarnings("unchecked")
+    private static PGPPublicKey getBoundSubKey(PGPPublicKey masterKey, PGPPublicKey subKey) {
+        if (subKey.isMasterKey()) {
+            return null;
+        }
+        PGPPublicKey result = subKey;
+        boolean bound = false;
+        for (PGPSignature sig : new IterableIterator<PGPSignature>(subKey.getSignatures())) {
+            if (!verifySelfSignature(sig, masterKey, subKey, null, null)) {
+                result = PGPPublicKey.removeCertification(result, sig);
+            } else if (sig.getSignatureType() == PGPSignature.SUBKEY_BINDING) {
+                bound = true;
+            }
+        }
+        return bound ? result : null;
+    }
+
+    /**
+     * @param masterKey
+     * @param key
+     *            masterKey or one of its subkeys
+     * @param update
+     *            same key, possibly with other signatures
+     * @return key with the valid signatures of update it is missing, key itself if there are none
+     * @throws IOException
+     */
+    @SuppressWarnings("unchecked")
+    private static PGPPublicKey mergeSignatures(PGPPublicKey masterKey, PGPPublicKey key,
+            PGPPublicKey update) throws IOException {
+        HashSet<ByteBuffer> known = new HashSet<ByteBuffer>();
+        for (PGPSignature sig : new IterableIterator<PGPSignature>(key.getSignatures())) {
+            known.add(ByteBuffer.wrap(sig.getEncoded()));
+        }
+        HashSet<String> userIds = new HashSet<String>();
+        for (String userId : new IterableIterator<String>(key.getUserIDs())) {
+            userIds.add(userId);
+        }
+        HashSet<PGPUserAttributeSubpacketVector> attributes =
+                new HashSet<PGPUserAttributeSubpacketVector>();
+        Iterator<PGPUserAttributeSubpacketVector> it = key.getUserAttributes();
+        while (it.hasNext()) {
+            attributes.add(it.next());
+        }
+
+        PGPPublicKey result = key;
+        // signatures over user ids and attributes, the rest is over the key itself
+        HashSet<ByteBuffer> bound = new HashSet<ByteBuffer>();
+        for (String userId : new IterableIterator<String>(update.getUserIDs())) {
+            ArrayList<PGPSignature> sigs = getNewSignatures(update.getSignaturesForID(userId),
+                    known, bound);
+            sigs = getAcceptedSignatures(sigs, masterKey, key, userId, null,
+                    userIds.contains(userId));
+            if (sigs == null) {
+                Log.w(Constants.TAG, "Skipping user id without valid self-certification");
+                continue;
+            }
+            for (PGPSignature sig : sigs) {
+                result = PGPPublicKey.addCertification(result, userId, sig);
+            }
+        }
+        Iterator<PGPUserAttributeSubpacketVector> updateAttributes = update.getUserAttributes();
+        while (updateAttributes.hasNext()) {
+            PGPUserAttributeSubpacketVector attribute = updateAttributes.next();
+            ArrayList<PGPSignature> sigs = getNewSignatures(
+                    update.getSignaturesForUserAttribute(attribute), known, bound);
+            sigs = getAcceptedSignatures(sigs, masterKey, key, null, attribute,
+                    attributes.contains(attribute));
+            if (sigs == null) {
+                Log.w(Constants.TAG, "Skipping user attribute without valid self-certification");
+                continue;
+            }
+            for (PGPSignature sig : sigs) {
+                result = PGPPublicKey.addCertification(result, attribute, sig);
+            }
+        }
+        for (PGPSignature sig : new IterableIterator<PGPSignature>(update.getSignatures())) {
+            ByteBuffer encoded = ByteBuffer.wrap(sig.getEncoded());
+            if (bound.contains(encoded) || known.contains(encoded)) {
+                continue;
+            }
+            if (sig.getKeyID() == masterKey.getKeyID() || !key.isMasterKey()) {
+                // signatures over subkeys are always issued by the master key
+                if (!verifySelfSignature(sig, masterKey, key, null, null)) {
+                    Log.w(Constants.TAG, "Skipping invalid key signature");
+                    continue;
+                }
+            } else if (sig.getSignatureType() == PGPSignature.KEY_REVOCATION) {
+                // only the master key can revoke itself
+                continue;
+            }
+            known.add(encoded);
+            try {
+                result = PGPPublicKey.addCertification(result, sig);
+            } catch (IllegalArgumentException e) {
+                // revocation of the wrong type for this key, skip it
+            }
+        }
+
+        return result;
+    }
+
+    /**
+     * @param sigs
+     * @param known
+     *            encodings of the signatures already present, new ones are added
+     * @param bound
+     *            all encodings of sigs are added
+     * @return signatures of sigs not in known
+     * @throws IOException
+     */
+    private static ArrayList<PGPSignature> getNewSignatures(Iterator<PGPSignature> sigs,
+            HashSet<ByteBuffer> known, HashSet<ByteBuffer> bound) throws IOException {
+        ArrayList<PGPSignature> result = new ArrayList<PGPSignature>();
+        for (PGPSignature sig : new IterableIterator<PGPSignature>(sigs)) {
+            ByteBuffer encoded = ByteBuffer.wrap(sig.getEncoded());
+            bound.add(encoded);
+            if (known.add(encoded)) {
+                result.add(sig);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @param sigs
+     *            new signatures over userId or attribute of key
+     * @param masterKey
+     * @param key
+     * @param userId
+     *            null if the signatures are over attribute
+     * @param attribute
+     *            null if the signatures are over userId
+     * @param certified
+     *            whether key already has the user id or attribute
+     * @return sigs without the invalid signatures of masterKey, null if the user id or attribute
+     *         is new and has no valid self-certification
+     */
+    private static ArrayList<PGPSignature> getAcceptedSignatures(ArrayList<PGPSignature> sigs,
+            PGPPublicKey masterKey, PGPPublicKey key, String userId,
+            PGPUserAttributeSubpacketVector attribute, boolean certified) {
+        ArrayList<PGPSignature> result = new ArrayList<PGPSignature>();
+        for (PGPSignature sig : sigs) {
+            if (sig.getKeyID() == masterKey.getKeyID()) {
+                if (!verifySelfSignature(sig, masterKey, key, userId, attribute)) {
+                    Log.w(Constants.TAG, "Skipping invalid self-signature");
+                    continue;
+                }
+                certified |= isCertification(sig);
+            }
+            result.add(sig);
+        }
+        return certified ? result : null;
+    }
+
+    private static boolean isCertification(PGPSignature sig) {
+        switch (sig.getSignatureType()) {
+        case PGPSignature.DEFAULT_CERTIFICATION:
+        case PGPSignature.NO_CERTIFICATION:
+        case PGPSignature.CASUAL_CERTIFICATION:
+        case PGPSignature.POSITIVE_CERTIFICATION:
+            return true;
+        default:
+            return false;
+        }
+    }
+
+    /**
+     * @param sig
+     * @param masterKey
+     * @param key
+     *            masterKey or one of its subkeys
+     * @param userId
+     *            user id signed by sig, null if none
+     * @param attribute
+     *            user attribute signed by sig, null if none
+     * @return true if sig is issued by masterKey and verifies over userId, attribute, the binding
+     *         of key to masterKey or masterKey itself
+     */
+    private static boolean verifySelfSignature(PGPSignature sig, PGPPublicKey masterKey,
+            PGPPublicKey key, String userId, PGPUserAttributeSubpacketVector attribute) {
+        if (sig.getKeyID() != masterKey.getKeyID()) {
+            return false;
+        }
+        try {
+            sig.init(new JcaPGPContentVerifierBuilderProvider()
+                    .setProvider(Constants.BOUNCY_CASTLE_PROVIDER_NAME), masterKey);
+            if (userId != null) {
+                return sig.verifyCertification(userId, key);
+            } else if (attribute != null) {
+                return sig.verifyCertification(attribute, key);
+            } else if (!key.isMasterKey()) {
+                return sig.verifyCertification(masterKey, key);
+            }
+            return sig.verifyCertification(key);
+        } catch (PGPException e) {
+            return false;
+        } catch (SignatureException e) {
+            return false;
+        }
+    }
+
 }
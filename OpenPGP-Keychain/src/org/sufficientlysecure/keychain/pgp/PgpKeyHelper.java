@@ -460,6 +460,28 @@ public class PgpKeyHelper {
 
     }
 
+    /**
+     * Formats a fingerprint stored as hex string without spaces, like convertFingerprintToHex
+     * 
+     * @param fingerprint
+     * @return
+     */
+    public static String formatFingerprint(String fingerprint) {
+        StringBuilder formatted = new StringBuilder(fingerprint.length() + fingerprint.length() / 4
+                + 2);
+        for (int i = 0; i < fingerprint.length(); i += 2) {
+            int bytePos = i / 2;
+            if (bytePos != 0 && bytePos % 10 == 0) {
+                formatted.append("  ");
+            } else if (bytePos != 0 && bytePos % 2 == 0) {
+                formatted.append(" ");
+            }
+            formatted.append(fingerprint, i, Math.min(i + 2, fingerprint.length()));
+        }
+
+        return formatted.toString();
+    }
+
     public static String getFingerPrint(Context context, long keyId) {
         PGPPublicKey key = ProviderHelper.getPGPPublicKeyByKeyId(context, keyId);
         // if it is no public key get it from your own keys...
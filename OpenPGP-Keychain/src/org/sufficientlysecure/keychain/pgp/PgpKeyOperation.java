@@ -17,9 +17,12 @@
 
 package org.sufficientlysecure.keychain.pgp;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.math.BigInteger;
+import java.security.GeneralSecurityException;
 import java.security.InvalidAlgorithmParameterException;
+import java.security.KeyPair;
 import java.security.KeyPairGenerator;
 import java.security.NoSuchAlgorithmException;
 import java.security.NoSuchProviderException;
@@ -27,9 +30,20 @@ import java.security.SecureRandom;
 import java.security.SignatureException;
 import java.util.ArrayList;
 import java.util.Date;
-
+import java.util.Iterator;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.spongycastle.bcpg.BCPGOutputStream;
 import org.spongycastle.bcpg.CompressionAlgorithmTags;
 import org.spongycastle.bcpg.HashAlgorithmTags;
+import org.spongycastle.bcpg.PublicKeyPacket;
+import org.spongycastle.bcpg.PublicSubkeyPacket;
 import org.spongycastle.bcpg.SymmetricKeyAlgorithmTags;
 import org.spongycastle.bcpg.sig.KeyFlags;
 import org.spongycastle.jce.provider.BouncyCastleProvider;
@@ -52,17 +66,20 @@ import org.spongycastle.openpgp.operator.PBESecretKeyDecryptor;
 import org.spongycastle.openpgp.operator.PBESecretKeyEncryptor;
 import org.spongycastle.openpgp.operator.PGPContentSignerBuilder;
 import org.spongycastle.openpgp.operator.PGPDigestCalculator;
+import org.spongycastle.openpgp.operator.jcajce.JcaKeyFingerprintCalculator;
 import org.spongycastle.openpgp.operator.jcajce.JcaPGPContentSignerBuilder;
 import org.spongycastle.openpgp.operator.jcajce.JcaPGPDigestCalculatorProviderBuilder;
 import org.spongycastle.openpgp.operator.jcajce.JcaPGPKeyPair;
 import org.spongycastle.openpgp.operator.jcajce.JcePBESecretKeyDecryptorBuilder;
-import org.spongycastle.openpgp.operator.jcajce.JcePBESecretKeyEncryptorBuilder;
 import org.sufficientlysecure.keychain.Constants;
 import org.sufficientlysecure.keychain.Id;
 import org.sufficientlysecure.keychain.R;
+import org.sufficientlysecure.keychain.helper.Preferences;
 import org.sufficientlysecure.keychain.pgp.exception.PgpGeneralException;
 import org.sufficientlysecure.keychain.provider.ProviderHelper;
+import org.sufficientlysecure.keychain.service.KeyPairPoolService;
 import org.sufficientlysecure.keychain.util.Log;
+import org.sufficientlysecure.keychain.util.ParallelRsaKeyPairGenerator;
 import org.sufficientlysecure.keychain.util.Primes;
 import org.sufficientlysecure.keychain.util.ProgressDialogUpdater;
 
@@ -72,6 +89,9 @@ public class PgpKeyOperation {
     private Context mContext;
     private ProgressDialogUpdater mProgress;
 
+    // key size of ACTION_GENERATE_DEFAULT_RSA_KEYS, pre-generated by KeyPairPoolService
+    public static final int DEFAULT_RSA_KEY_SIZE = 4096;
+
     private static final int[] PREFERRED_SYMMETRIC_ALGORITHMS = new int[] {
             SymmetricKeyAlgorithmTags.AES_256, SymmetricKeyAlgorithmTags.AES_192,
             SymmetricKeyAlgorithmTags.AES_128, SymmetricKeyAlgorithmTags.CAST5,
@@ -121,12 +141,76 @@ public class PgpKeyOperation {
             PGPSecretKey masterSecretKey) throws NoSuchAlgorithmException, PGPException,
             NoSuchProviderException, PgpGeneralException, InvalidAlgorithmParameterException {
 
-        if (keySize < 512) {
-            throw new PgpGeneralException(mContext.getString(R.string.error_keySizeMinimum512bit));
+        PGPKeyPair keyPair = generateKeyPair(algorithmChoice, keySize, masterSecretKey == null,
+                Runtime.getRuntime().availableProcessors());
+
+        return createKeyRing(keyPair, passPhrase, masterSecretKey);
+    }
+
+    /**
+     * Creates a new RSA master key and a new RSA sub key, generating both key pairs concurrently.
+     * The first returned PGPSecretKeyRing contains only the master key, the second one the master
+     * key and the sub key, as returned by createKey.
+     * 
+     * @param keySize
+     * @param passPhrase
+     * @return master key ring and sub key ring
+     * @throws GeneralSecurityException
+     * @throws PGPException
+     * @throws PgpGeneralException
+     */
+    public PGPSecretKeyRing[] createRsaKeys(final int keySize, String passPhrase)
+            throws GeneralSecurityException, PGPException, PgpGeneralException {
+
+        // each key pair gets its share of the processors
+        int processors = Runtime.getRuntime().availableProcessors();
+        final int threadsPerKeyPair = Math.max(1, processors / 2);
+
+        ArrayList<Callable<PGPKeyPair>> tasks = new ArrayList<Callable<PGPKeyPair>>();
+        for (int i = 0; i < 2; ++i) {
+            final boolean isMasterKey = (i == 0);
+            tasks.add(new Callable<PGPKeyPair>() {
+                @Override
+                public PGPKeyPair call() throws Exception {
+                    return generateKeyPair(Id.choice.algorithm.rsa, keySize, isMasterKey,
+                            threadsPerKeyPair);
+                }
+            });
         }
+        ArrayList<PGPKeyPair> keyPairs = runTasks(tasks, new int[] {
+                R.string.progress_generatingMasterKey, R.string.progress_generatingSubKey },
+                Math.min(tasks.size(), processors), 0, 90);
 
-        if (passPhrase == null) {
-            passPhrase = "";
+        updateProgress(R.string.progress_buildingKey, 90, 100);
+
+        PGPSecretKeyRing masterKeyRing = createKeyRing(keyPairs.get(0), passPhrase, null);
+        PGPSecretKeyRing subKeyRing = createKeyRing(keyPairs.get(1), passPhrase,
+                masterKeyRing.getSecretKey());
+
+        updateProgress(R.string.progress_done, 100, 100);
+
+        return new PGPSecretKeyRing[] { masterKeyRing, subKeyRing };
+    }
+
+    /**
+     * @param algorithmChoice
+     * @param keySize
+     * @param isMasterKey
+     * @param threads
+     *            number of threads generating an RSA key pair
+     * @return new key pair
+     * @throws NoSuchAlgorithmException
+     * @throws PGPException
+     * @throws NoSuchProviderException
+     * @throws PgpGeneralException
+     * @throws InvalidAlgorithmParameterException
+     */
+    private PGPKeyPair generateKeyPair(int algorithmChoice, int keySize, boolean isMasterKey,
+            int threads) throws NoSuchAlgorithmException, PGPException, NoSuchProviderException,
+            PgpGeneralException, InvalidAlgorithmParameterException {
+
+        if (keySize < 512) {
+            throw new PgpGeneralException(mContext.getString(R.string.error_keySizeMinimum512bit));
         }
 
         int algorithm = 0;
@@ -141,7 +225,7 @@ public class PgpKeyOperation {
         }
 
         case Id.choice.algorithm.elgamal: {
-            if (masterSecretKey == null) {
+            if (isMasterKey) {
                 throw new PgpGeneralException(
                         mContext.getString(R.string.error_masterKeyMustNotBeElGamal));
             }
@@ -157,7 +241,8 @@ public class PgpKeyOperation {
         }
 
         case Id.choice.algorithm.rsa: {
-            keyGen = KeyPairGenerator.getInstance("RSA", Constants.BOUNCY_CASTLE_PROVIDER_NAME);
+            // searches for the primes on several processors
+            keyGen = new ParallelRsaKeyPairGenerator(threads);
             keyGen.initialize(keySize, new SecureRandom());
 
             algorithm = PGPPublicKey.RSA_GENERAL;
@@ -169,17 +254,39 @@ public class PgpKeyOperation {
         }
         }
 
-        // build new key pair
-        PGPKeyPair keyPair = new JcaPGPKeyPair(algorithm, keyGen.generateKeyPair(), new Date());
+        // build new key pair, RSA key pairs may have been generated ahead of time
+        KeyPair generatedKeyPair = null;
+        if (algorithm == PGPPublicKey.RSA_GENERAL) {
+            generatedKeyPair = takePooledKeyPair(keySize);
+        }
+        if (generatedKeyPair == null) {
+            generatedKeyPair = keyGen.generateKeyPair();
+        }
+        return new JcaPGPKeyPair(algorithm, generatedKeyPair, new Date());
+    }
+
+    /**
+     * @param keyPair
+     * @param passPhrase
+     * @param masterSecretKey
+     * @return key ring as described in createKey
+     * @throws PGPException
+     */
+    private PGPSecretKeyRing createKeyRing(PGPKeyPair keyPair, String passPhrase,
+            PGPSecretKey masterSecretKey) throws PGPException {
+
+        if (passPhrase == null) {
+            passPhrase = "";
+        }
 
         // define hashing and signing algos
         PGPDigestCalculator sha1Calc = new JcaPGPDigestCalculatorProviderBuilder().build().get(
                 HashAlgorithmTags.SHA1);
 
         // Build key encrypter and decrypter based on passphrase
-        PBESecretKeyEncryptor keyEncryptor = new JcePBESecretKeyEncryptorBuilder(
-                PGPEncryptedData.CAST5, sha1Calc)
-                .setProvider(Constants.BOUNCY_CASTLE_PROVIDER_NAME).build(passPhrase.toCharArray());
+        PBESecretKeyEncryptor keyEncryptor = PgpS2kCalibration.buildSecretKeyEncryptor(
+                PGPEncryptedData.CAST5, PgpS2kCalibration.getCodedCount(mContext),
+                passPhrase.toCharArray());
         PBESecretKeyDecryptor keyDecryptor = new JcePBESecretKeyDecryptorBuilder().setProvider(
                 Constants.BOUNCY_CASTLE_PROVIDER_NAME).build(passPhrase.toCharArray());
 
@@ -212,6 +319,21 @@ public class PgpKeyOperation {
         return secKeyRing;
     }
 
+    /**
+     * @param keySize
+     * @return RSA key pair from the pool of pre-generated key pairs, null if the pool is disabled
+     *         or has none of keySize
+     */
+    private KeyPair takePooledKeyPair(int keySize) {
+        if (!Preferences.getPreferences(mContext).getKeyPool()) {
+            return null;
+        }
+        KeyPair keyPair = PgpKeyPairPool.getInstance(mContext).take(keySize);
+        // replace the key pair taken, or generate the missing ones
+        KeyPairPoolService.update(mContext);
+        return keyPair;
+    }
+
     public void changeSecretKeyPassphrase(PGPSecretKeyRing keyRing, String oldPassPhrase,
             String newPassPhrase) throws IOException, PGPException, PGPException,
             NoSuchProviderException {
@@ -229,8 +351,9 @@ public class PgpKeyOperation {
                 new JcePBESecretKeyDecryptorBuilder(new JcaPGPDigestCalculatorProviderBuilder()
                         .setProvider(Constants.BOUNCY_CASTLE_PROVIDER_NAME).build()).setProvider(
                         Constants.BOUNCY_CASTLE_PROVIDER_NAME).build(oldPassPhrase.toCharArray()),
-                new JcePBESecretKeyEncryptorBuilder(keyRing.getSecretKey()
-                        .getKeyEncryptionAlgorithm()).build(newPassPhrase.toCharArray()));
+                PgpS2kCalibration.buildSecretKeyEncryptor(keyRing.getSecretKey()
+                        .getKeyEncryptionAlgorithm(), PgpS2kCalibration.getCodedCount(mContext),
+                        newPassPhrase.toCharArray()));
 
         updateProgress(R.string.progress_savingKeyRing, 50, 100);
 
@@ -242,8 +365,8 @@ public class PgpKeyOperation {
 
     public void buildSecretKey(ArrayList<String> userIds, ArrayList<PGPSecretKey> keys,
             ArrayList<Integer> keysUsages, long masterKeyId, String oldPassPhrase,
-            String newPassPhrase) throws PgpGeneralException, NoSuchProviderException,
-            PGPException, NoSuchAlgorithmException, SignatureException, IOException {
+            String newPassPhrase) throws PgpGeneralException, GeneralSecurityException,
+            PGPException, IOException {
 
         Log.d(Constants.TAG, "userIds: " + userIds.toString());
 
@@ -289,17 +412,43 @@ public class PgpKeyOperation {
 
         updateProgress(R.string.progress_certifyingMasterKey, 20, 100);
 
-        for (String userId : userIds) {
-            PGPContentSignerBuilder signerBuilder = new JcaPGPContentSignerBuilder(
-                    masterPublicKey.getAlgorithm(), HashAlgorithmTags.SHA1)
-                    .setProvider(Constants.BOUNCY_CASTLE_PROVIDER_NAME);
-            PGPSignatureGenerator sGen = new PGPSignatureGenerator(signerBuilder);
-
-            sGen.init(PGPSignature.POSITIVE_CERTIFICATION, masterPrivateKey);
-
-            PGPSignature certification = sGen.generateCertification(userId, masterPublicKey);
+        // certifications of the user ids and bindings of the sub keys only depend on the master
+        // key, they are computed concurrently
+        final PGPPublicKey certifyingPublicKey = masterPublicKey;
+        final PGPPrivateKey certifyingPrivateKey = masterPrivateKey;
+        final String oldPassPhraseFinal = oldPassPhrase;
+        final String newPassPhraseFinal = newPassPhrase;
+        final int s2kCodedCount = PgpS2kCalibration.getCodedCount(mContext);
+        ArrayList<Callable<Object>> tasks = new ArrayList<Callable<Object>>();
+        int[] taskMessages = new int[userIds.size() + keys.size() - 1];
+        for (final String userId : userIds) {
+            taskMessages[tasks.size()] = R.string.progress_certifyingMasterKey;
+            tasks.add(new Callable<Object>() {
+                @Override
+                public Object call() throws Exception {
+                    return certifyUserId(userId, certifyingPublicKey, certifyingPrivateKey);
+                }
+            });
+        }
+        for (int i = 1; i < keys.size(); ++i) {
+            final PGPSecretKey subKey = keys.get(i);
+            final int subKeyFlags = getSubKeyFlags(keysUsages.get(i));
+            taskMessages[tasks.size()] = R.string.progress_addingSubKeys;
+            tasks.add(new Callable<Object>() {
+                @Override
+                public Object call() throws Exception {
+                    return bindSubKey(subKey, subKeyFlags, certifyingPublicKey,
+                            certifyingPrivateKey, oldPassPhraseFinal, newPassPhraseFinal,
+                            s2kCodedCount);
+                }
+            });
+        }
+        ArrayList<Object> results = runTasks(tasks, taskMessages, Runtime.getRuntime()
+                .availableProcessors(), 20, 80);
 
-            masterPublicKey = PGPPublicKey.addCertification(masterPublicKey, userId, certification);
+        for (int i = 0; i < userIds.size(); ++i) {
+            masterPublicKey = PGPPublicKey.addCertification(masterPublicKey, userIds.get(i),
+                    (PGPSignature) results.get(i));
         }
 
         // TODO: cross-certify the master key with every sub key (APG 1)
@@ -332,7 +481,7 @@ public class PgpKeyOperation {
         // hashedPacketsGen.setKeyExpirationTime(true, numDays * 86400);
         // }
 
-        updateProgress(R.string.progress_buildingMasterKeyRing, 30, 100);
+        updateProgress(R.string.progress_buildingMasterKeyRing, 80, 100);
 
         // define hashing and signing algos
         PGPDigestCalculator sha1Calc = new JcaPGPDigestCalculatorProviderBuilder().build().get(
@@ -341,72 +490,231 @@ public class PgpKeyOperation {
                 masterKeyPair.getPublicKey().getAlgorithm(), HashAlgorithmTags.SHA1);
 
         // Build key encrypter based on passphrase
-        PBESecretKeyEncryptor keyEncryptor = new JcePBESecretKeyEncryptorBuilder(
-                PGPEncryptedData.CAST5, sha1Calc)
-                .setProvider(Constants.BOUNCY_CASTLE_PROVIDER_NAME).build(
-                        newPassPhrase.toCharArray());
+        PBESecretKeyEncryptor keyEncryptor = PgpS2kCalibration.buildSecretKeyEncryptor(
+                PGPEncryptedData.CAST5, s2kCodedCount, newPassPhrase.toCharArray());
 
         PGPKeyRingGenerator keyGen = new PGPKeyRingGenerator(PGPSignature.POSITIVE_CERTIFICATION,
                 masterKeyPair, mainUserId, sha1Calc, hashedPacketsGen.generate(),
                 unhashedPacketsGen.generate(), certificationSignerBuilder, keyEncryptor);
 
-        updateProgress(R.string.progress_addingSubKeys, 40, 100);
+        PGPSecretKeyRing secretKeyRing = keyGen.generateSecretKeyRing();
+        ArrayList<PGPSecretKey> subKeys = new ArrayList<PGPSecretKey>();
+        for (int i = userIds.size(); i < results.size(); ++i) {
+            PGPSecretKey subKey = (PGPSecretKey) results.get(i);
+            secretKeyRing = PGPSecretKeyRing.insertSecretKey(secretKeyRing, subKey);
+            subKeys.add(subKey);
+        }
+        PGPPublicKeyRing publicKeyRing = addPublicSubKeys(keyGen.generatePublicKeyRing(), subKeys);
 
-        for (int i = 1; i < keys.size(); ++i) {
-            updateProgress(40 + 50 * (i - 1) / (keys.size() - 1), 100);
+        updateProgress(R.string.progress_savingKeyRing, 90, 100);
+
+        ProviderHelper.saveKeyRing(mContext, secretKeyRing);
+        ProviderHelper.saveKeyRing(mContext, publicKeyRing);
+
+        updateProgress(R.string.progress_done, 100, 100);
+    }
 
-            PGPSecretKey subKey = keys.get(i);
-            PGPPublicKey subPublicKey = subKey.getPublicKey();
+    /**
+     * @param userId
+     * @param masterPublicKey
+     * @param masterPrivateKey
+     * @return positive certification of userId by the master key
+     * @throws PGPException
+     * @throws SignatureException
+     */
+    private static PGPSignature certifyUserId(String userId, PGPPublicKey masterPublicKey,
+            PGPPrivateKey masterPrivateKey) throws PGPException, SignatureException {
+        PGPContentSignerBuilder signerBuilder = new JcaPGPContentSignerBuilder(
+                masterPublicKey.getAlgorithm(), HashAlgorithmTags.SHA1)
+                .setProvider(Constants.BOUNCY_CASTLE_PROVIDER_NAME);
+        PGPSignatureGenerator sGen = new PGPSignatureGenerator(signerBuilder);
 
-            PBESecretKeyDecryptor keyDecryptor2 = new JcePBESecretKeyDecryptorBuilder()
-                    .setProvider(Constants.BOUNCY_CASTLE_PROVIDER_NAME).build(
-                            oldPassPhrase.toCharArray());
-            PGPPrivateKey subPrivateKey = subKey.extractPrivateKey(keyDecryptor2);
+        sGen.init(PGPSignature.POSITIVE_CERTIFICATION, masterPrivateKey);
 
-            // TODO: now used without algorithm and creation time?! (APG 1)
-            PGPKeyPair subKeyPair = new PGPKeyPair(subPublicKey, subPrivateKey);
+        return sGen.generateCertification(userId, masterPublicKey);
+    }
 
-            hashedPacketsGen = new PGPSignatureSubpacketGenerator();
-            unhashedPacketsGen = new PGPSignatureSubpacketGenerator();
+    private static int getSubKeyFlags(int usageId) {
+        boolean canSign = (usageId == Id.choice.usage.sign_only || usageId == Id.choice.usage.sign_and_encrypt);
+        boolean canEncrypt = (usageId == Id.choice.usage.encrypt_only || usageId == Id.choice.usage.sign_and_encrypt);
 
-            keyFlags = 0;
+        int keyFlags = 0;
+        if (canSign) {
+            keyFlags |= KeyFlags.SIGN_DATA;
+        }
+        if (canEncrypt) {
+            keyFlags |= KeyFlags.ENCRYPT_COMMS | KeyFlags.ENCRYPT_STORAGE;
+        }
+        return keyFlags;
+    }
 
-            usageId = keysUsages.get(i);
-            canSign = (usageId == Id.choice.usage.sign_only || usageId == Id.choice.usage.sign_and_encrypt);
-            canEncrypt = (usageId == Id.choice.usage.encrypt_only || usageId == Id.choice.usage.sign_and_encrypt);
-            if (canSign) {
-                keyFlags |= KeyFlags.SIGN_DATA;
-            }
-            if (canEncrypt) {
-                keyFlags |= KeyFlags.ENCRYPT_COMMS | KeyFlags.ENCRYPT_STORAGE;
+    /**
+     * Replaces the binding signatures of a sub key by a new one of the master key, and encrypts
+     * the sub key with the new passphrase
+     * 
+     * @param subKey
+     * @param keyFlags
+     * @param masterPublicKey
+     * @param masterPrivateKey
+     * @param oldPassPhrase
+     * @param newPassPhrase
+     * @param s2kCodedCount
+     * @return bound sub key
+     * @throws PGPException
+     * @throws SignatureException
+     */
+    private static PGPSecretKey bindSubKey(PGPSecretKey subKey, int keyFlags,
+            PGPPublicKey masterPublicKey, PGPPrivateKey masterPrivateKey, String oldPassPhrase,
+            String newPassPhrase, int s2kCodedCount) throws PGPException, SignatureException {
+        PGPSignatureSubpacketGenerator hashedPacketsGen = new PGPSignatureSubpacketGenerator();
+        PGPSignatureSubpacketGenerator unhashedPacketsGen = new PGPSignatureSubpacketGenerator();
+
+        hashedPacketsGen.setKeyFlags(true, keyFlags);
+
+        // TODO: this doesn't work quite right yet (APG 1)
+        // if (keyEditor.getExpiryDate() != null) {
+        // GregorianCalendar creationDate = new GregorianCalendar();
+        // creationDate.setTime(getCreationDate(masterKey));
+        // GregorianCalendar expiryDate = keyEditor.getExpiryDate();
+        // long numDays = Utils.getNumDaysBetween(creationDate, expiryDate);
+        // if (numDays <= 0) {
+        // throw new GeneralException(
+        // context.getString(R.string.error_expiryMustComeAfterCreation));
+        // }
+        // hashedPacketsGen.setKeyExpirationTime(true, numDays * 86400);
+        // }
+
+        // remove the old bindings, also those of a previous master key
+        PGPPublicKey subPublicKey = subKey.getPublicKey();
+        ArrayList<PGPSignature> oldBindings = new ArrayList<PGPSignature>();
+        for (Iterator<?> it = subPublicKey.getSignatures(); it.hasNext();) {
+            oldBindings.add((PGPSignature) it.next());
+        }
+        for (PGPSignature oldBinding : oldBindings) {
+            subPublicKey = PGPPublicKey.removeCertification(subPublicKey, oldBinding);
+        }
+
+        PGPContentSignerBuilder signerBuilder = new JcaPGPContentSignerBuilder(
+                masterPublicKey.getAlgorithm(), HashAlgorithmTags.SHA1)
+                .setProvider(Constants.BOUNCY_CASTLE_PROVIDER_NAME);
+        PGPSignatureGenerator sGen = new PGPSignatureGenerator(signerBuilder);
+
+        sGen.init(PGPSignature.SUBKEY_BINDING, masterPrivateKey);
+        sGen.setHashedSubpackets(hashedPacketsGen.generate());
+        sGen.setUnhashedSubpackets(unhashedPacketsGen.generate());
+
+        PGPSignature binding = sGen.generateCertification(masterPublicKey, subPublicKey);
+        subPublicKey = PGPPublicKey.addCertification(subPublicKey, binding);
+
+        PBESecretKeyDecryptor keyDecryptor = new JcePBESecretKeyDecryptorBuilder().setProvider(
+                Constants.BOUNCY_CASTLE_PROVIDER_NAME).build(oldPassPhrase.toCharArray());
+        PBESecretKeyEncryptor keyEncryptor = PgpS2kCalibration.buildSecretKeyEncryptor(
+                PGPEncryptedData.CAST5, s2kCodedCount, newPassPhrase.toCharArray());
+
+        return PGPSecretKey.replacePublicKey(
+                PGPSecretKey.copyWithNewPassword(subKey, keyDecryptor, keyEncryptor), subPublicKey);
+    }
+
+    /**
+     * @param masterKeyRing
+     * @param subKeys
+     * @return masterKeyRing with the public keys of subKeys and their binding signatures
+     * @throws IOException
+     */
+    private static PGPPublicKeyRing addPublicSubKeys(PGPPublicKeyRing masterKeyRing,
+            ArrayList<PGPSecretKey> subKeys) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        masterKeyRing.encode(out);
+        BCPGOutputStream bcpgOut = new BCPGOutputStream(out);
+        for (PGPSecretKey subKey : subKeys) {
+            // the public key of a secret key is stored like a master key, PGPKeyRingGenerator
+            // converts it the same way
+            PublicKeyPacket packet = subKey.getPublicKey().getPublicKeyPacket();
+            new PublicSubkeyPacket(packet.getAlgorithm(), packet.getTime(), packet.getKey())
+                    .encode(bcpgOut);
+            for (Iterator<?> it = subKey.getPublicKey().getSignatures(); it.hasNext();) {
+                ((PGPSignature) it.next()).encode(bcpgOut);
             }
-            hashedPacketsGen.setKeyFlags(true, keyFlags);
-
-            // TODO: this doesn't work quite right yet (APG 1)
-            // if (keyEditor.getExpiryDate() != null) {
-            // GregorianCalendar creationDate = new GregorianCalendar();
-            // creationDate.setTime(getCreationDate(masterKey));
-            // GregorianCalendar expiryDate = keyEditor.getExpiryDate();
-            // long numDays = Utils.getNumDaysBetween(creationDate, expiryDate);
-            // if (numDays <= 0) {
-            // throw new GeneralException(
-            // context.getString(R.string.error_expiryMustComeAfterCreation));
-            // }
-            // hashedPacketsGen.setKeyExpirationTime(true, numDays * 86400);
-            // }
-
-            keyGen.addSubKey(subKeyPair, hashedPacketsGen.generate(), unhashedPacketsGen.generate());
         }
+        bcpgOut.flush();
 
-        PGPSecretKeyRing secretKeyRing = keyGen.generateSecretKeyRing();
-        PGPPublicKeyRing publicKeyRing = keyGen.generatePublicKeyRing();
+        return new PGPPublicKeyRing(out.toByteArray(), new JcaKeyFingerprintCalculator());
+    }
 
-        updateProgress(R.string.progress_savingKeyRing, 90, 100);
+    /**
+     * Runs tasks concurrently and reports their progress. Whenever a task finishes, the message
+     * of the first task still running is shown.
+     * 
+     * @param tasks
+     * @param messages
+     *            progress message of each task
+     * @param threads
+     *            maximum number of tasks running at the same time
+     * @param progressFrom
+     * @param progressTo
+     * @return results in the order of the tasks
+     * @throws GeneralSecurityException
+     * @throws PGPException
+     * @throws PgpGeneralException
+     */
+    private <T> ArrayList<T> runTasks(ArrayList<? extends Callable<T>> tasks, int[] messages,
+            int threads, int progressFrom, int progressTo) throws GeneralSecurityException,
+            PGPException, PgpGeneralException {
+        ArrayList<T> results = new ArrayList<T>();
+        if (tasks.isEmpty()) {
+            return results;
+        }
 
-        ProviderHelper.saveKeyRing(mContext, secretKeyRing);
-        ProviderHelper.saveKeyRing(mContext, publicKeyRing);
+        ExecutorService executor = Executors.newFixedThreadPool(Math.max(1,
+                Math.min(threads, tasks.size())));
+        try {
+            ArrayList<Future<T>> futures = new ArrayList<Future<T>>();
+            CompletionService<T> completionService = new ExecutorCompletionService<T>(executor);
+            for (Callable<T> task : tasks) {
+                futures.add(completionService.submit(task));
+            }
 
-        updateProgress(R.string.progress_done, 100, 100);
+            updateProgress(messages[0], progressFrom, 100);
+            for (int done = 1; done <= tasks.size(); ++done) {
+                completionService.take().get();
+
+                int running = 0;
+                while (running < tasks.size() && futures.get(running).isDone()) {
+                    ++running;
+                }
+                int progress = progressFrom + (progressTo - progressFrom) * done / tasks.size();
+                if (running < tasks.size()) {
+                    updateProgress(messages[running], progress, 100);
+                } else {
+                    updateProgress(progress, 100);
+                }
+            }
+
+            for (Future<T> future : futures) {
+                results.add(future.get());
+            }
+            return results;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new PgpGeneralException("Interrupted");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof GeneralSecurityException) {
+                throw (GeneralSecurityException) cause;
+            } else if (cause instanceof PGPException) {
+                throw (PGPException) cause;
+            } else if (cause instanceof PgpGeneralException) {
+                throw (PgpGeneralException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new PgpGeneralException(cause.toString());
+        } finally {
+            // stops the other tasks if one failed
+            executor.shutdownNow();
+        }
     }
 
     public PGPPublicKeyRing signKey(long masterKeyId, long pubKeyId, String passphrase)
@@ -0,0 +1,306 @@
+/*
+ * Copyright (C) 2013 Dominik Schürmann <dominik@dominikschuermann.de>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.pgp;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.security.KeyFactory;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.SecureRandom;
+import java.security.interfaces.RSAPrivateCrtKey;
+import java.security.spec.PKCS8EncodedKeySpec;
+import java.security.spec.RSAPublicKeySpec;
+import java.util.Arrays;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.spongycastle.util.encoders.Base64;
+import org.sufficientlysecure.keychain.Constants;
+import org.sufficientlysecure.keychain.util.Log;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+/**
+ * Pool of RSA key pairs generated ahead of time, so creating a key does not have to wait for the
+ * key pair generation.
+ *
+ * Every key pair is stored in its own file, encrypted with AES-GCM under a random pool key, which
+ * is kept in the private preferences. Both are private data of the app, so the encryption only
+ * makes a pool file useless on its own, e.g., if the files directory leaks without the
+ * preferences. Anybody who can read all private data of the app, e.g., with root access, can
+ * decrypt the key pairs, which are not protected by a passphrase yet, unlike stored secret keys.
+ *
+ * A key pair is handed out only after its file has been deleted, so it is used for one key only.
+ */
+public class PgpKeyPairPool {
+    private static final String POOL_DIR = "key_pool";
+    private static final String PREFERENCES_NAME = "key_pool";
+    private static final String PREF_POOL_KEY = "pool_key";
+    private static final String PREF_HITS = "hits";
+    private static final String PREF_MISSES = "misses";
+
+    private static final int FORMAT_VERSION = 1;
+    private static final String CIPHER = "AES/GCM/NoPadding";
+    private static final int POOL_KEY_LENGTH = 32;
+    private static final int IV_LENGTH = 12;
+    private static final String TEMP_SUFFIX = ".tmp";
+
+    private static PgpKeyPairPool sInstance;
+
+    private final File mDir;
+    private final SharedPreferences mPreferences;
+    private final SecureRandom mRandom = new SecureRandom();
+    private SecretKeySpec mPoolKey;
+
+    public static synchronized PgpKeyPairPool getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new PgpKeyPairPool(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    private PgpKeyPairPool(Context context) {
+        mDir = new File(context.getFilesDir(), POOL_DIR);
+        mPreferences = context.getSharedPreferences(PREFERENCES_NAME, Context.MODE_PRIVATE);
+    }
+
+    /**
+     * Takes an RSA key pair out of the pool
+     *
+     * @param keySize
+     * @return key pair, null if the pool has none of keySize
+     */
+    public synchronized KeyPair take(int keySize) {
+        KeyPair keyPair = null;
+        for (File file : listFiles(keySize)) {
+            keyPair = read(file, keySize);
+            // never hand out a key pair twice
+            if (!file.delete() && file.exists()) {
+                Log.e(Constants.TAG, "Could not delete pre-generated key pair, dropping it");
+                keyPair = null;
+            }
+            if (keyPair != null) {
+                break;
+            }
+        }
+
+        String outcome = (keyPair != null) ? PREF_HITS : PREF_MISSES;
+        mPreferences.edit().putInt(outcome, mPreferences.getInt(outcome, 0) + 1).commit();
+        Log.d(Constants.TAG, "Key pair pool " + ((keyPair != null) ? "hit" : "miss") + ", "
+                + getHitCount() + " hits, " + getMissCount() + " misses");
+
+        return keyPair;
+    }
+
+    /**
+     * Generates one RSA key pair if the pool holds fewer than depth of keySize. Generating takes
+     * long and is done without holding the lock of the pool.
+     *
+     * @param keySize
+     * @param depth
+     * @return true if a key pair was added, false if the pool is full
+     * @throws GeneralSecurityException
+     */
+    public boolean refillOne(int keySize, int depth) throws GeneralSecurityException {
+        if (getCount(keySize) >= depth) {
+            return false;
+        }
+
+        // not ParallelRsaKeyPairGenerator, its threads would not run with background priority
+        KeyPairGenerator keyGen = KeyPairGenerator.getInstance("RSA",
+                Constants.BOUNCY_CASTLE_PROVIDER_NAME);
+        keyGen.initialize(keySize, mRandom);
+        KeyPair keyPair = keyGen.generateKeyPair();
+
+        synchronized (this) {
+            write(keyPair, keySize);
+        }
+        return true;
+    }
+
+    /**
+     * @param keySize
+     * @return number of RSA key pairs of keySize in the pool
+     */
+    public synchronized int getCount(int keySize) {
+        return listFiles(keySize).length;
+    }
+
+    /**
+     * Deletes all key pairs and the pool key
+     */
+    public synchronized void clear() {
+        File[] files = mDir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        mPoolKey = null;
+        mPreferences.edit().remove(PREF_POOL_KEY).commit();
+    }
+
+    public int getHitCount() {
+        return mPreferences.getInt(PREF_HITS, 0);
+    }
+
+    public int getMissCount() {
+        return mPreferences.getInt(PREF_MISSES, 0);
+    }
+
+    private File[] listFiles(int keySize) {
+        final String prefix = getFilePrefix(keySize);
+        File[] files = mDir.listFiles(new FilenameFilter() {
+            @Override
+            public boolean accept(File dir, String filename) {
+                return filename.startsWith(prefix) && !filename.endsWith(TEMP_SUFFIX);
+            }
+        });
+        if (files == null) {
+            return new File[0];
+        }
+        // oldest first
+        Arrays.sort(files);
+        return files;
+    }
+
+    private static String getFilePrefix(int keySize) {
+        return "rsa-" + keySize + "-";
+    }
+
+    private void write(KeyPair keyPair, int keySize) throws GeneralSecurityException {
+        if (!mDir.isDirectory() && !mDir.mkdirs()) {
+            return;
+        }
+
+        byte[] iv = new byte[IV_LENGTH];
+        mRandom.nextBytes(iv);
+        Cipher cipher = Cipher.getInstance(CIPHER, Constants.BOUNCY_CASTLE_PROVIDER_NAME);
+        cipher.init(Cipher.ENCRYPT_MODE, getPoolKey(), new IvParameterSpec(iv));
+        byte[] encrypted = cipher.doFinal(keyPair.getPrivate().getEncoded());
+
+        // names sort by creation time
+        String name = getFilePrefix(keySize) + String.format("%016x", System.currentTimeMillis())
+                + "-" + Integer.toHexString(mRandom.nextInt());
+        File temp = new File(mDir, name + TEMP_SUFFIX);
+        DataOutputStream out = null;
+        try {
+            out = new DataOutputStream(new FileOutputStream(temp));
+            out.writeInt(FORMAT_VERSION);
+            out.write(iv);
+            out.writeInt(encrypted.length);
+            out.write(encrypted);
+            out.close();
+            out = null;
+            if (!temp.renameTo(new File(mDir, name))) {
+                temp.delete();
+            }
+        } catch (IOException e) {
+            Log.e(Constants.TAG, "Could not store pre-generated key pair", e);
+            temp.delete();
+        } finally {
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException e) {
+                    // nothing to do
+                }
+            }
+        }
+    }
+
+    /**
+     * @param file
+     * @param keySize
+     * @return key pair, null if the file is unreadable, tampered with or of another pool key
+     */
+    private KeyPair read(File file, int keySize) {
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new FileInputStream(file));
+            if (in.readInt() != FORMAT_VERSION) {
+                return null;
+            }
+            byte[] iv = new byte[IV_LENGTH];
+            in.readFully(iv);
+            int length = in.readInt();
+            if (length <= 0 || length > file.length()) {
+                return null;
+            }
+            byte[] encrypted = new byte[length];
+            in.readFully(encrypted);
+
+            Cipher cipher = Cipher.getInstance(CIPHER, Constants.BOUNCY_CASTLE_PROVIDER_NAME);
+            cipher.init(Cipher.DECRYPT_MODE, getPoolKey(), new IvParameterSpec(iv));
+            byte[] encoded = cipher.doFinal(encrypted);
+
+            KeyFactory keyFactory = KeyFactory.getInstance("RSA",
+                    Constants.BOUNCY_CASTLE_PROVIDER_NAME);
+            RSAPrivateCrtKey privateKey = (RSAPrivateCrtKey) keyFactory
+                    .generatePrivate(new PKCS8EncodedKeySpec(encoded));
+            Arrays.fill(encoded, (byte) 0);
+            if (privateKey.getModulus().bitLength() != keySize) {
+                return null;
+            }
+            return new KeyPair(keyFactory.generatePublic(new RSAPublicKeySpec(
+                    privateKey.getModulus(), privateKey.getPublicExponent())), privateKey);
+        } catch (IOException e) {
+            return null;
+        } catch (GeneralSecurityException e) {
+            Log.e(Constants.TAG, "Pre-generated key pair could not be decrypted", e);
+            return null;
+        } catch (ClassCastException e) {
+            return null;
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    // nothing to do
+                }
+            }
+        }
+    }
+
+    private SecretKeySpec getPoolKey() {
+        if (mPoolKey == null) {
+            String stored = mPreferences.getString(PREF_POOL_KEY, null);
+            byte[] key;
+            if (stored != null) {
+                key = Base64.decode(stored);
+            } else {
+                key = new byte[POOL_KEY_LENGTH];
+                mRandom.nextBytes(key);
+                mPreferences.edit().putString(PREF_POOL_KEY, new String(Base64.encode(key)))
+                        .commit();
+            }
+            mPoolKey = new SecretKeySpec(key, "AES");
+        }
+        return mPoolKey;
+    }
+}
@@ -25,6 +25,7 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.OutputStream;
+import java.io.SequenceInputStream;
 import java.security.NoSuchAlgorithmException;
 import java.security.NoSuchProviderException;
 import java.security.SignatureException;
@@ -56,9 +57,9 @@ import org.spongycastle.openpgp.PGPSignature;
 import org.spongycastle.openpgp.PGPSignatureGenerator;
 import org.spongycastle.openpgp.PGPSignatureList;
 import org.spongycastle.openpgp.PGPSignatureSubpacketGenerator;
-import org.spongycastle.openpgp.PGPUtil;
 import org.spongycastle.openpgp.PGPV3SignatureGenerator;
 import org.spongycastle.openpgp.operator.PBEDataDecryptorFactory;
+import org.spongycastle.openpgp.operator.PBEKeyEncryptionMethodGenerator;
 import org.spongycastle.openpgp.operator.PBESecretKeyDecryptor;
 import org.spongycastle.openpgp.operator.PGPDigestCalculatorProvider;
 import org.spongycastle.openpgp.operator.PublicKeyDataDecryptorFactory;
@@ -66,7 +67,6 @@ import org.spongycastle.openpgp.operator.jcajce.JcaPGPContentSignerBuilder;
 import org.spongycastle.openpgp.operator.jcajce.JcaPGPContentVerifierBuilderProvider;
 import org.spongycastle.openpgp.operator.jcajce.JcaPGPDigestCalculatorProviderBuilder;
 import org.spongycastle.openpgp.operator.jcajce.JcePBEDataDecryptorFactoryBuilder;
-import org.spongycastle.openpgp.operator.jcajce.JcePBEKeyEncryptionMethodGenerator;
 import org.spongycastle.openpgp.operator.jcajce.JcePBESecretKeyDecryptorBuilder;
 import org.spongycastle.openpgp.operator.jcajce.JcePGPDataEncryptorBuilder;
 import org.spongycastle.openpgp.operator.jcajce.JcePublicKeyDataDecryptorFactoryBuilder;
@@ -111,9 +111,23 @@ public class PgpOperation {
         }
     }
 
-    public void signAndEncrypt(boolean useAsciiArmor, int compression, long[] encryptionKeyIds,
-            String encryptionPassphrase, int symmetricEncryptionAlgorithm, long signatureKeyId,
-            int signatureHashAlgorithm, boolean signatureForceV3, String signaturePassphrase)
+    /**
+     * @param useAsciiArmor
+     * @param compression
+     *            Id.choice.compression, auto to choose from the beginning of the data
+     * @param encryptionKeyIds
+     * @param encryptionPassphrase
+     * @param symmetricEncryptionAlgorithm
+     * @param signatureKeyId
+     * @param signatureHashAlgorithm
+     * @param signatureForceV3
+     * @param signaturePassphrase
+     * @return compression used
+     */
+    public PgpCompressionChoice signAndEncrypt(boolean useAsciiArmor, int compression,
+            long[] encryptionKeyIds, String encryptionPassphrase, int symmetricEncryptionAlgorithm,
+            long signatureKeyId, int signatureHashAlgorithm, boolean signatureForceV3,
+            String signaturePassphrase)
             throws IOException, PgpGeneralException, PGPException, NoSuchProviderException,
             NoSuchAlgorithmException, SignatureException {
 
@@ -121,12 +135,13 @@ public class PgpOperation {
             encryptionKeyIds = new long[0];
         }
 
-        ArmoredOutputStream armorOut = null;
+        PgpArmoredOutputStream armorOut = null;
         OutputStream out = null;
         OutputStream encryptOut = null;
         if (useAsciiArmor) {
-            armorOut = new ArmoredOutputStream(mOutStream);
-            armorOut.setHeader("Version", PgpHelper.getFullVersion(mContext));
+            armorOut = new PgpArmoredOutputStream(mOutStream);
+            armorOut.setHeader(PgpArmoredOutputStream.VERSION_HEADER,
+                    PgpHelper.getFullVersion(mContext));
             out = armorOut;
         } else {
             out = mOutStream;
@@ -175,8 +190,10 @@ public class PgpOperation {
             // Symmetric encryption
             Log.d(Constants.TAG, "encryptionKeyIds length is 0 -> symmetric encryption");
 
-            JcePBEKeyEncryptionMethodGenerator symmetricEncryptionGenerator = new JcePBEKeyEncryptionMethodGenerator(
-                    encryptionPassphrase.toCharArray());
+            // iteration count calibrated for this device
+            PBEKeyEncryptionMethodGenerator symmetricEncryptionGenerator = PgpS2kCalibration
+                    .buildKeyEncryptionMethodGenerator(PgpS2kCalibration.getCodedCount(mContext),
+                            encryptionPassphrase.toCharArray());
             cPk.addMethod(symmetricEncryptionGenerator);
         } else {
             // Asymmetric encryption
@@ -218,59 +235,91 @@ public class PgpOperation {
             }
         }
 
+        InputStream in = mData.getInputStream();
+        PgpCompressionChoice compressionChoice;
+        if (compression == Id.choice.compression.auto) {
+            byte[] sample = PgpCompressionChoice.readSample(in);
+            compressionChoice = PgpCompressionChoice.choose(sample);
+            in = new SequenceInputStream(new ByteArrayInputStream(sample), in);
+            Log.d(Constants.TAG, "Automatic compression: " + compressionChoice);
+        } else {
+            compressionChoice = new PgpCompressionChoice(compression,
+                    PgpCompressionChoice.DEFAULT_LEVEL);
+        }
+
         PGPCompressedDataGenerator compressGen = null;
+        ParallelCompressedDataGenerator parallelCompressGen = null;
         BCPGOutputStream bcpgOut = null;
-        if (compression == Id.choice.compression.none) {
+        int processors = Runtime.getRuntime().availableProcessors();
+        if (compressionChoice.getAlgorithm() == Id.choice.compression.none) {
             bcpgOut = new BCPGOutputStream(encryptOut);
+        } else if (processors > 1
+                && ParallelCompressedDataGenerator.isSupported(compressionChoice.getAlgorithm())
+                && (mData.getSize() == 0 || mData.getSize() > ParallelCompressedDataGenerator
+                        .getBlockSize(compressionChoice.getAlgorithm()))) {
+            // compressing is the slowest stage, spread it over all processors
+            parallelCompressGen = new ParallelCompressedDataGenerator(
+                    compressionChoice.getAlgorithm(), compressionChoice.getLevel(), processors);
+            bcpgOut = new BCPGOutputStream(parallelCompressGen.open(encryptOut));
         } else {
-            compressGen = new PGPCompressedDataGenerator(compression);
+            compressGen = new PGPCompressedDataGenerator(compressionChoice.getAlgorithm(),
+                    compressionChoice.getLevel());
             bcpgOut = new BCPGOutputStream(compressGen.open(encryptOut));
         }
-        if (signatureKeyId != Id.key.none) {
-            if (signatureForceV3) {
-                signatureV3Generator.generateOnePassVersion(false).encode(bcpgOut);
-            } else {
-                signatureGenerator.generateOnePassVersion(false).encode(bcpgOut);
+        try {
+            if (signatureKeyId != Id.key.none) {
+                if (signatureForceV3) {
+                    signatureV3Generator.generateOnePassVersion(false).encode(bcpgOut);
+                } else {
+                    signatureGenerator.generateOnePassVersion(false).encode(bcpgOut);
+                }
             }
-        }
 
-        PGPLiteralDataGenerator literalGen = new PGPLiteralDataGenerator();
-        // file name not needed, so empty string
-        OutputStream pOut = literalGen.open(bcpgOut, PGPLiteralData.BINARY, "", new Date(),
-                new byte[1 << 16]);
-        updateProgress(R.string.progress_encrypting, 20, 100);
+            PGPLiteralDataGenerator literalGen = new PGPLiteralDataGenerator();
+            // file name not needed, so empty string
+            OutputStream pOut = literalGen.open(bcpgOut, PGPLiteralData.BINARY, "", new Date(),
+                    new byte[1 << 16]);
+            updateProgress(R.string.progress_encrypting, 20, 100);
+
+            long done = 0;
+            int n = 0;
+            byte[] buffer = new byte[1 << 16];
+            while ((n = in.read(buffer)) > 0) {
+                pOut.write(buffer, 0, n);
+                if (signatureKeyId != Id.key.none) {
+                    if (signatureForceV3) {
+                        signatureV3Generator.update(buffer, 0, n);
+                    } else {
+                        signatureGenerator.update(buffer, 0, n);
+                    }
+                }
+                done += n;
+                if (mData.getSize() != 0) {
+                    updateProgress((int) (20 + (95 - 20) * done / mData.getSize()), 100);
+                }
+            }
+
+            literalGen.close();
 
-        long done = 0;
-        int n = 0;
-        byte[] buffer = new byte[1 << 16];
-        InputStream in = mData.getInputStream();
-        while ((n = in.read(buffer)) > 0) {
-            pOut.write(buffer, 0, n);
             if (signatureKeyId != Id.key.none) {
+                updateProgress(R.string.progress_generatingSignature, 95, 100);
                 if (signatureForceV3) {
-                    signatureV3Generator.update(buffer, 0, n);
+                    signatureV3Generator.generate().encode(pOut);
                 } else {
-                    signatureGenerator.update(buffer, 0, n);
+                    signatureGenerator.generate().encode(pOut);
                 }
             }
-            done += n;
-            if (mData.getSize() != 0) {
-                updateProgress((int) (20 + (95 - 20) * done / mData.getSize()), 100);
+            if (compressGen != null) {
+                compressGen.close();
             }
-        }
-
-        literalGen.close();
-
-        if (signatureKeyId != Id.key.none) {
-            updateProgress(R.string.progress_generatingSignature, 95, 100);
-            if (signatureForceV3) {
-                signatureV3Generator.generate().encode(pOut);
-            } else {
-                signatureGenerator.generate().encode(pOut);
+            if (parallelCompressGen != null) {
+                parallelCompressGen.close();
+            }
+        } finally {
+            // stops the compressing threads if writing failed, nothing to do after close()
+            if (parallelCompressGen != null) {
+                parallelCompressGen.abort();
             }
-        }
-        if (compressGen != null) {
-            compressGen.close();
         }
         encryptOut.close();
         if (useAsciiArmor) {
@@ -278,6 +327,7 @@ public class PgpOperation {
         }
 
         updateProgress(R.string.progress_done, 100, 100);
+        return compressionChoice;
     }
 
     public void signText(long signatureKeyId, String signaturePassphrase,
@@ -394,10 +444,11 @@ public class PgpOperation {
         OutputStream out = null;
 
         // Ascii Armor (Base64)
-        ArmoredOutputStream armorOut = null;
+        PgpArmoredOutputStream armorOut = null;
         if (armored) {
-            armorOut = new ArmoredOutputStream(mOutStream);
-            armorOut.setHeader("Version", PgpHelper.getFullVersion(mContext));
+            armorOut = new PgpArmoredOutputStream(mOutStream);
+            armorOut.setHeader(PgpArmoredOutputStream.VERSION_HEADER,
+                    PgpHelper.getFullVersion(mContext));
             out = armorOut;
         } else {
             out = mOutStream;
@@ -507,7 +558,7 @@ public class PgpOperation {
 
     public static boolean hasSymmetricEncryption(Context context, InputStream inputStream)
             throws PgpGeneralException, IOException {
-        InputStream in = PGPUtil.getDecoderStream(inputStream);
+        InputStream in = PgpHelper.getDecoderStream(inputStream);
         PGPObjectFactory pgpF = new PGPObjectFactory(in);
         PGPEncryptedDataList enc;
         Object o = pgpF.nextObject();
@@ -541,7 +592,7 @@ public class PgpOperation {
         }
 
         Bundle returnData = new Bundle();
-        InputStream in = PGPUtil.getDecoderStream(mData.getInputStream());
+        InputStream in = PgpHelper.getDecoderStream(mData.getInputStream());
         PGPObjectFactory pgpF = new PGPObjectFactory(in);
         PGPEncryptedDataList enc;
         Object o = pgpF.nextObject();
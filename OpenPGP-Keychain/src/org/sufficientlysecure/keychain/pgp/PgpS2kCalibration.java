@@ -0,0 +1,272 @@
+/*
+ * Copyright (C) 2013 Dominik Schürmann <dominik@dominikschuermann.de>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.pgp;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.security.SecureRandom;
+
+import org.spongycastle.bcpg.BCPGInputStream;
+import org.spongycastle.bcpg.ContainedPacket;
+import org.spongycastle.bcpg.HashAlgorithmTags;
+import org.spongycastle.bcpg.Packet;
+import org.spongycastle.bcpg.S2K;
+import org.spongycastle.bcpg.SecretKeyPacket;
+import org.spongycastle.bcpg.SymmetricKeyAlgorithmTags;
+import org.spongycastle.bcpg.SymmetricKeyEncSessionPacket;
+import org.spongycastle.openpgp.PGPException;
+import org.spongycastle.openpgp.PGPSecretKey;
+import org.spongycastle.openpgp.operator.PBEKeyEncryptionMethodGenerator;
+import org.spongycastle.openpgp.operator.PBESecretKeyEncryptor;
+import org.spongycastle.openpgp.operator.PGPDigestCalculator;
+import org.spongycastle.openpgp.operator.jcajce.JcaPGPDigestCalculatorProviderBuilder;
+import org.spongycastle.openpgp.operator.jcajce.JcePBEKeyEncryptionMethodGenerator;
+import org.spongycastle.openpgp.operator.jcajce.JcePBESecretKeyEncryptorBuilder;
+import org.sufficientlysecure.keychain.Constants;
+import org.sufficientlysecure.keychain.helper.Preferences;
+import org.sufficientlysecure.keychain.util.Log;
+
+import android.content.Context;
+import android.os.Build;
+
+/**
+ * Chooses the S2K iteration count protecting secret keys and symmetrically encrypted messages,
+ * so that deriving the key from the passphrase takes about TARGET_MILLIS on this device.
+ *
+ * The S2K hashing speed is measured once and stored in the preferences. It is measured again
+ * when the build of the device changes, e.g., after a system update or when the preferences
+ * were restored on another device. The iteration count never drops below the fixed count used
+ * before, so keys are not protected worse on slow devices.
+ */
+public class PgpS2kCalibration {
+    // unlocking a key takes about this long, same as the default of gpg-agent
+    private static final long TARGET_MILLIS = 100;
+
+    // coded S2K counts, see RFC 4880, 3.7.1.3, 0x60 is the fixed count of Bouncy Castle
+    private static final int MIN_CODED_COUNT = 0x60;
+    private static final int MAX_CODED_COUNT = 0xff;
+    // 720896 bytes, some milliseconds on a phone, long enough to measure
+    private static final int PROBE_CODED_COUNT = 0x96;
+    private static final int PROBE_RUNS = 3;
+
+    private static final int S2K_HASH_ALGORITHM = HashAlgorithmTags.SHA1;
+
+    /**
+     * Returns the coded S2K count of this device, measuring the S2K speed first if it has not
+     * been measured on this build. Measuring takes a few ten milliseconds, so it should not be
+     * called from the UI thread.
+     *
+     * @param context
+     * @return coded S2K count
+     */
+    public static synchronized int getCodedCount(Context context) {
+        Preferences preferences = Preferences.getPreferences(context);
+        long bytesPerMillis = preferences.getS2kBytesPerMillis();
+        if (bytesPerMillis <= 0
+                || !Build.FINGERPRINT.equals(preferences.getS2kCalibrationBuild())) {
+            try {
+                bytesPerMillis = measureBytesPerMillis();
+            } catch (PGPException e) {
+                Log.e(Constants.TAG, "Measuring S2K speed failed", e);
+                return MIN_CODED_COUNT;
+            }
+            preferences.setS2kBytesPerMillis(bytesPerMillis);
+            preferences.setS2kCalibrationBuild(Build.FINGERPRINT);
+            Log.d(Constants.TAG, "S2K calibrated: " + bytesPerMillis + " bytes/ms, coded count 0x"
+                    + Integer.toHexString(getCodedCount(bytesPerMillis)));
+        }
+        return getCodedCount(bytesPerMillis);
+    }
+
+    /**
+     * @param bytesPerMillis
+     * @return smallest coded count hashing for at least TARGET_MILLIS, within the limits
+     */
+    static int getCodedCount(long bytesPerMillis) {
+        long target = bytesPerMillis * TARGET_MILLIS;
+        int codedCount = MIN_CODED_COUNT;
+        while (codedCount < MAX_CODED_COUNT && decodeCount(codedCount) < target) {
+            ++codedCount;
+        }
+        return codedCount;
+    }
+
+    /**
+     * @param codedCount
+     * @return number of bytes hashed
+     */
+    public static long decodeCount(int codedCount) {
+        return (16L + (codedCount & 15)) << ((codedCount >> 4) + 6);
+    }
+
+    /**
+     * @param context
+     * @param count
+     *            number of bytes hashed
+     * @return estimated time to derive a key with count on this device in milliseconds, -1 if the
+     *         speed has not been measured
+     */
+    public static long estimateMillis(Context context, long count) {
+        long bytesPerMillis = Preferences.getPreferences(context).getS2kBytesPerMillis();
+        if (bytesPerMillis <= 0) {
+            return -1;
+        }
+        return count / bytesPerMillis;
+    }
+
+    /**
+     * @param key
+     * @return S2K protecting key, null if key is not protected by a passphrase
+     */
+    public static S2K getS2k(PGPSecretKey key) {
+        try {
+            Packet packet = new BCPGInputStream(new ByteArrayInputStream(key.getEncoded()))
+                    .readPacket();
+            if (packet instanceof SecretKeyPacket) {
+                SecretKeyPacket secret = (SecretKeyPacket) packet;
+                if (secret.getEncAlgorithm() != SymmetricKeyAlgorithmTags.NULL) {
+                    return secret.getS2K();
+                }
+            }
+        } catch (IOException e) {
+            Log.e(Constants.TAG, "Reading secret key packet failed", e);
+        }
+        return null;
+    }
+
+    /**
+     * @param encAlgorithm
+     * @param codedCount
+     * @param passPhrase
+     * @return encryptor protecting secret keys with an iterated and salted S2K of codedCount
+     * @throws PGPException
+     */
+    public static PBESecretKeyEncryptor buildSecretKeyEncryptor(int encAlgorithm,
+            int codedCount, char[] passPhrase) throws PGPException {
+        PGPDigestCalculator s2kDigestCalculator = new JcaPGPDigestCalculatorProviderBuilder()
+                .build().get(S2K_HASH_ALGORITHM);
+        SecureRandom random = new SecureRandom();
+        byte[] salt = new byte[8];
+        random.nextBytes(salt);
+        return new SecretKeyEncryptor(encAlgorithm, s2kDigestCalculator, new S2K(
+                S2K_HASH_ALGORITHM, salt, codedCount), random, passPhrase);
+    }
+
+    /**
+     * @param codedCount
+     * @param passPhrase
+     * @return method encrypting the session key of a message with an iterated and salted S2K of
+     *         codedCount
+     * @throws PGPException
+     */
+    public static PBEKeyEncryptionMethodGenerator buildKeyEncryptionMethodGenerator(
+            int codedCount, char[] passPhrase) throws PGPException {
+        PGPDigestCalculator s2kDigestCalculator = new JcaPGPDigestCalculatorProviderBuilder()
+                .build().get(S2K_HASH_ALGORITHM);
+        byte[] salt = new byte[8];
+        new SecureRandom().nextBytes(salt);
+        KeyEncryptionMethodGenerator generator = new KeyEncryptionMethodGenerator(
+                s2kDigestCalculator, new S2K(S2K_HASH_ALGORITHM, salt, codedCount), passPhrase);
+        generator.setProvider(Constants.BOUNCY_CASTLE_PROVIDER_NAME);
+        return generator;
+    }
+
+    private static long measureBytesPerMillis() throws PGPException {
+        PGPDigestCalculator s2kDigestCalculator = new JcaPGPDigestCalculatorProviderBuilder()
+                .build().get(S2K_HASH_ALGORITHM);
+        S2K s2k = new S2K(S2K_HASH_ALGORITHM, new byte[8], PROBE_CODED_COUNT);
+        char[] passPhrase = "calibration".toCharArray();
+
+        // the fastest run, the first ones may be slowed down by the JIT
+        long bestNanos = Long.MAX_VALUE;
+        for (int i = 0; i < PROBE_RUNS; ++i) {
+            SecretKeyEncryptor deriver = new SecretKeyEncryptor(SymmetricKeyAlgorithmTags.CAST5,
+                    s2kDigestCalculator, s2k, new SecureRandom(), passPhrase);
+            long start = System.nanoTime();
+            deriver.getKey();
+            bestNanos = Math.min(bestNanos, System.nanoTime() - start);
+        }
+        return Math.max(1, decodeCount(PROBE_CODED_COUNT) * 1000000 / Math.max(1, bestNanos));
+    }
+
+    /**
+     * Secret key encryptor of Bouncy Castle with a given S2K instead of the fixed one
+     */
+    private static class SecretKeyEncryptor extends PBESecretKeyEncryptor {
+        private final PBESecretKeyEncryptor mCipher;
+
+        public SecretKeyEncryptor(int encAlgorithm, PGPDigestCalculator s2kDigestCalculator,
+                S2K s2k, SecureRandom random, char[] passPhrase) {
+            super(encAlgorithm, s2kDigestCalculator, random, passPhrase);
+            // getKey() derives the key with this S2K
+            this.s2k = s2k;
+            mCipher = new JcePBESecretKeyEncryptorBuilder(encAlgorithm, s2kDigestCalculator)
+                    .setProvider(Constants.BOUNCY_CASTLE_PROVIDER_NAME).setSecureRandom(random)
+                    .build(passPhrase);
+        }
+
+        @Override
+        public byte[] encryptKeyData(byte[] key, byte[] keyData, int keyOff, int keyLen)
+                throws PGPException {
+            return mCipher.encryptKeyData(key, keyData, keyOff, keyLen);
+        }
+
+        @Override
+        public byte[] getCipherIV() {
+            return mCipher.getCipherIV();
+        }
+    }
+
+    /**
+     * Session key encryption of Bouncy Castle with a given S2K instead of the fixed one
+     */
+    private static class KeyEncryptionMethodGenerator extends JcePBEKeyEncryptionMethodGenerator {
+        private final PGPDigestCalculator mS2kDigestCalculator;
+        private final S2K mS2k;
+        private final char[] mPassPhrase;
+
+        public KeyEncryptionMethodGenerator(PGPDigestCalculator s2kDigestCalculator, S2K s2k,
+                char[] passPhrase) {
+            super(passPhrase, s2kDigestCalculator);
+            mS2kDigestCalculator = s2kDigestCalculator;
+            mS2k = s2k;
+            mPassPhrase = passPhrase;
+        }
+
+        @Override
+        public byte[] getKey(int encAlgorithm) throws PGPException {
+            return new SecretKeyEncryptor(encAlgorithm, mS2kDigestCalculator, mS2k,
+                    new SecureRandom(), mPassPhrase).getKey();
+        }
+
+        @Override
+        public ContainedPacket generate(int encAlgorithm, byte[] sessionInfo)
+                throws PGPException {
+            byte[] key = getKey(encAlgorithm);
+            if (sessionInfo == null) {
+                return new SymmetricKeyEncSessionPacket(encAlgorithm, mS2k, null);
+            }
+
+            // without the checksum of the public key methods, like Bouncy Castle
+            byte[] nSessionInfo = new byte[sessionInfo.length - 2];
+            System.arraycopy(sessionInfo, 0, nSessionInfo, 0, nSessionInfo.length);
+            return new SymmetricKeyEncSessionPacket(encAlgorithm, mS2k, encryptSessionInfo(
+                    encAlgorithm, key, nSessionInfo));
+        }
+    }
+}
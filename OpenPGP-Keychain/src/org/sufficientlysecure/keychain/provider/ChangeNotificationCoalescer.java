@@ -0,0 +1,134 @@
+/*
+ * Copyright (C) 2013 Dominik Schürmann <dominik@dominikschuermann.de>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.provider;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+
+import org.sufficientlysecure.keychain.provider.KeychainContract.KeyRings;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+
+/**
+ * Collects change notifications of KeychainProvider and sends them delayed, so that loaders of the
+ * key lists re-query once per batch instead of once per inserted key or user id.
+ *
+ * Notifications are sent at most WINDOW_MILLIS after the first change, or when the last bulk
+ * operation ends. Bulk operations are counted per process, thus they only defer notifications of
+ * writes done in the process of the provider.
+ */
+public class ChangeNotificationCoalescer {
+    private static final long WINDOW_MILLIS = 300;
+
+    private static ChangeNotificationCoalescer sInstance;
+
+    private final ContentResolver mContentResolver;
+    private final Handler mHandler;
+
+    private final HashSet<Uri> mPendingUris = new HashSet<Uri>();
+    private int mBulkOperations = 0;
+    private boolean mFlushScheduled = false;
+
+    private final Runnable mFlushRunnable = new Runnable() {
+        @Override
+        public void run() {
+            synchronized (ChangeNotificationCoalescer.this) {
+                mFlushScheduled = false;
+            }
+            flush();
+        }
+    };
+
+    public static synchronized ChangeNotificationCoalescer getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new ChangeNotificationCoalescer(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    private ChangeNotificationCoalescer(Context context) {
+        mContentResolver = context.getContentResolver();
+        mHandler = new Handler(Looper.getMainLooper());
+    }
+
+    /**
+     * Queues a change notification for uri. Changes below a keyring type (e.g.,
+     * key_rings/public/5/keys) are reported as change of the type (key_rings/public), which also
+     * notifies all observers of descendants.
+     *
+     * @param uri
+     */
+    public void notifyChange(Uri uri) {
+        List<String> segments = uri.getPathSegments();
+        if (segments.size() > 2 && KeychainContract.BASE_KEY_RINGS.equals(segments.get(0))) {
+            uri = KeyRings.CONTENT_URI.buildUpon().appendPath(segments.get(1)).build();
+        }
+
+        synchronized (this) {
+            mPendingUris.add(uri);
+            if (mBulkOperations > 0 || mFlushScheduled) {
+                return;
+            }
+            mFlushScheduled = true;
+        }
+        mHandler.postDelayed(mFlushRunnable, WINDOW_MILLIS);
+    }
+
+    /**
+     * Defers all notifications until the matching call to endBulkOperation. Calls may be nested.
+     */
+    public synchronized void beginBulkOperation() {
+        ++mBulkOperations;
+    }
+
+    /**
+     * Ends a bulk operation, sends all pending notifications if it was the outermost one
+     */
+    public void endBulkOperation() {
+        synchronized (this) {
+            if (mBulkOperations > 0) {
+                --mBulkOperations;
+            }
+            if (mBulkOperations > 0) {
+                return;
+            }
+        }
+        flush();
+    }
+
+    private void flush() {
+        ArrayList<Uri> uris;
+        synchronized (this) {
+            if (mBulkOperations > 0) {
+                // sent by endBulkOperation
+                return;
+            }
+            uris = new ArrayList<Uri>(mPendingUris);
+            mPendingUris.clear();
+        }
+
+        for (Uri uri : uris) {
+            mContentResolver.notifyChange(uri, null);
+        }
+    }
+}
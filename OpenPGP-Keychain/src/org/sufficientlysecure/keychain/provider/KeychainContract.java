@@ -28,6 +28,18 @@ public class KeychainContract {
         String MASTER_KEY_ID = "master_key_id"; // not a database id
         String TYPE = "type"; // see KeyTypes
         String KEY_RING_DATA = "key_ring_data"; // PGPPublicKeyRing / PGPSecretKeyRing blob
+        String KEY_RING_DIGEST = "key_ring_digest"; // SHA-1 hex of KEY_RING_DATA
+        String FINGERPRINT = "fingerprint"; // of master key, hex without spaces
+        String MAIN_USER_ID = "main_user_id";
+        String HAS_CERTIFY_KEY = "has_certify_key"; // only counting keys not revoked
+        String HAS_SIGN_KEY = "has_sign_key";
+        String HAS_ENCRYPT_KEY = "has_encrypt_key";
+        // earliest creation of these keys, in seconds, null if there are none
+        String SIGN_VALID_FROM = "sign_valid_from";
+        String ENCRYPT_VALID_FROM = "encrypt_valid_from";
+        // latest expiry of these keys, in seconds, null if one of them never expires
+        String SIGN_VALID_UNTIL = "sign_valid_until";
+        String ENCRYPT_VALID_UNTIL = "encrypt_valid_until";
     }
 
     interface KeysColumns {
@@ -43,7 +55,6 @@ public class KeychainContract {
         String CREATION = "creation";
         String EXPIRY = "expiry";
         String KEY_RING_ROW_ID = "key_ring_row_id"; // foreign key to key_rings._ID
-        String KEY_DATA = "key_data"; // PGPPublicKey/PGPSecretKey blob
         String RANK = "rank";
     }
 
@@ -85,6 +96,11 @@ public class KeychainContract {
     public static final String PATH_USER_IDS = "user_ids";
     public static final String PATH_KEYS = "keys";
 
+    /**
+     * Query parameter limiting the rows of a key ring query, given as "count" or "offset,count"
+     */
+    public static final String PARAM_LIMIT = "limit";
+
     public static final String BASE_API_APPS = "api_apps";
     public static final String PATH_BY_PACKAGE_NAME = "package_name";
 
@@ -98,6 +114,9 @@ public class KeychainContract {
         /** Use if a single item is returned */
         public static final String CONTENT_ITEM_TYPE = "vnd.android.cursor.item/vnd.thialfihar.apg.key_ring";
 
+        /** Sort order of key lists, uses the index on main user id */
+        public static final String MAIN_USER_ID_SORT_ORDER = MAIN_USER_ID + " COLLATE NOCASE ASC";
+
         public static Uri buildPublicKeyRingsUri() {
             return CONTENT_URI.buildUpon().appendPath(PATH_PUBLIC).build();
         }
@@ -17,21 +17,34 @@
 
 package org.sufficientlysecure.keychain.provider;
 
+import java.util.Date;
+
+import org.spongycastle.openpgp.PGPKeyRing;
+import org.spongycastle.openpgp.PGPPublicKey;
+import org.spongycastle.openpgp.PGPSecretKey;
+import org.spongycastle.openpgp.PGPSecretKeyRing;
 import org.sufficientlysecure.keychain.Constants;
+import org.sufficientlysecure.keychain.pgp.PgpConversionHelper;
+import org.sufficientlysecure.keychain.pgp.PgpKeyHelper;
 import org.sufficientlysecure.keychain.provider.KeychainContract.ApiAppsColumns;
 import org.sufficientlysecure.keychain.provider.KeychainContract.KeyRingsColumns;
 import org.sufficientlysecure.keychain.provider.KeychainContract.KeysColumns;
 import org.sufficientlysecure.keychain.provider.KeychainContract.UserIdsColumns;
+import org.sufficientlysecure.keychain.util.IterableIterator;
 import org.sufficientlysecure.keychain.util.Log;
 
+import android.annotation.TargetApi;
+import android.content.ContentValues;
 import android.content.Context;
+import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.os.Build;
 import android.provider.BaseColumns;
 
 public class KeychainDatabase extends SQLiteOpenHelper {
     private static final String DATABASE_NAME = "apg.db";
-    private static final int DATABASE_VERSION = 5;
+    private static final int DATABASE_VERSION = 10;
 
     public interface Tables {
         String KEY_RINGS = "key_rings";
@@ -43,7 +56,26 @@ public class KeychainDatabase extends SQLiteOpenHelper {
     private static final String CREATE_KEY_RINGS = "CREATE TABLE IF NOT EXISTS " + Tables.KEY_RINGS
             + " (" + BaseColumns._ID + " INTEGER PRIMARY KEY AUTOINCREMENT, "
             + KeyRingsColumns.MASTER_KEY_ID + " INT64, " + KeyRingsColumns.TYPE + " INTEGER, "
-            + KeyRingsColumns.KEY_RING_DATA + " BLOB)";
+            + KeyRingsColumns.KEY_RING_DATA + " BLOB, " + KeyRingsColumns.KEY_RING_DIGEST
+            + " TEXT, " + KeyRingsColumns.FINGERPRINT + " TEXT, " + KeyRingsColumns.MAIN_USER_ID
+            + " TEXT, " + KeyRingsColumns.HAS_CERTIFY_KEY + " INTEGER, "
+            + KeyRingsColumns.HAS_SIGN_KEY + " INTEGER, " + KeyRingsColumns.HAS_ENCRYPT_KEY
+            + " INTEGER, " + KeyRingsColumns.SIGN_VALID_FROM + " INTEGER, "
+            + KeyRingsColumns.SIGN_VALID_UNTIL + " INTEGER, " + KeyRingsColumns.ENCRYPT_VALID_FROM
+            + " INTEGER, " + KeyRingsColumns.ENCRYPT_VALID_UNTIL + " INTEGER)";
+
+    private static final String CREATE_KEY_RINGS_MASTER_KEY_ID_INDEX = "CREATE INDEX IF NOT EXISTS "
+            + Tables.KEY_RINGS + "_" + KeyRingsColumns.MASTER_KEY_ID + "_idx ON "
+            + Tables.KEY_RINGS + "(" + KeyRingsColumns.MASTER_KEY_ID + ", "
+            + KeyRingsColumns.TYPE + ")";
+
+    private static final String CREATE_KEY_RINGS_FINGERPRINT_INDEX = "CREATE INDEX IF NOT EXISTS "
+            + Tables.KEY_RINGS + "_" + KeyRingsColumns.FINGERPRINT + "_idx ON " + Tables.KEY_RINGS
+            + "(" + KeyRingsColumns.FINGERPRINT + ")";
+
+    private static final String CREATE_KEY_RINGS_MAIN_USER_ID_INDEX = "CREATE INDEX IF NOT EXISTS "
+            + Tables.KEY_RINGS + "_" + KeyRingsColumns.MAIN_USER_ID + "_idx ON " + Tables.KEY_RINGS
+            + "(" + KeyRingsColumns.TYPE + ", " + KeyRingsColumns.MAIN_USER_ID + " COLLATE NOCASE)";
 
     private static final String CREATE_KEYS = "CREATE TABLE IF NOT EXISTS " + Tables.KEYS + " ("
             + BaseColumns._ID + " INTEGER PRIMARY KEY AUTOINCREMENT, " + KeysColumns.KEY_ID
@@ -52,11 +84,26 @@ public class KeychainDatabase extends SQLiteOpenHelper {
             + " INTEGER, " + KeysColumns.CAN_CERTIFY + " INTEGER, " + KeysColumns.CAN_SIGN
             + " INTEGER, " + KeysColumns.CAN_ENCRYPT + " INTEGER, " + KeysColumns.IS_REVOKED
             + " INTEGER, " + KeysColumns.CREATION + " INTEGER, " + KeysColumns.EXPIRY
-            + " INTEGER, " + KeysColumns.KEY_DATA + " BLOB," + KeysColumns.RANK + " INTEGER, "
+            + " INTEGER, " + KeysColumns.RANK + " INTEGER, "
             + KeysColumns.KEY_RING_ROW_ID + " INTEGER NOT NULL, FOREIGN KEY("
             + KeysColumns.KEY_RING_ROW_ID + ") REFERENCES " + Tables.KEY_RINGS + "("
             + BaseColumns._ID + ") ON DELETE CASCADE)";
 
+    private static final String KEYS_COLUMNS = BaseColumns._ID + ", " + KeysColumns.KEY_ID + ", "
+            + KeysColumns.TYPE + ", " + KeysColumns.IS_MASTER_KEY + ", " + KeysColumns.ALGORITHM
+            + ", " + KeysColumns.KEY_SIZE + ", " + KeysColumns.CAN_CERTIFY + ", "
+            + KeysColumns.CAN_SIGN + ", " + KeysColumns.CAN_ENCRYPT + ", "
+            + KeysColumns.IS_REVOKED + ", " + KeysColumns.CREATION + ", " + KeysColumns.EXPIRY
+            + ", " + KeysColumns.RANK + ", " + KeysColumns.KEY_RING_ROW_ID;
+
+    private static final String CREATE_KEYS_KEY_RING_ROW_ID_INDEX = "CREATE INDEX IF NOT EXISTS "
+            + Tables.KEYS + "_" + KeysColumns.KEY_RING_ROW_ID + "_idx ON " + Tables.KEYS + "("
+            + KeysColumns.KEY_RING_ROW_ID + ")";
+
+    private static final String CREATE_KEYS_KEY_ID_INDEX = "CREATE INDEX IF NOT EXISTS "
+            + Tables.KEYS + "_" + KeysColumns.KEY_ID + "_idx ON " + Tables.KEYS + "("
+            + KeysColumns.KEY_ID + ")";
+
     private static final String CREATE_USER_IDS = "CREATE TABLE IF NOT EXISTS " + Tables.USER_IDS
             + " (" + BaseColumns._ID + " INTEGER PRIMARY KEY AUTOINCREMENT, "
             + UserIdsColumns.USER_ID + " TEXT, " + UserIdsColumns.RANK + " INTEGER, "
@@ -64,6 +111,11 @@ public class KeychainDatabase extends SQLiteOpenHelper {
             + UserIdsColumns.KEY_RING_ROW_ID + ") REFERENCES " + Tables.KEY_RINGS + "("
             + BaseColumns._ID + ") ON DELETE CASCADE)";
 
+    private static final String CREATE_USER_IDS_KEY_RING_ROW_ID_INDEX = "CREATE INDEX IF NOT EXISTS "
+            + Tables.USER_IDS + "_" + UserIdsColumns.KEY_RING_ROW_ID + "_idx ON "
+            + Tables.USER_IDS + "(" + UserIdsColumns.KEY_RING_ROW_ID + ", "
+            + UserIdsColumns.RANK + ")";
+
     private static final String CREATE_API_APPS = "CREATE TABLE IF NOT EXISTS " + Tables.API_APPS
             + " (" + BaseColumns._ID + " INTEGER PRIMARY KEY AUTOINCREMENT, "
             + ApiAppsColumns.PACKAGE_NAME + " TEXT UNIQUE, " + ApiAppsColumns.KEY_ID + " INT64, "
@@ -79,17 +131,34 @@ public class KeychainDatabase extends SQLiteOpenHelper {
         Log.w(Constants.TAG, "Creating database...");
 
         db.execSQL(CREATE_KEY_RINGS);
+        db.execSQL(CREATE_KEY_RINGS_MASTER_KEY_ID_INDEX);
+        db.execSQL(CREATE_KEY_RINGS_FINGERPRINT_INDEX);
+        db.execSQL(CREATE_KEY_RINGS_MAIN_USER_ID_INDEX);
         db.execSQL(CREATE_KEYS);
+        db.execSQL(CREATE_KEYS_KEY_RING_ROW_ID_INDEX);
+        db.execSQL(CREATE_KEYS_KEY_ID_INDEX);
         db.execSQL(CREATE_USER_IDS);
+        db.execSQL(CREATE_USER_IDS_KEY_RING_ROW_ID_INDEX);
         db.execSQL(CREATE_API_APPS);
     }
 
+    @TargetApi(Build.VERSION_CODES.HONEYCOMB)
     @Override
     public void onOpen(SQLiteDatabase db) {
         super.onOpen(db);
         if (!db.isReadOnly()) {
             // Enable foreign key constraints
             db.execSQL("PRAGMA foreign_keys=ON;");
+
+            /*
+             * With write-ahead logging, queries are executed on pooled reader connections and are
+             * not blocked by long running import transactions. Syncing on every commit is not
+             * needed for WAL to stay consistent, the log is synced on checkpoints.
+             */
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB) {
+                db.enableWriteAheadLogging();
+                db.execSQL("PRAGMA synchronous=NORMAL;");
+            }
         }
     }
 
@@ -110,6 +179,48 @@ public class KeychainDatabase extends SQLiteOpenHelper {
                 break;
             case 4:
                 db.execSQL(CREATE_API_APPS);
+                break;
+            case 5:
+                db.execSQL("ALTER TABLE " + Tables.KEY_RINGS + " ADD COLUMN "
+                        + KeyRingsColumns.KEY_RING_DIGEST + " TEXT;");
+                db.execSQL(CREATE_KEY_RINGS_MASTER_KEY_ID_INDEX);
+                updateKeyRingDigests(db);
+                break;
+            case 6:
+                // drop the per-key blobs, key material is only stored in the keyring blob
+                db.execSQL("ALTER TABLE " + Tables.KEYS + " RENAME TO " + Tables.KEYS + "_old;");
+                db.execSQL(CREATE_KEYS);
+                db.execSQL("INSERT INTO " + Tables.KEYS + " (" + KEYS_COLUMNS + ") SELECT "
+                        + KEYS_COLUMNS + " FROM " + Tables.KEYS + "_old;");
+                db.execSQL("DROP TABLE " + Tables.KEYS + "_old;");
+                break;
+            case 7:
+                for (String column : new String[] { KeyRingsColumns.FINGERPRINT + " TEXT",
+                        KeyRingsColumns.MAIN_USER_ID + " TEXT",
+                        KeyRingsColumns.HAS_CERTIFY_KEY + " INTEGER",
+                        KeyRingsColumns.HAS_SIGN_KEY + " INTEGER",
+                        KeyRingsColumns.HAS_ENCRYPT_KEY + " INTEGER" }) {
+                    db.execSQL("ALTER TABLE " + Tables.KEY_RINGS + " ADD COLUMN " + column + ";");
+                }
+                db.execSQL(CREATE_KEY_RINGS_FINGERPRINT_INDEX);
+                db.execSQL(CREATE_KEYS_KEY_RING_ROW_ID_INDEX);
+                db.execSQL(CREATE_KEYS_KEY_ID_INDEX);
+                db.execSQL(CREATE_USER_IDS_KEY_RING_ROW_ID_INDEX);
+                // summaries are computed in the next step, once all their columns exist
+                break;
+            case 8:
+                for (String column : new String[] { KeyRingsColumns.SIGN_VALID_FROM,
+                        KeyRingsColumns.SIGN_VALID_UNTIL, KeyRingsColumns.ENCRYPT_VALID_FROM,
+                        KeyRingsColumns.ENCRYPT_VALID_UNTIL }) {
+                    db.execSQL("ALTER TABLE " + Tables.KEY_RINGS + " ADD COLUMN " + column
+                            + " INTEGER;");
+                }
+                // summaries of all key rings, for the columns of this and the previous step
+                updateKeyRingSummariesVersion8(db);
+                break;
+            case 9:
+                db.execSQL(CREATE_KEY_RINGS_MAIN_USER_ID_INDEX);
+                break;
 
             default:
                 break;
@@ -118,4 +229,155 @@ public class KeychainDatabase extends SQLiteOpenHelper {
         }
     }
 
+    /**
+     * Computes the digest of every stored key ring, used when upgrading from a version without
+     * the digest column
+     * 
+     * @param db
+     */
+    private void updateKeyRingDigests(SQLiteDatabase db) {
+        Cursor cursor = db.query(Tables.KEY_RINGS, new String[] { BaseColumns._ID,
+                KeyRingsColumns.KEY_RING_DATA }, null, null, null, null, null);
+
+        if (cursor != null) {
+            int idCol = cursor.getColumnIndex(BaseColumns._ID);
+            int dataCol = cursor.getColumnIndex(KeyRingsColumns.KEY_RING_DATA);
+            if (cursor.moveToFirst()) {
+                do {
+                    byte[] data = cursor.getBlob(dataCol);
+                    if (data != null) {
+                        ContentValues values = new ContentValues();
+                        values.put(KeyRingsColumns.KEY_RING_DIGEST,
+                                ProviderHelper.computeKeyRingDigest(data));
+                        db.update(Tables.KEY_RINGS, values, BaseColumns._ID + " = ?",
+                                new String[] { Long.toString(cursor.getLong(idCol)) });
+                    }
+                } while (cursor.moveToNext());
+            }
+            cursor.close();
+        }
+    }
+
+    /**
+     * Computes fingerprint, main user id, capabilities and validity of every stored key ring, used
+     * when upgrading to version 8. Fills exactly the columns of version 8, independent of how
+     * ProviderHelper computes them in later versions.
+     * 
+     * @param db
+     */
+    private void updateKeyRingSummariesVersion8(SQLiteDatabase db) {
+        Cursor cursor = db.query(Tables.KEY_RINGS, new String[] { BaseColumns._ID,
+                KeyRingsColumns.KEY_RING_DATA }, null, null, null, null, null);
+
+        if (cursor != null) {
+            int idCol = cursor.getColumnIndex(BaseColumns._ID);
+            int dataCol = cursor.getColumnIndex(KeyRingsColumns.KEY_RING_DATA);
+            if (cursor.moveToFirst()) {
+                do {
+                    byte[] data = cursor.getBlob(dataCol);
+                    PGPKeyRing keyRing = null;
+                    if (data != null) {
+                        keyRing = PgpConversionHelper.BytesToPGPKeyRing(data);
+                    }
+                    if (keyRing != null) {
+                        ContentValues values = getKeyRingSummaryVersion8(keyRing);
+                        db.update(Tables.KEY_RINGS, values, BaseColumns._ID + " = ?",
+                                new String[] { Long.toString(cursor.getLong(idCol)) });
+                    }
+                } while (cursor.moveToNext());
+            }
+            cursor.close();
+        }
+    }
+
+    /**
+     * Summary of a key ring as stored by version 8, revoked keys are not taken into account
+     * 
+     * @param keyRing
+     * @return values of the summary columns of version 8
+     */
+    @SuppressWarnings("unchecked")
+    private static ContentValues getKeyRingSummaryVersion8(PGPKeyRing keyRing) {
+        boolean hasCertifyKey = false;
+        // creation and expiry in seconds, expiry -1 if a key does not expire
+        long[] signWindow = null;
+        long[] encryptWindow = null;
+        if (keyRing instanceof PGPSecretKeyRing) {
+            for (PGPSecretKey key : new IterableIterator<PGPSecretKey>(
+                    ((PGPSecretKeyRing) keyRing).getSecretKeys())) {
+                if (key.getPublicKey().isRevoked()) {
+                    continue;
+                }
+                boolean hasPrivate = !(key.isMasterKey() && PgpKeyHelper
+                        .isSecretKeyPrivateEmpty(key));
+                hasCertifyKey |= PgpKeyHelper.isCertificationKey(key) && hasPrivate;
+                if (PgpKeyHelper.isSigningKey(key) && hasPrivate) {
+                    signWindow = extendValidityVersion8(signWindow, key.getPublicKey());
+                }
+                if (PgpKeyHelper.isEncryptionKey(key)) {
+                    encryptWindow = extendValidityVersion8(encryptWindow, key.getPublicKey());
+                }
+            }
+        } else {
+            for (PGPPublicKey key : new IterableIterator<PGPPublicKey>(keyRing.getPublicKeys())) {
+                if (key.isRevoked()) {
+                    continue;
+                }
+                hasCertifyKey |= PgpKeyHelper.isCertificationKey(key);
+                if (PgpKeyHelper.isSigningKey(key)) {
+                    signWindow = extendValidityVersion8(signWindow, key);
+                }
+                if (PgpKeyHelper.isEncryptionKey(key)) {
+                    encryptWindow = extendValidityVersion8(encryptWindow, key);
+                }
+            }
+        }
+
+        PGPPublicKey masterKey = keyRing.getPublicKey();
+        ContentValues values = new ContentValues();
+        values.put(KeyRingsColumns.FINGERPRINT,
+                PgpKeyHelper.convertFingerprintToHex(masterKey.getFingerprint()).replace(" ", ""));
+        values.put(KeyRingsColumns.MAIN_USER_ID, PgpKeyHelper.getMainUserId(masterKey));
+        values.put(KeyRingsColumns.HAS_CERTIFY_KEY, hasCertifyKey);
+        values.put(KeyRingsColumns.HAS_SIGN_KEY, signWindow != null);
+        values.put(KeyRingsColumns.HAS_ENCRYPT_KEY, encryptWindow != null);
+        putValidityVersion8(values, signWindow, KeyRingsColumns.SIGN_VALID_FROM,
+                KeyRingsColumns.SIGN_VALID_UNTIL);
+        putValidityVersion8(values, encryptWindow, KeyRingsColumns.ENCRYPT_VALID_FROM,
+                KeyRingsColumns.ENCRYPT_VALID_UNTIL);
+        return values;
+    }
+
+    /**
+     * @param window
+     *            earliest creation and latest expiry of the keys so far, null if there are none
+     * @param key
+     * @return window extended by the validity of key
+     */
+    private static long[] extendValidityVersion8(long[] window, PGPPublicKey key) {
+        long from = PgpKeyHelper.getCreationDate(key).getTime() / 1000;
+        Date expiryDate = PgpKeyHelper.getExpiryDate(key);
+        long until = (expiryDate == null) ? -1 : expiryDate.getTime() / 1000;
+        if (window == null) {
+            return new long[] { from, until };
+        }
+        return new long[] { Math.min(window[0], from),
+                (window[1] == -1 || until == -1) ? -1 : Math.max(window[1], until) };
+    }
+
+    private static void putValidityVersion8(ContentValues values, long[] window,
+            String fromColumn, String untilColumn) {
+        if (window == null) {
+            values.putNull(fromColumn);
+            values.putNull(untilColumn);
+            return;
+        }
+        values.put(fromColumn, window[0]);
+        if (window[1] == -1) {
+            values.putNull(untilColumn);
+        } else {
+            values.put(untilColumn, window[1]);
+        }
+    }
+
 }
@@ -17,6 +17,7 @@
 
 package org.sufficientlysecure.keychain.provider;
 
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
 
@@ -33,7 +34,10 @@ import org.sufficientlysecure.keychain.provider.KeychainDatabase.Tables;
 import org.sufficientlysecure.keychain.util.Log;
 
 import android.content.ContentProvider;
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
 import android.content.ContentValues;
+import android.content.OperationApplicationException;
 import android.content.UriMatcher;
 import android.database.Cursor;
 import android.database.DatabaseUtils;
@@ -239,12 +243,14 @@ public class KeychainProvider extends ContentProvider {
     }
 
     private KeychainDatabase mApgDatabase;
+    private ChangeNotificationCoalescer mNotificationCoalescer;
 
     /** {@inheritDoc} */
     @Override
     public boolean onCreate() {
         mUriMatcher = buildUriMatcher();
         mApgDatabase = new KeychainDatabase(getContext());
+        mNotificationCoalescer = ChangeNotificationCoalescer.getInstance(getContext());
         return true;
     }
 
@@ -354,6 +360,26 @@ public class KeychainProvider extends ContentProvider {
                 + KeyRingsColumns.MASTER_KEY_ID);
         projectionMap.put(KeyRingsColumns.KEY_RING_DATA, Tables.KEY_RINGS + "."
                 + KeyRingsColumns.KEY_RING_DATA);
+        projectionMap.put(KeyRingsColumns.KEY_RING_DIGEST, Tables.KEY_RINGS + "."
+                + KeyRingsColumns.KEY_RING_DIGEST);
+        projectionMap.put(KeyRingsColumns.FINGERPRINT, Tables.KEY_RINGS + "."
+                + KeyRingsColumns.FINGERPRINT);
+        projectionMap.put(KeyRingsColumns.MAIN_USER_ID, Tables.KEY_RINGS + "."
+                + KeyRingsColumns.MAIN_USER_ID);
+        projectionMap.put(KeyRingsColumns.HAS_CERTIFY_KEY, Tables.KEY_RINGS + "."
+                + KeyRingsColumns.HAS_CERTIFY_KEY);
+        projectionMap.put(KeyRingsColumns.HAS_SIGN_KEY, Tables.KEY_RINGS + "."
+                + KeyRingsColumns.HAS_SIGN_KEY);
+        projectionMap.put(KeyRingsColumns.HAS_ENCRYPT_KEY, Tables.KEY_RINGS + "."
+                + KeyRingsColumns.HAS_ENCRYPT_KEY);
+        projectionMap.put(KeyRingsColumns.SIGN_VALID_FROM, Tables.KEY_RINGS + "."
+                + KeyRingsColumns.SIGN_VALID_FROM);
+        projectionMap.put(KeyRingsColumns.SIGN_VALID_UNTIL, Tables.KEY_RINGS + "."
+                + KeyRingsColumns.SIGN_VALID_UNTIL);
+        projectionMap.put(KeyRingsColumns.ENCRYPT_VALID_FROM, Tables.KEY_RINGS + "."
+                + KeyRingsColumns.ENCRYPT_VALID_FROM);
+        projectionMap.put(KeyRingsColumns.ENCRYPT_VALID_UNTIL, Tables.KEY_RINGS + "."
+                + KeyRingsColumns.ENCRYPT_VALID_UNTIL);
         projectionMap.put(UserIdsColumns.USER_ID, Tables.USER_IDS + "." + UserIdsColumns.USER_ID);
 
         return projectionMap;
@@ -379,7 +405,6 @@ public class KeychainProvider extends ContentProvider {
         projectionMap.put(KeysColumns.CREATION, KeysColumns.CREATION);
         projectionMap.put(KeysColumns.EXPIRY, KeysColumns.EXPIRY);
         projectionMap.put(KeysColumns.KEY_RING_ROW_ID, KeysColumns.KEY_RING_ROW_ID);
-        projectionMap.put(KeysColumns.KEY_DATA, KeysColumns.KEY_DATA);
         projectionMap.put(KeysColumns.RANK, KeysColumns.RANK);
 
         return projectionMap;
@@ -625,7 +650,10 @@ public class KeychainProvider extends ContentProvider {
             orderBy = sortOrder;
         }
 
-        Cursor c = qb.query(db, projection, selection, selectionArgs, null, null, orderBy);
+        // optional limit, used to query key lists page by page
+        String limit = uri.getQueryParameter(KeychainContract.PARAM_LIMIT);
+
+        Cursor c = qb.query(db, projection, selection, selectionArgs, null, null, orderBy, limit);
 
         // Tell the cursor what uri to watch, so it knows when its source data changes
         c.setNotificationUri(getContext().getContentResolver(), uri);
@@ -634,7 +662,7 @@ public class KeychainProvider extends ContentProvider {
             Log.d(Constants.TAG,
                     "Query: "
                             + qb.buildQuery(projection, selection, selectionArgs, null, null,
-                                    orderBy, null));
+                                    orderBy, limit));
             Log.d(Constants.TAG, "Cursor: " + DatabaseUtils.dumpCursorToString(c));
         }
 
@@ -707,7 +735,7 @@ public class KeychainProvider extends ContentProvider {
             }
 
             // notify of changes in db
-            getContext().getContentResolver().notifyChange(uri, null);
+            notifyChange(uri);
 
         } catch (SQLiteConstraintException e) {
             Log.e(Constants.TAG, "Constraint exception on insert! Entry already existing?");
@@ -770,7 +798,7 @@ public class KeychainProvider extends ContentProvider {
         }
 
         // notify of changes in db
-        getContext().getContentResolver().notifyChange(uri, null);
+        notifyChange(uri);
 
         return count;
     }
@@ -838,7 +866,7 @@ public class KeychainProvider extends ContentProvider {
             }
 
             // notify of changes in db
-            getContext().getContentResolver().notifyChange(uri, null);
+            notifyChange(uri);
 
         } catch (SQLiteConstraintException e) {
             Log.e(Constants.TAG, "Constraint exception on update! Entry already existing?");
@@ -847,6 +875,48 @@ public class KeychainProvider extends ContentProvider {
         return count;
     }
 
+    /**
+     * Applies all operations in one transaction. Operations marked with
+     * {@link ContentProviderOperation.Builder#withYieldAllowed(boolean)} allow other threads to
+     * access the database in between, which commits the operations before them. ProviderHelper
+     * saves every keyring in a batch of its own without yield points, so a keyring is never
+     * stored without its keys and user ids. Change notifications are sent once after the
+     * transaction has been committed.
+     */
+    @Override
+    public ContentProviderResult[] applyBatch(ArrayList<ContentProviderOperation> operations)
+            throws OperationApplicationException {
+        final SQLiteDatabase db = mApgDatabase.getWritableDatabase();
+
+        mNotificationCoalescer.beginBulkOperation();
+        db.beginTransaction();
+        try {
+            final int numOperations = operations.size();
+            final ContentProviderResult[] results = new ContentProviderResult[numOperations];
+            for (int i = 0; i < numOperations; i++) {
+                ContentProviderOperation operation = operations.get(i);
+                if (i > 0 && operation.isYieldAllowed()) {
+                    db.yieldIfContendedSafely();
+                }
+                results[i] = operation.apply(this, results, i);
+            }
+            db.setTransactionSuccessful();
+            return results;
+        } finally {
+            db.endTransaction();
+            mNotificationCoalescer.endBulkOperation();
+        }
+    }
+
+    /**
+     * Notifies observers of uri, coalesced with other changes by ChangeNotificationCoalescer
+     * 
+     * @param uri
+     */
+    private void notifyChange(Uri uri) {
+        mNotificationCoalescer.notifyChange(uri);
+    }
+
     /**
      * Build default selection statement for KeyRings. If no extra selection is specified only build
      * where clause with rowId
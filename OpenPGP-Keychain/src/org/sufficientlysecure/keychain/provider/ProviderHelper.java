@@ -19,10 +19,11 @@ package org.sufficientlysecure.keychain.provider;
 
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
 import java.util.Date;
 
-import org.spongycastle.bcpg.ArmoredOutputStream;
 import org.spongycastle.openpgp.PGPKeyRing;
 import org.spongycastle.openpgp.PGPPublicKey;
 import org.spongycastle.openpgp.PGPPublicKeyRing;
@@ -30,6 +31,7 @@ import org.spongycastle.openpgp.PGPSecretKey;
 import org.spongycastle.openpgp.PGPSecretKeyRing;
 import org.sufficientlysecure.keychain.Constants;
 import org.sufficientlysecure.keychain.pgp.PgpConversionHelper;
+import org.sufficientlysecure.keychain.pgp.PgpArmoredOutputStream;
 import org.sufficientlysecure.keychain.pgp.PgpHelper;
 import org.sufficientlysecure.keychain.pgp.PgpKeyHelper;
 import org.sufficientlysecure.keychain.provider.KeychainContract.ApiApps;
@@ -52,6 +54,9 @@ import android.net.Uri;
 import android.os.RemoteException;
 
 public class ProviderHelper {
+    // key ring row id in the uris of keys and userIds inserted in the same batch as their key
+    // ring, the provider inserts them with KEY_RING_ROW_ID, a back reference to the key ring
+    private static final String BATCH_KEY_RING_ROW_ID = "0";
 
     /**
      * Private helper method to get PGPKeyRing from database
@@ -106,6 +111,30 @@ public class ProviderHelper {
         return (PGPPublicKeyRing) getPGPKeyRing(context, queryUri);
     }
 
+    /**
+     * Retrieves the database blob of a public keyring without parsing it
+     * 
+     * @param context
+     * @param masterKeyId
+     * @return binary keyring, null if there is none
+     */
+    public static byte[] getPublicKeyRingDataByMasterKeyId(Context context, long masterKeyId) {
+        Uri queryUri = KeyRings.buildPublicKeyRingsByMasterKeyIdUri(Long.toString(masterKeyId));
+        Cursor cursor = context.getContentResolver().query(queryUri,
+                new String[] { KeyRings.KEY_RING_DATA }, null, null, null);
+
+        byte[] data = null;
+        if (cursor != null && cursor.moveToFirst()) {
+            data = cursor.getBlob(cursor.getColumnIndex(KeyRings.KEY_RING_DATA));
+        }
+
+        if (cursor != null) {
+            cursor.close();
+        }
+
+        return data;
+    }
+
     /**
      * Retrieves the actual PGPPublicKeyRing object from the database blob associated with a key
      * with this keyId
@@ -191,6 +220,169 @@ public class ProviderHelper {
         return keyRing.getSecretKey(keyId);
     }
 
+    /**
+     * Computes the digest stored alongside each key ring blob, used to detect unchanged key rings
+     * on import
+     * 
+     * @param keyRingData
+     * @return SHA-1 of keyRingData as lowercase hex string
+     */
+    public static String computeKeyRingDigest(byte[] keyRingData) {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException("SHA-1 not available!", e);
+        }
+        byte[] hash = digest.digest(keyRingData);
+
+        StringBuilder hex = new StringBuilder(hash.length * 2);
+        for (byte b : hash) {
+            hex.append(Character.forDigit((b >> 4) & 0xf, 16));
+            hex.append(Character.forDigit(b & 0xf, 16));
+        }
+        return hex.toString();
+    }
+
+    /**
+     * Private helper method to get the stored digest of a keyring
+     * 
+     * @param context
+     * @param queryUri
+     * @return digest or null if no keyring exists
+     */
+    private static String getKeyRingDigest(Context context, Uri queryUri) {
+        Cursor cursor = context.getContentResolver().query(queryUri,
+                new String[] { KeyRings._ID, KeyRings.KEY_RING_DIGEST }, null, null, null);
+
+        String digest = null;
+        if (cursor != null && cursor.moveToFirst()) {
+            int digestCol = cursor.getColumnIndex(KeyRings.KEY_RING_DIGEST);
+
+            digest = cursor.getString(digestCol);
+        }
+
+        if (cursor != null) {
+            cursor.close();
+        }
+
+        return digest;
+    }
+
+    /**
+     * Retrieves the digest of the stored PGPPublicKeyRing with this masterKeyId
+     * 
+     * @param context
+     * @param masterKeyId
+     * @return digest or null if no keyring exists
+     */
+    public static String getPublicKeyRingDigest(Context context, long masterKeyId) {
+        Uri queryUri = KeyRings.buildPublicKeyRingsByMasterKeyIdUri(Long.toString(masterKeyId));
+        return getKeyRingDigest(context, queryUri);
+    }
+
+    /**
+     * Retrieves the digest of the stored PGPSecretKeyRing with this masterKeyId
+     * 
+     * @param context
+     * @param masterKeyId
+     * @return digest or null if no keyring exists
+     */
+    public static String getSecretKeyRingDigest(Context context, long masterKeyId) {
+        Uri queryUri = KeyRings.buildSecretKeyRingsByMasterKeyIdUri(Long.toString(masterKeyId));
+        return getKeyRingDigest(context, queryUri);
+    }
+
+    /**
+     * Validity of all keys of a keyring having one capability. The union of their validity periods
+     * is approximated by the earliest creation and the latest expiry.
+     */
+    private static class ValidityWindow {
+        private Long mFrom = null;
+        private Long mUntil = null;
+        private boolean mUnlimited = false;
+
+        public void add(PGPPublicKey key) {
+            long creation = PgpKeyHelper.getCreationDate(key).getTime() / 1000;
+            if (mFrom == null || creation < mFrom) {
+                mFrom = creation;
+            }
+
+            Date expiryDate = PgpKeyHelper.getExpiryDate(key);
+            if (expiryDate == null) {
+                mUnlimited = true;
+            } else if (mUntil == null || expiryDate.getTime() / 1000 > mUntil) {
+                mUntil = expiryDate.getTime() / 1000;
+            }
+        }
+
+        public boolean isEmpty() {
+            return (mFrom == null);
+        }
+
+        public void put(ContentValues values, String fromColumn, String untilColumn) {
+            values.put(fromColumn, mFrom);
+            values.put(untilColumn, mUnlimited ? null : mUntil);
+        }
+    }
+
+    /**
+     * Puts fingerprint, main user id, capabilities, and validity of the keyring into values, so
+     * that key lists can show them without parsing the keyring blob or joining the keys table.
+     * Revoked keys are not taken into account.
+     * 
+     * @param values
+     * @param keyRing
+     */
+    @SuppressWarnings("unchecked")
+    static void putKeyRingSummary(ContentValues values, PGPKeyRing keyRing) {
+        PGPPublicKey masterKey = keyRing.getPublicKey();
+
+        boolean hasCertifyKey = false;
+        ValidityWindow signWindow = new ValidityWindow();
+        ValidityWindow encryptWindow = new ValidityWindow();
+        if (keyRing instanceof PGPSecretKeyRing) {
+            for (PGPSecretKey key : new IterableIterator<PGPSecretKey>(
+                    ((PGPSecretKeyRing) keyRing).getSecretKeys())) {
+                if (key.getPublicKey().isRevoked()) {
+                    continue;
+                }
+                // same as in buildSecretKeyOperations
+                boolean hasPrivate = !(key.isMasterKey() && PgpKeyHelper
+                        .isSecretKeyPrivateEmpty(key));
+                hasCertifyKey |= PgpKeyHelper.isCertificationKey(key) && hasPrivate;
+                if (PgpKeyHelper.isSigningKey(key) && hasPrivate) {
+                    signWindow.add(key.getPublicKey());
+                }
+                if (PgpKeyHelper.isEncryptionKey(key)) {
+                    encryptWindow.add(key.getPublicKey());
+                }
+            }
+        } else {
+            for (PGPPublicKey key : new IterableIterator<PGPPublicKey>(keyRing.getPublicKeys())) {
+                if (key.isRevoked()) {
+                    continue;
+                }
+                hasCertifyKey |= PgpKeyHelper.isCertificationKey(key);
+                if (PgpKeyHelper.isSigningKey(key)) {
+                    signWindow.add(key);
+                }
+                if (PgpKeyHelper.isEncryptionKey(key)) {
+                    encryptWindow.add(key);
+                }
+            }
+        }
+
+        values.put(KeyRings.FINGERPRINT,
+                PgpKeyHelper.convertFingerprintToHex(masterKey.getFingerprint()).replace(" ", ""));
+        values.put(KeyRings.MAIN_USER_ID, PgpKeyHelper.getMainUserId(masterKey));
+        values.put(KeyRings.HAS_CERTIFY_KEY, hasCertifyKey);
+        values.put(KeyRings.HAS_SIGN_KEY, !signWindow.isEmpty());
+        values.put(KeyRings.HAS_ENCRYPT_KEY, !encryptWindow.isEmpty());
+        signWindow.put(values, KeyRings.SIGN_VALID_FROM, KeyRings.SIGN_VALID_UNTIL);
+        encryptWindow.put(values, KeyRings.ENCRYPT_VALID_FROM, KeyRings.ENCRYPT_VALID_UNTIL);
+    }
+
     /**
      * Saves PGPPublicKeyRing with its keys and userIds in DB
      * 
@@ -205,36 +397,35 @@ public class ProviderHelper {
         PGPPublicKey masterKey = keyRing.getPublicKey();
         long masterKeyId = masterKey.getKeyID();
 
-        // delete old version of this keyRing, which also deletes all keys and userIds on cascade
-        Uri deleteUri = KeyRings.buildPublicKeyRingsByMasterKeyIdUri(Long.toString(masterKeyId));
+        // replace the old version of this keyRing in one transaction, deleting it also deletes
+        // all its keys and userIds on cascade
+        ArrayList<ContentProviderOperation> operations = new ArrayList<ContentProviderOperation>();
+        operations.add(ContentProviderOperation.newDelete(
+                KeyRings.buildPublicKeyRingsByMasterKeyIdUri(Long.toString(masterKeyId))).build());
 
-        try {
-            context.getContentResolver().delete(deleteUri, null, null);
-        } catch (UnsupportedOperationException e) {
-            Log.e(Constants.TAG, "Key could not be deleted! Maybe we are creating a new one!", e);
-        }
+        byte[] keyRingData = keyRing.getEncoded();
 
         ContentValues values = new ContentValues();
         values.put(KeyRings.MASTER_KEY_ID, masterKeyId);
-        values.put(KeyRings.KEY_RING_DATA, keyRing.getEncoded());
+        values.put(KeyRings.KEY_RING_DATA, keyRingData);
+        values.put(KeyRings.KEY_RING_DIGEST, computeKeyRingDigest(keyRingData));
+        putKeyRingSummary(values, keyRing);
 
         // insert new version of this keyRing
-        Uri uri = KeyRings.buildPublicKeyRingsUri();
-        Uri insertedUri = context.getContentResolver().insert(uri, values);
-        long keyRingRowId = Long.valueOf(insertedUri.getLastPathSegment());
+        int keyRingIndex = operations.size();
+        operations.add(ContentProviderOperation.newInsert(KeyRings.buildPublicKeyRingsUri())
+                .withValues(values).build());
 
         // save all keys and userIds included in keyRing object in database
-        ArrayList<ContentProviderOperation> operations = new ArrayList<ContentProviderOperation>();
-
         int rank = 0;
         for (PGPPublicKey key : new IterableIterator<PGPPublicKey>(keyRing.getPublicKeys())) {
-            operations.add(buildPublicKeyOperations(context, keyRingRowId, key, rank));
+            operations.add(buildPublicKeyOperations(context, keyRingIndex, key, rank));
             ++rank;
         }
 
         int userIdRank = 0;
         for (String userId : new IterableIterator<String>(masterKey.getUserIDs())) {
-            operations.add(buildPublicUserIdOperations(context, keyRingRowId, userId, userIdRank));
+            operations.add(buildPublicUserIdOperations(context, keyRingIndex, userId, userIdRank));
             ++userIdRank;
         }
 
@@ -261,36 +452,35 @@ public class ProviderHelper {
         PGPSecretKey masterKey = keyRing.getSecretKey();
         long masterKeyId = masterKey.getKeyID();
 
-        // delete old version of this keyRing, which also deletes all keys and userIds on cascade
-        Uri deleteUri = KeyRings.buildSecretKeyRingsByMasterKeyIdUri(Long.toString(masterKeyId));
+        // replace the old version of this keyRing in one transaction, deleting it also deletes
+        // all its keys and userIds on cascade
+        ArrayList<ContentProviderOperation> operations = new ArrayList<ContentProviderOperation>();
+        operations.add(ContentProviderOperation.newDelete(
+                KeyRings.buildSecretKeyRingsByMasterKeyIdUri(Long.toString(masterKeyId))).build());
 
-        try {
-            context.getContentResolver().delete(deleteUri, null, null);
-        } catch (UnsupportedOperationException e) {
-            Log.e(Constants.TAG, "Key could not be deleted! Maybe we are creating a new one!", e);
-        }
+        byte[] keyRingData = keyRing.getEncoded();
 
         ContentValues values = new ContentValues();
         values.put(KeyRings.MASTER_KEY_ID, masterKeyId);
-        values.put(KeyRings.KEY_RING_DATA, keyRing.getEncoded());
+        values.put(KeyRings.KEY_RING_DATA, keyRingData);
+        values.put(KeyRings.KEY_RING_DIGEST, computeKeyRingDigest(keyRingData));
+        putKeyRingSummary(values, keyRing);
 
         // insert new version of this keyRing
-        Uri uri = KeyRings.buildSecretKeyRingsUri();
-        Uri insertedUri = context.getContentResolver().insert(uri, values);
-        long keyRingRowId = Long.valueOf(insertedUri.getLastPathSegment());
+        int keyRingIndex = operations.size();
+        operations.add(ContentProviderOperation.newInsert(KeyRings.buildSecretKeyRingsUri())
+                .withValues(values).build());
 
         // save all keys and userIds included in keyRing object in database
-        ArrayList<ContentProviderOperation> operations = new ArrayList<ContentProviderOperation>();
-
         int rank = 0;
         for (PGPSecretKey key : new IterableIterator<PGPSecretKey>(keyRing.getSecretKeys())) {
-            operations.add(buildSecretKeyOperations(context, keyRingRowId, key, rank));
+            operations.add(buildSecretKeyOperations(context, keyRingIndex, key, rank));
             ++rank;
         }
 
         int userIdRank = 0;
         for (String userId : new IterableIterator<String>(masterKey.getUserIDs())) {
-            operations.add(buildSecretUserIdOperations(context, keyRingRowId, userId, userIdRank));
+            operations.add(buildSecretUserIdOperations(context, keyRingIndex, userId, userIdRank));
             ++userIdRank;
         }
 
@@ -307,14 +497,15 @@ public class ProviderHelper {
      * Build ContentProviderOperation to add PGPPublicKey to database corresponding to a keyRing
      * 
      * @param context
-     * @param keyRingRowId
+     * @param keyRingIndex
+     *            index of the insert of the keyRing in the same batch
      * @param key
      * @param rank
      * @return
      * @throws IOException
      */
     private static ContentProviderOperation buildPublicKeyOperations(Context context,
-            long keyRingRowId, PGPPublicKey key, int rank) throws IOException {
+            int keyRingIndex, PGPPublicKey key, int rank) throws IOException {
         ContentValues values = new ContentValues();
         values.put(Keys.KEY_ID, key.getKeyID());
         values.put(Keys.IS_MASTER_KEY, key.isMasterKey());
@@ -328,49 +519,50 @@ public class ProviderHelper {
         if (expiryDate != null) {
             values.put(Keys.EXPIRY, expiryDate.getTime() / 1000);
         }
-        values.put(Keys.KEY_RING_ROW_ID, keyRingRowId);
-        values.put(Keys.KEY_DATA, key.getEncoded());
         values.put(Keys.RANK, rank);
 
-        Uri uri = Keys.buildPublicKeysUri(Long.toString(keyRingRowId));
+        Uri uri = Keys.buildPublicKeysUri(BATCH_KEY_RING_ROW_ID);
 
-        return ContentProviderOperation.newInsert(uri).withValues(values).build();
+        return ContentProviderOperation.newInsert(uri).withValues(values)
+                .withValueBackReference(Keys.KEY_RING_ROW_ID, keyRingIndex).build();
     }
 
     /**
      * Build ContentProviderOperation to add PublicUserIds to database corresponding to a keyRing
      * 
      * @param context
-     * @param keyRingRowId
+     * @param keyRingIndex
+     *            index of the insert of the keyRing in the same batch
      * @param key
      * @param rank
      * @return
      * @throws IOException
      */
     private static ContentProviderOperation buildPublicUserIdOperations(Context context,
-            long keyRingRowId, String userId, int rank) {
+            int keyRingIndex, String userId, int rank) {
         ContentValues values = new ContentValues();
-        values.put(UserIds.KEY_RING_ROW_ID, keyRingRowId);
         values.put(UserIds.USER_ID, userId);
         values.put(UserIds.RANK, rank);
 
-        Uri uri = UserIds.buildPublicUserIdsUri(Long.toString(keyRingRowId));
+        Uri uri = UserIds.buildPublicUserIdsUri(BATCH_KEY_RING_ROW_ID);
 
-        return ContentProviderOperation.newInsert(uri).withValues(values).build();
+        return ContentProviderOperation.newInsert(uri).withValues(values)
+                .withValueBackReference(UserIds.KEY_RING_ROW_ID, keyRingIndex).build();
     }
 
     /**
      * Build ContentProviderOperation to add PGPSecretKey to database corresponding to a keyRing
      * 
      * @param context
-     * @param keyRingRowId
+     * @param keyRingIndex
+     *            index of the insert of the keyRing in the same batch
      * @param key
      * @param rank
      * @return
      * @throws IOException
      */
     private static ContentProviderOperation buildSecretKeyOperations(Context context,
-            long keyRingRowId, PGPSecretKey key, int rank) throws IOException {
+            int keyRingIndex, PGPSecretKey key, int rank) throws IOException {
         ContentValues values = new ContentValues();
 
         boolean has_private = true;
@@ -393,35 +585,54 @@ public class ProviderHelper {
         if (expiryDate != null) {
             values.put(Keys.EXPIRY, expiryDate.getTime() / 1000);
         }
-        values.put(Keys.KEY_RING_ROW_ID, keyRingRowId);
-        values.put(Keys.KEY_DATA, key.getEncoded());
         values.put(Keys.RANK, rank);
 
-        Uri uri = Keys.buildSecretKeysUri(Long.toString(keyRingRowId));
+        Uri uri = Keys.buildSecretKeysUri(BATCH_KEY_RING_ROW_ID);
 
-        return ContentProviderOperation.newInsert(uri).withValues(values).build();
+        return ContentProviderOperation.newInsert(uri).withValues(values)
+                .withValueBackReference(Keys.KEY_RING_ROW_ID, keyRingIndex).build();
     }
 
     /**
      * Build ContentProviderOperation to add SecretUserIds to database corresponding to a keyRing
      * 
      * @param context
-     * @param keyRingRowId
+     * @param keyRingIndex
+     *            index of the insert of the keyRing in the same batch
      * @param key
      * @param rank
      * @return
      * @throws IOException
      */
     private static ContentProviderOperation buildSecretUserIdOperations(Context context,
-            long keyRingRowId, String userId, int rank) {
+            int keyRingIndex, String userId, int rank) {
         ContentValues values = new ContentValues();
-        values.put(UserIds.KEY_RING_ROW_ID, keyRingRowId);
         values.put(UserIds.USER_ID, userId);
         values.put(UserIds.RANK, rank);
 
-        Uri uri = UserIds.buildSecretUserIdsUri(Long.toString(keyRingRowId));
+        Uri uri = UserIds.buildSecretUserIdsUri(BATCH_KEY_RING_ROW_ID);
+
+        return ContentProviderOperation.newInsert(uri).withValues(values)
+                .withValueBackReference(UserIds.KEY_RING_ROW_ID, keyRingIndex).build();
+    }
+
+    /**
+     * Defers change notifications of the provider until endBulkOperation is called, so that the
+     * key lists are refreshed once after saving many keyrings
+     * 
+     * @param context
+     */
+    public static void beginBulkOperation(Context context) {
+        ChangeNotificationCoalescer.getInstance(context).beginBulkOperation();
+    }
 
-        return ContentProviderOperation.newInsert(uri).withValues(values).build();
+    /**
+     * Ends a bulk operation started with beginBulkOperation and sends pending change notifications
+     * 
+     * @param context
+     */
+    public static void endBulkOperation(Context context) {
+        ChangeNotificationCoalescer.getInstance(context).endBulkOperation();
     }
 
     /**
@@ -616,8 +827,9 @@ public class ProviderHelper {
                             }
 
                             ByteArrayOutputStream bos = new ByteArrayOutputStream();
-                            ArmoredOutputStream aos = new ArmoredOutputStream(bos);
-                            aos.setHeader("Version", PgpHelper.getFullVersion(context));
+                            PgpArmoredOutputStream aos = new PgpArmoredOutputStream(bos);
+                            aos.setHeader(PgpArmoredOutputStream.VERSION_HEADER,
+                                    PgpHelper.getFullVersion(context));
 
                             if (keyRing instanceof PGPSecretKeyRing) {
                                 aos.write(((PGPSecretKeyRing) keyRing).getEncoded());
@@ -0,0 +1,101 @@
+/*
+ * Copyright (C) 2013 Dominik Schürmann <dominik@dominikschuermann.de>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.service;
+
+import java.security.GeneralSecurityException;
+
+import org.sufficientlysecure.keychain.Constants;
+import org.sufficientlysecure.keychain.helper.Preferences;
+import org.sufficientlysecure.keychain.pgp.PgpKeyOperation;
+import org.sufficientlysecure.keychain.pgp.PgpKeyPairPool;
+import org.sufficientlysecure.keychain.util.Log;
+
+import android.app.IntentService;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.os.BatteryManager;
+import android.os.Process;
+
+/**
+ * Fills the pool of pre-generated key pairs with key pairs of the default key size, if enabled in
+ * the preferences, or empties it, if disabled.
+ *
+ * Key pairs are generated with background priority, and only while the device is charging or the
+ * battery is at least MIN_BATTERY_PERCENT full.
+ */
+public class KeyPairPoolService extends IntentService {
+    public static final String ACTION_UPDATE = Constants.INTENT_PREFIX + "UPDATE_KEY_PAIR_POOL";
+
+    private static final int MIN_BATTERY_PERCENT = 50;
+
+    public KeyPairPoolService() {
+        super("KeyPairPoolService");
+    }
+
+    /**
+     * Refills or empties the pool in the background, depending on the preference
+     *
+     * @param context
+     */
+    public static void update(Context context) {
+        Intent intent = new Intent(context, KeyPairPoolService.class);
+        intent.setAction(ACTION_UPDATE);
+        context.startService(intent);
+    }
+
+    @Override
+    protected void onHandleIntent(Intent intent) {
+        if (!ACTION_UPDATE.equals(intent.getAction())) {
+            return;
+        }
+
+        Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+
+        Preferences preferences = Preferences.getPreferences(this);
+        PgpKeyPairPool pool = PgpKeyPairPool.getInstance(this);
+        try {
+            while (preferences.getKeyPool() && hasPower()
+                    && pool.refillOne(PgpKeyOperation.DEFAULT_RSA_KEY_SIZE,
+                            preferences.getKeyPoolDepth())) {
+                Log.d(Constants.TAG, "Pre-generated key pair, "
+                        + pool.getCount(PgpKeyOperation.DEFAULT_RSA_KEY_SIZE) + " in pool");
+            }
+        } catch (GeneralSecurityException e) {
+            Log.e(Constants.TAG, "Pre-generating key pair failed", e);
+        }
+
+        // also if it was disabled while a key pair was generated
+        if (!preferences.getKeyPool()) {
+            pool.clear();
+        }
+    }
+
+    private boolean hasPower() {
+        Intent battery = registerReceiver(null, new IntentFilter(Intent.ACTION_BATTERY_CHANGED));
+        if (battery == null) {
+            return true;
+        }
+        if (battery.getIntExtra(BatteryManager.EXTRA_PLUGGED, 0) != 0) {
+            return true;
+        }
+        int level = battery.getIntExtra(BatteryManager.EXTRA_LEVEL, -1);
+        int scale = battery.getIntExtra(BatteryManager.EXTRA_SCALE, -1);
+        return level < 0 || scale <= 0 || level * 100 / scale >= MIN_BATTERY_PERCENT;
+    }
+}
@@ -0,0 +1,150 @@
+/*
+ * Copyright (C) 2013 Dominik Schürmann <dominik@dominikschuermann.de>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.service;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.sufficientlysecure.keychain.Constants;
+import org.sufficientlysecure.keychain.helper.Preferences;
+import org.sufficientlysecure.keychain.provider.ProviderHelper;
+import org.sufficientlysecure.keychain.util.KeyRefresher;
+import org.sufficientlysecure.keychain.util.Log;
+
+import android.app.AlarmManager;
+import android.app.IntentService;
+import android.app.PendingIntent;
+import android.content.Context;
+import android.content.Intent;
+
+/**
+ * Refreshes all public keyrings from the keyservers once a day, if enabled in the preferences, so
+ * revocations and new subkeys reach the local keyrings.
+ *
+ * Keyrings are refreshed in batches in the order of their master key ids. The master key id of the
+ * last refreshed keyring is stored after each batch, so a refresh interrupted by the system or by
+ * a lost connection continues where it stopped the next time the alarm goes off.
+ */
+public class KeyRefreshService extends IntentService {
+    public static final String ACTION_REFRESH = Constants.INTENT_PREFIX + "REFRESH_KEYS";
+
+    private static final long REFRESH_INTERVAL_MILLIS = AlarmManager.INTERVAL_DAY;
+    // the alarm only checks whether a refresh is due, so it is cheap to run it more often
+    private static final long ALARM_INTERVAL_MILLIS = AlarmManager.INTERVAL_HALF_DAY;
+    private static final int BATCH_SIZE = 25;
+
+    public KeyRefreshService() {
+        super("KeyRefreshService");
+    }
+
+    /**
+     * Sets or cancels the alarm starting the refresh, depending on the preference
+     *
+     * @param context
+     */
+    public static void schedule(Context context) {
+        Intent intent = new Intent(context, KeyRefreshService.class);
+        intent.setAction(ACTION_REFRESH);
+        PendingIntent pendingIntent = PendingIntent.getService(context, 0, intent, 0);
+
+        AlarmManager alarmManager = (AlarmManager) context.getSystemService(Context.ALARM_SERVICE);
+        if (Preferences.getPreferences(context).getKeyRefresh()) {
+            // inexact and not waking the device, the refresh is not urgent
+            alarmManager.setInexactRepeating(AlarmManager.RTC, System.currentTimeMillis()
+                    + AlarmManager.INTERVAL_FIFTEEN_MINUTES, ALARM_INTERVAL_MILLIS, pendingIntent);
+        } else {
+            alarmManager.cancel(pendingIntent);
+        }
+    }
+
+    @Override
+    protected void onHandleIntent(Intent intent) {
+        if (!ACTION_REFRESH.equals(intent.getAction())) {
+            return;
+        }
+
+        Preferences preferences = Preferences.getPreferences(this);
+        if (!preferences.getKeyRefresh()) {
+            return;
+        }
+
+        Long position = preferences.getKeyRefreshPosition();
+        if (position == null) {
+            long sinceLast = System.currentTimeMillis() - preferences.getKeyRefreshLastCompleted();
+            if (sinceLast >= 0 && sinceLast < REFRESH_INTERVAL_MILLIS) {
+                return;
+            }
+        }
+
+        String[] servers = preferences.getKeyServers();
+        if (servers.length == 0) {
+            return;
+        }
+        KeyRefresher refresher = new KeyRefresher(this, servers);
+        try {
+            refresh(preferences, refresher, position);
+        } catch (InterruptedException e) {
+            Log.d(Constants.TAG, "Key refresh interrupted");
+        } finally {
+            refresher.shutdown();
+        }
+    }
+
+    /**
+     * @param preferences
+     * @param refresher
+     * @param position
+     *            master key id of the last keyring refreshed before, null to start from the first
+     * @throws InterruptedException
+     */
+    private void refresh(Preferences preferences, KeyRefresher refresher, Long position)
+            throws InterruptedException {
+        ArrayList<Long> masterKeyIds = ProviderHelper.getPublicKeyRingsMasterKeyIds(this);
+        Collections.sort(masterKeyIds);
+
+        int start = 0;
+        if (position != null) {
+            start = Collections.binarySearch(masterKeyIds, position);
+            // after the position, also if that keyring has been deleted since
+            start = (start >= 0) ? start + 1 : -start - 1;
+        }
+
+        Log.d(Constants.TAG, "Refreshing " + (masterKeyIds.size() - start) + " keys"
+                + ((position == null) ? "" : ", resuming"));
+        KeyRefresher.Result total = new KeyRefresher.Result();
+        for (int i = start; i < masterKeyIds.size(); i += BATCH_SIZE) {
+            List<Long> batch = masterKeyIds.subList(i,
+                    Math.min(i + BATCH_SIZE, masterKeyIds.size()));
+            KeyRefresher.Result result = refresher.refresh(batch);
+            total.add(result);
+
+            if (result.failed == batch.size()) {
+                // no keyserver reachable, continue with this batch next time
+                Log.d(Constants.TAG, "Key refresh stopped, no keyserver reachable: " + total);
+                preferences.setKeyRefreshPosition((i == 0) ? null : masterKeyIds.get(i - 1));
+                return;
+            }
+            preferences.setKeyRefreshPosition(batch.get(batch.size() - 1));
+        }
+
+        preferences.setKeyRefreshPosition(null);
+        preferences.setKeyRefreshLastCompleted(System.currentTimeMillis());
+        Log.d(Constants.TAG, "Key refresh completed: " + total);
+    }
+}
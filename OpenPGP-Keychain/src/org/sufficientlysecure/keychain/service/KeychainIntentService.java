@@ -37,6 +37,7 @@ import org.sufficientlysecure.keychain.R;
 import org.sufficientlysecure.keychain.helper.FileHelper;
 import org.sufficientlysecure.keychain.helper.OtherHelper;
 import org.sufficientlysecure.keychain.helper.Preferences;
+import org.sufficientlysecure.keychain.pgp.PgpCompressionChoice;
 import org.sufficientlysecure.keychain.pgp.PgpConversionHelper;
 import org.sufficientlysecure.keychain.pgp.PgpHelper;
 import org.sufficientlysecure.keychain.pgp.PgpImportExport;
@@ -48,6 +49,7 @@ import org.sufficientlysecure.keychain.provider.ProviderHelper;
 import org.sufficientlysecure.keychain.util.HkpKeyServer;
 import org.sufficientlysecure.keychain.util.InputData;
 import org.sufficientlysecure.keychain.util.KeyServer.KeyInfo;
+import org.sufficientlysecure.keychain.util.KeyServerPool;
 import org.sufficientlysecure.keychain.util.Log;
 import org.sufficientlysecure.keychain.util.ProgressDialogUpdater;
 
@@ -88,6 +90,7 @@ public class KeychainIntentService extends IntentService implements ProgressDial
     public static final String ACTION_EXPORT_KEYRING = Constants.INTENT_PREFIX + "EXPORT_KEYRING";
 
     public static final String ACTION_UPLOAD_KEYRING = Constants.INTENT_PREFIX + "UPLOAD_KEYRING";
+    public static final String ACTION_UPLOAD_KEYRINGS = Constants.INTENT_PREFIX + "UPLOAD_KEYRINGS";
     public static final String ACTION_QUERY_KEYRING = Constants.INTENT_PREFIX + "QUERY_KEYRING";
 
     public static final String ACTION_SIGN_KEYRING = Constants.INTENT_PREFIX + "SIGN_KEYRING";
@@ -154,8 +157,10 @@ public class KeychainIntentService extends IntentService implements ProgressDial
     // upload key
     public static final String UPLOAD_KEY_SERVER = "upload_key_server";
     public static final String UPLOAD_KEY_KEYRING_ROW_ID = "upload_key_ring_id";
+    public static final String UPLOAD_KEY_MASTER_KEY_IDS = "upload_key_master_key_ids";
 
     // query key
+    // optional, all configured key servers are used if not given
     public static final String QUERY_KEY_SERVER = "query_key_server";
     public static final String QUERY_KEY_TYPE = "query_key_type";
     public static final String QUERY_KEY_STRING = "query_key_string";
@@ -178,6 +183,8 @@ public class KeychainIntentService extends IntentService implements ProgressDial
     public static final String RESULT_ENCRYPTED_STRING = "encrypted_message";
     public static final String RESULT_ENCRYPTED_BYTES = "encrypted_data";
     public static final String RESULT_URI = "result_uri";
+    public static final String RESULT_COMPRESSION = "compression";
+    public static final String RESULT_COMPRESSION_LEVEL = "compression_level";
 
     // decrypt/verify
     public static final String RESULT_DECRYPTED_STRING = "decrypted_message";
@@ -194,6 +201,7 @@ public class KeychainIntentService extends IntentService implements ProgressDial
     public static final String RESULT_IMPORT_ADDED = "added";
     public static final String RESULT_IMPORT_UPDATED = "updated";
     public static final String RESULT_IMPORT_BAD = "bad";
+    public static final String RESULT_IMPORT_UNCHANGED = "unchanged";
 
     // export
     public static final String RESULT_EXPORT = "exported";
@@ -202,6 +210,10 @@ public class KeychainIntentService extends IntentService implements ProgressDial
     public static final String RESULT_QUERY_KEY_DATA = "query_key_data";
     public static final String RESULT_QUERY_KEY_SEARCH_RESULT = "query_key_search_result";
 
+    // upload keys
+    public static final String RESULT_UPLOAD_UPLOADED = "uploaded";
+    public static final String RESULT_UPLOAD_FAILED = "failed";
+
     Messenger mMessenger;
 
     public KeychainIntentService() {
@@ -317,6 +329,7 @@ public class KeychainIntentService extends IntentService implements ProgressDial
 
                 /* Operation */
                 PgpOperation operation = new PgpOperation(this, this, inputData, outStream);
+                PgpCompressionChoice compressionChoice = null;
                 if (generateSignature) {
                     Log.d(Constants.TAG, "generating signature...");
                     operation.generateSignature(useAsciiArmor, false, secretKeyId,
@@ -331,7 +344,7 @@ public class KeychainIntentService extends IntentService implements ProgressDial
                             .getForceV3Signatures());
                 } else {
                     Log.d(Constants.TAG, "encrypt...");
-                    operation.signAndEncrypt(useAsciiArmor, compressionId, encryptionKeyIds,
+                    compressionChoice = operation.signAndEncrypt(useAsciiArmor, compressionId, encryptionKeyIds,
                             encryptionPassphrase, Preferences.getPreferences(this)
                                     .getDefaultEncryptionAlgorithm(), secretKeyId, Preferences
                                     .getPreferences(this).getDefaultHashAlgorithm(), Preferences
@@ -376,6 +389,11 @@ public class KeychainIntentService extends IntentService implements ProgressDial
                     break;
                 }
 
+                if (compressionChoice != null) {
+                    resultData.putInt(RESULT_COMPRESSION, compressionChoice.getAlgorithm());
+                    resultData.putInt(RESULT_COMPRESSION_LEVEL, compressionChoice.getLevel());
+                }
+
                 OtherHelper.logDebugBundle(resultData, "resultData");
 
                 sendMessageToHandler(KeychainIntentServiceHandler.MESSAGE_OKAY, resultData);
@@ -584,11 +602,11 @@ public class KeychainIntentService extends IntentService implements ProgressDial
                 /* Operation */
                 PgpKeyOperation keyOperations = new PgpKeyOperation(this, this);
 
-                PGPSecretKeyRing masterKeyRing = keyOperations.createKey(Id.choice.algorithm.rsa,
-                        4096, passphrase, null);
-
-                PGPSecretKeyRing subKeyRing = keyOperations.createKey(Id.choice.algorithm.rsa,
-                        4096, passphrase, masterKeyRing.getSecretKey());
+                // both key pairs are generated at the same time
+                PGPSecretKeyRing[] keyRings = keyOperations.createRsaKeys(
+                        PgpKeyOperation.DEFAULT_RSA_KEY_SIZE, passphrase);
+                PGPSecretKeyRing masterKeyRing = keyRings[0];
+                PGPSecretKeyRing subKeyRing = keyRings[1];
 
                 /* Output */
                 Bundle resultData = new Bundle();
@@ -749,6 +767,23 @@ public class KeychainIntentService extends IntentService implements ProgressDial
             } catch (Exception e) {
                 sendErrorToHandler(e);
             }
+        } else if (ACTION_UPLOAD_KEYRINGS.equals(action)) {
+            try {
+
+                /* Input */
+                long[] masterKeyIds = data.getLongArray(UPLOAD_KEY_MASTER_KEY_IDS);
+                String keyServer = data.getString(UPLOAD_KEY_SERVER);
+
+                /* Operation */
+                HkpKeyServer server = new HkpKeyServer(keyServer);
+
+                PgpImportExport pgpImportExport = new PgpImportExport(this, this);
+                Bundle resultData = pgpImportExport.uploadKeyRingsToServer(server, masterKeyIds);
+
+                sendMessageToHandler(KeychainIntentServiceHandler.MESSAGE_OKAY, resultData);
+            } catch (Exception e) {
+                sendErrorToHandler(e);
+            }
         } else if (ACTION_QUERY_KEYRING.equals(action)) {
             try {
 
@@ -762,13 +797,18 @@ public class KeychainIntentService extends IntentService implements ProgressDial
                 /* Operation */
                 Bundle resultData = new Bundle();
 
-                HkpKeyServer server = new HkpKeyServer(keyServer);
+                // without a server given, the fastest configured server is used and a slow
+                // query is hedged to the second fastest
+                KeyServerPool pool = KeyServerPool.getInstance(this);
+                boolean automatic = (keyServer == null);
+                String[] servers = automatic ? Preferences.getPreferences(this).getKeyServers()
+                        : new String[] { keyServer };
                 if (queryType == Id.keyserver.search) {
-                    ArrayList<KeyInfo> searchResult = server.search(queryString);
+                    ArrayList<KeyInfo> searchResult = pool.search(servers, queryString, automatic);
 
                     resultData.putParcelableArrayList(RESULT_QUERY_KEY_SEARCH_RESULT, searchResult);
                 } else if (queryType == Id.keyserver.get) {
-                    String keyData = server.get(keyId);
+                    String keyData = pool.get(servers, keyId, automatic);
 
                     resultData.putString(RESULT_QUERY_KEY_DATA, keyData);
                 }
@@ -795,7 +835,8 @@ public class KeychainIntentService extends IntentService implements ProgressDial
                 // store the signed key in our local cache
                 PgpImportExport pgpImportExport = new PgpImportExport(this, null);
                 int retval = pgpImportExport.storeKeyRingInCache(signedPubKeyRing);
-                if (retval != Id.return_value.ok && retval != Id.return_value.updated) {
+                if (retval != Id.return_value.ok && retval != Id.return_value.updated
+                        && retval != Id.return_value.unchanged) {
                     throw new PgpGeneralException("Failed to store signed key in local cache");
                 }
 
@@ -163,6 +163,7 @@ public class AppSettingsFragment extends Fragment {
         });
 
         HashMap<Integer, String> compressionMap = new HashMap<Integer, String>();
+        compressionMap.put(Id.choice.compression.auto, getString(R.string.choice_automatic));
         compressionMap.put(Id.choice.compression.none, getString(R.string.choice_none) + " ("
                 + getString(R.string.fast) + ")");
         compressionMap.put(Id.choice.compression.zip, "ZIP (" + getString(R.string.fast) + ")");
@@ -851,6 +851,7 @@ public class EncryptActivity extends SherlockFragmentActivity {
 
         mFileCompression = (Spinner) findViewById(R.id.fileCompression);
         Choice[] choices = new Choice[] {
+                new Choice(Id.choice.compression.auto, getString(R.string.choice_automatic)),
                 new Choice(Id.choice.compression.none, getString(R.string.choice_none) + " ("
                         + getString(R.string.fast) + ")"),
                 new Choice(Id.choice.compression.zip, "ZIP (" + getString(R.string.fast) + ")"),
@@ -359,6 +359,8 @@ public class ImportKeysActivity extends SherlockFragmentActivity {
                         int updated = returnData
                                 .getInt(KeychainIntentService.RESULT_IMPORT_UPDATED);
                         int bad = returnData.getInt(KeychainIntentService.RESULT_IMPORT_BAD);
+                        int unchanged = returnData
+                                .getInt(KeychainIntentService.RESULT_IMPORT_UNCHANGED);
                         String toastMessage;
                         if (added > 0 && updated > 0) {
                             toastMessage = getString(R.string.keysAddedAndUpdated, added, updated);
@@ -366,6 +368,8 @@ public class ImportKeysActivity extends SherlockFragmentActivity {
                             toastMessage = getString(R.string.keysAdded, added);
                         } else if (updated > 0) {
                             toastMessage = getString(R.string.keysUpdated, updated);
+                        } else if (unchanged > 0) {
+                            toastMessage = getString(R.string.keysUnchanged, unchanged);
                         } else {
                             toastMessage = getString(R.string.noKeysAddedOrUpdated);
                         }
@@ -17,13 +17,11 @@
 
 package org.sufficientlysecure.keychain.ui;
 
-import java.util.ArrayList;
 import java.util.List;
-import java.util.Map;
 
-import org.sufficientlysecure.keychain.Constants;
+import org.sufficientlysecure.keychain.ui.widget.ImportKeysAdapter;
+import org.sufficientlysecure.keychain.ui.widget.ImportKeysListEntry;
 import org.sufficientlysecure.keychain.ui.widget.ImportKeysListLoader;
-import org.sufficientlysecure.keychain.util.Log;
 import org.sufficientlysecure.keychain.R;
 
 import com.actionbarsherlock.app.SherlockListFragment;
@@ -34,10 +32,9 @@ import android.support.v4.content.Loader;
 import android.support.v4.app.LoaderManager;
 import android.view.View;
 import android.widget.ListView;
-import android.widget.SimpleAdapter;
 
 public class ImportKeysListFragment extends SherlockListFragment implements
-        LoaderManager.LoaderCallbacks<List<Map<String, String>>> {
+        LoaderManager.LoaderCallbacks<List<ImportKeysListEntry>> {
     public static String ARG_KEYRING_BYTES = "bytes";
     public static String ARG_IMPORT_FILENAME = "filename";
 
@@ -45,12 +42,11 @@ public class ImportKeysListFragment extends SherlockListFragment implements
     String mImportFilename;
 
     private Activity mActivity;
-    private SimpleAdapter mAdapter;
+    private ImportKeysAdapter mAdapter;
 
     @Override
     public void onListItemClick(ListView listView, View view, int position, long id) {
-        // Map<String, String> item = (Map<String, String>) listView.getItemAtPosition(position);
-        // String userId = item.get(ImportKeysListLoader.MAP_ATTR_USER_ID);
+        // ImportKeysListEntry entry = mAdapter.getItem(position);
     }
 
     /**
@@ -87,11 +83,7 @@ public class ImportKeysListFragment extends SherlockListFragment implements
         setEmptyText(mActivity.getString(R.string.error_nothingImport));
 
         // Create an empty adapter we will use to display the loaded data.
-        String[] from = new String[] {};
-        int[] to = new int[] {};
-        List<Map<String, String>> data = new ArrayList<Map<String, String>>();
-        mAdapter = new SimpleAdapter(getActivity(), data, android.R.layout.two_line_list_item,
-                from, to);
+        mAdapter = new ImportKeysAdapter(mActivity);
         setListAdapter(mAdapter);
 
         // Start out with a progress indicator.
@@ -103,32 +95,18 @@ public class ImportKeysListFragment extends SherlockListFragment implements
     }
 
     @Override
-    public Loader<List<Map<String, String>>> onCreateLoader(int id, Bundle args) {
+    public Loader<List<ImportKeysListEntry>> onCreateLoader(int id, Bundle args) {
         return new ImportKeysListLoader(mActivity, mKeyringBytes, mImportFilename);
     }
 
+    /**
+     * Called with the keys parsed so far while parsing and again with all keys when finished
+     */
     @Override
-    public void onLoadFinished(Loader<List<Map<String, String>>> loader,
-            List<Map<String, String>> data) {
+    public void onLoadFinished(Loader<List<ImportKeysListEntry>> loader,
+            List<ImportKeysListEntry> data) {
         // Set the new data in the adapter.
-        // for (String item : data) {
-        // mAdapter.add(item);
-        // }
-        Log.d(Constants.TAG, "data: " + data);
-        // TODO: real swapping the data to the already defined adapter doesn't work
-        // Workaround: recreate adapter!
-        // http://stackoverflow.com/questions/2356091/android-add-function-of-arrayadapter-not-working
-        // mAdapter = new ArrayAdapter<String>(mActivity, android.R.layout.two_line_list_item,
-        // data);
-
-        String[] from = new String[] { ImportKeysListLoader.MAP_ATTR_USER_ID,
-                ImportKeysListLoader.MAP_ATTR_FINGERPINT };
-        int[] to = new int[] { android.R.id.text1, android.R.id.text2 };
-        mAdapter = new SimpleAdapter(getActivity(), data, android.R.layout.two_line_list_item,
-                from, to);
-
-        mAdapter.notifyDataSetChanged();
-        setListAdapter(mAdapter);
+        mAdapter.setData(data);
 
         // The list should now be shown.
         if (isResumed()) {
@@ -139,10 +117,9 @@ public class ImportKeysListFragment extends SherlockListFragment implements
     }
 
     @Override
-    public void onLoaderReset(Loader<List<Map<String, String>>> loader) {
+    public void onLoaderReset(Loader<List<ImportKeysListEntry>> loader) {
         // Clear the data in the adapter.
-        // Not available in SimpleAdapter!
-        // mAdapter.clear();
+        mAdapter.setData(null);
     }
 
 }
@@ -39,6 +39,7 @@ import android.widget.Toast;
 import com.actionbarsherlock.app.SherlockFragmentActivity;
 import com.actionbarsherlock.view.Menu;
 import com.actionbarsherlock.view.MenuItem;
+import com.actionbarsherlock.widget.SearchView;
 
 public class KeyListActivity extends SherlockFragmentActivity {
 
@@ -130,9 +131,29 @@ public class KeyListActivity extends SherlockFragmentActivity {
     @Override
     public boolean onCreateOptionsMenu(Menu menu) {
         super.onCreateOptionsMenu(menu);
-        // TODO: reimplement!
-        // menu.add(3, Id.menu.option.search, 0, R.string.menu_search)
-        // .setIcon(R.drawable.ic_menu_search).setShowAsAction(MenuItem.SHOW_AS_ACTION_ALWAYS);
+
+        // search as you type, filters the key list by main user id
+        SearchView searchView = new SearchView(getSupportActionBar().getThemedContext());
+        searchView.setQueryHint(getString(R.string.menu_search));
+        searchView.setOnQueryTextListener(new SearchView.OnQueryTextListener() {
+            @Override
+            public boolean onQueryTextSubmit(String query) {
+                setSearchQuery(query);
+                return true;
+            }
+
+            @Override
+            public boolean onQueryTextChange(String newText) {
+                setSearchQuery(newText);
+                return true;
+            }
+        });
+        menu.add(3, Id.menu.option.search, 0, R.string.menu_search)
+                .setIcon(R.drawable.ic_menu_search)
+                .setActionView(searchView)
+                .setShowAsAction(
+                        MenuItem.SHOW_AS_ACTION_IF_ROOM
+                                | MenuItem.SHOW_AS_ACTION_COLLAPSE_ACTION_VIEW);
         menu.add(0, Id.menu.option.import_from_file, 5, R.string.menu_importFromFile)
                 .setShowAsAction(MenuItem.SHOW_AS_ACTION_NEVER | MenuItem.SHOW_AS_ACTION_WITH_TEXT);
         menu.add(0, Id.menu.option.export_keys, 6, R.string.menu_exportKeys).setShowAsAction(
@@ -164,16 +185,27 @@ public class KeyListActivity extends SherlockFragmentActivity {
             return true;
         }
 
-        // case Id.menu.option.search:
-        // startSearch("", false, null, false);
-        // return true;
-
         default: {
             return super.onOptionsItemSelected(item);
         }
         }
     }
 
+    /**
+     * Passes the search query on to the list fragment of this activity
+     * 
+     * @param query
+     */
+    private void setSearchQuery(String query) {
+        int fragmentId = (mKeyType == Id.type.public_key) ? R.id.key_list_public_fragment
+                : R.id.key_list_secret_fragment;
+        KeyListFragment fragment = (KeyListFragment) getSupportFragmentManager()
+                .findFragmentById(fragmentId);
+        if (fragment != null) {
+            fragment.setSearchQuery(query);
+        }
+    }
+
     /**
      * Show dialog where to export keys
      * 
@@ -20,18 +20,42 @@ package org.sufficientlysecure.keychain.ui;
 import org.sufficientlysecure.keychain.Id;
 import org.sufficientlysecure.keychain.provider.ProviderHelper;
 import org.sufficientlysecure.keychain.ui.widget.ExpandableListFragment;
+import org.sufficientlysecure.keychain.ui.widget.KeyListLoader;
 import org.sufficientlysecure.keychain.R;
 
+import android.database.Cursor;
 import android.os.Bundle;
+import android.os.Handler;
+import android.support.v4.app.LoaderManager;
 import android.view.ContextMenu;
 import android.view.ContextMenu.ContextMenuInfo;
 import android.view.View;
+import android.widget.AdapterView;
+import android.widget.AdapterView.OnItemLongClickListener;
 import android.widget.ExpandableListView;
+import android.widget.ExpandableListView.OnGroupClickListener;
 import android.widget.ExpandableListView.ExpandableListContextMenuInfo;
 
-public class KeyListFragment extends ExpandableListFragment {
+public abstract class KeyListFragment extends ExpandableListFragment implements
+        LoaderManager.LoaderCallbacks<Cursor> {
+    // id is -1 as the child cursors are numbered 0,...,n
+    protected static final int LOADER_ID = -1;
+
+    // wait for typing to pause before querying
+    private static final long SEARCH_DELAY_MILLIS = 300;
+
     protected KeyListActivity mKeyListActivity;
 
+    protected String mSearchQuery;
+
+    private final Handler mSearchHandler = new Handler();
+    private final Runnable mSearchRunnable = new Runnable() {
+        @Override
+        public void run() {
+            getLoaderManager().restartLoader(LOADER_ID, null, KeyListFragment.this);
+        }
+    };
+
     @Override
     public void onActivityCreated(Bundle savedInstanceState) {
         super.onActivityCreated(savedInstanceState);
@@ -41,11 +65,59 @@ public class KeyListFragment extends ExpandableListFragment {
         // register long press context menu
         registerForContextMenu(getListView());
 
+        // key rings of a page that has not been loaded yet can neither be expanded nor pressed long
+        getListView().setOnGroupClickListener(new OnGroupClickListener() {
+            @Override
+            public boolean onGroupClick(ExpandableListView parent, View v, int groupPosition,
+                    long id) {
+                return id == KeyListLoader.UNLOADED_ROW_ID;
+            }
+        });
+        getListView().setOnItemLongClickListener(new OnItemLongClickListener() {
+            @Override
+            public boolean onItemLongClick(AdapterView<?> parent, View view, int position,
+                    long id) {
+                int groupPosition = ExpandableListView.getPackedPositionGroup(getListView()
+                        .getExpandableListPosition(position));
+                return getExpandableListAdapter().getGroupId(groupPosition)
+                        == KeyListLoader.UNLOADED_ROW_ID;
+            }
+        });
+
         // Give some text to display if there is no data. In a real
         // application this would come from a resource.
         setEmptyText(getString(R.string.listEmpty));
     }
 
+    @Override
+    public void onDestroyView() {
+        mSearchHandler.removeCallbacks(mSearchRunnable);
+        super.onDestroyView();
+    }
+
+    /**
+     * Shows only key rings with a main user id starting with query. The list is reloaded after
+     * typing paused for SEARCH_DELAY_MILLIS.
+     * 
+     * @param query
+     *            null or empty to show all key rings
+     */
+    public void setSearchQuery(String query) {
+        if (query != null) {
+            query = query.trim();
+        }
+        if (query == null || query.length() == 0) {
+            query = null;
+        }
+        if (query == null ? mSearchQuery == null : query.equals(mSearchQuery)) {
+            return;
+        }
+        mSearchQuery = query;
+
+        mSearchHandler.removeCallbacks(mSearchRunnable);
+        mSearchHandler.postDelayed(mSearchRunnable, SEARCH_DELAY_MILLIS);
+    }
+
     /**
      * Context Menu on Long Click
      */
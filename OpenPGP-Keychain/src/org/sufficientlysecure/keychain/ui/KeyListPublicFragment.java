@@ -22,25 +22,22 @@ import org.sufficientlysecure.keychain.Id;
 import org.sufficientlysecure.keychain.pgp.PgpKeyHelper;
 import org.sufficientlysecure.keychain.provider.ProviderHelper;
 import org.sufficientlysecure.keychain.provider.KeychainContract.KeyRings;
-import org.sufficientlysecure.keychain.provider.KeychainContract.UserIds;
 import org.sufficientlysecure.keychain.ui.widget.KeyListAdapter;
+import org.sufficientlysecure.keychain.ui.widget.KeyListLoader;
 import org.sufficientlysecure.keychain.R;
 
 import android.content.Intent;
 import android.database.Cursor;
 import android.net.Uri;
 import android.os.Bundle;
-import android.support.v4.content.CursorLoader;
 import android.support.v4.content.Loader;
-import android.support.v4.app.LoaderManager;
 import android.view.ContextMenu;
 import android.view.View;
 import android.view.ContextMenu.ContextMenuInfo;
 import android.widget.ExpandableListView;
 import android.widget.ExpandableListView.ExpandableListContextMenuInfo;
 
-public class KeyListPublicFragment extends KeyListFragment implements
-        LoaderManager.LoaderCallbacks<Cursor> {
+public class KeyListPublicFragment extends KeyListFragment {
 
     private KeyListPublicActivity mKeyListPublicActivity;
 
@@ -63,8 +60,7 @@ public class KeyListPublicFragment extends KeyListFragment implements
 
         // Prepare the loader. Either re-connect with an existing one,
         // or start a new one.
-        // id is -1 as the child cursors are numbered 0,...,n
-        getLoaderManager().initLoader(-1, null, this);
+        getLoaderManager().initLoader(LOADER_ID, null, this);
     }
 
     /**
@@ -180,9 +176,7 @@ public class KeyListPublicFragment extends KeyListFragment implements
 
     // These are the rows that we will retrieve.
     static final String[] PROJECTION = new String[] { KeyRings._ID, KeyRings.MASTER_KEY_ID,
-            UserIds.USER_ID };
-
-    static final String SORT_ORDER = UserIds.USER_ID + " ASC";
+            KeyRings.MAIN_USER_ID, KeyRings.FINGERPRINT, KeyRings.KEY_RING_DIGEST };
 
     @Override
     public Loader<Cursor> onCreateLoader(int id, Bundle args) {
@@ -190,9 +184,9 @@ public class KeyListPublicFragment extends KeyListFragment implements
         // sample only has one Loader, so we don't care about the ID.
         Uri baseUri = KeyRings.buildPublicKeyRingsUri();
 
-        // Now create and return a CursorLoader that will take care of
+        // Now create and return a loader that will take care of
         // creating a Cursor for the data being displayed.
-        return new CursorLoader(getActivity(), baseUri, PROJECTION, null, null, SORT_ORDER);
+        return new KeyListLoader(getActivity(), baseUri, PROJECTION, mSearchQuery);
     }
 
     @Override
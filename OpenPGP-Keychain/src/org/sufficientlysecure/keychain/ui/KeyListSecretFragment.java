@@ -20,15 +20,13 @@ package org.sufficientlysecure.keychain.ui;
 import org.sufficientlysecure.keychain.Id;
 import org.sufficientlysecure.keychain.R;
 import org.sufficientlysecure.keychain.provider.KeychainContract.KeyRings;
-import org.sufficientlysecure.keychain.provider.KeychainContract.UserIds;
 import org.sufficientlysecure.keychain.provider.ProviderHelper;
 import org.sufficientlysecure.keychain.ui.widget.KeyListAdapter;
+import org.sufficientlysecure.keychain.ui.widget.KeyListLoader;
 
 import android.database.Cursor;
 import android.net.Uri;
 import android.os.Bundle;
-import android.support.v4.app.LoaderManager;
-import android.support.v4.content.CursorLoader;
 import android.support.v4.content.Loader;
 import android.view.ContextMenu;
 import android.view.ContextMenu.ContextMenuInfo;
@@ -36,8 +34,7 @@ import android.view.View;
 import android.widget.ExpandableListView;
 import android.widget.ExpandableListView.ExpandableListContextMenuInfo;
 
-public class KeyListSecretFragment extends KeyListFragment implements
-        LoaderManager.LoaderCallbacks<Cursor> {
+public class KeyListSecretFragment extends KeyListFragment {
 
     private KeyListSecretActivity mKeyListSecretActivity;
 
@@ -60,8 +57,7 @@ public class KeyListSecretFragment extends KeyListFragment implements
 
         // Prepare the loader. Either re-connect with an existing one,
         // or start a new one.
-        // id is -1 as the child cursors are numbered 0,...,n
-        getLoaderManager().initLoader(-1, null, this);
+        getLoaderManager().initLoader(LOADER_ID, null, this);
     }
 
     /**
@@ -103,9 +99,7 @@ public class KeyListSecretFragment extends KeyListFragment implements
 
     // These are the rows that we will retrieve.
     static final String[] PROJECTION = new String[] { KeyRings._ID, KeyRings.MASTER_KEY_ID,
-            UserIds.USER_ID };
-
-    static final String SORT_ORDER = UserIds.USER_ID + " ASC";
+            KeyRings.MAIN_USER_ID, KeyRings.FINGERPRINT, KeyRings.KEY_RING_DIGEST };
 
     @Override
     public Loader<Cursor> onCreateLoader(int id, Bundle args) {
@@ -113,9 +107,9 @@ public class KeyListSecretFragment extends KeyListFragment implements
         // sample only has one Loader, so we don't care about the ID.
         Uri baseUri = KeyRings.buildSecretKeyRingsUri();
 
-        // Now create and return a CursorLoader that will take care of
+        // Now create and return a loader that will take care of
         // creating a Cursor for the data being displayed.
-        return new CursorLoader(getActivity(), baseUri, PROJECTION, null, null, SORT_ORDER);
+        return new KeyListLoader(getActivity(), baseUri, PROJECTION, mSearchQuery);
     }
 
     @Override
@@ -18,6 +18,7 @@
 package org.sufficientlysecure.keychain.ui;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 
 import org.sufficientlysecure.keychain.Constants;
@@ -111,12 +112,16 @@ public class KeyServerQueryActivity extends SherlockFragmentActivity {
         mList.setAdapter(mAdapter);
 
         mKeyServer = (Spinner) findViewById(R.id.keyServer);
+        String[] servers = Preferences.getPreferences(this).getKeyServers();
+        // first entry lets the service choose the fastest server
+        ArrayList<String> serverEntries = new ArrayList<String>();
+        serverEntries.add(getString(R.string.keyServerAutomatic));
+        serverEntries.addAll(Arrays.asList(servers));
         ArrayAdapter<String> adapter = new ArrayAdapter<String>(this,
-                android.R.layout.simple_spinner_item, Preferences.getPreferences(this)
-                        .getKeyServers());
+                android.R.layout.simple_spinner_item, serverEntries);
         adapter.setDropDownViewResource(android.R.layout.simple_spinner_dropdown_item);
         mKeyServer.setAdapter(adapter);
-        if (adapter.getCount() > 0) {
+        if (servers.length > 0) {
             mKeyServer.setSelection(0);
         } else {
             mSearch.setEnabled(false);
@@ -173,8 +178,10 @@ public class KeyServerQueryActivity extends SherlockFragmentActivity {
         // fill values for this action
         Bundle data = new Bundle();
 
-        String server = (String) mKeyServer.getSelectedItem();
-        data.putString(KeychainIntentService.QUERY_KEY_SERVER, server);
+        if (mKeyServer.getSelectedItemPosition() > 0) {
+            String server = (String) mKeyServer.getSelectedItem();
+            data.putString(KeychainIntentService.QUERY_KEY_SERVER, server);
+        }
 
         data.putInt(KeychainIntentService.QUERY_KEY_TYPE, mQueryType);
 
@@ -298,7 +305,8 @@ public class KeyServerQueryActivity extends SherlockFragmentActivity {
             TextView status = (TextView) view.findViewById(R.id.status);
             status.setText("");
 
-            String userId = keyInfo.userIds.get(0);
+            // keys in the machine readable index may come without user id
+            String userId = keyInfo.userIds.isEmpty() ? null : keyInfo.userIds.get(0);
             if (userId != null) {
                 String chunks[] = userId.split(" <", 2);
                 userId = chunks[0];
@@ -323,7 +331,7 @@ public class KeyServerQueryActivity extends SherlockFragmentActivity {
             }
 
             LinearLayout ll = (LinearLayout) view.findViewById(R.id.list);
-            if (keyInfo.userIds.size() == 1) {
+            if (keyInfo.userIds.size() <= 1) {
                 ll.setVisibility(View.GONE);
             } else {
                 boolean first = true;
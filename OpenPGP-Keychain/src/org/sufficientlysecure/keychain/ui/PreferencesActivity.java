@@ -21,6 +21,9 @@ import org.spongycastle.openpgp.PGPEncryptedData;
 import org.sufficientlysecure.keychain.Constants;
 import org.sufficientlysecure.keychain.Id;
 import org.sufficientlysecure.keychain.helper.Preferences;
+import org.sufficientlysecure.keychain.pgp.PgpKeyPairPool;
+import org.sufficientlysecure.keychain.service.KeyPairPoolService;
+import org.sufficientlysecure.keychain.service.KeyRefreshService;
 import org.sufficientlysecure.keychain.ui.widget.IntegerListPreference;
 import org.sufficientlysecure.keychain.R;
 
@@ -43,6 +46,9 @@ public class PreferencesActivity extends SherlockPreferenceActivity {
     private CheckBoxPreference mAsciiArmour = null;
     private CheckBoxPreference mForceV3Signatures = null;
     private PreferenceScreen mKeyServerPreference = null;
+    private CheckBoxPreference mKeyRefresh = null;
+    private CheckBoxPreference mKeyPool = null;
+    private IntegerListPreference mKeyPoolDepth = null;
     private Preferences mPreferences;
 
     @Override
@@ -120,9 +126,11 @@ public class PreferencesActivity extends SherlockPreferenceActivity {
         });
 
         mMessageCompression = (IntegerListPreference) findPreference(Constants.pref.DEFAULT_MESSAGE_COMPRESSION);
-        valueIds = new int[] { Id.choice.compression.none, Id.choice.compression.zip,
-                Id.choice.compression.zlib, Id.choice.compression.bzip2, };
+        valueIds = new int[] { Id.choice.compression.auto, Id.choice.compression.none,
+                Id.choice.compression.zip, Id.choice.compression.zlib,
+                Id.choice.compression.bzip2, };
         entries = new String[] {
+                getString(R.string.choice_automatic),
                 getString(R.string.choice_none) + " (" + getString(R.string.fast) + ")",
                 "ZIP (" + getString(R.string.fast) + ")",
                 "ZLIB (" + getString(R.string.fast) + ")",
@@ -196,6 +204,51 @@ public class PreferencesActivity extends SherlockPreferenceActivity {
                         return false;
                     }
                 });
+
+        mKeyRefresh = (CheckBoxPreference) findPreference(Constants.pref.KEY_REFRESH);
+        mKeyRefresh.setChecked(mPreferences.getKeyRefresh());
+        mKeyRefresh.setOnPreferenceChangeListener(new Preference.OnPreferenceChangeListener() {
+            public boolean onPreferenceChange(Preference preference, Object newValue) {
+                mKeyRefresh.setChecked((Boolean) newValue);
+                mPreferences.setKeyRefresh((Boolean) newValue);
+                KeyRefreshService.schedule(PreferencesActivity.this);
+                return false;
+            }
+        });
+
+        mKeyPool = (CheckBoxPreference) findPreference(Constants.pref.KEY_POOL);
+        mKeyPool.setChecked(mPreferences.getKeyPool());
+        PgpKeyPairPool pool = PgpKeyPairPool.getInstance(this);
+        mKeyPool.setSummary(getString(R.string.keyPoolSummary, pool.getHitCount(),
+                pool.getHitCount() + pool.getMissCount()));
+        mKeyPool.setOnPreferenceChangeListener(new Preference.OnPreferenceChangeListener() {
+            public boolean onPreferenceChange(Preference preference, Object newValue) {
+                mKeyPool.setChecked((Boolean) newValue);
+                mPreferences.setKeyPool((Boolean) newValue);
+                KeyPairPoolService.update(PreferencesActivity.this);
+                return false;
+            }
+        });
+
+        mKeyPoolDepth = (IntegerListPreference) findPreference(Constants.pref.KEY_POOL_DEPTH);
+        valueIds = new int[] { 1, 2, 4, 8 };
+        values = new String[valueIds.length];
+        for (int i = 0; i < values.length; ++i) {
+            values[i] = "" + valueIds[i];
+        }
+        mKeyPoolDepth.setEntries(values);
+        mKeyPoolDepth.setEntryValues(values);
+        mKeyPoolDepth.setValue("" + mPreferences.getKeyPoolDepth());
+        mKeyPoolDepth.setSummary(mKeyPoolDepth.getEntry());
+        mKeyPoolDepth.setOnPreferenceChangeListener(new Preference.OnPreferenceChangeListener() {
+            public boolean onPreferenceChange(Preference preference, Object newValue) {
+                mKeyPoolDepth.setValue(newValue.toString());
+                mKeyPoolDepth.setSummary(mKeyPoolDepth.getEntry());
+                mPreferences.setKeyPoolDepth(Integer.parseInt(newValue.toString()));
+                KeyPairPoolService.update(PreferencesActivity.this);
+                return false;
+            }
+        });
     }
 
     @Override
@@ -23,6 +23,7 @@ import org.sufficientlysecure.keychain.helper.ActionBarHelper;
 import org.sufficientlysecure.keychain.ui.widget.Editor;
 import org.sufficientlysecure.keychain.ui.widget.Editor.EditorListener;
 import org.sufficientlysecure.keychain.ui.widget.KeyServerEditor;
+import org.sufficientlysecure.keychain.util.KeyServerPool;
 
 import android.content.Context;
 import android.content.Intent;
@@ -82,11 +83,13 @@ public class PreferencesKeyServerActivity extends SherlockActivity implements On
         Intent intent = getIntent();
         String servers[] = intent.getStringArrayExtra(EXTRA_KEY_SERVERS);
         if (servers != null) {
+            KeyServerPool pool = KeyServerPool.getInstance(this);
             for (int i = 0; i < servers.length; ++i) {
                 KeyServerEditor view = (KeyServerEditor) mInflater.inflate(
                         R.layout.key_server_editor, mEditors, false);
                 view.setEditorListener(this);
                 view.setValue(servers[i]);
+                view.setStats(pool.getStats(servers[i]));
                 mEditors.addView(view);
             }
         }
@@ -24,9 +24,7 @@ import org.sufficientlysecure.keychain.Id;
 import org.sufficientlysecure.keychain.R;
 import org.sufficientlysecure.keychain.compatibility.ListFragmentWorkaround;
 import org.sufficientlysecure.keychain.provider.KeychainContract.KeyRings;
-import org.sufficientlysecure.keychain.provider.KeychainContract.Keys;
 import org.sufficientlysecure.keychain.provider.KeychainContract.UserIds;
-import org.sufficientlysecure.keychain.provider.KeychainDatabase;
 import org.sufficientlysecure.keychain.provider.KeychainDatabase.Tables;
 import org.sufficientlysecure.keychain.ui.widget.SelectKeyCursorAdapter;
 
@@ -173,20 +171,12 @@ public class SelectPublicKeyFragment extends ListFragmentWorkaround implements
                 KeyRings._ID,
                 KeyRings.MASTER_KEY_ID,
                 UserIds.USER_ID,
-                "(SELECT COUNT(available_keys." + Keys._ID + ") FROM " + Tables.KEYS
-                        + " AS available_keys WHERE available_keys." + Keys.KEY_RING_ROW_ID + " = "
-                        + KeychainDatabase.Tables.KEY_RINGS + "." + KeyRings._ID
-                        + " AND available_keys." + Keys.IS_REVOKED + " = '0' AND  available_keys."
-                        + Keys.CAN_ENCRYPT + " = '1') AS "
+                Tables.KEY_RINGS + "." + KeyRings.HAS_ENCRYPT_KEY + " AS "
                         + SelectKeyCursorAdapter.PROJECTION_ROW_AVAILABLE,
-                "(SELECT COUNT(valid_keys." + Keys._ID + ") FROM " + Tables.KEYS
-                        + " AS valid_keys WHERE valid_keys." + Keys.KEY_RING_ROW_ID + " = "
-                        + KeychainDatabase.Tables.KEY_RINGS + "." + KeyRings._ID
-                        + " AND valid_keys." + Keys.IS_REVOKED + " = '0' AND valid_keys."
-                        + Keys.CAN_ENCRYPT + " = '1' AND valid_keys." + Keys.CREATION + " <= '"
-                        + now + "' AND " + "(valid_keys." + Keys.EXPIRY + " IS NULL OR valid_keys."
-                        + Keys.EXPIRY + " >= '" + now + "')) AS "
-                        + SelectKeyCursorAdapter.PROJECTION_ROW_VALID, };
+                "(" + Tables.KEY_RINGS + "." + KeyRings.ENCRYPT_VALID_FROM + " <= " + now
+                        + " AND (" + Tables.KEY_RINGS + "." + KeyRings.ENCRYPT_VALID_UNTIL
+                        + " IS NULL OR " + Tables.KEY_RINGS + "." + KeyRings.ENCRYPT_VALID_UNTIL
+                        + " >= " + now + ")) AS " + SelectKeyCursorAdapter.PROJECTION_ROW_VALID, };
 
         String inMasterKeyList = null;
         if (mSelectedMasterKeyIds != null && mSelectedMasterKeyIds.length > 0) {
@@ -216,7 +206,7 @@ public class SelectPublicKeyFragment extends ListFragmentWorkaround implements
         // }
         // }
 
-        String orderBy = UserIds.USER_ID + " ASC";
+        String orderBy = KeyRings.MAIN_USER_ID_SORT_ORDER;
         if (inMasterKeyList != null) {
             // sort by selected master keys
             orderBy = inMasterKeyList + " DESC, " + orderBy;
@@ -22,9 +22,7 @@ import java.util.Date;
 import org.sufficientlysecure.keychain.Id;
 import org.sufficientlysecure.keychain.R;
 import org.sufficientlysecure.keychain.provider.KeychainContract.KeyRings;
-import org.sufficientlysecure.keychain.provider.KeychainContract.Keys;
 import org.sufficientlysecure.keychain.provider.KeychainContract.UserIds;
-import org.sufficientlysecure.keychain.provider.KeychainDatabase;
 import org.sufficientlysecure.keychain.provider.KeychainDatabase.Tables;
 import org.sufficientlysecure.keychain.ui.widget.SelectKeyCursorAdapter;
 
@@ -127,23 +125,13 @@ public class SelectSecretKeyFragment extends SherlockListFragment implements
                 KeyRings._ID,
                 KeyRings.MASTER_KEY_ID,
                 UserIds.USER_ID,
-                "(SELECT COUNT(cert_keys." + Keys._ID + ") FROM " + Tables.KEYS
-                        + " AS cert_keys WHERE cert_keys." + Keys.KEY_RING_ROW_ID + " = "
-                        + KeychainDatabase.Tables.KEY_RINGS + "." + KeyRings._ID + " AND cert_keys."
-                        + Keys.CAN_CERTIFY + " = '1') AS cert",
-                "(SELECT COUNT(available_keys." + Keys._ID + ") FROM " + Tables.KEYS
-                        + " AS available_keys WHERE available_keys." + Keys.KEY_RING_ROW_ID + " = "
-                        + KeychainDatabase.Tables.KEY_RINGS + "." + KeyRings._ID
-                        + " AND available_keys." + Keys.IS_REVOKED + " = '0' AND  available_keys."
-                        + Keys.CAN_SIGN + " = '1') AS "
+                Tables.KEY_RINGS + "." + KeyRings.HAS_CERTIFY_KEY + " AS cert",
+                Tables.KEY_RINGS + "." + KeyRings.HAS_SIGN_KEY + " AS "
                         + SelectKeyCursorAdapter.PROJECTION_ROW_AVAILABLE,
-                "(SELECT COUNT(valid_keys." + Keys._ID + ") FROM " + Tables.KEYS
-                        + " AS valid_keys WHERE valid_keys." + Keys.KEY_RING_ROW_ID + " = "
-                        + KeychainDatabase.Tables.KEY_RINGS + "." + KeyRings._ID + " AND valid_keys."
-                        + Keys.IS_REVOKED + " = '0' AND valid_keys." + Keys.CAN_SIGN
-                        + " = '1' AND valid_keys." + Keys.CREATION + " <= '" + now + "' AND "
-                        + "(valid_keys." + Keys.EXPIRY + " IS NULL OR valid_keys." + Keys.EXPIRY
-                        + " >= '" + now + "')) AS " + SelectKeyCursorAdapter.PROJECTION_ROW_VALID, };
+                "(" + Tables.KEY_RINGS + "." + KeyRings.SIGN_VALID_FROM + " <= " + now + " AND ("
+                        + Tables.KEY_RINGS + "." + KeyRings.SIGN_VALID_UNTIL + " IS NULL OR "
+                        + Tables.KEY_RINGS + "." + KeyRings.SIGN_VALID_UNTIL + " >= " + now
+                        + ")) AS " + SelectKeyCursorAdapter.PROJECTION_ROW_VALID, };
 
         // if (searchString != null && searchString.trim().length() > 0) {
         // String[] chunks = searchString.trim().split(" +");
@@ -157,7 +145,7 @@ public class SelectSecretKeyFragment extends SherlockListFragment implements
         // qb.appendWhere(")");
         // }
 
-        String orderBy = UserIds.USER_ID + " ASC";
+        String orderBy = KeyRings.MAIN_USER_ID_SORT_ORDER;
 
         // Now create and return a CursorLoader that will take care of
         // creating a Cursor for the data being displayed.
@@ -0,0 +1,104 @@
+/*
+ * Copyright (C) 2013 Dominik Schürmann <dominik@dominikschuermann.de>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.ui.widget;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.sufficientlysecure.keychain.pgp.PgpKeyHelper;
+import org.sufficientlysecure.keychain.R;
+
+import android.content.Context;
+import android.view.LayoutInflater;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.BaseAdapter;
+import android.widget.TextView;
+
+public class ImportKeysAdapter extends BaseAdapter {
+    protected LayoutInflater mInflater;
+    protected Context mContext;
+    protected List<ImportKeysListEntry> mEntries;
+
+    public ImportKeysAdapter(Context context) {
+        mContext = context;
+        mInflater = LayoutInflater.from(context);
+        mEntries = new ArrayList<ImportKeysListEntry>();
+    }
+
+    /**
+     * Shows entries, which must not be modified afterwards
+     *
+     * @param entries
+     */
+    public void setData(List<ImportKeysListEntry> entries) {
+        if (entries == null) {
+            entries = new ArrayList<ImportKeysListEntry>();
+        }
+        mEntries = entries;
+        notifyDataSetChanged();
+    }
+
+    /**
+     * Entries are only appended while a file is parsed, see ImportKeysListLoader, so a position
+     * keeps showing the same key ring.
+     */
+    @Override
+    public boolean hasStableIds() {
+        return true;
+    }
+
+    @Override
+    public int getCount() {
+        return mEntries.size();
+    }
+
+    @Override
+    public ImportKeysListEntry getItem(int position) {
+        return mEntries.get(position);
+    }
+
+    @Override
+    public long getItemId(int position) {
+        // not the key id, the public and the secret key ring of a key have the same
+        return position;
+    }
+
+    @Override
+    public View getView(int position, View convertView, ViewGroup parent) {
+        ImportKeysListEntry entry = mEntries.get(position);
+
+        View view = convertView;
+        if (view == null) {
+            view = mInflater.inflate(android.R.layout.two_line_list_item, parent, false);
+        }
+
+        String userId = entry.getUserId();
+        if (entry.isSecretKey()) {
+            userId = mContext.getString(R.string.secretKeyring) + " " + userId;
+        }
+        TextView userIdView = (TextView) view.findViewById(android.R.id.text1);
+        userIdView.setText(userId);
+
+        TextView fingerprintView = (TextView) view.findViewById(android.R.id.text2);
+        fingerprintView.setText(mContext.getString(R.string.fingerprint) + "\n"
+                + PgpKeyHelper.convertFingerprintToHex(entry.getFingerprint()));
+
+        return view;
+    }
+}
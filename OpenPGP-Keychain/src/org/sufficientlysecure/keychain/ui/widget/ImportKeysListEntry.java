@@ -0,0 +1,59 @@
+/*
+ * Copyright (C) 2013 Dominik Schürmann <dominik@dominikschuermann.de>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.ui.widget;
+
+import org.spongycastle.openpgp.PGPKeyRing;
+import org.spongycastle.openpgp.PGPPublicKey;
+import org.spongycastle.openpgp.PGPSecretKeyRing;
+import org.sufficientlysecure.keychain.pgp.PgpKeyHelper;
+
+/**
+ * One key ring found in a file to import. Only what is shown in the list is kept, the key ring
+ * itself is not referenced.
+ */
+public class ImportKeysListEntry {
+    private final long mKeyId;
+    private final String mUserId;
+    private final byte[] mFingerprint;
+    private final boolean mSecretKey;
+
+    public ImportKeysListEntry(PGPKeyRing keyRing) {
+        PGPPublicKey masterKey = keyRing.getPublicKey();
+
+        mKeyId = masterKey.getKeyID();
+        mUserId = PgpKeyHelper.getMainUserId(masterKey);
+        mFingerprint = masterKey.getFingerprint();
+        mSecretKey = (keyRing instanceof PGPSecretKeyRing);
+    }
+
+    public long getKeyId() {
+        return mKeyId;
+    }
+
+    public String getUserId() {
+        return mUserId;
+    }
+
+    public byte[] getFingerprint() {
+        return mFingerprint;
+    }
+
+    public boolean isSecretKey() {
+        return mSecretKey;
+    }
+}
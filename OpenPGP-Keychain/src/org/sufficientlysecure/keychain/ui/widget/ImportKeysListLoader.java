@@ -19,40 +19,55 @@ package org.sufficientlysecure.keychain.ui.widget;
 
 import java.io.BufferedInputStream;
 import java.io.ByteArrayInputStream;
+import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
+import java.io.IOException;
 import java.io.InputStream;
+import java.util.AbstractList;
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.List;
-import java.util.Map;
 
 import org.spongycastle.openpgp.PGPKeyRing;
 import org.spongycastle.openpgp.PGPObjectFactory;
-import org.spongycastle.openpgp.PGPSecretKeyRing;
-import org.spongycastle.openpgp.PGPUtil;
 import org.sufficientlysecure.keychain.Constants;
-import org.sufficientlysecure.keychain.pgp.PgpKeyHelper;
+import org.sufficientlysecure.keychain.pgp.PgpHelper;
 import org.sufficientlysecure.keychain.util.InputData;
 import org.sufficientlysecure.keychain.util.Log;
 import org.sufficientlysecure.keychain.util.PositionAwareInputStream;
-import org.sufficientlysecure.keychain.R;
 
 import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
 import android.support.v4.content.AsyncTaskLoader;
 
-public class ImportKeysListLoader extends AsyncTaskLoader<List<Map<String, String>>> {
-    public static final String MAP_ATTR_USER_ID = "user_id";
-    public static final String MAP_ATTR_FINGERPINT = "fingerprint";
-
-    ArrayList<Map<String, String>> data = new ArrayList<Map<String, String>>();
+/**
+ * Parses the key rings of a file or byte array for the import preview.
+ *
+ * While parsing, the entries found so far are delivered every BATCH_INTERVAL_MILLIS, so the list
+ * is shown and usable before a large file is parsed completely. Only the entries parsed since the
+ * last delivery are handed to the main thread and appended there, each delivery is a view of the
+ * first entries of this append-only list, which is not modified afterwards.
+ */
+public class ImportKeysListLoader extends AsyncTaskLoader<List<ImportKeysListEntry>> {
+    private static final int FIRST_BATCH_SIZE = 20;
+    private static final long BATCH_INTERVAL_MILLIS = 500;
 
     Context mContext;
-    List<String> mItems;
 
     byte[] mKeyringBytes;
     String mImportFilename;
 
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+
+    // identifies the running load, set to null to cancel it
+    private volatile Object mLoadToken;
+
+    // entries delivered so far, only accessed on the main thread
+    private ArrayList<ImportKeysListEntry> mDelivered;
+    private Object mDeliveredToken;
+
     public ImportKeysListLoader(Context context, byte[] keyringBytes, String importFilename) {
         super(context);
         this.mContext = context;
@@ -61,22 +76,42 @@ public class ImportKeysListLoader extends AsyncTaskLoader<List<Map<String, Strin
     }
 
     @Override
-    public List<Map<String, String>> loadInBackground() {
+    public List<ImportKeysListEntry> loadInBackground() {
+        Object token = new Object();
+        mLoadToken = token;
+
+        ArrayList<ImportKeysListEntry> entries = new ArrayList<ImportKeysListEntry>();
+
         InputData inputData = null;
         if (mKeyringBytes != null) {
             inputData = new InputData(new ByteArrayInputStream(mKeyringBytes), mKeyringBytes.length);
         } else {
             try {
-                inputData = new InputData(new FileInputStream(mImportFilename),
-                        mImportFilename.length());
+                inputData = new InputData(new FileInputStream(mImportFilename), new File(
+                        mImportFilename).length());
             } catch (FileNotFoundException e) {
                 Log.e(Constants.TAG, "Failed to init FileInputStream!", e);
+                return entries;
             }
         }
 
-        generateListOfKeyrings(inputData);
+        try {
+            generateListOfKeyrings(inputData, entries, token);
+        } finally {
+            try {
+                inputData.getInputStream().close();
+            } catch (IOException e) {
+                Log.e(Constants.TAG, "Failed to close input!", e);
+            }
+        }
+
+        return entries;
+    }
 
-        return data;
+    @Override
+    public boolean cancelLoad() {
+        mLoadToken = null;
+        return super.cancelLoad();
     }
 
     @Override
@@ -97,18 +132,17 @@ public class ImportKeysListLoader extends AsyncTaskLoader<List<Map<String, Strin
         cancelLoad();
     }
 
-    @Override
-    public void deliverResult(List<Map<String, String>> data) {
-        super.deliverResult(data);
-    }
-
     /**
      * Similar to PGPMain.importKeyRings
      * 
-     * @param keyringBytes
-     * @return
+     * @param inputData
+     * @param entries
+     *            parsed key rings are added to this list
+     * @param token
+     *            parsing stops when this is no longer the token of the running load
      */
-    private void generateListOfKeyrings(InputData inputData) {
+    private void generateListOfKeyrings(InputData inputData,
+            ArrayList<ImportKeysListEntry> entries, Object token) {
         PositionAwareInputStream progressIn = new PositionAwareInputStream(
                 inputData.getInputStream());
 
@@ -116,23 +150,38 @@ public class ImportKeysListLoader extends AsyncTaskLoader<List<Map<String, Strin
         // PGPObject chunks after the first one, e.g. files with several consecutive ASCII
         // armour blocks
         BufferedInputStream bufferedInput = new BufferedInputStream(progressIn);
+        long lastDelivery = 0;
+        ArrayList<ImportKeysListEntry> batch = new ArrayList<ImportKeysListEntry>();
         try {
 
             // read all available blocks... (asc files can contain many blocks with BEGIN END)
             while (bufferedInput.available() > 0) {
-                InputStream in = PGPUtil.getDecoderStream(bufferedInput);
+                InputStream in = PgpHelper.getDecoderStream(bufferedInput);
                 PGPObjectFactory objectFactory = new PGPObjectFactory(in);
 
                 // go through all objects in this block
                 Object obj;
                 while ((obj = objectFactory.nextObject()) != null) {
-                    Log.d(Constants.TAG, "Found class: " + obj.getClass());
+                    if (mLoadToken != token) {
+                        Log.d(Constants.TAG, "Parsing of key file canceled");
+                        return;
+                    }
 
                     if (obj instanceof PGPKeyRing) {
-                        PGPKeyRing newKeyring = (PGPKeyRing) obj;
-                        addToData(newKeyring);
+                        ImportKeysListEntry entry = new ImportKeysListEntry((PGPKeyRing) obj);
+                        entries.add(entry);
+                        batch.add(entry);
                     } else {
                         Log.e(Constants.TAG, "Object not recognized as PGPKeyRing!");
+                        continue;
+                    }
+
+                    long now = SystemClock.uptimeMillis();
+                    if (lastDelivery == 0 ? entries.size() >= FIRST_BATCH_SIZE
+                            : now - lastDelivery >= BATCH_INTERVAL_MILLIS) {
+                        deliverPartialResult(batch, token);
+                        batch = new ArrayList<ImportKeysListEntry>();
+                        lastDelivery = now;
                     }
                 }
             }
@@ -141,21 +190,57 @@ public class ImportKeysListLoader extends AsyncTaskLoader<List<Map<String, Strin
         }
     }
 
-    private void addToData(PGPKeyRing keyring) {
-        String userId = PgpKeyHelper.getMainUserId(keyring.getPublicKey());
+    /**
+     * Appends batch to the entries delivered so far on the main thread and delivers them, unless
+     * the load has been canceled in the meantime. The complete result is delivered after these by
+     * AsyncTaskLoader.
+     * 
+     * @param batch
+     *            entries parsed since the last delivery
+     * @param token
+     */
+    private void deliverPartialResult(final List<ImportKeysListEntry> batch, final Object token) {
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (mLoadToken != token || !isStarted()) {
+                    return;
+                }
+                if (mDeliveredToken != token) {
+                    mDelivered = new ArrayList<ImportKeysListEntry>();
+                    mDeliveredToken = token;
+                }
+                mDelivered.addAll(batch);
+                // a new object, LoaderManager ignores a result delivered twice
+                deliverResult(new Prefix(mDelivered, mDelivered.size()));
+            }
+        });
+    }
+
+    /**
+     * Read-only view of the first entries of an append-only list
+     */
+    private static class Prefix extends AbstractList<ImportKeysListEntry> {
+        private final ArrayList<ImportKeysListEntry> mEntries;
+        private final int mSize;
 
-        if (keyring instanceof PGPSecretKeyRing) {
-            userId = mContext.getString(R.string.secretKeyring) + " " + userId;
+        public Prefix(ArrayList<ImportKeysListEntry> entries, int size) {
+            mEntries = entries;
+            mSize = size;
         }
 
-        String fingerprint = PgpKeyHelper.convertFingerprintToHex(keyring.getPublicKey()
-                .getFingerprint());
+        @Override
+        public ImportKeysListEntry get(int location) {
+            if (location >= mSize) {
+                throw new IndexOutOfBoundsException("Index " + location + ", size " + mSize);
+            }
+            return mEntries.get(location);
+        }
 
-        Map<String, String> attrs = new HashMap<String, String>();
-        attrs.put(MAP_ATTR_USER_ID, userId);
-        attrs.put(MAP_ATTR_FINGERPINT, mContext.getString(R.string.fingerprint) + "\n"
-                + fingerprint);
-        data.add(attrs);
+        @Override
+        public int size() {
+            return mSize;
+        }
     }
 
 }
@@ -16,10 +16,12 @@
 
 package org.sufficientlysecure.keychain.ui.widget;
 
+import org.spongycastle.bcpg.S2K;
 import org.spongycastle.openpgp.PGPPublicKey;
 import org.spongycastle.openpgp.PGPSecretKey;
 import org.sufficientlysecure.keychain.Id;
 import org.sufficientlysecure.keychain.pgp.PgpKeyHelper;
+import org.sufficientlysecure.keychain.pgp.PgpS2kCalibration;
 import org.sufficientlysecure.keychain.util.Choice;
 import org.sufficientlysecure.keychain.R;
 
@@ -40,6 +42,7 @@ import android.widget.Spinner;
 import android.widget.TextView;
 
 import java.text.DateFormat;
+import java.text.NumberFormat;
 import java.util.Calendar;
 import java.util.Date;
 import java.util.GregorianCalendar;
@@ -56,6 +59,7 @@ public class KeyEditor extends LinearLayout implements Editor, OnClickListener {
     TextView mKeyId;
     Spinner mUsage;
     TextView mCreationDate;
+    TextView mProtection;
     Button mExpiryDateButton;
     GregorianCalendar mExpiryDate;
 
@@ -87,6 +91,7 @@ public class KeyEditor extends LinearLayout implements Editor, OnClickListener {
         mAlgorithm = (TextView) findViewById(R.id.algorithm);
         mKeyId = (TextView) findViewById(R.id.keyId);
         mCreationDate = (TextView) findViewById(R.id.creation);
+        mProtection = (TextView) findViewById(R.id.protection);
         mExpiryDateButton = (Button) findViewById(R.id.expiry);
         mUsage = (Spinner) findViewById(R.id.usage);
         Choice choices[] = {
@@ -205,6 +210,7 @@ public class KeyEditor extends LinearLayout implements Editor, OnClickListener {
         GregorianCalendar cal = new GregorianCalendar();
         cal.setTime(PgpKeyHelper.getCreationDate(key));
         mCreationDate.setText(DateFormat.getDateInstance().format(cal.getTime()));
+        mProtection.setText(getProtectionInfo(key));
         cal = new GregorianCalendar();
         Date date = PgpKeyHelper.getExpiryDate(key);
         if (date == null) {
@@ -216,6 +222,21 @@ public class KeyEditor extends LinearLayout implements Editor, OnClickListener {
 
     }
 
+    private String getProtectionInfo(PGPSecretKey key) {
+        S2K s2k = PgpS2kCalibration.getS2k(key);
+        if (s2k == null) {
+            return getContext().getString(R.string.none);
+        }
+        // a simple S2K hashes the passphrase only once
+        long count = (s2k.getType() == S2K.SALTED_AND_ITERATED) ? s2k.getIterationCount() : 0;
+        String countStr = NumberFormat.getIntegerInstance().format(count);
+        long millis = PgpS2kCalibration.estimateMillis(getContext(), count);
+        if (millis < 0) {
+            return getContext().getString(R.string.s2kProtection, countStr);
+        }
+        return getContext().getString(R.string.s2kProtectionEstimate, countStr, millis);
+    }
+
     public PGPSecretKey getValue() {
         return mKey;
     }
@@ -20,6 +20,7 @@ import org.sufficientlysecure.keychain.Constants;
 import org.sufficientlysecure.keychain.Id;
 import org.sufficientlysecure.keychain.helper.OtherHelper;
 import org.sufficientlysecure.keychain.pgp.PgpKeyHelper;
+import org.sufficientlysecure.keychain.provider.KeychainContract.KeyRings;
 import org.sufficientlysecure.keychain.provider.KeychainContract.Keys;
 import org.sufficientlysecure.keychain.provider.KeychainContract.UserIds;
 import org.sufficientlysecure.keychain.util.Log;
@@ -28,9 +29,11 @@ import org.sufficientlysecure.keychain.R;
 import android.content.Context;
 import android.database.Cursor;
 import android.database.DatabaseUtils;
+import android.database.MatrixCursor;
 import android.database.MergeCursor;
 import android.net.Uri;
 import android.provider.BaseColumns;
+import android.support.v4.util.LruCache;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
@@ -47,7 +50,47 @@ public class KeyListAdapter extends CursorTreeAdapter {
 
     private static final int CHILD_KEY = 0;
     private static final int CHILD_USER_ID = 1;
-    private static final int CHILD_FINGERPRINT = 2;
+
+    private static final String[] FINGERPRINT_PROJECTION = new String[] { KeyRings._ID,
+            KeyRings.FINGERPRINT };
+    private static final int INDEX_FINGERPRINT = 1;
+
+    private static final String[] KEY_PROJECTION = new String[] { Keys._ID, Keys.KEY_ID,
+            Keys.IS_MASTER_KEY, Keys.ALGORITHM, Keys.KEY_SIZE, Keys.CAN_CERTIFY, Keys.CAN_SIGN,
+            Keys.CAN_ENCRYPT, };
+    private static final int INDEX_KEY_ID = 1;
+    private static final int INDEX_IS_MASTER_KEY = 2;
+    private static final int INDEX_ALGORITHM = 3;
+    private static final int INDEX_KEY_SIZE = 4;
+    private static final int INDEX_CAN_CERTIFY = 5;
+    private static final int INDEX_CAN_SIGN = 6;
+    private static final int INDEX_CAN_ENCRYPT = 7;
+
+    private static final String[] USER_ID_PROJECTION = new String[] { UserIds._ID,
+            UserIds.USER_ID, UserIds.RANK, };
+    private static final int INDEX_USER_ID = 1;
+
+    private static final int CHILD_CACHE_SIZE = 64;
+
+    /**
+     * Key and user id rows of a key ring, cached so that expanding a key ring again, e.g., after
+     * scrolling or searching, does not query the provider
+     */
+    private static class ChildRows {
+        Object[][] keys;
+        Object[][] userIds;
+    }
+
+    // by key ring digest, which changes with any change of the key ring
+    private final LruCache<String, ChildRows> mChildCache = new LruCache<String, ChildRows>(
+            CHILD_CACHE_SIZE);
+
+    // column indices of the group cursor, looked up once per cursor
+    private Cursor mIndexedGroupCursor;
+    private int mGroupIdIndex;
+    private int mGroupUserIdIndex;
+    private int mGroupFingerprintIndex;
+    private int mGroupDigestIndex;
 
     public KeyListAdapter(Context context, Cursor groupCursor, int keyType) {
         super(groupCursor, context);
@@ -69,7 +112,11 @@ public class KeyListAdapter extends CursorTreeAdapter {
      */
     @Override
     protected void bindGroupView(View view, Context context, Cursor cursor, boolean isExpanded) {
-        int userIdIndex = cursor.getColumnIndex(UserIds.USER_ID);
+        updateGroupColumnIndices(cursor);
+        int userIdIndex = mGroupUserIdIndex;
+
+        // shown disabled until its page has been loaded
+        view.setEnabled(cursor.getLong(mGroupIdIndex) != KeyListLoader.UNLOADED_ROW_ID);
 
         TextView mainUserId = (TextView) view.findViewById(R.id.mainUserId);
         mainUserId.setText(R.string.unknownUserId);
@@ -117,9 +164,12 @@ public class KeyListAdapter extends CursorTreeAdapter {
             keyLayout.setVisibility(View.GONE);
             userIdLayout.setVisibility(View.VISIBLE);
 
-            String fingerprint = PgpKeyHelper.getFingerPrint(context,
-                    cursor.getLong(cursor.getColumnIndex(Keys.KEY_ID)));
-            fingerprint = fingerprint.replace("  ", "\n");
+            String fingerprint = cursor.getString(INDEX_FINGERPRINT);
+            if (fingerprint != null) {
+                fingerprint = PgpKeyHelper.formatFingerprint(fingerprint).replace("  ", "\n");
+            } else {
+                fingerprint = "";
+            }
 
             TextView userId = (TextView) view.findViewById(R.id.userId);
             if (userId == null) {
@@ -132,11 +182,9 @@ public class KeyListAdapter extends CursorTreeAdapter {
                 keyLayout.setVisibility(View.VISIBLE);
                 userIdLayout.setVisibility(View.GONE);
 
-                String keyIdStr = PgpKeyHelper.getSmallFingerPrint(cursor.getLong(cursor
-                        .getColumnIndex(Keys.KEY_ID)));
+                String keyIdStr = PgpKeyHelper.getSmallFingerPrint(cursor.getLong(INDEX_KEY_ID));
                 String algorithmStr = PgpKeyHelper.getAlgorithmInfo(
-                        cursor.getInt(cursor.getColumnIndex(Keys.ALGORITHM)),
-                        cursor.getInt(cursor.getColumnIndex(Keys.KEY_SIZE)));
+                        cursor.getInt(INDEX_ALGORITHM), cursor.getInt(INDEX_KEY_SIZE));
 
                 TextView keyId = (TextView) view.findViewById(R.id.keyId);
                 keyId.setText(keyIdStr);
@@ -145,28 +193,28 @@ public class KeyListAdapter extends CursorTreeAdapter {
                 keyDetails.setText("(" + algorithmStr + ")");
 
                 ImageView masterKeyIcon = (ImageView) view.findViewById(R.id.ic_masterKey);
-                if (cursor.getInt(cursor.getColumnIndex(Keys.IS_MASTER_KEY)) != 1) {
+                if (cursor.getInt(INDEX_IS_MASTER_KEY) != 1) {
                     masterKeyIcon.setVisibility(View.INVISIBLE);
                 } else {
                     masterKeyIcon.setVisibility(View.VISIBLE);
                 }
 
                 ImageView certifyIcon = (ImageView) view.findViewById(R.id.ic_certifyKey);
-                if (cursor.getInt(cursor.getColumnIndex(Keys.CAN_CERTIFY)) != 1) {
+                if (cursor.getInt(INDEX_CAN_CERTIFY) != 1) {
                     certifyIcon.setVisibility(View.GONE);
                 } else {
                     certifyIcon.setVisibility(View.VISIBLE);
                 }
 
                 ImageView encryptIcon = (ImageView) view.findViewById(R.id.ic_encryptKey);
-                if (cursor.getInt(cursor.getColumnIndex(Keys.CAN_ENCRYPT)) != 1) {
+                if (cursor.getInt(INDEX_CAN_ENCRYPT) != 1) {
                     encryptIcon.setVisibility(View.GONE);
                 } else {
                     encryptIcon.setVisibility(View.VISIBLE);
                 }
 
                 ImageView signIcon = (ImageView) view.findViewById(R.id.ic_signKey);
-                if (cursor.getInt(cursor.getColumnIndex(Keys.CAN_SIGN)) != 1) {
+                if (cursor.getInt(INDEX_CAN_SIGN) != 1) {
                         signIcon.setVisibility(View.GONE);
                 } else {
                     signIcon.setVisibility(View.VISIBLE);
@@ -175,7 +223,7 @@ public class KeyListAdapter extends CursorTreeAdapter {
                 keyLayout.setVisibility(View.GONE);
                 userIdLayout.setVisibility(View.VISIBLE);
 
-                String userIdStr = cursor.getString(cursor.getColumnIndex(UserIds.USER_ID));
+                String userIdStr = cursor.getString(INDEX_USER_ID);
 
                 TextView userId = (TextView) view.findViewById(R.id.userId);
                 userId.setText(userIdStr);
@@ -184,24 +232,115 @@ public class KeyListAdapter extends CursorTreeAdapter {
     }
 
     /**
-     * Given the group cursor, we start cursors for a fingerprint, keys, and userIds, which are
-     * merged together and build the child cursor
+     * Given the group cursor, we start cursors for keys and userIds, which are merged together with
+     * the fingerprint from the group cursor and build the child cursor. Keys and userIds are read
+     * from the child cache if the key ring did not change since it was expanded last.
      */
     @Override
     protected Cursor getChildrenCursor(Cursor groupCursor) {
-        final long keyRingRowId = groupCursor.getLong(groupCursor.getColumnIndex(BaseColumns._ID));
+        updateGroupColumnIndices(groupCursor);
+        final long keyRingRowId = groupCursor.getLong(mGroupIdIndex);
+        if (keyRingRowId == KeyListLoader.UNLOADED_ROW_ID) {
+            return null;
+        }
 
-        Cursor fingerprintCursor = getChildCursor(keyRingRowId, CHILD_FINGERPRINT);
-        Cursor keyCursor = getChildCursor(keyRingRowId, CHILD_KEY);
-        Cursor userIdCursor = getChildCursor(keyRingRowId, CHILD_USER_ID);
+        // fingerprint is precomputed in the keyring row, no need to query or parse keys
+        MatrixCursor fingerprintCursor = new MatrixCursor(FINGERPRINT_PROJECTION, 1);
+        fingerprintCursor.addRow(new Object[] { keyRingRowId,
+                groupCursor.getString(mGroupFingerprintIndex) });
+
+        String digest = (mGroupDigestIndex == -1) ? null : groupCursor.getString(mGroupDigestIndex);
+        ChildRows rows = (digest == null) ? null : mChildCache.get(digest);
+        if (rows == null) {
+            rows = new ChildRows();
+            rows.keys = readKeyRows(getChildCursor(keyRingRowId, CHILD_KEY));
+            rows.userIds = readUserIdRows(getChildCursor(keyRingRowId, CHILD_USER_ID));
+            if (digest != null) {
+                mChildCache.put(digest, rows);
+            }
+        }
+
+        MatrixCursor keyCursor = new MatrixCursor(KEY_PROJECTION, rows.keys.length);
+        for (Object[] row : rows.keys) {
+            keyCursor.addRow(row);
+        }
+        MatrixCursor userIdCursor = new MatrixCursor(USER_ID_PROJECTION, rows.userIds.length);
+        for (Object[] row : rows.userIds) {
+            userIdCursor.addRow(row);
+        }
 
         MergeCursor mergeCursor = new MergeCursor(new Cursor[] { fingerprintCursor, keyCursor,
                 userIdCursor });
-        Log.d(Constants.TAG, "mergeCursor:" + DatabaseUtils.dumpCursorToString(mergeCursor));
+        if (Constants.DEBUG) {
+            Log.d(Constants.TAG, "mergeCursor:" + DatabaseUtils.dumpCursorToString(mergeCursor));
+        }
 
         return mergeCursor;
     }
 
+    /**
+     * Reads all rows of a cursor with KEY_PROJECTION and closes it
+     * 
+     * @param cursor
+     * @return
+     */
+    private static Object[][] readKeyRows(Cursor cursor) {
+        if (cursor == null) {
+            return new Object[0][];
+        }
+        try {
+            Object[][] rows = new Object[cursor.getCount()][];
+            for (int i = 0; cursor.moveToNext(); ++i) {
+                Object[] row = new Object[KEY_PROJECTION.length];
+                // all key columns are integers
+                for (int column = 0; column < row.length; ++column) {
+                    row[column] = cursor.getLong(column);
+                }
+                rows[i] = row;
+            }
+            return rows;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Reads all rows of a cursor with USER_ID_PROJECTION and closes it
+     * 
+     * @param cursor
+     * @return
+     */
+    private static Object[][] readUserIdRows(Cursor cursor) {
+        if (cursor == null) {
+            return new Object[0][];
+        }
+        try {
+            Object[][] rows = new Object[cursor.getCount()][];
+            for (int i = 0; cursor.moveToNext(); ++i) {
+                rows[i] = new Object[] { cursor.getLong(0), cursor.getString(INDEX_USER_ID),
+                        cursor.getLong(2) };
+            }
+            return rows;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Looks up column indices of the group cursor if it is not the one used before
+     * 
+     * @param groupCursor
+     */
+    private void updateGroupColumnIndices(Cursor groupCursor) {
+        if (groupCursor != mIndexedGroupCursor) {
+            mIndexedGroupCursor = groupCursor;
+            mGroupIdIndex = groupCursor.getColumnIndex(BaseColumns._ID);
+            mGroupUserIdIndex = groupCursor.getColumnIndex(KeyRings.MAIN_USER_ID);
+            mGroupFingerprintIndex = groupCursor.getColumnIndex(KeyRings.FINGERPRINT);
+            mGroupDigestIndex = groupCursor.getColumnIndex(KeyRings.KEY_RING_DIGEST);
+        }
+    }
+
     /**
      * This builds a cursor for a specific type of children
      * 
@@ -217,24 +356,8 @@ public class KeyListAdapter extends CursorTreeAdapter {
         String selection = null;
 
         switch (type) {
-        case CHILD_FINGERPRINT:
-            projection = new String[] { Keys._ID, Keys.KEY_ID, Keys.IS_MASTER_KEY, Keys.ALGORITHM,
-                    Keys.KEY_SIZE, Keys.CAN_CERTIFY, Keys.CAN_SIGN, Keys.CAN_ENCRYPT, };
-            sortOrder = Keys.RANK + " ASC";
-
-            // use only master key for fingerprint
-            selection = Keys.IS_MASTER_KEY + " = 1 ";
-
-            if (mKeyType == Id.type.public_key) {
-                uri = Keys.buildPublicKeysUri(String.valueOf(keyRingRowId));
-            } else {
-                uri = Keys.buildSecretKeysUri(String.valueOf(keyRingRowId));
-            }
-            break;
-
         case CHILD_KEY:
-            projection = new String[] { Keys._ID, Keys.KEY_ID, Keys.IS_MASTER_KEY, Keys.ALGORITHM,
-                    Keys.KEY_SIZE, Keys.CAN_CERTIFY, Keys.CAN_SIGN, Keys.CAN_ENCRYPT, };
+            projection = KEY_PROJECTION;
             sortOrder = Keys.RANK + " ASC";
 
             if (mKeyType == Id.type.public_key) {
@@ -246,7 +369,7 @@ public class KeyListAdapter extends CursorTreeAdapter {
             break;
 
         case CHILD_USER_ID:
-            projection = new String[] { UserIds._ID, UserIds.USER_ID, UserIds.RANK, };
+            projection = USER_ID_PROJECTION;
             sortOrder = UserIds.RANK + " ASC";
 
             // not the main user id
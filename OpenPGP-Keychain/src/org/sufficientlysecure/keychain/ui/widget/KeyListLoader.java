@@ -0,0 +1,486 @@
+/*
+ * Copyright (C) 2013 Dominik Schürmann <dominik@dominikschuermann.de>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.ui.widget;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import org.sufficientlysecure.keychain.provider.KeychainContract;
+import org.sufficientlysecure.keychain.provider.KeychainContract.KeyRings;
+import org.sufficientlysecure.keychain.provider.KeychainDatabase.Tables;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.database.AbstractCursor;
+import android.database.Cursor;
+import android.database.DataSetObservable;
+import android.database.DataSetObserver;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+import android.provider.BaseColumns;
+import android.support.v4.content.CursorLoader;
+
+/**
+ * Loads key rings sorted by main user id, optionally filtered by a prefix of the main user id.
+ *
+ * Instead of one cursor over all key rings, the loader only counts the matching key rings and
+ * returns a PagedCursor, which queries PAGE_SIZE rows at a time in the background while the list
+ * is scrolled. Both the count and the pages are served by the index on type and main user id,
+ * thus neither the initial load nor a search has to sort or copy the whole keyring.
+ */
+public class KeyListLoader extends CursorLoader {
+    /**
+     * _id of the rows of a page that has not been loaded yet, these rows cannot be used until the
+     * page arrives
+     */
+    public static final long UNLOADED_ROW_ID = -1;
+
+    private static final int PAGE_SIZE = 100;
+    private static final int MAX_CACHED_PAGES = 8;
+    // rows before the end of a page at which the following page is queried
+    private static final int PREFETCH_DISTANCE = PAGE_SIZE / 4;
+
+    private static final String SORT_ORDER = KeyRings.MAIN_USER_ID_SORT_ORDER + ", "
+            + Tables.KEY_RINGS + "." + BaseColumns._ID + " ASC";
+
+    private static final String PREFIX_SELECTION = KeyRings.MAIN_USER_ID
+            + " COLLATE NOCASE >= ? AND " + KeyRings.MAIN_USER_ID + " COLLATE NOCASE < ?";
+    // prefix without upper bound, it consists of the last code point only
+    private static final String PREFIX_START_SELECTION = KeyRings.MAIN_USER_ID
+            + " COLLATE NOCASE >= ?";
+
+    // rows following (main user id, row id) in SORT_ORDER
+    private static final String AFTER_ROW_SELECTION = KeyRings.MAIN_USER_ID
+            + " COLLATE NOCASE >= ? AND NOT (" + KeyRings.MAIN_USER_ID + " COLLATE NOCASE = ? AND "
+            + Tables.KEY_RINGS + "." + BaseColumns._ID + " <= ?)";
+
+    // pages of all cursors are queried one after another, never keeping the process alive
+    private static final Executor sPageExecutor = Executors
+            .newSingleThreadExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "KeyListLoader");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+
+    private final ForceLoadContentObserver mObserver = new ForceLoadContentObserver();
+
+    /**
+     * @param context
+     * @param uri
+     *            key ring uri, e.g., KeyRings.buildPublicKeyRingsUri()
+     * @param projection
+     *            has to contain KeyRings._ID and KeyRings.MAIN_USER_ID
+     * @param searchPrefix
+     *            only key rings with a main user id starting with this prefix (ignoring case) are
+     *            loaded, null to load all
+     */
+    public KeyListLoader(Context context, Uri uri, String[] projection, String searchPrefix) {
+        super(context, uri, projection, null, null, SORT_ORDER);
+
+        if (searchPrefix != null && searchPrefix.length() > 0) {
+            // NOCASE compares ASCII letters as lower case, so the upper bound has to be lower case
+            String prefix = toAsciiLowerCase(searchPrefix);
+            String upperBound = getUpperBound(prefix);
+            if (upperBound != null) {
+                setSelection(PREFIX_SELECTION);
+                setSelectionArgs(new String[] { prefix, upperBound });
+            } else {
+                setSelection(PREFIX_START_SELECTION);
+                setSelectionArgs(new String[] { prefix });
+            }
+        }
+    }
+
+    private static String toAsciiLowerCase(String s) {
+        char[] chars = s.toCharArray();
+        for (int i = 0; i < chars.length; ++i) {
+            if (chars[i] >= 'A' && chars[i] <= 'Z') {
+                chars[i] += 'a' - 'A';
+            }
+        }
+        return new String(chars);
+    }
+
+    /**
+     * SQLite compares text by its UTF-8 bytes, i.e., by code points, also beyond the basic
+     * multilingual plane.
+     *
+     * @param prefix
+     * @return smallest string after all strings starting with prefix, null if there is none
+     */
+    static String getUpperBound(String prefix) {
+        int end = prefix.length();
+        while (end > 0) {
+            int codePoint = prefix.codePointBefore(end);
+            int start = end - Character.charCount(codePoint);
+            if (codePoint < Character.MAX_CODE_POINT) {
+                int next = codePoint + 1;
+                if (next >= Character.MIN_SURROGATE && next <= Character.MAX_SURROGATE) {
+                    next = Character.MAX_SURROGATE + 1;
+                }
+                return prefix.substring(0, start) + new String(Character.toChars(next));
+            }
+            end = start;
+        }
+        return null;
+    }
+
+    @Override
+    public Cursor loadInBackground() {
+        PagedCursor cursor = new PagedCursor(getContext().getContentResolver(), getUri(),
+                getProjection(), getSelection(), getSelectionArgs());
+        // count and first page are queried here, not on the ui thread
+        cursor.loadFirstPage();
+        cursor.registerContentObserver(mObserver);
+
+        return cursor;
+    }
+
+    /**
+     * Rows of a key ring query, with the sort key of its last row
+     */
+    private static class Page {
+        final Cursor cursor;
+        // null if the page is empty or its last row has no main user id
+        final String lastMainUserId;
+        final String lastId;
+
+        Page(Cursor cursor, String lastMainUserId, String lastId) {
+            this.cursor = cursor;
+            this.lastMainUserId = lastMainUserId;
+            this.lastId = lastId;
+        }
+    }
+
+    /**
+     * Read-only cursor over all rows of a key ring query, which are queried page by page.
+     *
+     * Moving the cursor never queries the provider. When it gets within PREFETCH_DISTANCE rows of
+     * the end of a cached page, the neighbouring page is queried on a background thread. Rows of a
+     * page that has not arrived yet, e.g., after fast scrolling, are empty with _id
+     * UNLOADED_ROW_ID, and the registered DataSetObservers are notified on the main thread once
+     * it has been cached.
+     *
+     * A page following a cached page is queried starting after the last row of the cached page,
+     * so scrolling never lets SQLite skip rows. Only pages jumped to are queried with an offset.
+     */
+    private static class PagedCursor extends AbstractCursor {
+        private final ContentResolver mResolver;
+        private final Uri mUri;
+        private final String[] mProjection;
+        private final String mSelection;
+        private final String[] mSelectionArgs;
+
+        private final int mIdIndex;
+        private final int mMainUserIdIndex;
+        private final int mCount;
+
+        private final Handler mHandler = new Handler(Looper.getMainLooper());
+        private final DataSetObservable mPageObservable = new DataSetObservable();
+
+        // least recently used pages are closed, guards all page state below
+        private final LinkedHashMap<Integer, Page> mPages = new LinkedHashMap<Integer, Page>(
+                MAX_CACHED_PAGES, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Integer, Page> eldest) {
+                if (size() > MAX_CACHED_PAGES) {
+                    eldest.getValue().cursor.close();
+                    return true;
+                }
+                return false;
+            }
+        };
+        // pages being queried in the background
+        private final Set<Integer> mQueriedPages = new HashSet<Integer>();
+        // pages of which empty rows have been served
+        private final Set<Integer> mMissingPages = new HashSet<Integer>();
+        private boolean mPagesClosed = false;
+
+        // null if the current row is on a page that has not arrived yet
+        private Cursor mPage;
+
+        public PagedCursor(ContentResolver resolver, Uri uri, String[] projection,
+                String selection, String[] selectionArgs) {
+            mResolver = resolver;
+            mUri = uri;
+            mProjection = projection;
+            mSelection = selection;
+            mSelectionArgs = selectionArgs;
+
+            mIdIndex = Arrays.asList(projection).indexOf(BaseColumns._ID);
+            mMainUserIdIndex = Arrays.asList(projection).indexOf(KeyRings.MAIN_USER_ID);
+            if (mIdIndex == -1 || mMainUserIdIndex == -1) {
+                throw new IllegalArgumentException("Projection has to contain _id and "
+                        + KeyRings.MAIN_USER_ID);
+            }
+
+            mCount = queryCount();
+
+            setNotificationUri(resolver, uri);
+        }
+
+        private int queryCount() {
+            Cursor cursor = mResolver.query(mUri, new String[] { "COUNT(*) AS "
+                    + BaseColumns._COUNT }, mSelection, mSelectionArgs, null);
+            if (cursor == null) {
+                return 0;
+            }
+            try {
+                return cursor.moveToFirst() ? cursor.getInt(0) : 0;
+            } finally {
+                cursor.close();
+            }
+        }
+
+        /**
+         * Queries the first page on the calling thread and moves to its first row, the loader's
+         * background thread instead of the ui thread
+         */
+        public void loadFirstPage() {
+            if (mCount == 0) {
+                return;
+            }
+            Page page = queryPage(0, null);
+            if (page != null) {
+                synchronized (mPages) {
+                    mPages.put(0, page);
+                }
+            }
+            moveToFirst();
+        }
+
+        /**
+         * Queries a page on the background thread, unless it is cached, being queried or out of
+         * range. Has to be called holding the lock on mPages.
+         *
+         * @param page
+         */
+        private void prefetch(final int page) {
+            if (mPagesClosed || page < 0 || page * PAGE_SIZE >= mCount
+                    || mPages.containsKey(page) || mQueriedPages.contains(page)) {
+                return;
+            }
+            mQueriedPages.add(page);
+            final Page previous = mPages.get(page - 1);
+            sPageExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    onPageQueried(page, queryPage(page, previous));
+                }
+            });
+        }
+
+        /**
+         * @param page
+         * @param previous
+         *            cached page before page, null if not cached
+         * @return page with its rows already read into the cursor window, null if the query failed
+         */
+        private Page queryPage(int page, Page previous) {
+            String selection = mSelection;
+            String[] selectionArgs = mSelectionArgs;
+            String limit;
+
+            if (previous != null && previous.lastMainUserId != null) {
+                String mainUserId = previous.lastMainUserId;
+
+                selection = (selection == null) ? AFTER_ROW_SELECTION : "(" + selection
+                        + ") AND " + AFTER_ROW_SELECTION;
+                selectionArgs = concat(selectionArgs, new String[] { mainUserId, mainUserId,
+                        previous.lastId });
+                limit = Integer.toString(PAGE_SIZE);
+            } else {
+                limit = (page * PAGE_SIZE) + "," + PAGE_SIZE;
+            }
+
+            Uri uri = mUri.buildUpon().appendQueryParameter(KeychainContract.PARAM_LIMIT, limit)
+                    .build();
+            Cursor cursor = mResolver.query(uri, mProjection, selection, selectionArgs,
+                    SORT_ORDER);
+            if (cursor == null) {
+                return null;
+            }
+
+            // moving to the last row also fills the window on this thread
+            if (cursor.moveToLast() && !cursor.isNull(mMainUserIdIndex)) {
+                return new Page(cursor, cursor.getString(mMainUserIdIndex),
+                        cursor.getString(mIdIndex));
+            }
+            return new Page(cursor, null, null);
+        }
+
+        private void onPageQueried(int page, Page result) {
+            boolean missing;
+            synchronized (mPages) {
+                mQueriedPages.remove(page);
+                missing = mMissingPages.remove(page);
+                if (result == null) {
+                    return;
+                }
+                if (mPagesClosed) {
+                    result.cursor.close();
+                    return;
+                }
+                mPages.put(page, result);
+            }
+
+            if (missing) {
+                mHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (!isClosed()) {
+                            mPageObservable.notifyChanged();
+                        }
+                    }
+                });
+            }
+        }
+
+        private static String[] concat(String[] first, String[] second) {
+            if (first == null) {
+                return second;
+            }
+            String[] result = new String[first.length + second.length];
+            System.arraycopy(first, 0, result, 0, first.length);
+            System.arraycopy(second, 0, result, first.length, second.length);
+            return result;
+        }
+
+        @Override
+        public boolean onMove(int oldPosition, int newPosition) {
+            int page = newPosition / PAGE_SIZE;
+            int row = newPosition % PAGE_SIZE;
+            synchronized (mPages) {
+                Page current = mPages.get(page);
+                if (current == null) {
+                    prefetch(page);
+                    mMissingPages.add(page);
+                    mPage = null;
+                    return true;
+                }
+                if (row >= PAGE_SIZE - PREFETCH_DISTANCE) {
+                    prefetch(page + 1);
+                } else if (row < PREFETCH_DISTANCE) {
+                    prefetch(page - 1);
+                }
+                mPage = current.cursor;
+            }
+            return mPage.moveToPosition(row);
+        }
+
+        @Override
+        public void registerDataSetObserver(DataSetObserver observer) {
+            super.registerDataSetObserver(observer);
+            mPageObservable.registerObserver(observer);
+        }
+
+        @Override
+        public void unregisterDataSetObserver(DataSetObserver observer) {
+            super.unregisterDataSetObserver(observer);
+            mPageObservable.unregisterObserver(observer);
+        }
+
+        @Override
+        public int getCount() {
+            return mCount;
+        }
+
+        @Override
+        public String[] getColumnNames() {
+            return mProjection;
+        }
+
+        @Override
+        public String getString(int column) {
+            if (mPage == null) {
+                return (column == mIdIndex) ? Long.toString(UNLOADED_ROW_ID) : null;
+            }
+            return mPage.getString(column);
+        }
+
+        @Override
+        public short getShort(int column) {
+            if (mPage == null) {
+                return (column == mIdIndex) ? (short) UNLOADED_ROW_ID : 0;
+            }
+            return mPage.getShort(column);
+        }
+
+        @Override
+        public int getInt(int column) {
+            if (mPage == null) {
+                return (column == mIdIndex) ? (int) UNLOADED_ROW_ID : 0;
+            }
+            return mPage.getInt(column);
+        }
+
+        @Override
+        public long getLong(int column) {
+            if (mPage == null) {
+                return (column == mIdIndex) ? UNLOADED_ROW_ID : 0;
+            }
+            return mPage.getLong(column);
+        }
+
+        @Override
+        public float getFloat(int column) {
+            return (mPage != null) ? mPage.getFloat(column) : 0;
+        }
+
+        @Override
+        public double getDouble(int column) {
+            return (mPage != null) ? mPage.getDouble(column) : 0;
+        }
+
+        @Override
+        public byte[] getBlob(int column) {
+            return (mPage != null) ? mPage.getBlob(column) : null;
+        }
+
+        @Override
+        public boolean isNull(int column) {
+            return (mPage != null) ? mPage.isNull(column) : column != mIdIndex;
+        }
+
+        @Override
+        public void close() {
+            super.close();
+            synchronized (mPages) {
+                mPagesClosed = true;
+                for (Page page : mPages.values()) {
+                    page.cursor.close();
+                }
+                mPages.clear();
+                mMissingPages.clear();
+            }
+            mPage = null;
+        }
+    }
+}
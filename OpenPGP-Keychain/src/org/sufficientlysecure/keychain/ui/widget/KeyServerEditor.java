@@ -16,6 +16,7 @@
 
 package org.sufficientlysecure.keychain.ui.widget;
 
+import org.sufficientlysecure.keychain.util.KeyServerPool;
 import org.sufficientlysecure.keychain.R;
 
 import android.content.Context;
@@ -32,6 +33,7 @@ public class KeyServerEditor extends LinearLayout implements Editor, OnClickList
 
     ImageButton mDeleteButton;
     TextView mServer;
+    TextView mStats;
 
     public KeyServerEditor(Context context) {
         super(context);
@@ -47,6 +49,7 @@ public class KeyServerEditor extends LinearLayout implements Editor, OnClickList
         setAlwaysDrawnWithCacheEnabled(true);
 
         mServer = (TextView) findViewById(R.id.server);
+        mStats = (TextView) findViewById(R.id.stats);
 
         mDeleteButton = (ImageButton) findViewById(R.id.delete);
         mDeleteButton.setOnClickListener(this);
@@ -58,6 +61,22 @@ public class KeyServerEditor extends LinearLayout implements Editor, OnClickList
         mServer.setText(value);
     }
 
+    /**
+     * Shows the average latency and error rate of the server
+     * 
+     * @param stats
+     *            null to hide
+     */
+    public void setStats(KeyServerPool.ServerStats stats) {
+        if (stats == null || stats.getSamples() == 0) {
+            mStats.setVisibility(View.GONE);
+            return;
+        }
+        mStats.setText(getContext().getString(R.string.keyServerStats, stats.getLatency(),
+                Math.round(stats.getErrorRate() * 100)));
+        mStats.setVisibility(View.VISIBLE);
+    }
+
     public String getValue() {
         return mServer.getText().toString().trim();
     }
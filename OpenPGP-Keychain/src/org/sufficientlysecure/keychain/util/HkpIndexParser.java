@@ -0,0 +1,204 @@
+/*
+ * Copyright (C) 2013 Dominik Schürmann <dominik@dominikschuermann.de>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.util;
+
+import java.io.ByteArrayOutputStream;
+import java.io.UnsupportedEncodingException;
+import java.util.Date;
+
+import org.spongycastle.openpgp.PGPPublicKey;
+import org.sufficientlysecure.keychain.pgp.PgpKeyHelper;
+import org.sufficientlysecure.keychain.util.KeyServer.KeyInfo;
+import org.sufficientlysecure.keychain.util.KeyServer.KeyInfoListener;
+
+/**
+ * Parses the machine readable index of an HKP keyserver (op=index&options=mr) line by line. A
+ * key is passed to the listener as soon as its last user id has been read, so the response is
+ * never held in memory as a whole.
+ *
+ * Format, see draft-shaw-openpgp-hkp-00, section 5.2:
+ *
+ * <pre>
+ * info:VERSION:COUNT
+ * pub:KEY_ID:ALGORITHM:KEY_LENGTH:CREATED:EXPIRES:FLAGS
+ * uid:ESCAPED_USER_ID:CREATED:EXPIRES:FLAGS
+ * </pre>
+ */
+public class HkpIndexParser {
+    private static final String INFO = "info:";
+    private static final String PUB = "pub:";
+    private static final String UID = "uid:";
+
+    // same text as in the html index
+    private static final String REVOKED = "*** KEY REVOKED ***";
+
+    private final KeyInfoListener mListener;
+    private KeyInfo mCurrent;
+
+    public HkpIndexParser(KeyInfoListener listener) {
+        mListener = listener;
+    }
+
+    /**
+     * @param line
+     *            first non-empty line of an index response
+     * @return true if the response is in the machine readable format, false if it is html
+     */
+    public static boolean isMachineReadable(String line) {
+        return line.startsWith(INFO) || line.startsWith(PUB);
+    }
+
+    /**
+     * Parses one line of the response, lines of unknown type or format are skipped
+     *
+     * @param line
+     */
+    public void parseLine(String line) {
+        if (line.startsWith(PUB)) {
+            finish();
+            mCurrent = parsePub(line);
+        } else if (line.startsWith(UID) && mCurrent != null) {
+            String userId = parseUid(line);
+            if (userId != null) {
+                mCurrent.userIds.add(userId);
+            }
+        }
+    }
+
+    /**
+     * Passes the last key to the listener, has to be called at the end of the response
+     */
+    public void finish() {
+        if (mCurrent != null) {
+            mListener.onKeyInfo(mCurrent);
+            mCurrent = null;
+        }
+    }
+
+    private static KeyInfo parsePub(String line) {
+        String fields[] = line.split(":", -1);
+        if (fields.length < 2 || fields[1].length() < 8) {
+            return null;
+        }
+
+        KeyInfo info = new KeyInfo();
+        try {
+            // the key id may also be given as 8 digit short id or as fingerprint
+            String keyId = fields[1];
+            if (keyId.length() > 16) {
+                keyId = keyId.substring(keyId.length() - 16);
+            }
+            info.keyId = (keyId.length() > 8) ? PgpKeyHelper.keyFromHex(keyId) : Long.parseLong(
+                    keyId, 16);
+            info.fingerPrint = PgpKeyHelper.getSmallFingerPrint(info.keyId);
+
+            if (fields.length > 2 && fields[2].length() > 0) {
+                info.algorithm = getAlgorithmLetter(Integer.parseInt(fields[2]));
+            }
+            if (fields.length > 3 && fields[3].length() > 0) {
+                info.size = Integer.parseInt(fields[3]);
+            }
+            if (fields.length > 4 && fields[4].length() > 0) {
+                info.date = new Date(Long.parseLong(fields[4]) * 1000);
+            }
+        } catch (NumberFormatException e) {
+            return null;
+        }
+        if (fields.length > 6 && fields[6].indexOf('r') != -1) {
+            info.revoked = REVOKED;
+        }
+
+        return info;
+    }
+
+    private static String parseUid(String line) {
+        int end = line.indexOf(':', UID.length());
+        if (end == -1) {
+            end = line.length();
+        }
+        return unescape(line.substring(UID.length(), end));
+    }
+
+    /**
+     * Decodes the %XX escapes of a user id, which encode UTF-8. Unlike URLDecoder, a '+' is kept.
+     *
+     * @param escaped
+     * @return
+     */
+    static String unescape(String escaped) {
+        if (escaped.indexOf('%') == -1) {
+            return escaped;
+        }
+
+        StringBuilder result = new StringBuilder(escaped.length());
+        // consecutive escapes form one UTF-8 sequence
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        int length = escaped.length();
+        for (int i = 0; i < length; ++i) {
+            char c = escaped.charAt(i);
+            int high = (c == '%' && i + 2 < length) ? Character.digit(escaped.charAt(i + 1), 16)
+                    : -1;
+            int low = (high != -1) ? Character.digit(escaped.charAt(i + 2), 16) : -1;
+            if (low != -1) {
+                bytes.write(high << 4 | low);
+                i += 2;
+            } else {
+                appendUtf8(result, bytes);
+                result.append(c);
+            }
+        }
+        appendUtf8(result, bytes);
+
+        return result.toString();
+    }
+
+    private static void appendUtf8(StringBuilder result, ByteArrayOutputStream bytes) {
+        if (bytes.size() > 0) {
+            try {
+                result.append(bytes.toString("UTF-8"));
+            } catch (UnsupportedEncodingException e) {
+                // every platform supports UTF-8
+            }
+            bytes.reset();
+        }
+    }
+
+    /**
+     * @param algorithm
+     *            OpenPGP public key algorithm number
+     * @return letter used for the algorithm in the html index, e.g., "R" in "2048R/9F5C9090"
+     */
+    private static String getAlgorithmLetter(int algorithm) {
+        switch (algorithm) {
+        case PGPPublicKey.RSA_ENCRYPT:
+        case PGPPublicKey.RSA_GENERAL:
+        case PGPPublicKey.RSA_SIGN:
+            return "R";
+
+        case PGPPublicKey.DSA:
+            return "D";
+
+        case PGPPublicKey.ELGAMAL_ENCRYPT:
+        case PGPPublicKey.ELGAMAL_GENERAL:
+            return "g";
+
+        default:
+            return Integer.toString(algorithm);
+        }
+    }
+}
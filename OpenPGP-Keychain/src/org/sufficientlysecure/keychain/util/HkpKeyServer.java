@@ -16,33 +16,63 @@
 
 package org.sufficientlysecure.keychain.util;
 
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InputStreamReader;
 import java.io.UnsupportedEncodingException;
-import java.net.HttpURLConnection;
+import java.net.Inet6Address;
 import java.net.InetAddress;
-import java.net.MalformedURLException;
-import java.net.URL;
 import java.net.URLEncoder;
 import java.net.UnknownHostException;
 import java.util.ArrayList;
 import java.util.GregorianCalendar;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
+import java.util.zip.GZIPInputStream;
 
+import org.apache.http.Header;
+import org.apache.http.HeaderElement;
 import org.apache.http.HttpEntity;
 import org.apache.http.HttpResponse;
 import org.apache.http.HttpStatus;
+import org.apache.http.HttpVersion;
 import org.apache.http.NameValuePair;
+import org.apache.http.NoHttpResponseException;
 import org.apache.http.client.HttpClient;
+import org.apache.http.client.HttpRequestRetryHandler;
 import org.apache.http.client.entity.UrlEncodedFormEntity;
 import org.apache.http.client.methods.HttpGet;
 import org.apache.http.client.methods.HttpPost;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.conn.ClientConnectionManager;
+import org.apache.http.conn.params.ConnManagerParams;
+import org.apache.http.conn.params.ConnPerRouteBean;
+import org.apache.http.conn.scheme.PlainSocketFactory;
+import org.apache.http.conn.scheme.Scheme;
+import org.apache.http.conn.scheme.SchemeRegistry;
 import org.apache.http.impl.client.DefaultHttpClient;
+import org.apache.http.impl.conn.tsccm.ThreadSafeClientConnManager;
 import org.apache.http.message.BasicNameValuePair;
+import org.apache.http.params.BasicHttpParams;
+import org.apache.http.params.HttpConnectionParams;
+import org.apache.http.params.HttpParams;
+import org.apache.http.params.HttpProtocolParams;
+import org.apache.http.protocol.HttpContext;
 import org.apache.http.util.EntityUtils;
+import org.sufficientlysecure.keychain.Constants;
 import org.sufficientlysecure.keychain.pgp.PgpHelper;
 import org.sufficientlysecure.keychain.pgp.PgpKeyHelper;
 
@@ -69,9 +99,62 @@ public class HkpKeyServer extends KeyServer {
         }
     }
 
+    // delay before the next address of a host is queried concurrently to the running attempts
+    private static final long CONNECTION_STAGGER_MILLIS = 250;
+    private static final int CONNECT_TIMEOUT_MILLIS = 5000;
+    private static final int READ_TIMEOUT_MILLIS = 25000;
+
+    // connections kept alive in the shared client, keyservers are queried one key at a time, but
+    // several addresses of a host are raced and several keyservers may be hedged
+    private static final int MAX_CONNECTIONS = 16;
+    private static final int MAX_CONNECTIONS_PER_ROUTE = 4;
+    private static final long IDLE_CONNECTION_TIMEOUT_MILLIS = 60 * 1000;
+
+    // addresses that failed are tried last for this long
+    private static final long FAILED_ADDRESS_BACKOFF_MILLIS = 10 * 60 * 1000;
+
+    private static final ExecutorService sQueryExecutor = Executors.newCachedThreadPool();
+
+    // time until which an address is known to be unreachable, shared by all queries
+    private static final ConcurrentHashMap<InetAddress, Long> sFailedAddresses =
+            new ConcurrentHashMap<InetAddress, Long>();
+
+    // address of each host that answered last, queried first next time
+    private static final ConcurrentHashMap<String, InetAddress> sPreferredAddresses =
+            new ConcurrentHashMap<String, InetAddress>();
+
+    /**
+     * Reads the body of a successful response
+     */
+    private interface ResponseReader<T> {
+        public T read(InputStream in, String charset) throws IOException;
+    }
+
+    private static final ResponseReader<String> READ_ALL = new ResponseReader<String>() {
+        @Override
+        public String read(InputStream in, String charset) throws IOException {
+            return readAll(in, charset);
+        }
+    };
+
+    private static HttpClient sHttpClient;
+
     private String mHost;
     private short mPort = 11371;
 
+    // validators of a cached response sent with the next request, and those of the last response
+    private String mIfNoneMatch;
+    private String mIfModifiedSince;
+    private String mETag;
+    private String mLastModified;
+    private boolean mNotModified = false;
+
+    // whether the last query failed because of the connection, a server error or rate limiting
+    private boolean mUnavailable = false;
+
+    // not in HttpStatus of the Apache client bundled with Android
+    private static final int SC_TOO_MANY_REQUESTS = 429;
+
     // example:
     // pub 2048R/<a href="/pks/lookup?op=get&search=0x887DF4BE9F5C9090">9F5C9090</a> 2009-08-17 <a
     // href="/pks/lookup?op=vindex&search=0x887DF4BE9F5C9090">Jörg Runge
@@ -92,6 +175,217 @@ public class HkpKeyServer extends KeyServer {
         mPort = port;
     }
 
+    public String getHost() {
+        return mHost;
+    }
+
+    /**
+     * Makes the next request conditional on the response having changed since it was cached
+     * 
+     * @param eTag
+     *            ETag header of the cached response, may be null
+     * @param lastModified
+     *            Last-Modified header of the cached response, may be null
+     */
+    public void setCacheValidators(String eTag, String lastModified) {
+        mIfNoneMatch = eTag;
+        mIfModifiedSince = lastModified;
+    }
+
+    /**
+     * @return ETag header of the last response, null if there was none
+     */
+    public String getETag() {
+        return mETag;
+    }
+
+    /**
+     * @return Last-Modified header of the last response, null if there was none
+     */
+    public String getLastModified() {
+        return mLastModified;
+    }
+
+    /**
+     * @return true if the last request was conditional and the response has not changed, its
+     *         result is empty then
+     */
+    public boolean isNotModified() {
+        return mNotModified;
+    }
+
+    /**
+     * @return true if the last query failed because the server could not be reached, answered
+     *         with a server error (5xx) or refused to answer now (429), false if it answered, e.g.,
+     *         that a key was not found
+     */
+    public boolean isUnavailable() {
+        return mUnavailable;
+    }
+
+    /**
+     * @param code
+     *            HTTP status of an error response
+     * @return true if the server could not answer the query, as opposed to an answer, e.g., 404
+     */
+    private static boolean isUnavailableStatus(int code) {
+        return code >= 500 || code == SC_TOO_MANY_REQUESTS;
+    }
+
+    private void addValidators(HttpUriRequest request) {
+        if (mIfNoneMatch != null) {
+            request.addHeader("If-None-Match", mIfNoneMatch);
+        }
+        if (mIfModifiedSince != null) {
+            request.addHeader("If-Modified-Since", mIfModifiedSince);
+        }
+    }
+
+    private void readValidators(HttpResponse response) {
+        Header eTag = response.getFirstHeader("ETag");
+        Header lastModified = response.getFirstHeader("Last-Modified");
+        mETag = (eTag != null) ? eTag.getValue() : null;
+        mLastModified = (lastModified != null) ? lastModified.getValue() : null;
+        mNotModified = (response.getStatusLine().getStatusCode() == HttpStatus.SC_NOT_MODIFIED);
+        if (mNotModified) {
+            // a 304 may leave out the validators, which are unchanged then
+            if (mETag == null) {
+                mETag = mIfNoneMatch;
+            }
+            if (mLastModified == null) {
+                mLastModified = mIfModifiedSince;
+            }
+        }
+    }
+
+    /**
+     * Returns the HTTP client shared by all keyservers. It is thread-safe and keeps connections
+     * alive in a pool per host and port, so consecutive requests to the same keyserver skip the TCP
+     * handshake.
+     * 
+     * @return
+     */
+    private static synchronized HttpClient getHttpClient() {
+        if (sHttpClient == null) {
+            HttpParams params = new BasicHttpParams();
+            HttpProtocolParams.setVersion(params, HttpVersion.HTTP_1_1);
+            HttpConnectionParams.setConnectionTimeout(params, CONNECT_TIMEOUT_MILLIS);
+            HttpConnectionParams.setSoTimeout(params, READ_TIMEOUT_MILLIS);
+            ConnManagerParams.setMaxTotalConnections(params, MAX_CONNECTIONS);
+            ConnManagerParams.setMaxConnectionsPerRoute(params, new ConnPerRouteBean(
+                    MAX_CONNECTIONS_PER_ROUTE));
+            ConnManagerParams.setTimeout(params, CONNECT_TIMEOUT_MILLIS);
+
+            SchemeRegistry schemeRegistry = new SchemeRegistry();
+            schemeRegistry.register(new Scheme("http", PlainSocketFactory.getSocketFactory(), 80));
+
+            DefaultHttpClient client = new DefaultHttpClient(new ThreadSafeClientConnManager(
+                    params, schemeRegistry), params);
+            client.setHttpRequestRetryHandler(new HttpRequestRetryHandler() {
+                @Override
+                public boolean retryRequest(IOException exception, int executionCount,
+                        HttpContext context) {
+                    // a kept alive connection may have been closed by the server meanwhile, other
+                    // errors are handled by racing addresses and failing over to other keyservers
+                    return executionCount <= 1 && exception instanceof NoHttpResponseException;
+                }
+            });
+            sHttpClient = client;
+        }
+
+        // keyservers close idle connections anyway, don't hold on to their sockets
+        ClientConnectionManager connectionManager = sHttpClient.getConnectionManager();
+        connectionManager.closeExpiredConnections();
+        connectionManager.closeIdleConnections(IDLE_CONNECTION_TIMEOUT_MILLIS,
+                TimeUnit.MILLISECONDS);
+
+        return sHttpClient;
+    }
+
+    /**
+     * Executes request with the shared client, requesting a gzip compressed response
+     * 
+     * @param request
+     * @return response with a 2xx or 304 status, its body has to be read with readResponse, so
+     *         the connection is released
+     * @throws IOException
+     * @throws HttpError
+     *             if the server responded with another status than 2xx or 304
+     */
+    private static HttpResponse executeRequest(HttpUriRequest request) throws IOException,
+            HttpError {
+        request.addHeader("Accept-Encoding", "gzip");
+        HttpResponse response;
+        try {
+            response = getHttpClient().execute(request);
+        } catch (IOException e) {
+            request.abort();
+            throw e;
+        } catch (RuntimeException e) {
+            request.abort();
+            throw e;
+        }
+
+        int code = response.getStatusLine().getStatusCode();
+        if ((code < 200 || code >= 300) && code != HttpStatus.SC_NOT_MODIFIED) {
+            throw new HttpError(code, readResponse(request, response, READ_ALL));
+        }
+        return response;
+    }
+
+    /**
+     * Reads the body of response with reader. The connection is released to the pool afterwards,
+     * or closed if reading failed.
+     * 
+     * @param request
+     * @param response
+     * @param reader
+     * @return
+     * @throws IOException
+     */
+    private static <T> T readResponse(HttpUriRequest request, HttpResponse response,
+            ResponseReader<T> reader) throws IOException {
+        try {
+            HttpEntity entity = response.getEntity();
+            if (entity == null) {
+                return reader.read(new ByteArrayInputStream(new byte[0]), null);
+            }
+
+            // decompressed here, not by wrapping the entity, which would hide its length from the
+            // connection reuse strategy
+            InputStream in = entity.getContent();
+            if (isGzipped(entity)) {
+                in = new GZIPInputStream(in);
+            }
+            T result = reader.read(in, EntityUtils.getContentCharSet(entity));
+            // makes sure the connection is released, even if the gzip stream ended early
+            entity.consumeContent();
+            return result;
+        } catch (IOException e) {
+            request.abort();
+            throw e;
+        } catch (RuntimeException e) {
+            request.abort();
+            throw e;
+        }
+    }
+
+    private static String execute(HttpUriRequest request) throws IOException, HttpError {
+        return readResponse(request, executeRequest(request), READ_ALL);
+    }
+
+    private static boolean isGzipped(HttpEntity entity) {
+        Header contentEncoding = entity.getContentEncoding();
+        if (contentEncoding != null) {
+            for (HeaderElement codec : contentEncoding.getElements()) {
+                if (codec.getName().equalsIgnoreCase("gzip")) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
     static private String readAll(InputStream in, String encoding) throws IOException {
         ByteArrayOutputStream raw = new ByteArrayOutputStream();
 
@@ -107,43 +401,256 @@ public class HkpKeyServer extends KeyServer {
         return raw.toString(encoding);
     }
 
-    private String query(String request) throws QueryException, HttpError {
+    /**
+     * Queries all addresses of the host concurrently, but staggered: the first address is queried
+     * right away and each further address CONNECTION_STAGGER_MILLIS later, or as soon as an
+     * earlier attempt failed. The first address to answer wins, all other attempts are canceled,
+     * while the connection of the winner is kept alive for the next query. The response of the
+     * winner is read with reader.
+     * 
+     * The address that answered the last query is queried first. Addresses which failed recently
+     * are only queried if all other addresses fail.
+     * 
+     * @param request
+     * @param reader
+     * @return
+     * @throws QueryException
+     * @throws HttpError
+     */
+    private <T> T query(String request, ResponseReader<T> reader) throws QueryException,
+            HttpError {
         InetAddress ips[];
         try {
             ips = InetAddress.getAllByName(mHost);
         } catch (UnknownHostException e) {
+            mUnavailable = true;
             throw new QueryException(e.toString());
         }
-        for (int i = 0; i < ips.length; ++i) {
-            try {
-                String url = "http://" + ips[i].getHostAddress() + ":" + mPort + request;
-                URL realUrl = new URL(url);
-                HttpURLConnection conn = (HttpURLConnection) realUrl.openConnection();
-                conn.setConnectTimeout(5000);
-                conn.setReadTimeout(25000);
-                conn.connect();
-                int response = conn.getResponseCode();
-                if (response >= 200 && response < 300) {
-                    return readAll(conn.getInputStream(), conn.getContentEncoding());
+
+        ArrayList<InetAddress> healthyIps = new ArrayList<InetAddress>();
+        ArrayList<InetAddress> failedIps = new ArrayList<InetAddress>();
+        long now = System.currentTimeMillis();
+        for (InetAddress ip : interleaveAddressFamilies(ips)) {
+            Long failedUntil = sFailedAddresses.get(ip);
+            if (failedUntil != null && failedUntil > now) {
+                failedIps.add(ip);
+            } else {
+                healthyIps.add(ip);
+            }
+        }
+
+        InetAddress preferredIp = sPreferredAddresses.get(mHost);
+        if (preferredIp != null && healthyIps.remove(preferredIp)) {
+            healthyIps.add(0, preferredIp);
+        }
+
+        QueryAttempt winner = raceQuery(healthyIps, request);
+        if (winner == null) {
+            winner = raceQuery(failedIps, request);
+        }
+        if (winner == null) {
+            mUnavailable = true;
+            throw new QueryException("querying server(s) for '" + mHost + "' failed");
+        }
+
+        readValidators(winner.mResponse);
+        try {
+            return readResponse(winner.mGet, winner.mResponse, reader);
+        } catch (IOException e) {
+            mUnavailable = true;
+            throw new QueryException(e.toString());
+        }
+    }
+
+    /**
+     * @param ips
+     * @param request
+     * @return attempt of the first address answering with the response still to be read, null if
+     *         no address could be queried
+     * @throws QueryException
+     * @throws HttpError
+     *             if the first address answering responded with an error
+     */
+    private QueryAttempt raceQuery(List<InetAddress> ips, String request) throws QueryException,
+            HttpError {
+        if (ips.isEmpty()) {
+            return null;
+        }
+
+        CompletionService<QueryAttempt> completionService =
+                new ExecutorCompletionService<QueryAttempt>(sQueryExecutor);
+        ArrayList<QueryAttempt> attempts = new ArrayList<QueryAttempt>();
+        Future<QueryAttempt> winner = null;
+        try {
+            attempts.add(new QueryAttempt(ips.get(0), request, completionService));
+            int running = 1;
+            while (running > 0) {
+                Future<QueryAttempt> done;
+                if (attempts.size() < ips.size()) {
+                    done = completionService.poll(CONNECTION_STAGGER_MILLIS,
+                            TimeUnit.MILLISECONDS);
+                    if (done == null) {
+                        // no answer yet, race the next address
+                        attempts.add(new QueryAttempt(ips.get(attempts.size()), request,
+                                completionService));
+                        ++running;
+                        continue;
+                    }
                 } else {
-                    String data = readAll(conn.getErrorStream(), conn.getContentEncoding());
-                    throw new HttpError(response, data);
+                    done = completionService.take();
+                }
+                --running;
+
+                try {
+                    QueryAttempt attempt = done.get();
+                    winner = done;
+                    sPreferredAddresses.put(mHost, attempt.mAddress);
+                    return attempt;
+                } catch (ExecutionException e) {
+                    if (e.getCause() instanceof HttpError) {
+                        throw (HttpError) e.getCause();
+                    }
+                    // connection failed, don't wait to try the next address
+                    if (attempts.size() < ips.size()) {
+                        attempts.add(new QueryAttempt(ips.get(attempts.size()), request,
+                                completionService));
+                        ++running;
+                    }
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new QueryException("querying server(s) for '" + mHost + "' interrupted");
+        } finally {
+            for (QueryAttempt attempt : attempts) {
+                if (attempt.mFuture != winner) {
+                    attempt.cancel();
+                }
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * Orders addresses alternating between IPv6 and IPv4, otherwise keeping the order of the
+     * resolver, so an unreachable address family delays a query by one stagger at most
+     * 
+     * @param ips
+     * @return
+     */
+    private static List<InetAddress> interleaveAddressFamilies(InetAddress[] ips) {
+        ArrayList<InetAddress> v6 = new ArrayList<InetAddress>();
+        ArrayList<InetAddress> v4 = new ArrayList<InetAddress>();
+        for (InetAddress ip : ips) {
+            if (ip instanceof Inet6Address) {
+                v6.add(ip);
+            } else {
+                v4.add(ip);
+            }
+        }
+
+        // start with the family the resolver preferred
+        List<InetAddress> first = (ips.length > 0 && ips[0] instanceof Inet6Address) ? v6 : v4;
+        List<InetAddress> second = (first == v6) ? v4 : v6;
+
+        ArrayList<InetAddress> result = new ArrayList<InetAddress>(ips.length);
+        for (int i = 0; i < Math.max(first.size(), second.size()); ++i) {
+            if (i < first.size()) {
+                result.add(first.get(i));
+            }
+            if (i < second.size()) {
+                result.add(second.get(i));
+            }
+        }
+        return result;
+    }
+
+    /**
+     * One request to one address of the host, submitted on construction
+     */
+    private class QueryAttempt implements Callable<QueryAttempt> {
+        private final InetAddress mAddress;
+        private final HttpGet mGet;
+        private final Future<QueryAttempt> mFuture;
+
+        private volatile boolean mCanceled = false;
+        private HttpResponse mResponse;
+
+        public QueryAttempt(InetAddress address, String request,
+                CompletionService<QueryAttempt> completionService) {
+            mAddress = address;
+
+            String host = address.getHostAddress();
+            if (address instanceof Inet6Address) {
+                host = "[" + host + "]";
+            }
+            mGet = new HttpGet("http://" + host + ":" + mPort + request);
+            addValidators(mGet);
+            mFuture = completionService.submit(this);
+        }
+
+        @Override
+        public QueryAttempt call() throws IOException, HttpError {
+            try {
+                if (mCanceled) {
+                    throw new IOException("canceled");
                 }
-            } catch (MalformedURLException e) {
-                // nothing to do, try next IP
+                mResponse = executeRequest(mGet);
+                // the address answered, so it is healthy
+                sFailedAddresses.remove(mAddress);
+                return this;
+            } catch (HttpError e) {
+                // the address answered, so it is healthy, even if the answer is an error
+                sFailedAddresses.remove(mAddress);
+                throw e;
             } catch (IOException e) {
-                // nothing to do, try next IP
+                if (!mCanceled) {
+                    sFailedAddresses.put(mAddress, System.currentTimeMillis()
+                            + FAILED_ADDRESS_BACKOFF_MILLIS);
+                }
+                throw e;
             }
         }
 
-        throw new QueryException("querying server(s) for '" + mHost + "' failed");
+        /**
+         * Stops the attempt, closing its connection if it is blocked connecting or reading
+         */
+        public void cancel() {
+            mCanceled = true;
+            mFuture.cancel(true);
+            mGet.abort();
+        }
     }
 
     @Override
     public ArrayList<KeyInfo> search(String query) throws QueryException, TooManyResponses,
             InsufficientQuery {
-        ArrayList<KeyInfo> results = new ArrayList<KeyInfo>();
+        final ArrayList<KeyInfo> results = new ArrayList<KeyInfo>();
+        search(query, new KeyInfoListener() {
+            @Override
+            public void onKeyInfo(KeyInfo keyInfo) {
+                results.add(keyInfo);
+            }
+        });
+        return results;
+    }
 
+    /**
+     * Searches keys, passing each key found to listener as soon as it has been read.
+     * 
+     * The machine readable index is requested and parsed line by line. If the keyserver answers
+     * with the html index instead, it is parsed as a whole after reading it.
+     * 
+     * @param query
+     * @param listener
+     * @throws QueryException
+     * @throws TooManyResponses
+     * @throws InsufficientQuery
+     */
+    public void search(String query, final KeyInfoListener listener) throws QueryException,
+            TooManyResponses, InsufficientQuery {
+        mUnavailable = false;
         if (query.length() < 3) {
             throw new InsufficientQuery();
         }
@@ -152,19 +659,27 @@ public class HkpKeyServer extends KeyServer {
         try {
             encodedQuery = URLEncoder.encode(query, "utf8");
         } catch (UnsupportedEncodingException e) {
-            return null;
+            throw new QueryException(e.toString());
         }
-        String request = "/pks/lookup?op=index&search=" + encodedQuery;
+        String request = "/pks/lookup?op=index&options=mr&search=" + encodedQuery;
 
-        String data = null;
         try {
-            data = query(request);
+            query(request, new ResponseReader<Void>() {
+                @Override
+                public Void read(InputStream in, String charset) throws IOException {
+                    parseIndex(new BufferedReader(new InputStreamReader(in,
+                            (charset != null) ? charset : "utf8")), listener);
+                    return null;
+                }
+            });
         } catch (HttpError e) {
             if (e.getCode() == 404) {
-                return results;
+                return;
+            } else if (isUnavailableStatus(e.getCode())) {
+                mUnavailable = true;
             } else {
                 if (e.getData().toLowerCase().contains("no keys found")) {
-                    return results;
+                    return;
                 } else if (e.getData().toLowerCase().contains("too many")) {
                     throw new TooManyResponses();
                 } else if (e.getData().toLowerCase().contains("insufficient")) {
@@ -173,7 +688,40 @@ public class HkpKeyServer extends KeyServer {
             }
             throw new QueryException("querying server(s) for '" + mHost + "' failed");
         }
+    }
+
+    /**
+     * Parses a machine readable index while reading it, or an html index after reading it
+     * 
+     * @param reader
+     * @param listener
+     * @throws IOException
+     */
+    static void parseIndex(BufferedReader reader, KeyInfoListener listener) throws IOException {
+        String line = reader.readLine();
+        while (line != null && line.trim().length() == 0) {
+            line = reader.readLine();
+        }
+        if (line == null) {
+            return;
+        }
+
+        if (HkpIndexParser.isMachineReadable(line)) {
+            HkpIndexParser parser = new HkpIndexParser(listener);
+            do {
+                parser.parseLine(line);
+            } while ((line = reader.readLine()) != null);
+            parser.finish();
+        } else {
+            StringBuilder html = new StringBuilder();
+            do {
+                html.append(line).append('\n');
+            } while ((line = reader.readLine()) != null);
+            parseHtmlIndex(html.toString(), listener);
+        }
+    }
 
+    private static void parseHtmlIndex(String data, KeyInfoListener listener) {
         Matcher matcher = PUB_KEY_LINE.matcher(data);
         while (matcher.find()) {
             KeyInfo info = new KeyInfo();
@@ -200,35 +748,33 @@ public class HkpKeyServer extends KeyServer {
                     info.userIds.add(tmp);
                 }
             }
-            results.add(info);
+            listener.onKeyInfo(info);
         }
-
-        return results;
     }
 
     @Override
     public String get(long keyId) throws QueryException {
-        HttpClient client = new DefaultHttpClient();
+        HttpGet get = new HttpGet("http://" + mHost + ":" + mPort
+                + "/pks/lookup?op=get&search=0x" + PgpKeyHelper.keyToHex(keyId));
+        addValidators(get);
+        mUnavailable = false;
         try {
-            HttpGet get = new HttpGet("http://" + mHost + ":" + mPort
-                    + "/pks/lookup?op=get&search=0x" + PgpKeyHelper.keyToHex(keyId));
-
-            HttpResponse response = client.execute(get);
-            if (response.getStatusLine().getStatusCode() != HttpStatus.SC_OK) {
-                throw new QueryException("not found");
-            }
-
-            HttpEntity entity = response.getEntity();
-            InputStream is = entity.getContent();
-            String data = readAll(is, EntityUtils.getContentCharSet(entity));
+            HttpResponse response = executeRequest(get);
+            readValidators(response);
+            String data = readResponse(get, response, READ_ALL);
             Matcher matcher = PgpHelper.PGP_PUBLIC_KEY.matcher(data);
             if (matcher.find()) {
                 return matcher.group(1);
             }
+        } catch (HttpError e) {
+            if (isUnavailableStatus(e.getCode())) {
+                mUnavailable = true;
+                throw new QueryException(e.toString());
+            }
+            throw new QueryException((e.getCode() == 404) ? "not found" : e.toString());
         } catch (IOException e) {
             // nothing to do, better luck on the next keyserver
-        } finally {
-            client.getConnectionManager().shutdown();
+            mUnavailable = true;
         }
 
         return null;
@@ -236,7 +782,6 @@ public class HkpKeyServer extends KeyServer {
 
     @Override
     public void add(String armouredText) throws AddKeyException {
-        HttpClient client = new DefaultHttpClient();
         try {
             HttpPost post = new HttpPost("http://" + mHost + ":" + mPort + "/pks/add");
 
@@ -244,14 +789,34 @@ public class HkpKeyServer extends KeyServer {
             nameValuePairs.add(new BasicNameValuePair("keytext", armouredText));
             post.setEntity(new UrlEncodedFormEntity(nameValuePairs));
 
-            HttpResponse response = client.execute(post);
-            if (response.getStatusLine().getStatusCode() != HttpStatus.SC_OK) {
-                throw new AddKeyException();
-            }
+            execute(post);
+        } catch (HttpError e) {
+            throw new AddKeyException();
         } catch (IOException e) {
             // nothing to do, better luck on the next keyserver
-        } finally {
-            client.getConnectionManager().shutdown();
+        }
+    }
+
+    /**
+     * Uploads a keyring. Unlike add, the keyring is armored and form encoded while it is sent,
+     * and a failed connection is reported, too.
+     * 
+     * @param keyRingData
+     *            binary keyring, as stored in the database
+     * @throws AddKeyException
+     *             if the keyserver rejected the keyring or could not be reached
+     */
+    public void add(byte[] keyRingData) throws AddKeyException {
+        HttpPost post = new HttpPost("http://" + mHost + ":" + mPort + "/pks/add");
+        post.setEntity(new KeyTextEntity(keyRingData));
+        try {
+            execute(post);
+        } catch (HttpError e) {
+            Log.w(Constants.TAG, "Keyserver " + mHost + " rejected key: " + e.getCode());
+            throw new AddKeyException();
+        } catch (IOException e) {
+            Log.w(Constants.TAG, "Uploading key to " + mHost + " failed: " + e);
+            throw new AddKeyException();
         }
     }
 }
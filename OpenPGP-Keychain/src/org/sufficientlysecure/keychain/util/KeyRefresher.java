@@ -0,0 +1,263 @@
+/*
+ * Copyright (C) 2013 Dominik Schürmann <dominik@dominikschuermann.de>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.util;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.spongycastle.openpgp.PGPObjectFactory;
+import org.spongycastle.openpgp.PGPPublicKeyRing;
+import org.sufficientlysecure.keychain.Constants;
+import org.sufficientlysecure.keychain.Id;
+import org.sufficientlysecure.keychain.pgp.PgpHelper;
+import org.sufficientlysecure.keychain.pgp.PgpImportExport;
+import org.sufficientlysecure.keychain.pgp.PgpKeyHelper;
+import org.sufficientlysecure.keychain.provider.ProviderHelper;
+import org.sufficientlysecure.keychain.util.KeyServer.QueryException;
+
+import android.content.Context;
+
+/**
+ * Fetches stored public keyrings from keyservers and merges new subkeys, user ids and signatures,
+ * e.g., revocations, into them.
+ *
+ * At most MAX_CONCURRENT_FETCHES keys are fetched at the same time and every keyserver gets one
+ * request per MIN_REQUEST_INTERVAL_MILLIS at most. Keys are fetched round-robin from the
+ * keyservers, falling back to the next keyserver if one cannot be reached. Fetched keyrings are
+ * merged and stored one after another on the calling thread.
+ */
+public class KeyRefresher {
+    private static final int MAX_CONCURRENT_FETCHES = 4;
+    private static final long MIN_REQUEST_INTERVAL_MILLIS = 500;
+
+    /**
+     * Counts of the keyrings of a batch by outcome
+     */
+    public static class Result {
+        public int updated;
+        public int unchanged;
+        // not on any keyserver, e.g., never uploaded
+        public int notFound;
+        // no keyserver could be reached or the keyring from the keyserver is broken
+        public int failed;
+
+        public void add(Result other) {
+            updated += other.updated;
+            unchanged += other.unchanged;
+            notFound += other.notFound;
+            failed += other.failed;
+        }
+
+        @Override
+        public String toString() {
+            return updated + " updated, " + unchanged + " unchanged, " + notFound
+                    + " not found, " + failed + " failed";
+        }
+    }
+
+    private final Context mContext;
+    // hosts, each fetch queries them with its own HkpKeyServer, which keeps per-query state
+    private final String[] mServers;
+    private final ExecutorService mExecutor;
+    private final AtomicInteger mNextServer = new AtomicInteger();
+
+    // earliest time of the next request to each keyserver
+    private final long[] mNextRequestTimes;
+
+    /**
+     * @param context
+     * @param servers
+     *            keyserver hosts
+     */
+    public KeyRefresher(Context context, String[] servers) {
+        mContext = context;
+        mServers = servers;
+        mNextRequestTimes = new long[servers.length];
+        mExecutor = Executors.newFixedThreadPool(MAX_CONCURRENT_FETCHES);
+    }
+
+    /**
+     * Refreshes the public keyrings of masterKeyIds
+     *
+     * @param masterKeyIds
+     * @return
+     * @throws InterruptedException
+     */
+    public Result refresh(List<Long> masterKeyIds) throws InterruptedException {
+        CompletionService<Fetch> completionService = new ExecutorCompletionService<Fetch>(
+                mExecutor);
+        for (Long masterKeyId : masterKeyIds) {
+            completionService.submit(new Fetch(masterKeyId));
+        }
+
+        Result result = new Result();
+        PgpImportExport importExport = new PgpImportExport(mContext, null);
+        ProviderHelper.beginBulkOperation(mContext);
+        try {
+            for (int i = 0; i < masterKeyIds.size(); ++i) {
+                Fetch fetch;
+                try {
+                    fetch = completionService.take().get();
+                } catch (ExecutionException e) {
+                    Log.e(Constants.TAG, "Fetching key for refresh failed", e.getCause());
+                    ++result.failed;
+                    continue;
+                }
+
+                if (fetch.mNotFound) {
+                    ++result.notFound;
+                } else if (fetch.mArmoredKey == null) {
+                    ++result.failed;
+                } else {
+                    store(fetch.mMasterKeyId, fetch.mArmoredKey, importExport, result);
+                }
+            }
+        } finally {
+            ProviderHelper.endBulkOperation(mContext);
+        }
+
+        return result;
+    }
+
+    /**
+     * Stops the fetch threads, has to be called when the refresher is not needed anymore
+     */
+    public void shutdown() {
+        mExecutor.shutdownNow();
+    }
+
+    private void store(long masterKeyId, String armoredKey, PgpImportExport importExport,
+            Result result) {
+        PGPPublicKeyRing stored = ProviderHelper.getPGPPublicKeyRingByMasterKeyId(mContext,
+                masterKeyId);
+        if (stored == null) {
+            // deleted while fetching
+            return;
+        }
+
+        try {
+            PGPPublicKeyRing update = findKeyRing(armoredKey, stored);
+            if (update == null) {
+                Log.w(Constants.TAG, "Keyserver returned other key for "
+                        + PgpKeyHelper.keyToHex(masterKeyId));
+                ++result.failed;
+                return;
+            }
+
+            int status = importExport.storeKeyRingInCache(PgpImportExport.mergePublicKeyRings(
+                    stored, update));
+            if (status == Id.return_value.unchanged) {
+                ++result.unchanged;
+            } else if (status == Id.return_value.updated || status == Id.return_value.ok) {
+                ++result.updated;
+            } else {
+                ++result.failed;
+            }
+        } catch (IOException e) {
+            Log.e(Constants.TAG, "Refreshed key could not be read", e);
+            ++result.failed;
+        }
+    }
+
+    /**
+     * @param armoredKey
+     * @param stored
+     * @return keyring in armoredKey with the same master key fingerprint as stored, null if there
+     *         is none
+     * @throws IOException
+     */
+    private static PGPPublicKeyRing findKeyRing(String armoredKey, PGPPublicKeyRing stored)
+            throws IOException {
+        byte[] fingerprint = stored.getPublicKey().getFingerprint();
+        PGPObjectFactory factory = new PGPObjectFactory(PgpHelper.getDecoderStream(
+                new ByteArrayInputStream(armoredKey.getBytes())));
+        Object obj;
+        while ((obj = factory.nextObject()) != null) {
+            if (obj instanceof PGPPublicKeyRing) {
+                PGPPublicKeyRing keyRing = (PGPPublicKeyRing) obj;
+                // a 64 bit key id can collide, the fingerprint cannot
+                if (Arrays.equals(keyRing.getPublicKey().getFingerprint(), fingerprint)) {
+                    return keyRing;
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Waits until a request may be sent to server, reserving the slot for the caller
+     *
+     * @param server
+     *            index of the keyserver
+     * @throws InterruptedException
+     */
+    private void waitForTurn(int server) throws InterruptedException {
+        long now = System.currentTimeMillis();
+        long slot;
+        synchronized (mNextRequestTimes) {
+            slot = Math.max(now, mNextRequestTimes[server]);
+            mNextRequestTimes[server] = slot + MIN_REQUEST_INTERVAL_MILLIS;
+        }
+        if (slot > now) {
+            Thread.sleep(slot - now);
+        }
+    }
+
+    /**
+     * Fetches one key, trying the keyservers in turn
+     */
+    private class Fetch implements Callable<Fetch> {
+        private final long mMasterKeyId;
+        private String mArmoredKey;
+        private boolean mNotFound;
+
+        public Fetch(long masterKeyId) {
+            mMasterKeyId = masterKeyId;
+        }
+
+        @Override
+        public Fetch call() throws InterruptedException {
+            int first = (mNextServer.getAndIncrement() & Integer.MAX_VALUE) % mServers.length;
+            int answered = 0;
+            for (int i = 0; i < mServers.length && mArmoredKey == null; ++i) {
+                int server = (first + i) % mServers.length;
+                waitForTurn(server);
+                HkpKeyServer keyServer = new HkpKeyServer(mServers[server]);
+                try {
+                    mArmoredKey = keyServer.get(mMasterKeyId);
+                } catch (QueryException e) {
+                    if (!keyServer.isUnavailable()) {
+                        // the keyserver answered, but has no such key
+                        ++answered;
+                    }
+                }
+            }
+            mNotFound = (mArmoredKey == null && answered > 0);
+            return this;
+        }
+    }
+}
@@ -88,6 +88,13 @@ public abstract class KeyServer {
         }
     }
 
+    /**
+     * Receives the keys found by a search one at a time
+     */
+    public interface KeyInfoListener {
+        public void onKeyInfo(KeyInfo keyInfo);
+    }
+
     abstract List<KeyInfo> search(String query) throws QueryException, TooManyResponses,
             InsufficientQuery;
 
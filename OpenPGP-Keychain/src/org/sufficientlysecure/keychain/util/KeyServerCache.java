@@ -0,0 +1,368 @@
+/*
+ * Copyright (C) 2013 Dominik Schürmann <dominik@dominikschuermann.de>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.util;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+
+import org.sufficientlysecure.keychain.Constants;
+import org.sufficientlysecure.keychain.pgp.PgpKeyHelper;
+
+import android.content.Context;
+
+/**
+ * Caches keyserver results on disk, keyed by the normalized search query or the key id, so a key
+ * looked up again is shown without waiting for the network.
+ *
+ * Entries are fresh for TTL_MILLIS. Afterwards they are revalidated with a conditional request if
+ * the keyserver sent an ETag or Last-Modified header, and served as they are if no keyserver can
+ * be reached. Least recently used entries are evicted when the cache grows over MAX_SIZE_BYTES.
+ */
+public class KeyServerCache {
+    private static final String CACHE_DIR = "keyserver";
+    private static final String TEMP_SUFFIX = ".tmp";
+    private static final int FORMAT_VERSION = 1;
+
+    private static final long MAX_SIZE_BYTES = 2 * 1024 * 1024;
+    private static final long TTL_MILLIS = 30 * 60 * 1000;
+
+    // outcomes of lookups, for the hit rate
+    public static final int HIT = 0;
+    public static final int REVALIDATED = 1;
+    public static final int OFFLINE_HIT = 2;
+    public static final int MISS = 3;
+
+    /**
+     * Cached result of one query
+     */
+    public static class Entry {
+        private String mKey;
+        private String mServer;
+        private String mETag;
+        private String mLastModified;
+        private long mFetched;
+        private Serializable mValue;
+
+        public String getServer() {
+            return mServer;
+        }
+
+        public String getETag() {
+            return mETag;
+        }
+
+        public String getLastModified() {
+            return mLastModified;
+        }
+
+        public Serializable getValue() {
+            return mValue;
+        }
+
+        public boolean isFresh() {
+            long age = System.currentTimeMillis() - mFetched;
+            return age >= 0 && age < TTL_MILLIS;
+        }
+    }
+
+    private static KeyServerCache sInstance;
+
+    private final File mDir;
+
+    // file names and sizes in order of access, loaded on first use
+    private LinkedHashMap<String, Long> mFiles;
+    private long mSize;
+
+    private final int[] mOutcomes = new int[4];
+
+    public static synchronized KeyServerCache getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new KeyServerCache(new File(context.getCacheDir(), CACHE_DIR));
+        }
+        return sInstance;
+    }
+
+    private KeyServerCache(File dir) {
+        mDir = dir;
+    }
+
+    /**
+     * @param query
+     * @return cache key of a search, ignoring case and surrounding or repeated whitespace
+     */
+    public static String getSearchKey(String query) {
+        return "search:" + query.trim().replaceAll("\\s+", " ").toLowerCase(Locale.US);
+    }
+
+    /**
+     * @param keyId
+     * @return cache key of a key lookup
+     */
+    public static String getLookupKey(long keyId) {
+        return "get:" + PgpKeyHelper.keyToHex(keyId);
+    }
+
+    /**
+     * @param key
+     * @return cached entry, also if it is not fresh anymore, null if there is none
+     */
+    public synchronized Entry get(String key) {
+        loadIndex();
+
+        String name = getFileName(key);
+        // get, not containsKey, to update the order of access
+        if (mFiles.get(name) == null) {
+            return null;
+        }
+        File file = new File(mDir, name);
+
+        Entry entry = null;
+        ObjectInputStream in = null;
+        try {
+            in = new ObjectInputStream(new BufferedInputStream(new FileInputStream(file)));
+            if (in.readInt() == FORMAT_VERSION) {
+                entry = new Entry();
+                entry.mKey = in.readUTF();
+                entry.mServer = in.readUTF();
+                entry.mETag = readOptionalUTF(in);
+                entry.mLastModified = readOptionalUTF(in);
+                entry.mFetched = in.readLong();
+                entry.mValue = (Serializable) in.readObject();
+            }
+        } catch (IOException e) {
+            entry = null;
+        } catch (ClassNotFoundException e) {
+            entry = null;
+        } catch (ClassCastException e) {
+            entry = null;
+        } finally {
+            closeQuietly(in);
+        }
+
+        if (entry == null || !entry.mKey.equals(key)) {
+            // unreadable, outdated or a hash collision
+            remove(name);
+            return null;
+        }
+
+        file.setLastModified(System.currentTimeMillis());
+        return entry;
+    }
+
+    /**
+     * Stores value as fetched right now
+     *
+     * @param key
+     * @param server
+     *            keyserver the value was fetched from, validators are only valid for it
+     * @param eTag
+     * @param lastModified
+     * @param value
+     */
+    public synchronized void put(String key, String server, String eTag, String lastModified,
+            Serializable value) {
+        loadIndex();
+        if (!mDir.isDirectory() && !mDir.mkdirs()) {
+            return;
+        }
+
+        String name = getFileName(key);
+        File temp = new File(mDir, name + TEMP_SUFFIX);
+        ObjectOutputStream out = null;
+        try {
+            out = new ObjectOutputStream(new BufferedOutputStream(new FileOutputStream(temp)));
+            out.writeInt(FORMAT_VERSION);
+            out.writeUTF(key);
+            out.writeUTF(server);
+            writeOptionalUTF(out, eTag);
+            writeOptionalUTF(out, lastModified);
+            out.writeLong(System.currentTimeMillis());
+            out.writeObject(value);
+            out.close();
+            out = null;
+        } catch (IOException e) {
+            Log.e(Constants.TAG, "Could not cache keyserver result", e);
+            closeQuietly(out);
+            temp.delete();
+            return;
+        }
+
+        remove(name);
+        File file = new File(mDir, name);
+        if (!temp.renameTo(file)) {
+            temp.delete();
+            return;
+        }
+        mFiles.put(name, file.length());
+        mSize += file.length();
+
+        evict();
+    }
+
+    /**
+     * Drops the cached value of key
+     *
+     * @param key
+     */
+    public synchronized void invalidate(String key) {
+        loadIndex();
+        remove(getFileName(key));
+    }
+
+    /**
+     * Marks entry as fetched right now, after the keyserver answered that it is not modified
+     *
+     * @param entry
+     */
+    public synchronized void refresh(Entry entry) {
+        put(entry.mKey, entry.mServer, entry.mETag, entry.mLastModified, entry.mValue);
+    }
+
+    /**
+     * @param outcome
+     *            HIT, REVALIDATED, OFFLINE_HIT or MISS
+     */
+    public synchronized void recordOutcome(int outcome) {
+        ++mOutcomes[outcome];
+        Log.d(Constants.TAG, "Keyserver cache: " + mOutcomes[HIT] + " hits, "
+                + mOutcomes[REVALIDATED] + " revalidated, " + mOutcomes[OFFLINE_HIT]
+                + " offline hits, " + mOutcomes[MISS] + " misses, hit rate "
+                + Math.round(getHitRate() * 100) + "%");
+    }
+
+    /**
+     * @param outcome
+     *            HIT, REVALIDATED, OFFLINE_HIT or MISS
+     * @return number of lookups with outcome since the app started
+     */
+    public synchronized int getOutcomeCount(int outcome) {
+        return mOutcomes[outcome];
+    }
+
+    /**
+     * @return share of lookups served from the cache since the app started, between 0 and 1
+     */
+    public synchronized double getHitRate() {
+        int hits = mOutcomes[HIT] + mOutcomes[REVALIDATED] + mOutcomes[OFFLINE_HIT];
+        int total = hits + mOutcomes[MISS];
+        return (total == 0) ? 0 : (double) hits / total;
+    }
+
+    private void loadIndex() {
+        if (mFiles != null) {
+            return;
+        }
+        mFiles = new LinkedHashMap<String, Long>(16, 0.75f, true);
+        mSize = 0;
+
+        File[] files = mDir.listFiles();
+        if (files == null) {
+            return;
+        }
+        // last modified is updated on access, so this restores the order of access
+        Arrays.sort(files, new Comparator<File>() {
+            @Override
+            public int compare(File lhs, File rhs) {
+                long left = lhs.lastModified();
+                long right = rhs.lastModified();
+                return (left < right) ? -1 : ((left == right) ? 0 : 1);
+            }
+        });
+        for (File file : files) {
+            if (file.getName().endsWith(TEMP_SUFFIX)) {
+                file.delete();
+            } else {
+                mFiles.put(file.getName(), file.length());
+                mSize += file.length();
+            }
+        }
+        evict();
+    }
+
+    private void evict() {
+        Iterator<Map.Entry<String, Long>> it = mFiles.entrySet().iterator();
+        while (mSize > MAX_SIZE_BYTES && it.hasNext()) {
+            Map.Entry<String, Long> eldest = it.next();
+            new File(mDir, eldest.getKey()).delete();
+            mSize -= eldest.getValue();
+            it.remove();
+        }
+    }
+
+    private void remove(String name) {
+        Long size = mFiles.remove(name);
+        if (size != null) {
+            mSize -= size;
+        }
+        new File(mDir, name).delete();
+    }
+
+    private static String getFileName(String key) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-1");
+            byte[] hash = digest.digest(key.getBytes("UTF-8"));
+            StringBuilder name = new StringBuilder(hash.length * 2);
+            for (byte b : hash) {
+                name.append(Character.forDigit((b >> 4) & 0xf, 16));
+                name.append(Character.forDigit(b & 0xf, 16));
+            }
+            return name.toString();
+        } catch (NoSuchAlgorithmException e) {
+            return Integer.toHexString(key.hashCode());
+        } catch (IOException e) {
+            return Integer.toHexString(key.hashCode());
+        }
+    }
+
+    private static String readOptionalUTF(ObjectInputStream in) throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+
+    private static void writeOptionalUTF(ObjectOutputStream out, String value) throws IOException {
+        out.writeBoolean(value != null);
+        if (value != null) {
+            out.writeUTF(value);
+        }
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        if (closeable != null) {
+            try {
+                closeable.close();
+            } catch (IOException e) {
+                // nothing to do
+            }
+        }
+    }
+}
@@ -0,0 +1,560 @@
+/*
+ * Copyright (C) 2013 Dominik Schürmann <dominik@dominikschuermann.de>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.util;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.sufficientlysecure.keychain.Constants;
+import org.sufficientlysecure.keychain.helper.Preferences;
+import org.sufficientlysecure.keychain.util.KeyServer.InsufficientQuery;
+import org.sufficientlysecure.keychain.util.KeyServer.KeyInfo;
+import org.sufficientlysecure.keychain.util.KeyServer.QueryException;
+import org.sufficientlysecure.keychain.util.KeyServer.TooManyResponses;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+
+/**
+ * Routes keyserver queries to the configured keyserver that answered fastest and most reliably.
+ *
+ * For each keyserver an exponentially weighted moving average of the latency and of the error rate
+ * is kept and persisted in the preferences. Queries go to healthy servers in order of latency and
+ * fail over to the next server on errors. Only connection and server errors count as failures, an
+ * answer that a key was not found is a success. Error rates decay while a server is not queried,
+ * so that a server which failed for a while is queried again. Optionally, a query is hedged: if
+ * the first server did not answer within twice its usual latency, the second server is queried as
+ * well and the first answer is used.
+ */
+public class KeyServerPool {
+    // weight of a new sample in the moving averages
+    private static final double SMOOTHING_FACTOR = 0.3;
+
+    // servers failing more often are only used if no other server is available
+    private static final double MAX_HEALTHY_ERROR_RATE = 0.5;
+
+    // without queries, the error rate of a server halves in this time
+    private static final long ERROR_RATE_HALF_LIFE_MILLIS = 10 * 60 * 1000;
+
+    private static final long MIN_HEDGE_DELAY_MILLIS = 500;
+    private static final long DEFAULT_HEDGE_DELAY_MILLIS = 2000;
+
+    // statistics are written at most this often, samples in between are written together
+    private static final long SAVE_INTERVAL_MILLIS = 30 * 1000;
+
+    private static final String JSON_LATENCY = "latency";
+    private static final String JSON_ERROR_RATE = "error_rate";
+    private static final String JSON_SAMPLES = "samples";
+    private static final String JSON_UPDATED = "updated";
+
+    /**
+     * Moving averages of one keyserver
+     */
+    public static class ServerStats {
+        private double mLatency = 0;
+        private double mErrorRate = 0;
+        private int mSamples = 0;
+        // wall clock time of the last query recorded, 0 if there was none
+        private long mUpdated = 0;
+
+        /**
+         * @return average latency of successful queries in milliseconds, 0 if there was none
+         */
+        public long getLatency() {
+            return Math.round(mLatency);
+        }
+
+        /**
+         * @return average rate of failed queries, between 0 and 1
+         */
+        public double getErrorRate() {
+            return getErrorRate(System.currentTimeMillis());
+        }
+
+        /**
+         * @return number of queries recorded
+         */
+        public int getSamples() {
+            return mSamples;
+        }
+
+        /**
+         * @param now
+         *            wall clock time
+         * @return average rate of failed queries, decayed since the last query recorded
+         */
+        double getErrorRate(long now) {
+            if (mUpdated == 0 || now <= mUpdated) {
+                return mErrorRate;
+            }
+            return mErrorRate
+                    * Math.pow(0.5, (double) (now - mUpdated) / ERROR_RATE_HALF_LIFE_MILLIS);
+        }
+
+        boolean isHealthy(long now) {
+            return getErrorRate(now) <= MAX_HEALTHY_ERROR_RATE;
+        }
+    }
+
+    /**
+     * Query failed because the keyserver could not answer, not because of the query
+     */
+    private static class UnavailableException extends QueryException {
+        private static final long serialVersionUID = -4418315618236528113L;
+
+        public UnavailableException(String message) {
+            super(message);
+        }
+    }
+
+    private interface Operation<T> {
+        T run(HkpKeyServer server) throws QueryException, TooManyResponses, InsufficientQuery;
+    }
+
+    private static KeyServerPool sInstance;
+
+    private static final ExecutorService sExecutor = Executors.newCachedThreadPool();
+
+    private final Preferences mPreferences;
+    private final KeyServerCache mCache;
+    private final HashMap<String, ServerStats> mStats = new HashMap<String, ServerStats>();
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private long mLastSaved = 0;
+    private boolean mSaveScheduled = false;
+
+    public static synchronized KeyServerPool getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new KeyServerPool(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    private KeyServerPool(Context context) {
+        mPreferences = Preferences.getPreferences(context);
+        mCache = KeyServerCache.getInstance(context);
+        loadStats();
+    }
+
+    /**
+     * @param server
+     * @return statistics of server, null if it has not been queried yet
+     */
+    public synchronized ServerStats getStats(String server) {
+        return mStats.get(server);
+    }
+
+    /**
+     * Searches the first of servers that answers, see class description. Results are cached, see
+     * KeyServerCache.
+     *
+     * @param servers
+     * @param query
+     * @param hedge
+     *            also query a second server if the first one is slow
+     * @return
+     * @throws QueryException
+     * @throws TooManyResponses
+     * @throws InsufficientQuery
+     */
+    public ArrayList<KeyInfo> search(String[] servers, final String query, boolean hedge)
+            throws QueryException, TooManyResponses, InsufficientQuery {
+        String cacheKey = KeyServerCache.getSearchKey(query);
+        return executeCached(servers, hedge, cacheKey, new Operation<ArrayList<KeyInfo>>() {
+            @Override
+            public ArrayList<KeyInfo> run(HkpKeyServer server) throws QueryException,
+                    TooManyResponses, InsufficientQuery {
+                return server.search(query);
+            }
+        });
+    }
+
+    /**
+     * Gets a key from the first of servers that has it, see class description. Keys are cached,
+     * see KeyServerCache.
+     *
+     * @param servers
+     * @param keyId
+     * @param hedge
+     *            also query a second server if the first one is slow
+     * @return armored key, null if no server could be queried
+     * @throws QueryException
+     */
+    public String get(String[] servers, final long keyId, boolean hedge) throws QueryException {
+        String cacheKey = KeyServerCache.getLookupKey(keyId);
+        try {
+            return executeCached(servers, hedge, cacheKey, new Operation<String>() {
+                @Override
+                public String run(HkpKeyServer server) throws QueryException {
+                    return server.get(keyId);
+                }
+            });
+        } catch (TooManyResponses e) {
+            throw new QueryException("too many responses");
+        } catch (InsufficientQuery e) {
+            throw new QueryException("insufficient query");
+        }
+    }
+
+    /**
+     * Serves a fresh cached result right away. Otherwise executes operation, conditional on the
+     * cached result having changed if it came from the same server, and caches the result. A
+     * stale cached result is served only if no server could be queried. If a server answered
+     * with an error, e.g., that the key is not found, the cached result is dropped.
+     *
+     * @param servers
+     * @param hedge
+     * @param cacheKey
+     * @param operation
+     * @return
+     * @throws QueryException
+     * @throws TooManyResponses
+     * @throws InsufficientQuery
+     */
+    @SuppressWarnings("unchecked")
+    private <T extends Serializable> T executeCached(String[] servers, boolean hedge,
+            final String cacheKey, final Operation<T> operation) throws QueryException,
+            TooManyResponses, InsufficientQuery {
+        final KeyServerCache.Entry cached = mCache.get(cacheKey);
+        if (cached != null && cached.isFresh()) {
+            mCache.recordOutcome(KeyServerCache.HIT);
+            return (T) cached.getValue();
+        }
+
+        T result;
+        try {
+            result = execute(servers, hedge, new Operation<T>() {
+                @Override
+                public T run(HkpKeyServer server) throws QueryException, TooManyResponses,
+                        InsufficientQuery {
+                    boolean conditional = (cached != null && server.getHost().equals(
+                            cached.getServer()));
+                    if (conditional) {
+                        server.setCacheValidators(cached.getETag(), cached.getLastModified());
+                    }
+
+                    T value = operation.run(server);
+                    if (conditional && server.isNotModified()) {
+                        mCache.refresh(cached);
+                        return (T) cached.getValue();
+                    }
+                    if (value != null) {
+                        mCache.put(cacheKey, server.getHost(), server.getETag(),
+                                server.getLastModified(), value);
+                    }
+                    return value;
+                }
+            });
+        } catch (QueryException e) {
+            if (cached == null) {
+                throw e;
+            } else if (!(e instanceof UnavailableException)) {
+                // a server answered, e.g., the key was deleted, the cached result is wrong now
+                mCache.invalidate(cacheKey);
+                throw e;
+            }
+            result = null;
+        }
+
+        if (result == null && cached != null) {
+            Log.d(Constants.TAG, "No keyserver could be queried, using cached result");
+            mCache.recordOutcome(KeyServerCache.OFFLINE_HIT);
+            return (T) cached.getValue();
+        }
+        boolean revalidated = (cached != null && result == cached.getValue());
+        mCache.recordOutcome(revalidated ? KeyServerCache.REVALIDATED : KeyServerCache.MISS);
+        return result;
+    }
+
+    private <T> T execute(String[] servers, boolean hedge, final Operation<T> operation)
+            throws QueryException, TooManyResponses, InsufficientQuery {
+        List<String> ordered = orderByPreference(servers);
+        if (ordered.isEmpty()) {
+            throw new QueryException("no keyserver configured");
+        }
+
+        CompletionService<T> completionService = new ExecutorCompletionService<T>(sExecutor);
+        submit(completionService, ordered.get(0), operation);
+        int next = 1;
+        int running = 1;
+        Throwable lastError = null;
+        boolean answered = false;
+        try {
+            while (running > 0) {
+                Future<T> done;
+                if (hedge && next == 1 && next < ordered.size()) {
+                    done = completionService.poll(getHedgeDelay(ordered.get(0)),
+                            TimeUnit.MILLISECONDS);
+                    if (done == null) {
+                        Log.d(Constants.TAG, "Hedging keyserver query to " + ordered.get(next));
+                        submit(completionService, ordered.get(next++), operation);
+                        ++running;
+                        continue;
+                    }
+                } else {
+                    done = completionService.take();
+                }
+                --running;
+
+                try {
+                    T result = done.get();
+                    if (result != null) {
+                        return result;
+                    }
+                } catch (ExecutionException e) {
+                    Throwable cause = e.getCause();
+                    if (cause instanceof TooManyResponses) {
+                        throw (TooManyResponses) cause;
+                    } else if (cause instanceof InsufficientQuery) {
+                        throw (InsufficientQuery) cause;
+                    }
+                    // the error of a server that answered wins over unavailable servers
+                    if (!answered) {
+                        lastError = cause;
+                        answered = !(cause instanceof UnavailableException);
+                    }
+                }
+
+                // failed, try the next server unless a hedged query is still running
+                if (running == 0 && next < ordered.size()) {
+                    submit(completionService, ordered.get(next++), operation);
+                    ++running;
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new QueryException("keyserver query interrupted");
+        }
+
+        if (lastError instanceof QueryException) {
+            throw (QueryException) lastError;
+        } else if (lastError != null) {
+            throw new QueryException(lastError.toString());
+        }
+        return null;
+    }
+
+    private <T> void submit(CompletionService<T> completionService, final String server,
+            final Operation<T> operation) {
+        completionService.submit(new Callable<T>() {
+            @Override
+            public T call() throws Exception {
+                long start = SystemClock.elapsedRealtime();
+                HkpKeyServer keyServer = new HkpKeyServer(server);
+                T result;
+                try {
+                    result = operation.run(keyServer);
+                } catch (QueryException e) {
+                    // e.g., the key was not found, a failure only if the server could not answer
+                    recordOutcome(server, keyServer, start);
+                    if (keyServer.isUnavailable()) {
+                        throw new UnavailableException(e.getMessage());
+                    }
+                    throw e;
+                } catch (TooManyResponses e) {
+                    // the server answered, the query was bad
+                    recordSuccess(server, SystemClock.elapsedRealtime() - start);
+                    throw e;
+                } catch (InsufficientQuery e) {
+                    recordSuccess(server, SystemClock.elapsedRealtime() - start);
+                    throw e;
+                }
+
+                recordOutcome(server, keyServer, start);
+                if (result == null && !keyServer.isUnavailable()) {
+                    // the server answered without a key
+                    throw new QueryException("not found");
+                }
+                return result;
+            }
+        });
+    }
+
+    private void recordOutcome(String server, HkpKeyServer keyServer, long start) {
+        if (keyServer.isUnavailable()) {
+            recordFailure(server);
+        } else {
+            recordSuccess(server, SystemClock.elapsedRealtime() - start);
+        }
+    }
+
+    /**
+     * Orders servers: healthy ones by latency first, servers not queried before count as fastest,
+     * then unhealthy ones by error rate
+     *
+     * @param servers
+     * @return
+     */
+    synchronized List<String> orderByPreference(String[] servers) {
+        final long now = System.currentTimeMillis();
+        final HashMap<String, ServerStats> stats = new HashMap<String, ServerStats>();
+        ArrayList<String> result = new ArrayList<String>();
+        for (String server : servers) {
+            if (server != null && !stats.containsKey(server)) {
+                ServerStats serverStats = mStats.get(server);
+                stats.put(server, (serverStats != null) ? serverStats : new ServerStats());
+                result.add(server);
+            }
+        }
+
+        Collections.sort(result, new Comparator<String>() {
+            @Override
+            public int compare(String lhs, String rhs) {
+                ServerStats left = stats.get(lhs);
+                ServerStats right = stats.get(rhs);
+                if (left.isHealthy(now) != right.isHealthy(now)) {
+                    return left.isHealthy(now) ? -1 : 1;
+                }
+                if (!left.isHealthy(now)) {
+                    return Double.compare(left.getErrorRate(now), right.getErrorRate(now));
+                }
+                return Double.compare(left.mLatency, right.mLatency);
+            }
+        });
+        return result;
+    }
+
+    private synchronized long getHedgeDelay(String server) {
+        ServerStats stats = mStats.get(server);
+        if (stats == null || stats.mLatency == 0) {
+            return DEFAULT_HEDGE_DELAY_MILLIS;
+        }
+        return Math.max(MIN_HEDGE_DELAY_MILLIS, Math.round(2 * stats.mLatency));
+    }
+
+    synchronized void recordSuccess(String server, long latency) {
+        ServerStats stats = getOrCreateStats(server);
+        stats.mLatency = (stats.mLatency == 0) ? latency : average(stats.mLatency, latency);
+        recordErrorSample(stats, 0);
+    }
+
+    /**
+     * Records a connection or server error, not an answer that a key was not found
+     *
+     * @param server
+     */
+    synchronized void recordFailure(String server) {
+        recordErrorSample(getOrCreateStats(server), 1);
+    }
+
+    private void recordErrorSample(ServerStats stats, double sample) {
+        long now = System.currentTimeMillis();
+        stats.mErrorRate = average(stats.getErrorRate(now), sample);
+        stats.mUpdated = now;
+        ++stats.mSamples;
+        scheduleSave();
+    }
+
+    private static double average(double average, double sample) {
+        return SMOOTHING_FACTOR * sample + (1 - SMOOTHING_FACTOR) * average;
+    }
+
+    private ServerStats getOrCreateStats(String server) {
+        ServerStats stats = mStats.get(server);
+        if (stats == null) {
+            stats = new ServerStats();
+            mStats.put(server, stats);
+        }
+        return stats;
+    }
+
+    private void loadStats() {
+        String json = mPreferences.getKeyServerStats();
+        if (json == null) {
+            return;
+        }
+        try {
+            JSONObject servers = new JSONObject(json);
+            Iterator<?> it = servers.keys();
+            while (it.hasNext()) {
+                String server = (String) it.next();
+                JSONObject values = servers.getJSONObject(server);
+                ServerStats stats = new ServerStats();
+                stats.mLatency = values.optDouble(JSON_LATENCY, 0);
+                stats.mErrorRate = values.optDouble(JSON_ERROR_RATE, 0);
+                stats.mSamples = values.optInt(JSON_SAMPLES, 0);
+                stats.mUpdated = values.optLong(JSON_UPDATED, 0);
+                mStats.put(server, stats);
+            }
+        } catch (JSONException e) {
+            Log.e(Constants.TAG, "Could not read keyserver statistics, starting anew", e);
+            mStats.clear();
+        }
+    }
+
+    /**
+     * Saves the statistics right away if they have not been saved for SAVE_INTERVAL_MILLIS,
+     * otherwise when this interval is over
+     */
+    private void scheduleSave() {
+        if (mSaveScheduled) {
+            return;
+        }
+        long delay = mLastSaved + SAVE_INTERVAL_MILLIS - SystemClock.elapsedRealtime();
+        if (mLastSaved == 0 || delay <= 0) {
+            saveStats();
+            return;
+        }
+        mSaveScheduled = true;
+        mHandler.postDelayed(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (KeyServerPool.this) {
+                    mSaveScheduled = false;
+                    saveStats();
+                }
+            }
+        }, delay);
+    }
+
+    private void saveStats() {
+        mLastSaved = SystemClock.elapsedRealtime();
+        JSONObject servers = new JSONObject();
+        try {
+            for (String server : mStats.keySet()) {
+                ServerStats stats = mStats.get(server);
+                JSONObject values = new JSONObject();
+                values.put(JSON_LATENCY, stats.mLatency);
+                values.put(JSON_ERROR_RATE, stats.mErrorRate);
+                values.put(JSON_SAMPLES, stats.mSamples);
+                values.put(JSON_UPDATED, stats.mUpdated);
+                servers.put(server, values);
+            }
+        } catch (JSONException e) {
+            Log.e(Constants.TAG, "Could not save keyserver statistics", e);
+            return;
+        }
+        mPreferences.setKeyServerStats(servers.toString());
+    }
+}
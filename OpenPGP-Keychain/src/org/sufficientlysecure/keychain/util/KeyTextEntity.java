@@ -0,0 +1,146 @@
+/*
+ * Copyright (C) 2013 Dominik Schürmann <dominik@dominikschuermann.de>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.util;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import org.apache.http.entity.AbstractHttpEntity;
+import org.sufficientlysecure.keychain.pgp.PgpArmoredOutputStream;
+
+/**
+ * Form entity of an HKP upload, "keytext=" followed by the armored keyring, form encoded.
+ *
+ * The keyring is armored and encoded while it is written to the connection, so neither the
+ * armored keyring nor the form is held in memory. Keyservers do not all accept chunked requests,
+ * so the content length is computed beforehand by encoding the keyring once without output.
+ */
+class KeyTextEntity extends AbstractHttpEntity {
+    private static final byte[] PREFIX = "keytext=".getBytes();
+    private static final char[] HEX_DIGITS = "0123456789ABCDEF".toCharArray();
+
+    private final byte[] mKeyRingData;
+    private long mContentLength = -1;
+
+    /**
+     * @param keyRingData
+     *            binary keyring, as stored in the database
+     */
+    public KeyTextEntity(byte[] keyRingData) {
+        mKeyRingData = keyRingData;
+        setContentType("application/x-www-form-urlencoded");
+    }
+
+    @Override
+    public boolean isRepeatable() {
+        return true;
+    }
+
+    @Override
+    public boolean isStreaming() {
+        return false;
+    }
+
+    @Override
+    public long getContentLength() {
+        if (mContentLength == -1) {
+            CountingOutputStream counter = new CountingOutputStream();
+            try {
+                writeTo(counter);
+            } catch (IOException e) {
+                // counting does not throw
+            }
+            mContentLength = counter.mCount;
+        }
+        return mContentLength;
+    }
+
+    @Override
+    public InputStream getContent() throws IOException {
+        // only used by callers that want the whole form, e.g., for logging
+        ByteArrayOutputStream out = new ByteArrayOutputStream((int) getContentLength());
+        writeTo(out);
+        return new ByteArrayInputStream(out.toByteArray());
+    }
+
+    @Override
+    public void writeTo(OutputStream out) throws IOException {
+        out.write(PREFIX);
+        PgpArmoredOutputStream armored = new PgpArmoredOutputStream(new FormEncodingOutputStream(
+                out));
+        armored.write(mKeyRingData);
+        // writes the checksum and footer, but leaves out open
+        armored.close();
+        out.flush();
+    }
+
+    /**
+     * Encodes the bytes written like URLEncoder, for ASCII text
+     */
+    private static class FormEncodingOutputStream extends FilterOutputStream {
+        public FormEncodingOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            b &= 0xff;
+            if ((b >= 'a' && b <= 'z') || (b >= 'A' && b <= 'Z') || (b >= '0' && b <= '9')
+                    || b == '.' || b == '-' || b == '*' || b == '_') {
+                out.write(b);
+            } else if (b == ' ') {
+                out.write('+');
+            } else {
+                out.write('%');
+                out.write(HEX_DIGITS[b >> 4]);
+                out.write(HEX_DIGITS[b & 0xf]);
+            }
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            for (int i = off; i < off + len; ++i) {
+                write(b[i]);
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            // the connection is closed by the client
+            flush();
+        }
+    }
+
+    private static class CountingOutputStream extends OutputStream {
+        private long mCount = 0;
+
+        @Override
+        public void write(int b) {
+            ++mCount;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            mCount += len;
+        }
+    }
+}
@@ -0,0 +1,318 @@
+/*
+ * Copyright (C) 2013 Dominik Schürmann <dominik@dominikschuermann.de>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.util;
+
+import java.math.BigInteger;
+import java.security.GeneralSecurityException;
+import java.security.InvalidAlgorithmParameterException;
+import java.security.KeyFactory;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.SecureRandom;
+import java.security.spec.AlgorithmParameterSpec;
+import java.security.spec.RSAKeyGenParameterSpec;
+import java.security.spec.RSAPrivateCrtKeySpec;
+import java.security.spec.RSAPublicKeySpec;
+import java.util.ArrayList;
+
+import org.sufficientlysecure.keychain.Constants;
+
+/**
+ * RSA key pair generator searching for the primes p and q on all processors.
+ *
+ * Keys are generated like the RSA key pair generator of Bouncy Castle, with the same public
+ * exponent and prime certainty, and are returned as keys of the Bouncy Castle provider. Each
+ * worker thread searches for a missing prime from its own random start, sieving candidates with
+ * small primes before the probabilistic test. Workers check after every candidate whether the
+ * prime they search for has been found by another worker in the meantime.
+ */
+public class ParallelRsaKeyPairGenerator extends KeyPairGenerator {
+    private static final BigInteger PUBLIC_EXPONENT = RSAKeyGenParameterSpec.F4;
+    private static final int PUBLIC_EXPONENT_INT = 0x10001;
+    // same as Bouncy Castle
+    private static final int CERTAINTY = 12;
+    private static final int DEFAULT_KEY_SIZE = 2048;
+
+    // candidates tested from one random start before choosing a new one
+    private static final int SEARCH_WINDOW = 1 << 14;
+    private static final int[] SMALL_PRIMES = getSmallPrimes(1 << 13);
+
+    private final int mThreads;
+    private int mKeySize = DEFAULT_KEY_SIZE;
+    private SecureRandom mRandom;
+
+    public ParallelRsaKeyPairGenerator() {
+        this(Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * @param threads
+     *            number of worker threads
+     */
+    public ParallelRsaKeyPairGenerator(int threads) {
+        super("RSA");
+        mThreads = Math.max(1, threads);
+    }
+
+    @Override
+    public void initialize(int keySize, SecureRandom random) {
+        if (keySize < 512) {
+            throw new IllegalArgumentException("key size must be at least 512 bits");
+        }
+        mKeySize = keySize;
+        mRandom = random;
+    }
+
+    @Override
+    public void initialize(AlgorithmParameterSpec params, SecureRandom random)
+            throws InvalidAlgorithmParameterException {
+        if (!(params instanceof RSAKeyGenParameterSpec)
+                || !PUBLIC_EXPONENT.equals(((RSAKeyGenParameterSpec) params).getPublicExponent())) {
+            throw new InvalidAlgorithmParameterException("only public exponent 65537 supported");
+        }
+        initialize(((RSAKeyGenParameterSpec) params).getKeysize(), random);
+    }
+
+    @Override
+    public KeyPair generateKeyPair() {
+        if (mRandom == null) {
+            mRandom = new SecureRandom();
+        }
+
+        int pBits = (mKeySize + 1) / 2;
+        int qBits = mKeySize - pBits;
+        BigInteger[] primes = new PrimeSearch(pBits, qBits, mKeySize / 3).run();
+        BigInteger p = primes[0];
+        BigInteger q = primes[1];
+        if (p.compareTo(q) < 0) {
+            BigInteger swap = p;
+            p = q;
+            q = swap;
+        }
+
+        BigInteger n = p.multiply(q);
+        BigInteger pSub1 = p.subtract(BigInteger.ONE);
+        BigInteger qSub1 = q.subtract(BigInteger.ONE);
+        BigInteger d = PUBLIC_EXPONENT.modInverse(pSub1.multiply(qSub1));
+
+        try {
+            KeyFactory keyFactory = KeyFactory.getInstance("RSA",
+                    Constants.BOUNCY_CASTLE_PROVIDER_NAME);
+            return new KeyPair(keyFactory.generatePublic(new RSAPublicKeySpec(n,
+                    PUBLIC_EXPONENT)), keyFactory.generatePrivate(new RSAPrivateCrtKeySpec(n,
+                    PUBLIC_EXPONENT, d, p, q, d.remainder(pSub1), d.remainder(qSub1), q
+                            .modInverse(p))));
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("RSA keys not supported: " + e);
+        }
+    }
+
+    /**
+     * Search for the two primes of one key pair
+     */
+    private class PrimeSearch {
+        private final int mPBits;
+        private final int mQBits;
+        private final int mMinDiffBits;
+
+        private volatile BigInteger mP;
+        private volatile BigInteger mQ;
+        // first exception thrown by a worker, stops the search
+        private volatile Throwable mError;
+
+        public PrimeSearch(int pBits, int qBits, int minDiffBits) {
+            mPBits = pBits;
+            mQBits = qBits;
+            mMinDiffBits = minDiffBits;
+        }
+
+        /**
+         * @return p and q
+         * @throws RuntimeException
+         *             thrown by a worker, or IllegalStateException wrapping its checked exception
+         */
+        public BigInteger[] run() {
+            ArrayList<Thread> workers = new ArrayList<Thread>();
+            for (int i = 0; i < mThreads; ++i) {
+                final int index = i;
+                Thread worker = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            int bits;
+                            while ((bits = nextBits(index)) != -1) {
+                                BigInteger prime = searchPrime(bits);
+                                if (prime != null) {
+                                    offer(bits, prime);
+                                }
+                            }
+                        } catch (Throwable e) {
+                            fail(e);
+                        }
+                    }
+                }, "RSA prime search " + i);
+                // the priority of the caller, e.g., of a background service
+                worker.setPriority(Thread.currentThread().getPriority());
+                worker.start();
+                workers.add(worker);
+            }
+
+            boolean interrupted = false;
+            for (Thread worker : workers) {
+                while (true) {
+                    try {
+                        worker.join();
+                        break;
+                    } catch (InterruptedException e) {
+                        interrupted = true;
+                    }
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+
+            Throwable error = mError;
+            if (error instanceof RuntimeException) {
+                throw (RuntimeException) error;
+            } else if (error instanceof Error) {
+                throw (Error) error;
+            } else if (error != null || mP == null || mQ == null) {
+                IllegalStateException e = new IllegalStateException("RSA prime search failed");
+                e.initCause(error);
+                throw e;
+            }
+            return new BigInteger[] { mP, mQ };
+        }
+
+        private boolean isNeeded(int bits) {
+            return mError == null
+                    && ((mP == null && bits == mPBits) || (mQ == null && bits == mQBits));
+        }
+
+        /**
+         * @param worker
+         * @return bit length of a prime still missing, -1 if both are found or a worker failed
+         */
+        private synchronized int nextBits(int worker) {
+            if (mError != null) {
+                return -1;
+            } else if (mP == null && mQ == null) {
+                // split the workers if the primes differ in length
+                return (worker % 2 == 0) ? mPBits : mQBits;
+            } else if (mP == null) {
+                return mPBits;
+            } else if (mQ == null) {
+                return mQBits;
+            }
+            return -1;
+        }
+
+        private synchronized void offer(int bits, BigInteger prime) {
+            if (mP == null && bits == mPBits) {
+                if (mQ == null || isFarEnough(prime, mQ)) {
+                    mP = prime;
+                }
+            } else if (mQ == null && bits == mQBits) {
+                if (mP == null || isFarEnough(mP, prime)) {
+                    mQ = prime;
+                }
+            }
+        }
+
+        private synchronized void fail(Throwable e) {
+            if (mError == null) {
+                mError = e;
+            }
+        }
+
+        private boolean isFarEnough(BigInteger p, BigInteger q) {
+            return p.subtract(q).abs().bitLength() >= mMinDiffBits;
+        }
+
+        /**
+         * @param bits
+         * @return probable prime with the two highest bits set, so that the product of two of
+         *         them has the full key size, and p - 1 coprime to the public exponent, null if
+         *         no prime of bits is needed anymore
+         */
+        private BigInteger searchPrime(int bits) {
+            int[] residues = new int[SMALL_PRIMES.length];
+            while (isNeeded(bits)) {
+                BigInteger start = new BigInteger(bits, mRandom).setBit(bits - 1)
+                        .setBit(bits - 2).setBit(0);
+                for (int i = 0; i < SMALL_PRIMES.length; ++i) {
+                    residues[i] = start.remainder(BigInteger.valueOf(SMALL_PRIMES[i])).intValue();
+                }
+                int exponentResidue = start.remainder(PUBLIC_EXPONENT).intValue();
+
+                for (int offset = 0; offset < SEARCH_WINDOW; offset += 2) {
+                    if (!isNeeded(bits)) {
+                        return null;
+                    }
+                    if (hasSmallFactor(residues, offset)
+                            || (exponentResidue + offset) % PUBLIC_EXPONENT_INT == 1) {
+                        continue;
+                    }
+                    BigInteger candidate = start.add(BigInteger.valueOf(offset));
+                    if (candidate.bitLength() != bits) {
+                        break;
+                    }
+                    if (candidate.isProbablePrime(CERTAINTY)) {
+                        return candidate;
+                    }
+                }
+            }
+            return null;
+        }
+    }
+
+    private static boolean hasSmallFactor(int[] residues, int offset) {
+        for (int i = 0; i < SMALL_PRIMES.length; ++i) {
+            if ((residues[i] + offset) % SMALL_PRIMES[i] == 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @param limit
+     * @return odd primes below limit
+     */
+    private static int[] getSmallPrimes(int limit) {
+        boolean[] composite = new boolean[limit];
+        int count = 0;
+        for (int i = 3; i < limit; i += 2) {
+            if (!composite[i]) {
+                ++count;
+                for (int j = i * i; j < limit; j += 2 * i) {
+                    composite[j] = true;
+                }
+            }
+        }
+        int[] primes = new int[count];
+        int index = 0;
+        for (int i = 3; i < limit; i += 2) {
+            if (!composite[i]) {
+                primes[index++] = i;
+            }
+        }
+        return primes;
+    }
+}
@@ -0,0 +1,304 @@
+/*
+ * Copyright (C) 2013 Dominik Schürmann <dominik@dominikschuermann.de>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.util;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.sufficientlysecure.keychain.Constants;
+
+/**
+ * Overwrites files with random data before deleting them.
+ *
+ * The random data is the keystream of AES-CTR under a key from SecureRandom, a new key for every
+ * pass and file, which is generated much faster than the output of SecureRandom itself. Files are
+ * written through their FileChannel in large blocks and synced once at the end of each pass, not
+ * after every block. The files of a directory, see wipeDirectory(), are wiped in parallel.
+ */
+public class SecureFileWiper {
+    public static final int DEFAULT_PASSES = 1;
+
+    private static final int BUFFER_SIZE = 1 << 20;
+    private static final String KEYSTREAM_CIPHER = "AES/CTR/NoPadding";
+    private static final int KEY_LENGTH = 16;
+
+    private final int mPasses;
+    private final int mThreads;
+    private final ProgressDialogUpdater mProgress;
+    private final String mProgressMessage;
+    private final SecureRandom mRandom = new SecureRandom();
+
+    private long mTotalBytes;
+    private long mWrittenBytes;
+    private int mLastPercent;
+
+    /**
+     * @param passes
+     *            number of times every file is overwritten
+     * @param threads
+     *            number of files wiped at the same time
+     * @param progress
+     *            may be null
+     * @param progressMessage
+     */
+    public SecureFileWiper(int passes, int threads, ProgressDialogUpdater progress,
+            String progressMessage) {
+        mPasses = Math.max(1, passes);
+        mThreads = Math.max(1, threads);
+        mProgress = progress;
+        mProgressMessage = progressMessage;
+    }
+
+    /**
+     * Overwrites and deletes one file. A symbolic link is deleted, not followed.
+     *
+     * @param file
+     * @throws FileNotFoundException
+     *             if file does not exist or is a directory, see wipeDirectory()
+     * @throws IOException
+     */
+    public void wipe(File file) throws FileNotFoundException, IOException {
+        if (!file.exists()) {
+            throw new FileNotFoundException(file.getAbsolutePath());
+        } else if (file.isDirectory() && !isSymbolicLink(file)) {
+            throw new FileNotFoundException(file.getAbsolutePath() + " is a directory");
+        }
+
+        ArrayList<File> files = new ArrayList<File>();
+        files.add(file);
+        wipeAll(files, new ArrayList<File>());
+    }
+
+    /**
+     * Overwrites and deletes all files of dir, several at the same time, and deletes dir with all
+     * its subdirectories. Symbolic links are deleted, not followed. As the whole tree is destroyed
+     * irreversibly, only pass directories chosen by the app, never a path entered by the user.
+     *
+     * @param dir
+     * @throws FileNotFoundException
+     *             if dir does not exist or is no directory
+     * @throws IOException
+     */
+    public void wipeDirectory(File dir) throws FileNotFoundException, IOException {
+        if (!dir.isDirectory() || isSymbolicLink(dir)) {
+            throw new FileNotFoundException(dir.getAbsolutePath() + " is no directory");
+        }
+
+        ArrayList<File> files = new ArrayList<File>();
+        ArrayList<File> dirs = new ArrayList<File>();
+        collect(dir, files, dirs);
+        wipeAll(files, dirs);
+    }
+
+    /**
+     * @param files
+     *            regular files and symbolic links
+     * @param dirs
+     *            directories deleted after the files, each listed before its subdirectories
+     * @throws IOException
+     */
+    private void wipeAll(ArrayList<File> files, ArrayList<File> dirs) throws IOException {
+        long bytes = 0;
+        for (File f : files) {
+            if (!isSymbolicLink(f)) {
+                bytes += f.length();
+            }
+        }
+        synchronized (this) {
+            mTotalBytes = bytes * mPasses;
+            mWrittenBytes = 0;
+            mLastPercent = -1;
+        }
+        updateProgress(0);
+
+        long start = System.currentTimeMillis();
+        if (files.size() == 1 || mThreads == 1) {
+            for (File f : files) {
+                wipeFile(f);
+            }
+        } else {
+            wipeFiles(files);
+        }
+
+        // collected parents first
+        for (int i = dirs.size() - 1; i >= 0; --i) {
+            if (!dirs.get(i).delete()) {
+                throw new IOException("Could not delete " + dirs.get(i));
+            }
+        }
+
+        long millis = Math.max(1, System.currentTimeMillis() - start);
+        Log.d(Constants.TAG, "Wiped " + files.size() + " files, " + bytes + " bytes, " + mPasses
+                + " passes in " + millis + " ms, "
+                + (bytes * mPasses * 1000 / millis / (1 << 20)) + " MB/s");
+    }
+
+    /**
+     * @param file
+     * @param files
+     *            regular files and symbolic links below file
+     * @param dirs
+     *            directories below file, each before its subdirectories
+     * @throws IOException
+     */
+    private static void collect(File file, ArrayList<File> files, ArrayList<File> dirs)
+            throws IOException {
+        if (!file.isDirectory() || isSymbolicLink(file)) {
+            files.add(file);
+            return;
+        }
+        dirs.add(file);
+        File[] children = file.listFiles();
+        if (children == null) {
+            throw new IOException("Could not list " + file);
+        }
+        for (File child : children) {
+            collect(child, files, dirs);
+        }
+    }
+
+    private static boolean isSymbolicLink(File file) throws IOException {
+        File parent = file.getAbsoluteFile().getParentFile();
+        if (parent == null) {
+            return false;
+        }
+        File unresolved = new File(parent.getCanonicalFile(), file.getName());
+        return !unresolved.getCanonicalFile().equals(unresolved.getAbsoluteFile());
+    }
+
+    private void wipeFiles(ArrayList<File> files) throws IOException {
+        ExecutorService executor = Executors.newFixedThreadPool(Math.min(mThreads, files.size()));
+        try {
+            ArrayList<Future<Void>> futures = new ArrayList<Future<Void>>();
+            for (final File file : files) {
+                futures.add(executor.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() throws IOException {
+                        wipeFile(file);
+                        return null;
+                    }
+                }));
+            }
+            for (Future<Void> future : futures) {
+                future.get();
+            }
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new IllegalStateException("Wiping failed: " + cause);
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException("Interrupted");
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private void wipeFile(File file) throws IOException {
+        if (!isSymbolicLink(file)) {
+            long length = file.length();
+            RandomAccessFile raf = new RandomAccessFile(file, "rw");
+            try {
+                FileChannel channel = raf.getChannel();
+                int blockSize = (int) Math.max(1, Math.min(BUFFER_SIZE, length));
+                ByteBuffer buffer = ByteBuffer.allocateDirect(blockSize);
+                byte[] zeros = new byte[blockSize];
+                byte[] keystream = new byte[blockSize];
+
+                for (int pass = 0; pass < mPasses; ++pass) {
+                    Cipher cipher = newKeystream();
+                    long position = 0;
+                    while (position < length) {
+                        int count = (int) Math.min(blockSize, length - position);
+                        try {
+                            cipher.update(zeros, 0, count, keystream, 0);
+                        } catch (GeneralSecurityException e) {
+                            throw new IllegalStateException("AES-CTR failed: " + e);
+                        }
+                        buffer.clear();
+                        buffer.put(keystream, 0, count);
+                        buffer.flip();
+                        while (buffer.hasRemaining()) {
+                            position += channel.write(buffer, position);
+                        }
+                        updateProgress(count);
+                    }
+                    // every pass has to reach the storage, not only the page cache
+                    channel.force(false);
+                }
+            } finally {
+                raf.close();
+            }
+        }
+
+        if (!file.delete()) {
+            throw new IOException("Could not delete " + file);
+        }
+    }
+
+    private Cipher newKeystream() {
+        byte[] key = new byte[KEY_LENGTH];
+        byte[] iv = new byte[KEY_LENGTH];
+        synchronized (mRandom) {
+            mRandom.nextBytes(key);
+            mRandom.nextBytes(iv);
+        }
+        try {
+            // the fastest provider of the platform, e.g., OpenSSL, not necessarily Bouncy Castle
+            Cipher cipher = Cipher.getInstance(KEYSTREAM_CIPHER);
+            cipher.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(key, "AES"), new IvParameterSpec(
+                    iv));
+            return cipher;
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("AES-CTR not supported: " + e);
+        }
+    }
+
+    private synchronized void updateProgress(long written) {
+        mWrittenBytes += written;
+        int percent = (mTotalBytes > 0) ? (int) (100 * mWrittenBytes / mTotalBytes) : 100;
+        if (percent != mLastPercent) {
+            mLastPercent = percent;
+            if (mProgress != null) {
+                mProgress.setProgress(mProgressMessage, percent, 100);
+            }
+        }
+    }
+}
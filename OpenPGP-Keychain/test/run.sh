@@ -0,0 +1,27 @@
+#!/bin/sh
+#
+# Runs a plain Java test or benchmark of test/src on the JVM, without Android:
+#
+#   test/run.sh org.sufficientlysecure.keychain.pgp.ArmorCompatibilityTest
+#
+# The tests are compiled together with the classes of src they use, against the Spongy Castle
+# jars in libs. Only classes without Android dependencies can be tested this way, test/stubs
+# replaces the few Android dependent classes they refer to, e.g., Constants.
+# A test exits with a non-zero status if a check fails.
+
+set -e
+
+if [ $# -lt 1 ]; then
+    echo "Usage: $0 <main class> [arguments]" >&2
+    exit 1
+fi
+
+cd "$(dirname "$0")/.."
+OUT=$(mktemp -d)
+trap 'rm -rf "$OUT"' EXIT
+
+CLASSPATH=$(ls libs/sc*.jar | tr '\n' ':')
+# stubs first, so they are compiled instead of the classes of src with the same name
+javac -nowarn -encoding UTF-8 -d "$OUT" -cp "$CLASSPATH" -sourcepath test/stubs:test/src:src \
+    $(find test/src -name '*.java')
+java -cp "$OUT:$CLASSPATH" "$@"
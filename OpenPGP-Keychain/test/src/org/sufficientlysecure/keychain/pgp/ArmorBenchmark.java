@@ -0,0 +1,119 @@
+/*
+ * Copyright (C) 2013 Dominik Schürmann <dominik@dominikschuermann.de>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.pgp;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Locale;
+import java.util.Random;
+
+import org.spongycastle.bcpg.ArmoredInputStream;
+import org.spongycastle.bcpg.ArmoredOutputStream;
+import org.spongycastle.bcpg.CRC24;
+
+/**
+ * Throughput of armor encoding, decoding and CRC24 of Bouncy Castle and of this app, on 16 MB of
+ * random data.
+ *
+ * Run with test/run.sh org.sufficientlysecure.keychain.pgp.ArmorBenchmark [rounds]
+ */
+public class ArmorBenchmark {
+    private static final int DATA_SIZE = 16 << 20;
+    private static final int BUFFER_SIZE = 8192;
+
+    private static class NullOutputStream extends OutputStream {
+        @Override
+        public void write(int b) {
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        int rounds = (args.length > 0) ? Integer.parseInt(args[0]) : 3;
+
+        byte[] data = new byte[DATA_SIZE];
+        new Random(2).nextBytes(data);
+        data[0] = (byte) 0x99;
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ArmoredOutputStream armorOut = new ArmoredOutputStream(out);
+        armorOut.write(data);
+        armorOut.close();
+        byte[] armored = out.toByteArray();
+
+        // the first rounds include warming up the JIT
+        for (int round = 0; round < rounds; ++round) {
+            long start = System.nanoTime();
+            ArmoredOutputStream bcOut = new ArmoredOutputStream(new NullOutputStream());
+            bcOut.write(data, 0, data.length);
+            bcOut.close();
+            double bcEncode = getMegabytesPerSecond(start);
+
+            start = System.nanoTime();
+            PgpArmoredOutputStream pgpOut = new PgpArmoredOutputStream(new NullOutputStream());
+            for (int i = 0; i < data.length; i += BUFFER_SIZE) {
+                pgpOut.write(data, i, Math.min(BUFFER_SIZE, data.length - i));
+            }
+            pgpOut.close();
+            double encode = getMegabytesPerSecond(start);
+
+            start = System.nanoTime();
+            readAll(new ArmoredInputStream(new BufferedInputStream(new ByteArrayInputStream(
+                    armored))));
+            double bcDecode = getMegabytesPerSecond(start);
+
+            start = System.nanoTime();
+            readAll(new PgpArmoredInputStream(new BufferedInputStream(new ByteArrayInputStream(
+                    armored))));
+            double decode = getMegabytesPerSecond(start);
+
+            start = System.nanoTime();
+            CRC24 bcCrc = new CRC24();
+            for (byte b : data) {
+                bcCrc.update(b);
+            }
+            double bcCrcSpeed = getMegabytesPerSecond(start);
+
+            start = System.nanoTime();
+            Crc24 crc = new Crc24();
+            crc.update(data, 0, data.length);
+            double crcSpeed = getMegabytesPerSecond(start);
+
+            System.out.println(String.format(Locale.US, "Round %d, MB/s BC -> app: "
+                    + "encode %.0f -> %.0f, decode %.0f -> %.0f, CRC24 %.0f -> %.0f", round + 1,
+                    bcEncode, encode, bcDecode, decode, bcCrcSpeed, crcSpeed));
+        }
+    }
+
+    private static double getMegabytesPerSecond(long start) {
+        return DATA_SIZE / (double) (1 << 20) / ((System.nanoTime() - start) / 1e9);
+    }
+
+    private static void readAll(InputStream in) throws IOException {
+        byte[] buffer = new byte[BUFFER_SIZE];
+        while (in.read(buffer) > 0) {
+            // only the time counts
+        }
+    }
+}
@@ -0,0 +1,272 @@
+/*
+ * Copyright (C) 2013 Dominik Schürmann <dominik@dominikschuermann.de>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.pgp;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.spongycastle.bcpg.ArmoredInputStream;
+import org.spongycastle.bcpg.ArmoredOutputStream;
+import org.spongycastle.bcpg.CRC24;
+
+/**
+ * Checks PgpArmoredOutputStream, PgpArmoredInputStream and Crc24 against the armor codec of
+ * Bouncy Castle:
+ * - Crc24 computes the same checksums as CRC24.
+ * - PgpArmoredOutputStream writes the same bytes as ArmoredOutputStream, for data lengths around
+ *   line and buffer boundaries, the first bytes of all common packets, with and without headers,
+ *   written byte by byte and in chunks of random size.
+ * - Both decoders read the armor back, also with CRLF line ends and text before the armor.
+ * - PgpArmoredInputStream reads several consecutive armor blocks like ArmoredInputStream, i.e.,
+ *   it does not consume input after the end of a block.
+ * - A wrong or missing checksum is an IOException.
+ *
+ * Run with test/run.sh org.sufficientlysecure.keychain.pgp.ArmorCompatibilityTest
+ */
+public class ArmorCompatibilityTest {
+    private static final int[] LENGTHS = { 0, 1, 2, 3, 4, 47, 48, 49, 95, 96, 97, 12287, 12288,
+            12289, 24576, 100000, 1 << 20 };
+    // first byte of the data decides the armor header line, e.g., public key, message, signature
+    private static final int[] TAGS = { 0x99, 0x95, 0x89, 0x85, 0xc6, 0xc5, 0xc2, 0x8c, 0xa3,
+            0xd2, 0x00 };
+    // writing more byte by byte only takes long
+    private static final int MAX_BYTEWISE_LENGTH = 100000;
+
+    private static final String VERSION = "OpenPGP Keychain v2.3";
+    private static final String COMMENT = "armor test";
+
+    private static Random sRandom = new Random(1);
+
+    public static void main(String[] args) throws IOException {
+        checkCrc();
+        checkEncoding();
+        checkConsecutiveBlocks();
+        checkChecksumErrors();
+        System.out.println("OK");
+    }
+
+    private static void checkCrc() {
+        for (int i = 0; i < 200; ++i) {
+            byte[] data = randomBytes(sRandom.nextInt(1000));
+            CRC24 expected = new CRC24();
+            for (byte b : data) {
+                expected.update(b & 0xff);
+            }
+            // mixed block and single byte updates
+            Crc24 crc = new Crc24();
+            int split = sRandom.nextInt(data.length + 1);
+            crc.update(data, 0, split);
+            for (int j = split; j < data.length; ++j) {
+                crc.update(data[j]);
+            }
+            check(crc.getValue() == expected.getValue(), "CRC of " + data.length + " bytes");
+        }
+        System.out.println("CRC24: 200 cases identical");
+    }
+
+    private static void checkEncoding() throws IOException {
+        boolean crlfLineEnds = "\r\n".equals(System.getProperty("line.separator"));
+        int cases = 0;
+        for (int length : LENGTHS) {
+            for (int tag : TAGS) {
+                for (int headers = 0; headers < 2; ++headers) {
+                    for (int bulk = 0; bulk < 2; ++bulk) {
+                        if (length > MAX_BYTEWISE_LENGTH && bulk == 0) {
+                            continue;
+                        }
+                        byte[] data = randomBytes(length);
+                        if (length > 0) {
+                            data[0] = (byte) tag;
+                        }
+                        String name = length + " bytes, tag 0x" + Integer.toHexString(tag)
+                                + ((headers == 1) ? ", headers" : "")
+                                + ((bulk == 1) ? ", chunks" : ", byte by byte");
+
+                        byte[] expected = armorBc(data, headers == 1);
+                        byte[] armored = armor(data, headers == 1, bulk == 1);
+                        check(Arrays.equals(expected, armored), "armor of " + name);
+                        if (length == 0) {
+                            continue;
+                        }
+
+                        check(Arrays.equals(data, readAll(new PgpArmoredInputStream(
+                                new ByteArrayInputStream(armored)))), "decoding " + name);
+                        check(Arrays.equals(data, readAll(new ArmoredInputStream(
+                                new ByteArrayInputStream(armored)))), "BC decoding " + name);
+                        if (!crlfLineEnds) {
+                            String crlf = "text before\r\n"
+                                    + new String(armored, "ISO-8859-1").replace("\n", "\r\n");
+                            check(Arrays.equals(data, readAll(new PgpArmoredInputStream(
+                                    new ByteArrayInputStream(crlf.getBytes("ISO-8859-1"))))),
+                                    "decoding with CRLF " + name);
+                        }
+                        ++cases;
+                    }
+                }
+            }
+        }
+        System.out.println("Armor: " + cases + " cases identical to ArmoredOutputStream and "
+                + "decoded by both");
+    }
+
+    private static void checkConsecutiveBlocks() throws IOException {
+        for (String lineEnd : new String[] { "\n", "\r\n", "\r" }) {
+            StringBuilder armored = new StringBuilder();
+            ArrayList<byte[]> blocks = new ArrayList<byte[]>();
+            for (int i = 0; i < 5; ++i) {
+                byte[] data = randomBytes(sRandom.nextInt(30000) + 1);
+                data[0] = (byte) 0x99;
+                blocks.add(data);
+                armored.append(new String(armorBc(data, true), "ISO-8859-1").replace("\n",
+                        lineEnd));
+                if (i == 2) {
+                    armored.append(lineEnd + "text between" + lineEnd);
+                }
+            }
+            byte[] bytes = armored.toString().getBytes("ISO-8859-1");
+
+            for (int bc = 0; bc < 2; ++bc) {
+                BufferedInputStream in = new BufferedInputStream(new ByteArrayInputStream(bytes));
+                int count = 0;
+                while (in.available() > 0) {
+                    // block reads of ArmoredInputStream may read past the end of the block
+                    byte[] data = (bc == 1) ? readBytewise(new ArmoredInputStream(in))
+                            : readAll(new PgpArmoredInputStream(in));
+                    if (data.length == 0 && in.available() == 0) {
+                        break;
+                    }
+                    check(count < blocks.size() && Arrays.equals(blocks.get(count), data),
+                            "block " + count + ((bc == 1) ? " BC" : ""));
+                    ++count;
+                }
+                check(count == blocks.size(), count + " blocks read" + ((bc == 1) ? " BC" : ""));
+            }
+        }
+        System.out.println("Consecutive blocks: read like ArmoredInputStream");
+    }
+
+    private static void checkChecksumErrors() throws IOException {
+        byte[] data = randomBytes(1000);
+        data[0] = (byte) 0x99;
+        String armored = new String(armorBc(data, true), "ISO-8859-1");
+
+        String wrong = armored.replaceFirst("\n=(....)", "\n=AAAA");
+        try {
+            readAll(new PgpArmoredInputStream(new ByteArrayInputStream(wrong
+                    .getBytes("ISO-8859-1"))));
+            check(false, "wrong checksum accepted");
+        } catch (IOException e) {
+            System.out.println("Wrong checksum: " + e.getMessage());
+        }
+
+        String missing = armored.replaceFirst("\n=....\n", "\n");
+        try {
+            readAll(new PgpArmoredInputStream(new ByteArrayInputStream(missing
+                    .getBytes("ISO-8859-1"))));
+            check(false, "missing checksum accepted");
+        } catch (IOException e) {
+            System.out.println("Missing checksum: " + e.getMessage());
+        }
+    }
+
+    private static byte[] armorBc(byte[] data, boolean headers) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ArmoredOutputStream armorOut = new ArmoredOutputStream(out);
+        if (headers) {
+            armorOut.setHeader("Version", VERSION);
+            armorOut.setHeader("Comment", COMMENT);
+        }
+        armorOut.write(data);
+        armorOut.close();
+        return out.toByteArray();
+    }
+
+    private static byte[] armor(byte[] data, boolean headers, boolean bulk) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        PgpArmoredOutputStream armorOut = new PgpArmoredOutputStream(out);
+        if (headers) {
+            armorOut.setHeader("Version", VERSION);
+            armorOut.setHeader("Comment", COMMENT);
+        }
+        if (bulk) {
+            int offset = 0;
+            while (offset < data.length) {
+                int count = Math.min(data.length - offset, 1 + sRandom.nextInt(20000));
+                armorOut.write(data, offset, count);
+                offset += count;
+            }
+        } else {
+            for (byte b : data) {
+                armorOut.write(b);
+            }
+        }
+        armorOut.close();
+        return out.toByteArray();
+    }
+
+    /**
+     * Reads in completely, mixing single byte and block reads of random size
+     */
+    private static byte[] readAll(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[70000];
+        while (true) {
+            if (sRandom.nextInt(4) == 0) {
+                int b = in.read();
+                if (b < 0) {
+                    break;
+                }
+                out.write(b);
+            } else {
+                int n = in.read(buffer, 0, 1 + sRandom.nextInt(buffer.length));
+                if (n < 0) {
+                    break;
+                }
+                out.write(buffer, 0, n);
+            }
+        }
+        return out.toByteArray();
+    }
+
+    private static byte[] readBytewise(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        int b;
+        while ((b = in.read()) >= 0) {
+            out.write(b);
+        }
+        return out.toByteArray();
+    }
+
+    private static byte[] randomBytes(int length) {
+        byte[] data = new byte[length];
+        sRandom.nextBytes(data);
+        return data;
+    }
+
+    private static void check(boolean condition, String what) {
+        if (!condition) {
+            throw new AssertionError("Failed: " + what);
+        }
+    }
+}
@@ -0,0 +1,247 @@
+/*
+ * Copyright (C) 2013 Dominik Schürmann <dominik@dominikschuermann.de>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.pgp;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Random;
+
+/**
+ * Data for the compression tests and benchmarks, generated from a seed so every run compresses
+ * the same bytes, and gpg and bzip2 as independent decoders if they are installed
+ */
+class CompressionTestData {
+    private static final String[] WORDS = { "the", "of", "key", "keyring", "signature", "and",
+            "to", "a", "in", "is", "message", "encrypted", "public", "secret", "user", "id",
+            "that", "for", "with", "server", "trust", "certify", "subkey", "expires", "on", "by",
+            "OpenPGP", "Keychain", "passphrase", "compression", "data", "packet", "be", "not" };
+
+    private static final String GPG = "gpg";
+    private static final String BZIP2 = "bzip2";
+
+    private static Boolean sGpgAvailable;
+    private static Boolean sBzip2Available;
+
+    /**
+     * @param length
+     * @param seed
+     * @return text of random words, lines and paragraphs, deflating to about a quarter
+     */
+    static byte[] text(int length, long seed) {
+        Random random = new Random(seed);
+        StringBuilder text = new StringBuilder(length + 100);
+        int lineLength = 0;
+        while (text.length() < length) {
+            String word = WORDS[(int) (WORDS.length * Math.pow(random.nextDouble(), 2))];
+            text.append(word);
+            lineLength += word.length();
+            if (lineLength > 60 + random.nextInt(15)) {
+                text.append(random.nextInt(8) == 0 ? ".\n\n" : "\n");
+                lineLength = 0;
+            } else {
+                text.append(random.nextInt(12) == 0 ? ", " : " ");
+                ++lineLength;
+            }
+        }
+        text.setLength(length);
+        try {
+            return text.toString().getBytes("US-ASCII");
+        } catch (IOException e) {
+            throw new IllegalStateException(e.toString());
+        }
+    }
+
+    /**
+     * @param length
+     * @param seed
+     * @return binary data with skewed byte frequencies and repeated sequences, like executables,
+     *         deflating to about 60 %
+     */
+    static byte[] binary(int length, long seed) {
+        Random random = new Random(seed);
+        byte[] data = new byte[length];
+        int i = 0;
+        while (i < length) {
+            int n = Math.min(length - i, 1 + random.nextInt(64));
+            if (i > 4096 && random.nextInt(3) == 0) {
+                System.arraycopy(data, i - 1 - random.nextInt(4096), data, i, n);
+            } else {
+                for (int j = i; j < i + n; ++j) {
+                    data[j] = (byte) (random.nextGaussian() * 24);
+                }
+            }
+            i += n;
+        }
+        return data;
+    }
+
+    /**
+     * @param length
+     * @param seed
+     * @return incompressible data
+     */
+    static byte[] random(int length, long seed) {
+        byte[] data = new byte[length];
+        new Random(seed).nextBytes(data);
+        return data;
+    }
+
+    static synchronized boolean isGpgAvailable() {
+        if (sGpgAvailable == null) {
+            sGpgAvailable = isAvailable(GPG);
+        }
+        return sGpgAvailable;
+    }
+
+    static synchronized boolean isBzip2Available() {
+        if (sBzip2Available == null) {
+            sBzip2Available = isAvailable(BZIP2);
+        }
+        return sBzip2Available;
+    }
+
+    /**
+     * Decrypts a message encrypted with a passphrase with gpg, in a temporary home directory
+     *
+     * @param message
+     * @param passphrase
+     * @return decrypted data
+     * @throws IOException
+     *             if gpg fails
+     */
+    static byte[] gpgDecrypt(byte[] message, String passphrase) throws IOException {
+        File dir = createTempDir();
+        try {
+            File in = new File(dir, "message.gpg");
+            File out = new File(dir, "message");
+            writeFile(in, message);
+            int status = run(GPG, "--homedir", dir.getPath(), "--batch", "--quiet",
+                    "--pinentry-mode", "loopback", "--passphrase", passphrase, "--output",
+                    out.getPath(), "--decrypt", in.getPath());
+            if (status != 0) {
+                throw new IOException("gpg failed with status " + status);
+            }
+            return readFile(out);
+        } finally {
+            deleteTree(dir);
+        }
+    }
+
+    /**
+     * Decompresses a BZIP2 stream with the bzip2 tool
+     *
+     * @param compressed
+     * @return decompressed data
+     * @throws IOException
+     *             if bzip2 fails
+     */
+    static byte[] bzip2Decompress(byte[] compressed) throws IOException {
+        File dir = createTempDir();
+        try {
+            File in = new File(dir, "data.bz2");
+            writeFile(in, compressed);
+            int status = run(BZIP2, "--decompress", in.getPath());
+            if (status != 0) {
+                throw new IOException("bzip2 failed with status " + status);
+            }
+            return readFile(new File(dir, "data"));
+        } finally {
+            deleteTree(dir);
+        }
+    }
+
+    static byte[] readAll(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[1 << 16];
+        int n;
+        while ((n = in.read(buffer)) > 0) {
+            out.write(buffer, 0, n);
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * @param command
+     * @return exit status, the output is printed only if the command fails
+     * @throws IOException
+     */
+    private static int run(String... command) throws IOException {
+        Process process = new ProcessBuilder(command).redirectErrorStream(true).start();
+        process.getOutputStream().close();
+        byte[] output = readAll(process.getInputStream());
+        try {
+            int status = process.waitFor();
+            if (status != 0) {
+                System.out.write(output);
+                System.out.flush();
+            }
+            return status;
+        } catch (InterruptedException e) {
+            throw new IOException("interrupted");
+        }
+    }
+
+    private static boolean isAvailable(String command) {
+        try {
+            return run(command, "--version") == 0;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    private static File createTempDir() throws IOException {
+        File dir = File.createTempFile("keychain-test", "");
+        if (!dir.delete() || !dir.mkdir()) {
+            throw new IOException("Could not create " + dir);
+        }
+        return dir;
+    }
+
+    private static void deleteTree(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                deleteTree(child);
+            }
+        }
+        file.delete();
+    }
+
+    private static void writeFile(File file, byte[] data) throws IOException {
+        OutputStream out = new FileOutputStream(file);
+        try {
+            out.write(data);
+        } finally {
+            out.close();
+        }
+    }
+
+    private static byte[] readFile(File file) throws IOException {
+        InputStream in = new FileInputStream(file);
+        try {
+            return readAll(in);
+        } finally {
+            in.close();
+        }
+    }
+}
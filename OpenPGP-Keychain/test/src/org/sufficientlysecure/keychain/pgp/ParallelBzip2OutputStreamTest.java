@@ -0,0 +1,150 @@
+/*
+ * Copyright (C) 2013 Dominik Schürmann <dominik@dominikschuermann.de>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.pgp;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.spongycastle.apache.bzip2.CBZip2InputStream;
+import org.spongycastle.apache.bzip2.CBZip2OutputStream;
+
+/**
+ * Checks the BZIP2 streams of ParallelBzip2OutputStream:
+ * - They are decompressed by CBZip2InputStream of Bouncy Castle, which reads only a single
+ *   stream, and, if installed, by the bzip2 tool, for data around the block size, incompressible
+ *   data, and runs of all lengths the run length encoding of BZIP2 distinguishes, on one and more
+ *   threads, written in chunks of random size including single bytes.
+ * - They are at most 1 % larger than the stream of CBZip2OutputStream, plus the headers of the
+ *   additional blocks of long runs, which are cut into chunks of a few MB. CBZip2OutputStream
+ *   throws an ArithmeticException for no data.
+ *
+ * Run with test/run.sh org.sufficientlysecure.keychain.pgp.ParallelBzip2OutputStreamTest
+ */
+public class ParallelBzip2OutputStreamTest {
+    private static final int[] THREADS = { 1, 3 };
+    private static final int BLOCK_SIZE = ParallelBzip2OutputStream.BLOCK_SIZE;
+
+    private static Random sRandom = new Random(1);
+
+    public static void main(String[] args) throws IOException {
+        boolean bzip2 = CompressionTestData.isBzip2Available();
+        if (!bzip2) {
+            System.out.println("bzip2 not found, streams are only decompressed by Bouncy Castle");
+        }
+
+        Object[][] cases = { { "empty", new byte[0] }, { "one byte", new byte[] { 7 } },
+                { "text of block size - 1", CompressionTestData.text(BLOCK_SIZE - 1, 1) },
+                { "text of block size", CompressionTestData.text(BLOCK_SIZE, 1) },
+                { "text of block size + 1", CompressionTestData.text(BLOCK_SIZE + 1, 1) },
+                { "text of 3.5 blocks", CompressionTestData.text(3 * BLOCK_SIZE + BLOCK_SIZE / 2,
+                        2) },
+                { "binary", CompressionTestData.binary(4 << 20, 1) },
+                { "random", CompressionTestData.random(2 << 20, 1) },
+                // longer than the largest chunk compressed on its own
+                { "zeros", new byte[12 << 20] },
+                { "runs of 3", runs(3 << 20, 3, 3) }, { "runs of 4", runs(3 << 20, 4, 4) },
+                { "runs of 5", runs(3 << 20, 5, 5) }, { "runs of 255", runs(3 << 20, 255, 255) },
+                { "runs of 256", runs(3 << 20, 256, 256) },
+                { "runs of 1 to 600", runs(3 << 20, 1, 600) } };
+
+        for (Object[] c : cases) {
+            String name = (String) c[0];
+            byte[] data = (byte[]) c[1];
+            // CBZip2OutputStream fails to compress no data
+            long bcSize = (data.length > 0) ? compressBc(data).length : 0;
+            long size = 0;
+            for (int threads : THREADS) {
+                byte[] compressed = compress(data, threads);
+                check(Arrays.equals(data, CompressionTestData.readAll(new CBZip2InputStream(
+                        new ByteArrayInputStream(compressed)))), "decompressing " + name + ", "
+                        + threads + " threads");
+                if (bzip2) {
+                    check(Arrays.equals(data, CompressionTestData.bzip2Decompress(compressed)),
+                            "bzip2 decompressing " + name + ", " + threads + " threads");
+                }
+                long maxSize = bcSize + bcSize / 100 + 64 * (1 + (data.length >> 20));
+                check(data.length == 0 || compressed.length <= maxSize, name + " compressed to "
+                        + compressed.length + " bytes, Bouncy Castle " + bcSize);
+                size = compressed.length;
+            }
+            System.out.println(name + ": " + data.length + " bytes compressed to " + size
+                    + ", by Bouncy Castle to " + bcSize + ", decompressed"
+                    + (bzip2 ? " by Bouncy Castle and bzip2" : ""));
+        }
+        System.out.println("OK");
+    }
+
+    /**
+     * @param length
+     * @param minRun
+     * @param maxRun
+     * @return runs of random bytes, each of random length between minRun and maxRun
+     */
+    private static byte[] runs(int length, int minRun, int maxRun) {
+        Random random = new Random(length + minRun + maxRun);
+        byte[] data = new byte[length];
+        int i = 0;
+        int previous = -1;
+        while (i < length) {
+            int value;
+            do {
+                value = random.nextInt(4);
+            } while (value == previous);
+            previous = value;
+            int end = Math.min(length, i + minRun + random.nextInt(maxRun - minRun + 1));
+            Arrays.fill(data, i, end, (byte) value);
+            i = end;
+        }
+        return data;
+    }
+
+    private static byte[] compress(byte[] data, int threads) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ParallelBzip2OutputStream bzip2Out = new ParallelBzip2OutputStream(out, threads);
+        int offset = 0;
+        while (offset < data.length) {
+            if (sRandom.nextInt(4) == 0) {
+                bzip2Out.write(data[offset++]);
+            } else {
+                int count = Math.min(data.length - offset, 1 + sRandom.nextInt(1 << 20));
+                bzip2Out.write(data, offset, count);
+                offset += count;
+            }
+        }
+        bzip2Out.close();
+        return out.toByteArray();
+    }
+
+    private static byte[] compressBc(byte[] data) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        CBZip2OutputStream bzip2Out = new CBZip2OutputStream(out);
+        bzip2Out.write(data);
+        bzip2Out.close();
+        return out.toByteArray();
+    }
+
+    private static void check(boolean condition, String what) {
+        if (!condition) {
+            throw new AssertionError("Failed: " + what);
+        }
+    }
+}
@@ -0,0 +1,126 @@
+/*
+ * Copyright (C) 2013 Dominik Schürmann <dominik@dominikschuermann.de>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.pgp;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Locale;
+import java.util.zip.Deflater;
+
+import org.spongycastle.bcpg.CompressionAlgorithmTags;
+import org.spongycastle.openpgp.PGPCompressedDataGenerator;
+import org.spongycastle.openpgp.PGPException;
+
+/**
+ * Time and size of compressing 16 MB of text and of binary data with ZIP, ZLIB and BZIP2, by
+ * PGPCompressedDataGenerator and by ParallelCompressedDataGenerator on one thread and on
+ * several, by default all processors. The best of the rounds is printed.
+ *
+ * Run with test/run.sh org.sufficientlysecure.keychain.pgp.ParallelCompressedDataGeneratorBenchmark
+ * [rounds [threads]]
+ */
+public class ParallelCompressedDataGeneratorBenchmark {
+    private static final int DATA_SIZE = 16 << 20;
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    /**
+     * Counts the bytes written
+     */
+    private static class CountingOutputStream extends OutputStream {
+        private long mCount = 0;
+
+        @Override
+        public void write(int b) {
+            ++mCount;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            mCount += len;
+        }
+    }
+
+    public static void main(String[] args) throws IOException, PGPException {
+        int rounds = (args.length > 0) ? Integer.parseInt(args[0]) : 3;
+        int threads = (args.length > 1) ? Integer.parseInt(args[1]) : Runtime.getRuntime()
+                .availableProcessors();
+        run(ParallelCompressedDataGeneratorTest.ALGORITHMS, rounds, threads);
+    }
+
+    static void run(int[] algorithms, int rounds, int threads) throws IOException, PGPException {
+        byte[][] data = { CompressionTestData.text(DATA_SIZE, 1),
+                CompressionTestData.binary(DATA_SIZE, 1) };
+        String[] names = { "text", "binary" };
+
+        for (int algorithm : algorithms) {
+            for (int i = 0; i < data.length; ++i) {
+                // the first round includes warming up the JIT
+                long[] millis = { Long.MAX_VALUE, Long.MAX_VALUE, Long.MAX_VALUE };
+                long[] sizes = new long[millis.length];
+                for (int round = 0; round < rounds; ++round) {
+                    for (int j = 0; j < millis.length; ++j) {
+                        long start = System.nanoTime();
+                        sizes[j] = compress(data[i], algorithm, (j == 0) ? 0 : (j == 1) ? 1
+                                : threads);
+                        millis[j] = Math.min(millis[j], (System.nanoTime() - start) / 1000000);
+                    }
+                }
+                System.out.println(String.format(Locale.US, "Algorithm %d, %s: BC %d ms %d "
+                        + "bytes, 1 thread %d ms %d bytes, %d threads %d ms %d bytes", algorithm,
+                        names[i], millis[0], sizes[0], millis[1], sizes[1], threads, millis[2],
+                        sizes[2]));
+            }
+        }
+    }
+
+    /**
+     * @param data
+     * @param algorithm
+     * @param threads
+     *            0 for PGPCompressedDataGenerator
+     * @return size of the compressed data packet
+     * @throws IOException
+     * @throws PGPException
+     */
+    private static long compress(byte[] data, int algorithm, int threads) throws IOException,
+            PGPException {
+        CountingOutputStream out = new CountingOutputStream();
+        PGPCompressedDataGenerator bcGenerator = null;
+        ParallelCompressedDataGenerator generator = null;
+        OutputStream compressedOut;
+        if (threads == 0) {
+            bcGenerator = (algorithm == CompressionAlgorithmTags.BZIP2)
+                    ? new PGPCompressedDataGenerator(algorithm)
+                    : new PGPCompressedDataGenerator(algorithm, Deflater.DEFAULT_COMPRESSION);
+            compressedOut = bcGenerator.open(out, new byte[BUFFER_SIZE]);
+        } else {
+            generator = new ParallelCompressedDataGenerator(algorithm,
+                    Deflater.DEFAULT_COMPRESSION, threads);
+            compressedOut = generator.open(out);
+        }
+        for (int i = 0; i < data.length; i += BUFFER_SIZE) {
+            compressedOut.write(data, i, Math.min(BUFFER_SIZE, data.length - i));
+        }
+        if (bcGenerator != null) {
+            bcGenerator.close();
+        } else {
+            generator.close();
+        }
+        return out.mCount;
+    }
+}
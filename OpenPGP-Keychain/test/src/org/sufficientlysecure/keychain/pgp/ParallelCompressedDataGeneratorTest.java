@@ -0,0 +1,235 @@
+/*
+ * Copyright (C) 2013 Dominik Schürmann <dominik@dominikschuermann.de>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.pgp;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.SecureRandom;
+import java.security.Security;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.Random;
+import java.util.zip.Deflater;
+
+import org.spongycastle.bcpg.CompressionAlgorithmTags;
+import org.spongycastle.bcpg.SymmetricKeyAlgorithmTags;
+import org.spongycastle.jce.provider.BouncyCastleProvider;
+import org.spongycastle.openpgp.PGPCompressedData;
+import org.spongycastle.openpgp.PGPEncryptedDataGenerator;
+import org.spongycastle.openpgp.PGPEncryptedDataList;
+import org.spongycastle.openpgp.PGPException;
+import org.spongycastle.openpgp.PGPLiteralData;
+import org.spongycastle.openpgp.PGPLiteralDataGenerator;
+import org.spongycastle.openpgp.PGPObjectFactory;
+import org.spongycastle.openpgp.PGPPBEEncryptedData;
+import org.spongycastle.openpgp.operator.jcajce.JcaPGPDigestCalculatorProviderBuilder;
+import org.spongycastle.openpgp.operator.jcajce.JcePBEDataDecryptorFactoryBuilder;
+import org.spongycastle.openpgp.operator.jcajce.JcePBEKeyEncryptionMethodGenerator;
+import org.spongycastle.openpgp.operator.jcajce.JcePGPDataEncryptorBuilder;
+import org.sufficientlysecure.keychain.Constants;
+
+/**
+ * Checks messages compressed by ParallelCompressedDataGenerator:
+ * - ZIP, ZLIB and BZIP2 messages encrypted with a passphrase are decrypted by Bouncy Castle
+ *   and, if installed, by gpg, for data lengths around the block size, text and binary data,
+ *   on one and more threads.
+ * - After abort(), e.g., if reading the input failed, no compressing thread is left running,
+ *   neither after close().
+ *
+ * Run with test/run.sh org.sufficientlysecure.keychain.pgp.ParallelCompressedDataGeneratorTest
+ */
+public class ParallelCompressedDataGeneratorTest {
+    static final int[] ALGORITHMS = { CompressionAlgorithmTags.ZIP,
+            CompressionAlgorithmTags.ZLIB, CompressionAlgorithmTags.BZIP2 };
+    private static final int[] THREADS = { 1, 3 };
+    private static final String PASSPHRASE = "passphrase";
+    // threads of the executors of the generator
+    private static final String THREAD_PREFIX = "pool-";
+    private static final long THREAD_TIMEOUT_MILLIS = 10000;
+
+    private static Random sRandom = new Random(1);
+
+    public static void main(String[] args) throws IOException, PGPException {
+        Security.addProvider(new BouncyCastleProvider());
+        boolean gpg = CompressionTestData.isGpgAvailable();
+        if (!gpg) {
+            System.out.println("gpg not found, messages are only decrypted by Bouncy Castle");
+        }
+
+        for (int algorithm : ALGORITHMS) {
+            check(ParallelCompressedDataGenerator.isSupported(algorithm), "algorithm "
+                    + algorithm + " supported");
+            int blockSize = ParallelCompressedDataGenerator.getBlockSize(algorithm);
+            int[] lengths = { 0, 1, blockSize - 1, blockSize, blockSize + 1, 3 * blockSize
+                    + blockSize / 2 };
+            int cases = 0;
+            for (int length : lengths) {
+                for (int threads : THREADS) {
+                    for (int binary = 0; binary < 2; ++binary) {
+                        byte[] data = (binary == 1) ? CompressionTestData.binary(length, length)
+                                : CompressionTestData.text(length, length);
+                        String name = "algorithm " + algorithm + ", " + length
+                                + ((binary == 1) ? " binary" : " text") + " bytes, " + threads
+                                + " threads";
+                        byte[] message = encrypt(data, algorithm, threads);
+                        check(Arrays.equals(data, decrypt(message)), "decrypting " + name);
+                        if (gpg) {
+                            check(Arrays.equals(data, CompressionTestData.gpgDecrypt(message,
+                                    PASSPHRASE)), "gpg decrypting " + name);
+                        }
+                        ++cases;
+                    }
+                }
+            }
+            System.out.println("Algorithm " + algorithm + ": " + cases + " messages decrypted"
+                    + (gpg ? " by Bouncy Castle and gpg" : ""));
+
+            checkThreadsStopped(algorithm);
+        }
+        System.out.println("OK");
+    }
+
+    /**
+     * @param algorithm
+     * @throws IOException
+     */
+    static void checkThreadsStopped(int algorithm) throws IOException {
+        int before = countThreads();
+        int blockSize = ParallelCompressedDataGenerator.getBlockSize(algorithm);
+        byte[] data = CompressionTestData.binary(4 * blockSize, 1);
+
+        ParallelCompressedDataGenerator generator = new ParallelCompressedDataGenerator(
+                algorithm, Deflater.DEFAULT_COMPRESSION, 4);
+        OutputStream out = generator.open(new ByteArrayOutputStream());
+        out.write(data);
+        check(countThreads() > before, "compressing threads running");
+        // e.g., reading the input failed, close() is never called
+        generator.abort();
+        waitForThreads(before, "after abort()");
+        generator.abort();
+        try {
+            out.write(data, 0, 1);
+            check(false, "writing after abort() fails");
+        } catch (IOException e) {
+            // expected
+        }
+
+        generator = new ParallelCompressedDataGenerator(algorithm, Deflater.DEFAULT_COMPRESSION,
+                4);
+        out = generator.open(new ByteArrayOutputStream());
+        out.write(data);
+        generator.close();
+        generator.abort();
+        waitForThreads(before, "after close()");
+        System.out.println("Algorithm " + algorithm + ": no threads left after abort() and "
+                + "close()");
+    }
+
+    private static void waitForThreads(int expected, String when) {
+        long end = System.currentTimeMillis() + THREAD_TIMEOUT_MILLIS;
+        // the interrupted threads finish the block they compress
+        while (countThreads() > expected && System.currentTimeMillis() < end) {
+            try {
+                Thread.sleep(50);
+            } catch (InterruptedException e) {
+                throw new IllegalStateException("interrupted");
+            }
+        }
+        check(countThreads() == expected, "threads left " + when);
+    }
+
+    private static int countThreads() {
+        int count = 0;
+        for (Thread thread : Thread.getAllStackTraces().keySet()) {
+            if (thread.isAlive() && thread.getName().startsWith(THREAD_PREFIX)) {
+                ++count;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * @param data
+     * @param algorithm
+     * @param threads
+     * @return data compressed by ParallelCompressedDataGenerator and encrypted with PASSPHRASE,
+     *         written in chunks of random size
+     * @throws IOException
+     * @throws PGPException
+     */
+    static byte[] encrypt(byte[] data, int algorithm, int threads) throws IOException,
+            PGPException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        PGPEncryptedDataGenerator encryptedGenerator = new PGPEncryptedDataGenerator(
+                new JcePGPDataEncryptorBuilder(SymmetricKeyAlgorithmTags.AES_256)
+                        .setProvider(Constants.BOUNCY_CASTLE_PROVIDER_NAME)
+                        .setWithIntegrityPacket(true).setSecureRandom(new SecureRandom()));
+        encryptedGenerator.addMethod(new JcePBEKeyEncryptionMethodGenerator(PASSPHRASE
+                .toCharArray()).setProvider(Constants.BOUNCY_CASTLE_PROVIDER_NAME));
+        OutputStream encryptedOut = encryptedGenerator.open(out, new byte[1 << 16]);
+
+        ParallelCompressedDataGenerator compressedGenerator = new ParallelCompressedDataGenerator(
+                algorithm, Deflater.DEFAULT_COMPRESSION, threads);
+        PGPLiteralDataGenerator literalGenerator = new PGPLiteralDataGenerator();
+        OutputStream literalOut = literalGenerator.open(compressedGenerator.open(encryptedOut),
+                PGPLiteralData.BINARY, "", new Date(), new byte[1 << 16]);
+        int offset = 0;
+        while (offset < data.length) {
+            int count = Math.min(data.length - offset, 1 + sRandom.nextInt(100000));
+            literalOut.write(data, offset, count);
+            offset += count;
+        }
+        literalGenerator.close();
+        compressedGenerator.close();
+        encryptedGenerator.close();
+        return out.toByteArray();
+    }
+
+    /**
+     * @param message
+     * @return data decrypted with PASSPHRASE and decompressed by Bouncy Castle
+     * @throws IOException
+     * @throws PGPException
+     */
+    static byte[] decrypt(byte[] message) throws IOException, PGPException {
+        PGPObjectFactory factory = new PGPObjectFactory(new ByteArrayInputStream(message));
+        PGPPBEEncryptedData encryptedData = (PGPPBEEncryptedData) ((PGPEncryptedDataList) factory
+                .nextObject()).get(0);
+        InputStream clear = encryptedData.getDataStream(new JcePBEDataDecryptorFactoryBuilder(
+                new JcaPGPDigestCalculatorProviderBuilder().setProvider(
+                        Constants.BOUNCY_CASTLE_PROVIDER_NAME).build()).setProvider(
+                Constants.BOUNCY_CASTLE_PROVIDER_NAME).build(PASSPHRASE.toCharArray()));
+
+        PGPCompressedData compressedData = (PGPCompressedData) new PGPObjectFactory(clear)
+                .nextObject();
+        PGPLiteralData literalData = (PGPLiteralData) new PGPObjectFactory(compressedData
+                .getDataStream()).nextObject();
+        byte[] data = CompressionTestData.readAll(literalData.getInputStream());
+        check(encryptedData.verify(), "integrity check");
+        return data;
+    }
+
+    static void check(boolean condition, String what) {
+        if (!condition) {
+            throw new AssertionError("Failed: " + what);
+        }
+    }
+}
@@ -0,0 +1,74 @@
+/*
+ * Copyright (C) 2013 Dominik Schürmann <dominik@dominikschuermann.de>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.util;
+
+import java.security.GeneralSecurityException;
+import java.security.KeyPairGenerator;
+import java.security.SecureRandom;
+import java.security.Security;
+import java.util.Locale;
+
+import org.spongycastle.jce.provider.BouncyCastleProvider;
+import org.sufficientlysecure.keychain.Constants;
+
+/**
+ * Average time to generate RSA key pairs with the generator of Bouncy Castle and with
+ * ParallelRsaKeyPairGenerator on one thread and on several, by default all processors. The time
+ * of a single key varies a lot, so use enough trials.
+ *
+ * Run with test/run.sh org.sufficientlysecure.keychain.util.ParallelRsaKeyPairGeneratorBenchmark
+ * [trials [threads]]
+ */
+public class ParallelRsaKeyPairGeneratorBenchmark {
+    private static final int[] KEY_SIZES = { 2048, 4096 };
+
+    public static void main(String[] args) throws GeneralSecurityException {
+        int trials = (args.length > 0) ? Integer.parseInt(args[0]) : 10;
+        int threads = (args.length > 1) ? Integer.parseInt(args[1]) : Runtime.getRuntime()
+                .availableProcessors();
+        Security.addProvider(new BouncyCastleProvider());
+        SecureRandom random = new SecureRandom();
+
+        for (int keySize : KEY_SIZES) {
+            KeyPairGenerator bc = KeyPairGenerator.getInstance("RSA",
+                    Constants.BOUNCY_CASTLE_PROVIDER_NAME);
+            bc.initialize(keySize, random);
+            long bcMillis = measure(bc, trials);
+
+            ParallelRsaKeyPairGenerator single = new ParallelRsaKeyPairGenerator(1);
+            single.initialize(keySize, random);
+            long singleMillis = measure(single, trials);
+
+            ParallelRsaKeyPairGenerator parallel = new ParallelRsaKeyPairGenerator(threads);
+            parallel.initialize(keySize, random);
+            long parallelMillis = measure(parallel, trials);
+
+            System.out.println(String.format(Locale.US, "%d bits, average of %d keys: BC %d ms, "
+                    + "1 thread %d ms, %d threads %d ms", keySize, trials, bcMillis,
+                    singleMillis, threads, parallelMillis));
+        }
+    }
+
+    private static long measure(KeyPairGenerator generator, int trials) {
+        long start = System.nanoTime();
+        for (int i = 0; i < trials; ++i) {
+            generator.generateKeyPair();
+        }
+        return (System.nanoTime() - start) / 1000000 / trials;
+    }
+}
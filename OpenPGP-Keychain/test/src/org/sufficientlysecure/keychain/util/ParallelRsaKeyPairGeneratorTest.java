@@ -0,0 +1,146 @@
+/*
+ * Copyright (C) 2013 Dominik Schürmann <dominik@dominikschuermann.de>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.util;
+
+import java.math.BigInteger;
+import java.security.GeneralSecurityException;
+import java.security.InvalidAlgorithmParameterException;
+import java.security.KeyPair;
+import java.security.SecureRandom;
+import java.security.Security;
+import java.security.Signature;
+import java.security.interfaces.RSAPrivateCrtKey;
+import java.security.interfaces.RSAPublicKey;
+import java.security.spec.RSAKeyGenParameterSpec;
+
+import org.spongycastle.jce.provider.BouncyCastleProvider;
+import org.sufficientlysecure.keychain.Constants;
+
+/**
+ * Checks the keys of ParallelRsaKeyPairGenerator:
+ * - The modulus has exactly the key size, also for odd sizes, and is the product of two primes
+ *   that differ in at least a third of the bits.
+ * - The public exponent is 65537, the private exponent and CRT values match the primes.
+ * - A signature of the private key is verified with the public key.
+ * - An exception of a worker thread, e.g., of the SecureRandom, is thrown to the caller.
+ * - Other public exponents than 65537 are rejected.
+ *
+ * Run with test/run.sh org.sufficientlysecure.keychain.util.ParallelRsaKeyPairGeneratorTest
+ */
+public class ParallelRsaKeyPairGeneratorTest {
+    private static final int[] KEY_SIZES = { 1024, 1025, 2048 };
+    private static final int[] THREADS = { 1, 4 };
+    private static final int KEYS_PER_CASE = 10;
+    private static final byte[] MESSAGE = "message".getBytes();
+
+    public static void main(String[] args) throws GeneralSecurityException {
+        Security.addProvider(new BouncyCastleProvider());
+
+        for (int keySize : KEY_SIZES) {
+            for (int threads : THREADS) {
+                ParallelRsaKeyPairGenerator generator = new ParallelRsaKeyPairGenerator(threads);
+                generator.initialize(keySize, new SecureRandom());
+                for (int i = 0; i < KEYS_PER_CASE; ++i) {
+                    checkKeyPair(generator.generateKeyPair(), keySize);
+                }
+                System.out.println(KEYS_PER_CASE + " keys of " + keySize + " bits on " + threads
+                        + " threads valid");
+            }
+        }
+
+        checkRandomFailure();
+        checkPublicExponent();
+        System.out.println("OK");
+    }
+
+    private static void checkKeyPair(KeyPair keyPair, int keySize)
+            throws GeneralSecurityException {
+        RSAPrivateCrtKey key = (RSAPrivateCrtKey) keyPair.getPrivate();
+        RSAPublicKey publicKey = (RSAPublicKey) keyPair.getPublic();
+        BigInteger n = key.getModulus();
+        BigInteger p = key.getPrimeP();
+        BigInteger q = key.getPrimeQ();
+        BigInteger e = key.getPublicExponent();
+        BigInteger d = key.getPrivateExponent();
+
+        check(n.bitLength() == keySize, "modulus of " + n.bitLength() + " bits");
+        check(p.multiply(q).equals(n), "n = p * q");
+        check(p.isProbablePrime(64) && q.isProbablePrime(64), "p and q prime");
+        check(p.subtract(q).abs().bitLength() >= keySize / 3, "p and q far apart");
+        check(e.equals(RSAKeyGenParameterSpec.F4) && publicKey.getPublicExponent().equals(e),
+                "public exponent 65537");
+        check(publicKey.getModulus().equals(n), "public modulus");
+
+        BigInteger pSub1 = p.subtract(BigInteger.ONE);
+        BigInteger qSub1 = q.subtract(BigInteger.ONE);
+        check(e.multiply(d).mod(pSub1).equals(BigInteger.ONE)
+                && e.multiply(d).mod(qSub1).equals(BigInteger.ONE), "e * d = 1 mod p-1, q-1");
+        check(key.getPrimeExponentP().equals(d.mod(pSub1))
+                && key.getPrimeExponentQ().equals(d.mod(qSub1))
+                && key.getCrtCoefficient().equals(q.modInverse(p)), "CRT values");
+
+        Signature signature = Signature.getInstance("SHA256withRSA",
+                Constants.BOUNCY_CASTLE_PROVIDER_NAME);
+        signature.initSign(key);
+        signature.update(MESSAGE);
+        byte[] signed = signature.sign();
+        signature.initVerify(publicKey);
+        signature.update(MESSAGE);
+        check(signature.verify(signed), "signature verified");
+    }
+
+    private static void checkRandomFailure() {
+        ParallelRsaKeyPairGenerator generator = new ParallelRsaKeyPairGenerator(4);
+        generator.initialize(1024, new SecureRandom() {
+            private static final long serialVersionUID = 1L;
+            private int mCalls = 0;
+
+            @Override
+            public synchronized void nextBytes(byte[] bytes) {
+                if (++mCalls > 2) {
+                    throw new IllegalStateException("no entropy");
+                }
+                super.nextBytes(bytes);
+            }
+        });
+        try {
+            generator.generateKeyPair();
+            check(false, "exception of a worker thrown");
+        } catch (IllegalStateException e) {
+            check("no entropy".equals(e.getMessage()), "exception of a worker thrown, not " + e);
+            System.out.println("Exception of a worker thrown: " + e.getMessage());
+        }
+    }
+
+    private static void checkPublicExponent() {
+        ParallelRsaKeyPairGenerator generator = new ParallelRsaKeyPairGenerator(4);
+        try {
+            generator.initialize(new RSAKeyGenParameterSpec(1024, BigInteger.valueOf(3)),
+                    new SecureRandom());
+            check(false, "public exponent 3 rejected");
+        } catch (InvalidAlgorithmParameterException e) {
+            System.out.println("Public exponent 3 rejected: " + e.getMessage());
+        }
+    }
+
+    private static void check(boolean condition, String what) {
+        if (!condition) {
+            throw new AssertionError("Failed: " + what);
+        }
+    }
+}